@@ -0,0 +1,915 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.adapter.gsa.GSAItemDescriptor;
+import atg.adapter.gsa.GSAPropertyDescriptor;
+import atg.adapter.gsa.GSARepository;
+import atg.adapter.gsa.Table;
+import atg.adapter.gsa.TableColumns;
+import atg.dtm.TransactionDemarcation;
+import atg.dtm.TransactionDemarcationException;
+import atg.repository.RepositoryException;
+import atg.repository.RepositoryItem;
+import atg.repository.RepositoryItemDescriptor;
+import atg.repository.RepositoryPropertyDescriptor;
+import atg.tools.dynunit.util.PropertyDescriptorUtil;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Imports GSA import files by writing rows straight into the repository tables instead of
+ * creating every item through the repository API as the {@code TemplateParser} does.
+ * <p/>
+ * The files are read with {@link ImportFileReader}, each item is mapped onto the tables of its
+ * item descriptor, and the rows are inserted with batched prepared statements, table by table,
+ * in an order where referenced tables come first. The repository caches are invalidated
+ * afterwards so nothing stale remains.
+ * <p/>
+ * Repository logic is bypassed: property defaults, derived properties and property listeners
+ * do not apply. The sub-type column is filled from the sub-type value of the item descriptor.
+ * Enable {@link #setValidate(boolean) validation} to read every imported item back through the
+ * repository and compare it with the import file. Files using anything but plain
+ * {@code add-item} elements, enumerated or binary properties, or dates that cannot be parsed
+ * raise an {@link UnsupportedOperationException} before a row is written, so callers can fall
+ * back to the {@code TemplateParser}.
+ */
+public class BulkImporter {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private static final String[] DATE_FORMATS = {
+            "MM/dd/yyyy HH:mm:ss",
+            "MM/dd/yyyy HH:mm",
+            "MM/dd/yyyy",
+            "yyyy-MM-dd HH:mm:ss",
+            "yyyy-MM-dd"
+    };
+
+    private final GSARepository repository;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private boolean validate = false;
+
+    private final Map<String, DescriptorMapping> mappings = new HashMap<String, DescriptorMapping>();
+
+    // rows per table and column layout, in the order tables were first seen
+    private final Map<String, Map<List<String>, List<Object[]>>> rows = new LinkedHashMap<String, Map<List<String>, List<Object[]>>>();
+
+    // referencing table -> tables it references
+    private final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+
+    private final List<ImportFileReader.Item> items = new ArrayList<ImportFileReader.Item>();
+
+    // names of the item descriptors seen in the current import
+    private final Set<String> imported = new HashSet<String>();
+
+    public BulkImporter(@NotNull GSARepository pRepository) {
+        repository = pRepository;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of rows sent to the database in one batch. default: 500
+     */
+    public void setBatchSize(int pBatchSize) {
+        batchSize = Math.max(1, pBatchSize);
+    }
+
+    public boolean isValidate() {
+        return validate;
+    }
+
+    /**
+     * Sets whether every imported item should be loaded through the repository afterwards and
+     * compared against the import file. default: false
+     */
+    public void setValidate(boolean pValidate) {
+        validate = pValidate;
+    }
+
+    /**
+     * Imports the given files in one transaction.
+     *
+     * @return the number of imported items.
+     *
+     * @throws UnsupportedOperationException
+     *         if one of the files cannot be bulk imported. Nothing has been written then.
+     * @throws RepositoryException
+     *         if reading the files, writing the rows or validating the result failed.
+     */
+    public int importFiles(@NotNull String... pFiles)
+            throws RepositoryException {
+        clear();
+        try {
+            for (String file : pFiles) {
+                readFile(new File(file));
+            }
+            logger.info("Bulk importing {} items into {} tables of {}",
+                        items.size(), rows.size(), repository.getRepositoryName());
+            writeRows();
+            repository.invalidateCaches();
+            if (validate) {
+                validateItems();
+            }
+            return items.size();
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Imports items as they are produced, e.g. by a {@link RepositoryDataGenerator}, committing
+     * a transaction every pItemsPerTransaction items so that only that many items are held in
+     * memory. Referenced items should come before the items referencing them if the tables have
+     * foreign keys.
+     *
+     * @return the number of imported items.
+     *
+     * @throws UnsupportedOperationException
+     *         if an item cannot be bulk imported. Earlier transactions remain committed.
+     * @throws RepositoryException
+     *         if writing the rows or validating the result failed.
+     */
+    public long importItems(@NotNull Iterator<ImportFileReader.Item> pItems, int pItemsPerTransaction)
+            throws RepositoryException {
+        clear();
+        long count = 0;
+        try {
+            while (pItems.hasNext()) {
+                addItem(pItems.next());
+                count++;
+                if (items.size() >= pItemsPerTransaction) {
+                    flush();
+                    logger.debug("Bulk imported {} items into {}", count, repository.getRepositoryName());
+                }
+            }
+            flush();
+            repository.invalidateCaches();
+            logger.info("Bulk imported {} items into {}", count, repository.getRepositoryName());
+            return count;
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Writes and forgets the rows read so far, keeping the table dependencies.
+     */
+    private void flush()
+            throws RepositoryException {
+        if (items.isEmpty()) {
+            return;
+        }
+        writeRows();
+        if (validate) {
+            repository.invalidateCaches();
+            validateItems();
+        }
+        rows.clear();
+        items.clear();
+    }
+
+    private void clear() {
+        rows.clear();
+        dependencies.clear();
+        items.clear();
+        imported.clear();
+    }
+
+    private void readFile(File pFile)
+            throws RepositoryException {
+        InputStream in = null;
+        ImportFileReader reader = null;
+        try {
+            in = new FileInputStream(pFile);
+            reader = new ImportFileReader(in, pFile.getPath(), repository.getAbsoluteName());
+            ImportFileReader.Item item;
+            while ((item = reader.next()) != null) {
+                addItem(item);
+            }
+        } catch (IOException e) {
+            throw new RepositoryException("Unable to read import file " + pFile, e);
+        } catch (XMLStreamException e) {
+            throw new RepositoryException("Unable to parse import file " + pFile, e);
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void addItem(ImportFileReader.Item pItem)
+            throws RepositoryException {
+        final DescriptorMapping mapping = getMapping(pItem);
+        final String[] id = mapping.splitId(pItem.getId());
+        final Map<String, Map<String, Object>> singleRows = new LinkedHashMap<String, Map<String, Object>>();
+        // the primary table always gets a row, even for an item without properties
+        singleRows.put(mapping.primaryTable, mapping.newRow(mapping.primaryTable, id));
+        if (mapping.subTypeTable != null) {
+            Map<String, Object> row = singleRows.get(mapping.subTypeTable);
+            if (row == null) {
+                row = mapping.newRow(mapping.subTypeTable, id);
+                singleRows.put(mapping.subTypeTable, row);
+            }
+            row.put(mapping.subTypeColumn, mapping.subTypeValue);
+        }
+        for (Map.Entry<String, String> property : pItem.getProperties().entrySet()) {
+            if (property.getKey().equals(mapping.subTypeProperty)) {
+                // implied by the item descriptor and written above
+                continue;
+            }
+            final PropertyMapping target = mapping.properties.get(property.getKey());
+            if (target == null) {
+                throw new UnsupportedOperationException(
+                        pItem.getLocation() + ": property " + property.getKey()
+                        + " of " + pItem.getDescriptor() + " is not stored in a table"
+                );
+            }
+            if (target.unsupported != null) {
+                throw new UnsupportedOperationException(
+                        pItem.getLocation() + ": property " + property.getKey()
+                        + " of " + pItem.getDescriptor() + " is " + target.unsupported
+                );
+            }
+            final String value = property.getValue();
+            if (!target.multi) {
+                Map<String, Object> row = singleRows.get(target.table);
+                if (row == null) {
+                    row = mapping.newRow(target.table, id);
+                    singleRows.put(target.table, row);
+                }
+                row.put(target.column, value.length() == 0 ? null : target.parse(value, pItem));
+                continue;
+            }
+            int index = 0;
+            for (String element : ImportFileReader.splitValues(value)) {
+                final Map<String, Object> row = mapping.newRow(target.table, id);
+                if (target.map) {
+                    final int separator = element.indexOf('=');
+                    if (separator < 0) {
+                        throw new UnsupportedOperationException(
+                                pItem.getLocation() + ": map entry without key: " + element
+                        );
+                    }
+                    row.put(target.keyColumn, element.substring(0, separator).trim());
+                    element = element.substring(separator + 1).trim();
+                } else if (target.keyColumn != null) {
+                    row.put(target.keyColumn, index++);
+                }
+                row.put(target.column, target.parse(element, pItem));
+                addRow(target.table, row);
+            }
+        }
+        for (Map.Entry<String, Map<String, Object>> row : singleRows.entrySet()) {
+            addRow(row.getKey(), row.getValue());
+        }
+        items.add(pItem);
+    }
+
+    private void addRow(String pTable, Map<String, Object> pRow) {
+        Map<List<String>, List<Object[]>> layouts = rows.get(pTable);
+        if (layouts == null) {
+            layouts = new LinkedHashMap<List<String>, List<Object[]>>();
+            rows.put(pTable, layouts);
+        }
+        final List<String> columns = new ArrayList<String>(pRow.keySet());
+        List<Object[]> values = layouts.get(columns);
+        if (values == null) {
+            values = new ArrayList<Object[]>();
+            layouts.put(columns, values);
+        }
+        values.add(pRow.values().toArray());
+    }
+
+    private DescriptorMapping getMapping(ImportFileReader.Item pItem)
+            throws RepositoryException {
+        DescriptorMapping mapping = mappings.get(pItem.getDescriptor());
+        if (mapping == null) {
+            final RepositoryItemDescriptor descriptor = repository.getItemDescriptor(pItem.getDescriptor());
+            if (descriptor == null) {
+                throw new RepositoryException(
+                        pItem.getLocation() + ": unknown item descriptor " + pItem.getDescriptor()
+                );
+            }
+            mapping = new DescriptorMapping((GSAItemDescriptor) descriptor);
+            mappings.put(pItem.getDescriptor(), mapping);
+        }
+        // dependencies are recorded per import as they only matter for tables we write to
+        if (imported.add(pItem.getDescriptor())) {
+            addDependencies(mapping);
+        }
+        return mapping;
+    }
+
+    private void addDependencies(DescriptorMapping pMapping)
+            throws RepositoryException {
+        for (PropertyMapping property : pMapping.properties.values()) {
+            if (property.referencedDescriptor != null) {
+                final DescriptorMapping referenced = getMapping(property.referencedDescriptor);
+                if (referenced != null && !referenced.primaryTable.equals(property.table)) {
+                    addDependency(property.table, referenced.primaryTable);
+                }
+            }
+        }
+        for (String table : pMapping.tables.keySet()) {
+            if (!table.equals(pMapping.primaryTable)) {
+                addDependency(table, pMapping.primaryTable);
+            }
+        }
+    }
+
+    @Nullable
+    private DescriptorMapping getMapping(String pDescriptorName)
+            throws RepositoryException {
+        DescriptorMapping mapping = mappings.get(pDescriptorName);
+        if (mapping == null) {
+            final RepositoryItemDescriptor descriptor = repository.getItemDescriptor(pDescriptorName);
+            if (!(descriptor instanceof GSAItemDescriptor)) {
+                return null;
+            }
+            mapping = new DescriptorMapping((GSAItemDescriptor) descriptor);
+            mappings.put(pDescriptorName, mapping);
+        }
+        return mapping;
+    }
+
+    private void addDependency(String pTable, String pReferencedTable) {
+        Set<String> referenced = dependencies.get(pTable);
+        if (referenced == null) {
+            referenced = new LinkedHashSet<String>();
+            dependencies.put(pTable, referenced);
+        }
+        referenced.add(pReferencedTable);
+    }
+
+    /**
+     * Returns the tables of the item descriptors, ordered so that referenced tables come before
+     * the tables referencing them. Primary tables come first otherwise.
+     */
+    @NotNull
+    List<String> getTableOrder(@NotNull String... pDescriptorNames)
+            throws RepositoryException {
+        clear();
+        try {
+            final Set<String> primary = new LinkedHashSet<String>();
+            final Set<String> others = new LinkedHashSet<String>();
+            for (String name : pDescriptorNames) {
+                final DescriptorMapping mapping = getMapping(name);
+                if (mapping == null) {
+                    continue;
+                }
+                addDependencies(mapping);
+                for (String table : mapping.tables.keySet()) {
+                    (table.equals(mapping.primaryTable) ? primary : others).add(table);
+                }
+            }
+            others.removeAll(primary);
+            primary.addAll(others);
+            return orderTables(primary);
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Orders the tables so that referenced tables are written before the tables referencing
+     * them. Tables taking part in a cycle keep the order they were first seen in.
+     */
+    private List<String> orderTables(Collection<String> pTables) {
+        final List<String> ordered = new ArrayList<String>(pTables.size());
+        final Set<String> pending = new LinkedHashSet<String>(pTables);
+        while (!pending.isEmpty()) {
+            boolean progress = false;
+            for (String table : new ArrayList<String>(pending)) {
+                final Set<String> referenced = dependencies.get(table);
+                boolean ready = true;
+                if (referenced != null) {
+                    for (String other : referenced) {
+                        if (!other.equals(table) && pending.contains(other)) {
+                            ready = false;
+                            break;
+                        }
+                    }
+                }
+                if (ready) {
+                    ordered.add(table);
+                    pending.remove(table);
+                    progress = true;
+                }
+            }
+            if (!progress) {
+                logger.warn("Tables {} reference each other; keeping the order they were seen in", pending);
+                ordered.addAll(pending);
+                break;
+            }
+        }
+        return ordered;
+    }
+
+    private void writeRows()
+            throws RepositoryException {
+        final TransactionDemarcation td = new TransactionDemarcation();
+        boolean success = false;
+        Connection connection = null;
+        try {
+            td.begin(repository.getTransactionManager());
+            connection = repository.getDataSource().getConnection();
+            for (String table : orderTables(rows.keySet())) {
+                for (Map.Entry<List<String>, List<Object[]>> layout : rows.get(table).entrySet()) {
+                    insertRows(connection, table, layout.getKey(), layout.getValue());
+                }
+            }
+            success = true;
+        } catch (TransactionDemarcationException e) {
+            throw new RepositoryException("Unable to demarcate bulk import transaction", e);
+        } catch (SQLException e) {
+            throw new RepositoryException("Bulk import into " + repository.getRepositoryName() + " failed", e);
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    logger.catching(e);
+                }
+            }
+            try {
+                td.end(!success);
+            } catch (TransactionDemarcationException e) {
+                logger.catching(e);
+            }
+        }
+    }
+
+    private void insertRows(Connection pConnection, String pTable, List<String> pColumns, List<Object[]> pRows)
+            throws SQLException {
+        final int[] types = getColumnTypes(pConnection, pTable, pColumns);
+        final StringBuilder sql = new StringBuilder("INSERT INTO ").append(pTable).append(" (");
+        final StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < pColumns.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+                parameters.append(", ");
+            }
+            sql.append(pColumns.get(i));
+            parameters.append('?');
+        }
+        sql.append(") VALUES (").append(parameters).append(')');
+        logger.debug("{} rows: {}", pRows.size(), sql);
+        final PreparedStatement statement = pConnection.prepareStatement(sql.toString());
+        try {
+            int pending = 0;
+            for (Object[] row : pRows) {
+                for (int i = 0; i < row.length; i++) {
+                    final Object value = convert(row[i], types[i], pTable + "." + pColumns.get(i));
+                    if (value == null) {
+                        statement.setNull(i + 1, types[i]);
+                    } else {
+                        statement.setObject(i + 1, value, types[i]);
+                    }
+                }
+                statement.addBatch();
+                if (++pending == batchSize) {
+                    statement.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                statement.executeBatch();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static int[] getColumnTypes(Connection pConnection, String pTable, List<String> pColumns)
+            throws SQLException {
+        final DatabaseMetaData metaData = pConnection.getMetaData();
+        final Map<String, Integer> types = new HashMap<String, Integer>();
+        for (String name : new LinkedHashSet<String>(Arrays.asList(pTable, pTable.toUpperCase(), pTable.toLowerCase()))) {
+            final ResultSet columns = metaData.getColumns(null, null, name, null);
+            try {
+                while (columns.next()) {
+                    types.put(columns.getString("COLUMN_NAME").toUpperCase(), columns.getInt("DATA_TYPE"));
+                }
+            } finally {
+                columns.close();
+            }
+            if (!types.isEmpty()) {
+                break;
+            }
+        }
+        final int[] result = new int[pColumns.size()];
+        for (int i = 0; i < result.length; i++) {
+            final Integer type = types.get(pColumns.get(i).toUpperCase());
+            result[i] = type == null ? Types.VARCHAR : type;
+        }
+        return result;
+    }
+
+    /**
+     * Converts a raw import file value into the object bound for a column of the given JDBC
+     * type.
+     */
+    @Nullable
+    static Object convert(@Nullable Object pValue, int pType, String pColumn)
+            throws SQLException {
+        if (!(pValue instanceof String)) {
+            return pValue;
+        }
+        final String value = (String) pValue;
+        try {
+            switch (pType) {
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    return "1".equals(value) || Boolean.parseBoolean(value);
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.BIGINT:
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                case Types.REAL:
+                case Types.FLOAT:
+                case Types.DOUBLE:
+                    if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+                        return Boolean.parseBoolean(value) ? BigDecimal.ONE : BigDecimal.ZERO;
+                    }
+                    return new BigDecimal(value);
+                case Types.DATE:
+                case Types.TIME:
+                case Types.TIMESTAMP:
+                    return new Timestamp(parseDate(value).getTime());
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                case Types.BLOB:
+                    throw new SQLException("Binary column " + pColumn + " cannot be bulk imported");
+                default:
+                    return value;
+            }
+        } catch (NumberFormatException e) {
+            throw new SQLException("Value '" + value + "' of " + pColumn + " is not a number", e);
+        } catch (ParseException e) {
+            throw new SQLException("Value '" + value + "' of " + pColumn + " is not a date", e);
+        }
+    }
+
+    static Date parseDate(String pValue)
+            throws ParseException {
+        for (String format : DATE_FORMATS) {
+            final SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+            dateFormat.setLenient(false);
+            try {
+                return dateFormat.parse(pValue);
+            } catch (ParseException e) {
+                // try the next one
+            }
+        }
+        try {
+            return new Date(Long.parseLong(pValue));
+        } catch (NumberFormatException e) {
+            throw new ParseException(pValue, 0);
+        }
+    }
+
+    private void validateItems()
+            throws RepositoryException {
+        final List<String> mismatches = new ArrayList<String>();
+        for (ImportFileReader.Item item : items) {
+            final RepositoryItem loaded = repository.getItem(item.getId(), item.getDescriptor());
+            if (loaded == null) {
+                mismatches.add(item.getLocation() + ": " + item + " not found");
+                continue;
+            }
+            for (Map.Entry<String, String> property : item.getProperties().entrySet()) {
+                final Object actual = loaded.getPropertyValue(property.getKey());
+                if (!matches(property.getValue(), actual)) {
+                    mismatches.add(item.getLocation() + ": " + item + "." + property.getKey()
+                                   + " expected <" + property.getValue() + "> but was <" + actual + ">");
+                }
+            }
+        }
+        if (!mismatches.isEmpty()) {
+            final int shown = Math.min(mismatches.size(), 20);
+            final StringBuilder message = new StringBuilder("Bulk import of ")
+                    .append(repository.getRepositoryName()).append(" differs from the repository in ")
+                    .append(mismatches.size()).append(" values:");
+            for (String mismatch : mismatches.subList(0, shown)) {
+                message.append("\n  ").append(mismatch);
+            }
+            throw new RepositoryException(message.toString());
+        }
+        logger.info("Validated {} bulk imported items", items.size());
+    }
+
+    static boolean matches(String pExpected, @Nullable Object pActual) {
+        if (pActual == null) {
+            return pExpected.length() == 0;
+        }
+        if (pActual instanceof Map) {
+            final Set<String> actual = new TreeSet<String>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) pActual).entrySet()) {
+                actual.add(entry.getKey() + "=" + normalize(entry.getValue()));
+            }
+            final Set<String> expected = new TreeSet<String>();
+            for (String entry : ImportFileReader.splitValues(pExpected)) {
+                final int separator = entry.indexOf('=');
+                expected.add(entry.substring(0, separator).trim() + "=" + entry.substring(separator + 1).trim());
+            }
+            return expected.equals(actual);
+        }
+        if (pActual instanceof Collection || pActual instanceof Object[]) {
+            final Collection<?> elements = pActual instanceof Collection
+                    ? (Collection<?>) pActual
+                    : Arrays.asList((Object[]) pActual);
+            final List<String> actual = new ArrayList<String>(elements.size());
+            for (Object element : elements) {
+                actual.add(normalize(element));
+            }
+            final List<String> expected = ImportFileReader.splitValues(pExpected);
+            if (pActual instanceof Set) {
+                return new TreeSet<String>(expected).equals(new TreeSet<String>(actual));
+            }
+            return expected.equals(actual);
+        }
+        if (pActual instanceof Date) {
+            try {
+                return parseDate(pExpected).getTime() == ((Date) pActual).getTime();
+            } catch (ParseException e) {
+                return false;
+            }
+        }
+        if (pActual instanceof Number) {
+            try {
+                return new BigDecimal(pExpected).compareTo(new BigDecimal(pActual.toString())) == 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        if (pActual instanceof Boolean) {
+            return pActual.equals("1".equals(pExpected) || Boolean.parseBoolean(pExpected));
+        }
+        return pExpected.equals(normalize(pActual));
+    }
+
+    private static String normalize(Object pValue) {
+        if (pValue instanceof RepositoryItem) {
+            return ((RepositoryItem) pValue).getRepositoryId();
+        }
+        return String.valueOf(pValue);
+    }
+
+    /**
+     * Where the tables and properties of one item descriptor live.
+     */
+    private class DescriptorMapping {
+
+        private final String primaryTable;
+
+        // table name -> id columns
+        private final Map<String, List<String>> tables = new LinkedHashMap<String, List<String>>();
+
+        private final Map<String, PropertyMapping> properties = new HashMap<String, PropertyMapping>();
+
+        private final String idSeparator;
+
+        // the property telling sub-types apart, and where and how this descriptor's value is stored
+        @Nullable
+        private final String subTypeProperty;
+
+        @Nullable
+        private final String subTypeTable;
+
+        @Nullable
+        private final String subTypeColumn;
+
+        @Nullable
+        private final Object subTypeValue;
+
+        DescriptorMapping(GSAItemDescriptor pDescriptor)
+                throws RepositoryException {
+            String primary = null;
+            final Map<String, String> multiColumns = new HashMap<String, String>();
+            for (Table table : pDescriptor.getTables()) {
+                final TableColumns columns = new TableColumns(table, repository.getDatabaseTableInfo());
+                table.collectColumnsForName(columns);
+                final AccessibleTableColumns accessible = new AccessibleTableColumns(columns);
+                final String multiColumn = accessible.getMultiColumnName();
+                final List<String> idColumns = new ArrayList<String>();
+                for (Object key : accessible.getPrimaryKeys()) {
+                    if (!key.equals(multiColumn)) {
+                        idColumns.add(key.toString());
+                    }
+                }
+                tables.put(table.getName(), idColumns);
+                if (multiColumn != null) {
+                    multiColumns.put(table.getName(), multiColumn);
+                }
+                if (table.isPrimaryTable()) {
+                    primary = table.getName();
+                }
+            }
+            if (primary == null) {
+                throw new RepositoryException("Item descriptor " + pDescriptor.getItemDescriptorName()
+                                              + " has no primary table");
+            }
+            primaryTable = primary;
+            final String separator = pDescriptor.getIdSeparator();
+            idSeparator = separator == null ? ":" : separator;
+            for (String name : pDescriptor.getPropertyNames()) {
+                final RepositoryPropertyDescriptor property =
+                        (RepositoryPropertyDescriptor) pDescriptor.getPropertyDescriptor(name);
+                if (!(property instanceof GSAPropertyDescriptor)) {
+                    continue;
+                }
+                final GSAPropertyDescriptor gsaProperty = (GSAPropertyDescriptor) property;
+                final Table table = gsaProperty.getTable();
+                final String[] columns = gsaProperty.getColumnNames();
+                if (table == null || columns == null || columns.length != 1) {
+                    // transient, derived or composite properties stay with the TemplateParser
+                    continue;
+                }
+                final RepositoryItemDescriptor referenced = property.getComponentItemDescriptor() != null
+                        ? property.getComponentItemDescriptor()
+                        : property.getPropertyItemDescriptor();
+                final Class type = property.getPropertyType();
+                final Class elementType = table.isMultiTable() ? property.getComponentPropertyType() : type;
+                String unsupported = null;
+                if (PropertyDescriptorUtil.getEnumeratedValues(property) != null) {
+                    unsupported = "enumerated";
+                } else if (elementType == byte[].class) {
+                    unsupported = "binary";
+                }
+                properties.put(name, new PropertyMapping(
+                        table.getName(),
+                        columns[0],
+                        multiColumns.get(table.getName()),
+                        table.isMultiTable(),
+                        type != null && Map.class.isAssignableFrom(type),
+                        referenced == null ? null : referenced.getItemDescriptorName(),
+                        elementType != null && Date.class.isAssignableFrom(elementType),
+                        unsupported
+                ));
+            }
+            final String subTypeName = pDescriptor.getSubTypeProperty();
+            final Object subType = pDescriptor.getSubTypeValue();
+            final PropertyMapping subTypeMapping = subTypeName == null ? null : properties.get(subTypeName);
+            if (subType == null || subTypeMapping == null || subTypeMapping.multi) {
+                subTypeProperty = null;
+                subTypeTable = null;
+                subTypeColumn = null;
+                subTypeValue = null;
+            } else {
+                // converts the tag of an enumerated sub-type property into the code stored
+                final GSAPropertyDescriptor property =
+                        (GSAPropertyDescriptor) pDescriptor.getPropertyDescriptor(subTypeName);
+                subTypeProperty = subTypeName;
+                subTypeTable = subTypeMapping.table;
+                subTypeColumn = subTypeMapping.column;
+                subTypeValue = property.realToRaw(subType);
+            }
+        }
+
+        String[] splitId(String pId) {
+            final int count = tables.get(primaryTable).size();
+            if (count <= 1) {
+                return new String[]{ pId };
+            }
+            final String[] parts = pId.split(Pattern.quote(idSeparator), count);
+            if (parts.length != count) {
+                throw new UnsupportedOperationException(
+                        "Id " + pId + " does not have " + count + " parts separated by " + idSeparator
+                );
+            }
+            return parts;
+        }
+
+        Map<String, Object> newRow(String pTable, String[] pId) {
+            final Map<String, Object> row = new LinkedHashMap<String, Object>();
+            final List<String> idColumns = tables.get(pTable);
+            for (int i = 0; i < idColumns.size() && i < pId.length; i++) {
+                row.put(idColumns.get(i), pId[i]);
+            }
+            return row;
+        }
+    }
+
+    /**
+     * The column a property is stored in.
+     */
+    private static class PropertyMapping {
+
+        private final String table;
+
+        private final String column;
+
+        // index or key column of multi tables, null for sets
+        @Nullable
+        private final String keyColumn;
+
+        private final boolean multi;
+
+        private final boolean map;
+
+        @Nullable
+        private final String referencedDescriptor;
+
+        private final boolean date;
+
+        // why the property cannot be bulk imported, null if it can
+        @Nullable
+        private final String unsupported;
+
+        PropertyMapping(String pTable,
+                        String pColumn,
+                        @Nullable String pKeyColumn,
+                        boolean pMulti,
+                        boolean pMap,
+                        @Nullable String pReferencedDescriptor,
+                        boolean pDate,
+                        @Nullable String pUnsupported) {
+            table = pTable;
+            column = pColumn;
+            keyColumn = pKeyColumn;
+            multi = pMulti;
+            map = pMap;
+            referencedDescriptor = pReferencedDescriptor;
+            date = pDate;
+            unsupported = pUnsupported;
+        }
+
+        /**
+         * Returns the value to write for a single value of the import file. Dates are parsed
+         * here rather than when writing so that a bad one stops the import before any row is
+         * written.
+         */
+        Object parse(String pValue, ImportFileReader.Item pItem) {
+            if (!date) {
+                return pValue;
+            }
+            try {
+                return new Timestamp(parseDate(pValue).getTime());
+            } catch (ParseException e) {
+                throw new UnsupportedOperationException(
+                        pItem.getLocation() + ": value '" + pValue + "' of " + table + "." + column
+                        + " is not a date"
+                );
+            }
+        }
+    }
+}
@@ -0,0 +1,698 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.adapter.gsa.GSAItemDescriptor;
+import atg.adapter.gsa.GSARepository;
+import atg.nucleus.ServiceException;
+import atg.repository.MutableRepositoryItem;
+import atg.repository.RepositoryException;
+import atg.repository.RepositoryItem;
+import atg.repository.RepositoryPropertyDescriptor;
+import atg.tools.dynunit.test.util.LatencyHistogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Simulates a cluster of servers sharing a database in one JVM to measure how the cache modes
+ * keep the item caches of the servers coherent under concurrent writes. The repository is
+ * {@link GSATestUtils#duplicateRepository(GSARepository, DataSource, String, boolean) duplicated}
+ * into further nodes over the same data source, each with its own caches. Writer threads update
+ * a string property of a fixed set of items through the nodes while reader threads read the
+ * items on every node and count the reads which returned an older value than the last one
+ * committed before the read started. Each item is written by one writer only, which stores an
+ * increasing version number in the property, so a value committed while the read was running
+ * is never mistaken for a stale one:
+ * <pre>
+ * CacheCoherenceBenchmark benchmark = new CacheCoherenceBenchmark(this, repository, "user");
+ * benchmark.setNodes(3);
+ * for (CacheCoherenceBenchmark.Result result : benchmark.run().values()) {
+ *     logger.info(result);
+ * }
+ * </pre>
+ * The repositories themselves keep the cache mode of their definition, which should be
+ * <code>simple</code>; the cluster protocol of each {@link CacheMode} is played by an
+ * {@link InvalidationChannel} and, for {@link CacheMode#LOCKED}, a lock per item standing in
+ * for the lock manager.
+ */
+public class CacheCoherenceBenchmark {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    public static enum CacheMode {
+        /**
+         * No invalidation, other nodes keep serving their cached values.
+         */
+        SIMPLE,
+        /**
+         * Writers hold an exclusive lock on the item, which readers on all nodes need too, until
+         * the item was removed from the caches of the other nodes.
+         */
+        LOCKED,
+        /**
+         * Writers publish invalidations which are delivered to the other nodes asynchronously.
+         */
+        DISTRIBUTED
+    }
+
+    private final GSATest test;
+
+    private final GSARepository repository;
+
+    private final String itemDescriptor;
+
+    @Nullable
+    private DataSource dataSource;
+
+    private int nodes = 2;
+
+    private int writers = 2;
+
+    private int readersPerNode = 2;
+
+    private int items = 100;
+
+    private long warmUpMillis = 2000;
+
+    private long durationMillis = 10000;
+
+    private long seed = 42;
+
+    /**
+     * @param pTest
+     *         test whose dummy values are used to create the items, or null for the defaults
+     *         of {@link GSATest}.
+     */
+    public CacheCoherenceBenchmark(@Nullable GSATest pTest,
+                                   @NotNull GSARepository pRepository,
+                                   @NotNull String pItemDescriptor) {
+        test = pTest == null ? new GSATest() : pTest;
+        repository = pRepository;
+        itemDescriptor = pItemDescriptor;
+    }
+
+    @Nullable
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Sets the data source of the duplicated nodes. Default: the data source of the repository
+     */
+    public void setDataSource(@Nullable DataSource pDataSource) {
+        dataSource = pDataSource;
+    }
+
+    public int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Sets the number of repositories including the original one. Default: 2
+     */
+    public void setNodes(int pNodes) {
+        if (pNodes < 2) {
+            throw new IllegalArgumentException("At least 2 nodes needed, not " + pNodes);
+        }
+        nodes = pNodes;
+    }
+
+    public int getWriters() {
+        return writers;
+    }
+
+    /**
+     * Sets the number of writer threads, spread over the nodes. Each writes its own share of
+     * the items. Default: 2
+     */
+    public void setWriters(int pWriters) {
+        writers = pWriters;
+    }
+
+    public int getReadersPerNode() {
+        return readersPerNode;
+    }
+
+    /**
+     * Sets the number of reader threads on each node. Default: 2
+     */
+    public void setReadersPerNode(int pReadersPerNode) {
+        readersPerNode = pReadersPerNode;
+    }
+
+    public int getItems() {
+        return items;
+    }
+
+    /**
+     * Sets the number of items created, read and written. Default: 100
+     */
+    public void setItems(int pItems) {
+        items = pItems;
+    }
+
+    public long getWarmUpMillis() {
+        return warmUpMillis;
+    }
+
+    /**
+     * Sets how long each cache mode runs before it is measured. Default: 2000
+     */
+    public void setWarmUpMillis(long pWarmUpMillis) {
+        warmUpMillis = pWarmUpMillis;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Sets how long each cache mode is measured. Default: 10000
+     */
+    public void setDurationMillis(long pDurationMillis) {
+        durationMillis = pDurationMillis;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets the seed from which each thread derives the items it picks. Default: 42
+     */
+    public void setSeed(long pSeed) {
+        seed = pSeed;
+    }
+
+    // -----------------------------
+
+    /**
+     * Runs all cache modes.
+     *
+     * @see #run(CacheMode...)
+     */
+    @NotNull
+    public Map<CacheMode, Result> run()
+            throws RepositoryException, ServiceException, InterruptedException {
+        return run(CacheMode.values());
+    }
+
+    /**
+     * Duplicates the repository, creates the items and runs the given cache modes one after
+     * the other on the same nodes and items. The duplicates are stopped and unbound afterwards.
+     *
+     * @return the measurements of each mode.
+     *
+     * @throws RepositoryException
+     *         if the items cannot be created.
+     * @throws ServiceException
+     *         if a duplicate cannot be started.
+     * @throws InterruptedException
+     *         if interrupted while waiting for the threads.
+     */
+    @NotNull
+    public Map<CacheMode, Result> run(@NotNull CacheMode... pModes)
+            throws RepositoryException, ServiceException, InterruptedException {
+        if (writers > items) {
+            throw new IllegalStateException(writers + " writers for only " + items + " items");
+        }
+        final RepositoryPropertyDescriptor property = findStringProperty(
+                (GSAItemDescriptor) repository.getItemDescriptor(itemDescriptor)
+        );
+        final List<GSARepository> cluster = new ArrayList<GSARepository>(nodes);
+        cluster.add(repository);
+        try {
+            for (int i = 1; i < nodes; i++) {
+                cluster.add(
+                        (GSARepository) GSATestUtils.duplicateRepository(
+                                repository,
+                                dataSource == null ? repository.getDataSource() : dataSource,
+                                suffix(i),
+                                true
+                        )
+                );
+            }
+            final Items shared = createItems(property);
+            final Map<CacheMode, Result> results = new EnumMap<CacheMode, Result>(CacheMode.class);
+            for (CacheMode mode : pModes) {
+                results.put(mode, run(mode, cluster, shared));
+            }
+            return results;
+        } finally {
+            for (int i = 1; i < cluster.size(); i++) {
+                stop(cluster.get(i), suffix(i));
+            }
+        }
+    }
+
+    // -----------------------------
+
+    private Result run(CacheMode pMode, List<GSARepository> pCluster, Items pItems)
+            throws RepositoryException, InterruptedException {
+        logger.info(
+                "Running {} on {} nodes with {} writers and {} readers per node: {} ms warm-up, {} ms measured",
+                pMode, pCluster.size(), writers, readersPerNode, warmUpMillis, durationMillis
+        );
+        for (GSARepository node : pCluster) {
+            node.invalidateCaches();
+            for (String id : pItems.ids) {
+                node.getItem(id, itemDescriptor);
+            }
+        }
+        final InvalidationChannel channel = pMode == CacheMode.SIMPLE
+                                            ? null
+                                            : new InvalidationChannel(pMode == CacheMode.LOCKED);
+        if (channel != null) {
+            for (GSARepository node : pCluster) {
+                channel.join(node);
+            }
+        }
+        final Context context = new Context(pMode, pItems, channel);
+        final List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < writers; i++) {
+            workers.add(new Worker(context, pCluster.get(i % pCluster.size()), i, new Random(seed + i)));
+        }
+        for (int i = 0; i < pCluster.size() * readersPerNode; i++) {
+            workers.add(new Worker(context, pCluster.get(i % pCluster.size()), -1, new Random(seed + writers + i)));
+        }
+        final CountDownLatch done = new CountDownLatch(workers.size());
+        for (int i = 0; i < workers.size(); i++) {
+            workers.get(i).done = done;
+            final Thread thread = new Thread(workers.get(i), "CacheCoherenceBenchmark-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            Thread.sleep(warmUpMillis);
+            if (channel != null) {
+                channel.resetLatencies();
+            }
+            final long start = System.nanoTime();
+            context.measuring = true;
+            Thread.sleep(durationMillis);
+            context.stopped = true;
+            final long elapsed = System.nanoTime() - start;
+            done.await();
+
+            final Result result = new Result(pMode, elapsed);
+            for (Worker worker : workers) {
+                (worker.writer < 0 ? result.reads : result.writes).add(worker.latencies);
+                result.staleness.add(worker.staleness);
+                result.errors += worker.errors;
+            }
+            if (channel != null) {
+                result.invalidations.add(channel.getLatencies());
+            }
+            return result;
+        } finally {
+            context.stopped = true;
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private Items createItems(RepositoryPropertyDescriptor pProperty)
+            throws RepositoryException {
+        final String[] ids = new String[items];
+        final AtomicReferenceArray<Version> versions = new AtomicReferenceArray<Version>(items);
+        for (int i = 0; i < items; i++) {
+            final MutableRepositoryItem item = test.createDummyItem(repository, itemDescriptor, null);
+            item.setPropertyValue(pProperty.getName(), "0");
+            repository.addItem(item);
+            ids[i] = item.getRepositoryId();
+            versions.set(i, new Version(0, System.nanoTime()));
+        }
+        return new Items(pProperty.getName(), ids, versions);
+    }
+
+    /**
+     * Returns a writable, single valued string property to write the versions to.
+     */
+    private static RepositoryPropertyDescriptor findStringProperty(GSAItemDescriptor pDescriptor) {
+        for (RepositoryPropertyDescriptor property
+                : (RepositoryPropertyDescriptor[]) pDescriptor.getPropertyDescriptors()) {
+            if (property.isWritable() && !property.isIdProperty() && !property.isCollectionOrMap()
+                && property.getPropertyType() == String.class) {
+                return property;
+            }
+        }
+        throw new IllegalStateException("No writable string property in " + pDescriptor.getItemDescriptorName());
+    }
+
+    private String suffix(int pNode) {
+        return "-Node" + pNode;
+    }
+
+    private void stop(GSARepository pNode, String pSuffix) {
+        if (pNode instanceof InitializingGSA) {
+            // the tables belong to the original repository
+            ((InitializingGSA) pNode).setDropTablesAtShutdown(false);
+        }
+        try {
+            pNode.stopService();
+        } catch (ServiceException e) {
+            logger.warn("Cannot stop {}", pNode.getName(), e);
+        }
+        repository.getNameContext().removeElement(repository.getName() + pSuffix);
+    }
+
+    // -----------------------------
+
+    /**
+     * Returns whether a value read is older than the version committed before the read started.
+     * Values of versions committed while the read was running are not stale.
+     */
+    static boolean isStale(@Nullable Object pValue, @NotNull Version pBefore) {
+        if (pValue == null) {
+            return true;
+        }
+        try {
+            return Long.parseLong(pValue.toString()) < pBefore.number;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * A version number of an item, which is written to its string property, and when it was
+     * committed.
+     */
+    static class Version {
+
+        final long number;
+
+        final long committed;
+
+        Version(long pNumber, long pCommitted) {
+            number = pNumber;
+            committed = pCommitted;
+        }
+    }
+
+    /**
+     * The items and their last committed versions.
+     */
+    private static class Items {
+
+        final String property;
+
+        final String[] ids;
+
+        final AtomicReferenceArray<Version> versions;
+
+        final ReadWriteLock[] locks;
+
+        Items(String pProperty, String[] pIds, AtomicReferenceArray<Version> pVersions) {
+            property = pProperty;
+            ids = pIds;
+            versions = pVersions;
+            locks = new ReadWriteLock[pIds.length];
+            for (int i = 0; i < locks.length; i++) {
+                locks[i] = new ReentrantReadWriteLock();
+            }
+        }
+    }
+
+    /**
+     * State shared by the threads of one cache mode.
+     */
+    private static class Context {
+
+        final CacheMode mode;
+
+        final Items items;
+
+        @Nullable
+        final InvalidationChannel channel;
+
+        volatile boolean measuring;
+
+        volatile boolean stopped;
+
+        Context(CacheMode pMode, Items pItems, @Nullable InvalidationChannel pChannel) {
+            mode = pMode;
+            items = pItems;
+            channel = pChannel;
+        }
+    }
+
+    private class Worker
+            implements Runnable {
+
+        private final Context context;
+
+        private final GSARepository node;
+
+        /**
+         * Number of the writer, or -1 for a reader.
+         */
+        private final int writer;
+
+        private final Random random;
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        private final LatencyHistogram staleness = new LatencyHistogram();
+
+        private long errors;
+
+        CountDownLatch done;
+
+        Worker(Context pContext, GSARepository pNode, int pWriter, Random pRandom) {
+            context = pContext;
+            node = pNode;
+            writer = pWriter;
+            random = pRandom;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!context.stopped) {
+                    final boolean measured = context.measuring;
+                    try {
+                        if (writer < 0) {
+                            read(measured);
+                        }
+                        else {
+                            write(measured);
+                        }
+                    } catch (RepositoryException e) {
+                        error(measured, e);
+                    } catch (RuntimeException e) {
+                        error(measured, e);
+                    }
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void read(boolean pMeasured)
+                throws RepositoryException {
+            final int index = random.nextInt(context.items.ids.length);
+            final Version before = context.items.versions.get(index);
+            final boolean locked = context.mode == CacheMode.LOCKED;
+            if (locked) {
+                context.items.locks[index].readLock().lock();
+            }
+            final long start = System.nanoTime();
+            final Object value;
+            try {
+                final RepositoryItem item = node.getItem(context.items.ids[index], itemDescriptor);
+                value = item == null ? null : item.getPropertyValue(context.items.property);
+            } finally {
+                if (locked) {
+                    context.items.locks[index].readLock().unlock();
+                }
+            }
+            if (!pMeasured || context.stopped) {
+                return;
+            }
+            latencies.record(System.nanoTime() - start);
+            if (isStale(value, before)) {
+                staleness.record(start - before.committed);
+            }
+        }
+
+        private void write(boolean pMeasured)
+                throws RepositoryException {
+            final int shares = (context.items.ids.length - writer + writers - 1) / writers;
+            final int index = writer + random.nextInt(shares) * writers;
+            final String id = context.items.ids[index];
+            // the item is only written by this writer, so nobody else changes its version
+            final long version = context.items.versions.get(index).number + 1;
+            final boolean locked = context.mode == CacheMode.LOCKED;
+            if (locked) {
+                context.items.locks[index].writeLock().lock();
+            }
+            final long start = System.nanoTime();
+            try {
+                final MutableRepositoryItem item = node.getItemForUpdate(id, itemDescriptor);
+                item.setPropertyValue(context.items.property, Long.toString(version));
+                node.updateItem(item);
+                context.items.versions.set(index, new Version(version, System.nanoTime()));
+                if (context.channel != null) {
+                    context.channel.publish(node, itemDescriptor, id);
+                }
+            } finally {
+                if (locked) {
+                    context.items.locks[index].writeLock().unlock();
+                }
+            }
+            if (pMeasured && !context.stopped) {
+                latencies.record(System.nanoTime() - start);
+            }
+        }
+
+        private void error(boolean pMeasured, Exception pException) {
+            if (pMeasured) {
+                errors++;
+            }
+            logger.debug("{} failed on {}", writer < 0 ? "Read" : "Write", node.getName(), pException);
+        }
+    }
+
+    // -----------------------------
+
+    /**
+     * Measurements of one cache mode.
+     */
+    public static class Result {
+
+        private final CacheMode mode;
+
+        private final long elapsedNanos;
+
+        private final LatencyHistogram writes = new LatencyHistogram();
+
+        private final LatencyHistogram reads = new LatencyHistogram();
+
+        private final LatencyHistogram invalidations = new LatencyHistogram();
+
+        private final LatencyHistogram staleness = new LatencyHistogram();
+
+        private long errors;
+
+        Result(CacheMode pMode, long pElapsedNanos) {
+            mode = pMode;
+            elapsedNanos = pElapsedNanos;
+        }
+
+        @NotNull
+        public CacheMode getMode() {
+            return mode;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Returns the latencies in nanoseconds of the writes, including the invalidation of the
+         * other nodes for {@link CacheMode#LOCKED}.
+         */
+        @NotNull
+        public LatencyHistogram getWrites() {
+            return writes;
+        }
+
+        @NotNull
+        public LatencyHistogram getReads() {
+            return reads;
+        }
+
+        /**
+         * Returns the nanoseconds from publishing an invalidation to the removal of the item on
+         * another node. Empty for {@link CacheMode#SIMPLE}.
+         */
+        @NotNull
+        public LatencyHistogram getInvalidations() {
+            return invalidations;
+        }
+
+        /**
+         * Returns for each stale read the nanoseconds since a newer version had been committed.
+         */
+        @NotNull
+        public LatencyHistogram getStaleness() {
+            return staleness;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getWriteThroughput() {
+            return writes.getCount() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        public double getReadThroughput() {
+            return reads.getCount() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        /**
+         * Returns the fraction of the reads which returned an older version than the last one
+         * committed before the read started.
+         */
+        public double getStaleReadRatio() {
+            return reads.getCount() == 0 ? 0 : (double) staleness.getCount() / reads.getCount();
+        }
+
+        /**
+         * Returns the throughputs, the stale reads and the p50/p99 latencies in milliseconds.
+         */
+        @Override
+        public String toString() {
+            return String.format(
+                    "%s: %.1f writes/s (p50 %.3f, p99 %.3f ms), %.1f reads/s (p50 %.3f, p99 %.3f ms), "
+                    + "invalidation p50 %.3f, p99 %.3f ms, %.2f%% stale reads (p99 %.3f ms old), %d errors",
+                    mode,
+                    getWriteThroughput(),
+                    millis(writes.getValueAtPercentile(50)),
+                    millis(writes.getValueAtPercentile(99)),
+                    getReadThroughput(),
+                    millis(reads.getValueAtPercentile(50)),
+                    millis(reads.getValueAtPercentile(99)),
+                    millis(invalidations.getValueAtPercentile(50)),
+                    millis(invalidations.getValueAtPercentile(99)),
+                    getStaleReadRatio() * 100,
+                    millis(staleness.getValueAtPercentile(99)),
+                    errors
+            );
+        }
+
+        private static double millis(long pNanos) {
+            return pNanos / 1000000.0;
+        }
+    }
+}
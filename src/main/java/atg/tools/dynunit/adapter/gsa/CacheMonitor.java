@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.repository.RepositoryView;
+import atg.tools.dynunit.service.jdbc.RecordingDataSource;
+import atg.tools.dynunit.service.jdbc.SQLRecorder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects item cache and query cache hits, misses, evictions and load times per item
+ * descriptor of an {@link InitializingGSA}. GSA does not expose its cache counters, so the
+ * monitor tells hits from misses by the SQL each access executes: an item lookup through
+ * {@link InitializingGSA#getItem(String, String) getItem},
+ * {@link InitializingGSA#getItems(String[], String) getItems} or
+ * {@link InitializingGSA#getItemForUpdate(String, String) getItemForUpdate} that executes no
+ * statement on the calling thread was answered from the cache. A miss for an item id or query
+ * that missed before counts as an eviction as well. The repository's data source must therefore
+ * be a {@link RecordingDataSource}, e.g. by setting
+ * {@link atg.tools.dynunit.test.configuration.RepositoryConfiguration#setRecordSql(boolean) recordSql}.
+ * <pre>
+ * final CacheMonitor monitor = CacheMonitor.install(repository);
+ * final CacheStatistics before = monitor.snapshot();
+ * // test code
+ * System.out.println(monitor.snapshot().diff(before));
+ * </pre>
+ * The monitor does not tell which ids of a {@link InitializingGSA#getItems(String[], String)
+ * getItems} call were loaded, so a call that executes SQL counts all of its ids as misses.
+ * <p/>
+ * Queries are only counted with {@link #setMonitorQueries(boolean) monitorQueries}, as GSA
+ * offers no hook for them: {@link InitializingGSA#getView(String) getView} then returns a proxy
+ * implementing all interfaces of the GSA view, so code casting the view to a class such as
+ * {@code GSAView} fails with a {@link ClassCastException}. Queries whose results are not in the
+ * item cache count as query cache misses, as loading the items executes SQL too.
+ */
+public class CacheMonitor {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int HITS = 0;
+
+    private static final int MISSES = 1;
+
+    private static final int EVICTIONS = 2;
+
+    private static final int LOAD_NANOS = 3;
+
+    private final SQLRecorder recorder;
+
+    private final Map<String, long[]> itemCaches = new HashMap<String, long[]>();
+
+    private final Map<String, long[]> queryCaches = new HashMap<String, long[]>();
+
+    private final Set<String> loadedItems = new HashSet<String>();
+
+    private final Set<String> loadedQueries = new HashSet<String>();
+
+    // the access the current thread is in, so that lookups GSA delegates are counted once
+    private final ThreadLocal<Access> current = new ThreadLocal<Access>();
+
+    private volatile boolean monitorQueries = false;
+
+    public CacheMonitor(@NotNull SQLRecorder pRecorder) {
+        recorder = pRecorder;
+    }
+
+    /**
+     * Creates a monitor and sets it on the repository.
+     *
+     * @throws IllegalStateException
+     *         if the data source of the repository is not a {@link RecordingDataSource}.
+     */
+    @NotNull
+    public static CacheMonitor install(@NotNull InitializingGSA pRepository) {
+        if ( !(pRepository.getDataSource() instanceof RecordingDataSource) ) {
+            throw new IllegalStateException(
+                    "The data source of " + pRepository.getAbsoluteName() + " is not a RecordingDataSource"
+            );
+        }
+        final CacheMonitor monitor = new CacheMonitor(
+                ((RecordingDataSource) pRepository.getDataSource()).getRecorder()
+        );
+        pRepository.setCacheMonitor(monitor);
+        logger.debug("Monitoring caches of {}", pRepository.getAbsoluteName());
+        return monitor;
+    }
+
+    public boolean isMonitorQueries() {
+        return monitorQueries;
+    }
+
+    /**
+     * Sets whether queries through the views of the repository are counted in the query caches.
+     * The views are replaced by proxies then, see above. default: false
+     */
+    public void setMonitorQueries(boolean monitorQueries) {
+        this.monitorQueries = monitorQueries;
+    }
+
+    /**
+     * Returns the counters collected so far.
+     */
+    @NotNull
+    public synchronized CacheStatistics snapshot() {
+        return new CacheStatistics(toCounts(itemCaches), toCounts(queryCaches));
+    }
+
+    /**
+     * Forgets all counters and loaded items and queries.
+     */
+    public synchronized void reset() {
+        itemCaches.clear();
+        queryCaches.clear();
+        loadedItems.clear();
+        loadedQueries.clear();
+    }
+
+    // -----------------------------
+
+    /**
+     * Marks the start of an access on the current thread, which must be passed to
+     * {@link #end(Access)} in a finally block.
+     *
+     * @return the access or null if the current thread already is in one, e.g. when
+     *         {@code getItem(String)} delegates to {@code getItem(String, String)}.
+     */
+    @Nullable
+    Access begin() {
+        if ( current.get() != null ) {
+            return null;
+        }
+        final Access access = new Access(recorder.getExecutedByCurrentThread(), System.nanoTime());
+        current.set(access);
+        return access;
+    }
+
+    /**
+     * Marks the end of an access started with {@link #begin()}.
+     */
+    void end(@Nullable Access pAccess) {
+        if ( pAccess != null ) {
+            current.remove();
+        }
+    }
+
+    /**
+     * Counts the lookup of the items started with {@link #begin()}. Nested accesses are not
+     * counted.
+     */
+    void itemsAccessed(@Nullable Access pAccess, @NotNull String pItemDescriptor, @NotNull String... pIds) {
+        if ( pAccess != null ) {
+            count(itemCaches, loadedItems, pAccess, pItemDescriptor, pIds);
+        }
+    }
+
+    /**
+     * Returns a view counting the queries executed through it in the query cache of the item
+     * descriptor if {@link #isMonitorQueries() monitorQueries} is set, or the view otherwise.
+     */
+    @NotNull
+    RepositoryView monitor(@NotNull RepositoryView pView, @NotNull String pItemDescriptor) {
+        if ( !monitorQueries ) {
+            return pView;
+        }
+        final Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+        for ( Class<?> type = pView.getClass(); type != null; type = type.getSuperclass() ) {
+            interfaces.addAll(Arrays.asList(type.getInterfaces()));
+        }
+        return (RepositoryView) Proxy.newProxyInstance(
+                pView.getClass().getClassLoader(),
+                interfaces.toArray(new Class<?>[interfaces.size()]),
+                new MonitoredView(pView, pItemDescriptor)
+        );
+    }
+
+    private void count(Map<String, long[]> pCaches,
+                       Set<String> pLoaded,
+                       Access pAccess,
+                       String pItemDescriptor,
+                       String... pKeys) {
+        final long nanos = System.nanoTime() - pAccess.nanos;
+        final boolean hit = recorder.getExecutedByCurrentThread() == pAccess.executed;
+        synchronized (this) {
+            long[] counts = pCaches.get(pItemDescriptor);
+            if ( counts == null ) {
+                counts = new long[4];
+                pCaches.put(pItemDescriptor, counts);
+            }
+            if ( hit ) {
+                counts[HITS] += pKeys.length;
+                return;
+            }
+            counts[MISSES] += pKeys.length;
+            counts[LOAD_NANOS] += nanos;
+            for ( String key : pKeys ) {
+                if ( !pLoaded.add(pItemDescriptor + ':' + key) ) {
+                    counts[EVICTIONS]++;
+                }
+            }
+        }
+    }
+
+    private static Map<String, CacheStatistics.Counts> toCounts(Map<String, long[]> pCaches) {
+        final Map<String, CacheStatistics.Counts> counts = new HashMap<String, CacheStatistics.Counts>();
+        for ( Map.Entry<String, long[]> entry : pCaches.entrySet() ) {
+            final long[] values = entry.getValue();
+            counts.put(
+                    entry.getKey(),
+                    new CacheStatistics.Counts(values[HITS], values[MISSES], values[EVICTIONS], values[LOAD_NANOS])
+            );
+        }
+        return counts;
+    }
+
+    // -----------------------------
+
+    private class MonitoredView
+            implements InvocationHandler {
+
+        private final RepositoryView view;
+
+        private final String itemDescriptor;
+
+        MonitoredView(RepositoryView pView, String pItemDescriptor) {
+            view = pView;
+            itemDescriptor = pItemDescriptor;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            final Access access = method.getName().startsWith("execute") ? begin() : null;
+            try {
+                final Object result = method.invoke(view, args);
+                if ( access != null ) {
+                    count(
+                            queryCaches,
+                            loadedQueries,
+                            access,
+                            itemDescriptor,
+                            method.getName() + Arrays.deepToString(args)
+                    );
+                }
+                return result;
+            } catch ( InvocationTargetException e ) {
+                throw e.getCause();
+            } finally {
+                end(access);
+            }
+        }
+    }
+
+    /**
+     * Statements executed by a thread and the time when it started an access.
+     */
+    static class Access {
+
+        private final long executed;
+
+        private final long nanos;
+
+        Access(long pExecuted, long pNanos) {
+            executed = pExecuted;
+            nanos = pNanos;
+        }
+    }
+}
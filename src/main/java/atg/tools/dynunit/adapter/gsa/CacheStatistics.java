@@ -0,0 +1,221 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable snapshot of the item cache and query cache counters {@link CacheMonitor} collected
+ * per item descriptor. Snapshots taken around a block of test code can be subtracted to get the
+ * cache behaviour of just that block:
+ * <pre>
+ * final CacheStatistics before = monitor.snapshot();
+ * profileTools.getProfile(id);
+ * final CacheStatistics during = monitor.snapshot().diff(before);
+ * assertThat(during, itemCacheHitRatio("user", 0.9));
+ * </pre>
+ *
+ * @see atg.tools.dynunit.hamcrest.HasCacheHitRatio
+ */
+public class CacheStatistics {
+
+    private final Map<String, Counts> itemCaches;
+
+    private final Map<String, Counts> queryCaches;
+
+    CacheStatistics(@NotNull Map<String, Counts> pItemCaches, @NotNull Map<String, Counts> pQueryCaches) {
+        itemCaches = Collections.unmodifiableMap(new TreeMap<String, Counts>(pItemCaches));
+        queryCaches = Collections.unmodifiableMap(new TreeMap<String, Counts>(pQueryCaches));
+    }
+
+    /**
+     * Returns the names of the item descriptors with item or query cache accesses, sorted.
+     */
+    @NotNull
+    public Set<String> getItemDescriptorNames() {
+        final Set<String> names = new TreeSet<String>(itemCaches.keySet());
+        names.addAll(queryCaches.keySet());
+        return names;
+    }
+
+    /**
+     * Returns the item cache counters of the item descriptor, or the totals of all item
+     * descriptors if pItemDescriptor is null.
+     */
+    @NotNull
+    public Counts getItemCache(@Nullable String pItemDescriptor) {
+        return get(itemCaches, pItemDescriptor);
+    }
+
+    /**
+     * Returns the query cache counters of the item descriptor, or the totals of all item
+     * descriptors if pItemDescriptor is null.
+     */
+    @NotNull
+    public Counts getQueryCache(@Nullable String pItemDescriptor) {
+        return get(queryCaches, pItemDescriptor);
+    }
+
+    /**
+     * Returns the counters collected between the earlier snapshot and this one.
+     */
+    @NotNull
+    public CacheStatistics diff(@NotNull CacheStatistics pEarlier) {
+        return new CacheStatistics(
+                diff(itemCaches, pEarlier.itemCaches), diff(queryCaches, pEarlier.queryCaches)
+        );
+    }
+
+    /**
+     * Formats one line per item descriptor followed by the totals.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder report = new StringBuilder();
+        for ( String name : getItemDescriptorNames() ) {
+            append(report, name, getItemCache(name), getQueryCache(name));
+        }
+        append(report, "total", getItemCache(null), getQueryCache(null));
+        return report.toString();
+    }
+
+    private static void append(StringBuilder pReport, String pName, Counts pItemCache, Counts pQueryCache) {
+        pReport.append(String.format("%-30s item cache %s, query cache %s%n", pName, pItemCache, pQueryCache));
+    }
+
+    private static Counts get(Map<String, Counts> pCaches, @Nullable String pItemDescriptor) {
+        if ( pItemDescriptor != null ) {
+            final Counts counts = pCaches.get(pItemDescriptor);
+            return counts == null ? Counts.NONE : counts;
+        }
+        Counts total = Counts.NONE;
+        for ( Counts counts : pCaches.values() ) {
+            total = total.plus(counts);
+        }
+        return total;
+    }
+
+    private static Map<String, Counts> diff(Map<String, Counts> pLater, Map<String, Counts> pEarlier) {
+        final Map<String, Counts> diff = new TreeMap<String, Counts>();
+        for ( Map.Entry<String, Counts> entry : pLater.entrySet() ) {
+            final Counts counts = entry.getValue().minus(get(pEarlier, entry.getKey()));
+            if ( counts.getAccesses() > 0 ) {
+                diff.put(entry.getKey(), counts);
+            }
+        }
+        return diff;
+    }
+
+    // -----------------------------
+
+    /**
+     * Counters of a single cache.
+     */
+    public static class Counts {
+
+        static final Counts NONE = new Counts(0, 0, 0, 0);
+
+        private final long hits;
+
+        private final long misses;
+
+        private final long evictions;
+
+        private final long loadNanos;
+
+        Counts(long pHits, long pMisses, long pEvictions, long pLoadNanos) {
+            hits = pHits;
+            misses = pMisses;
+            evictions = pEvictions;
+            loadNanos = pLoadNanos;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Returns the number of misses for items or queries loaded before, i.e. which were
+         * evicted from or invalidated in the cache since.
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * Returns the total time spent loading from the database on misses.
+         */
+        public long getLoadNanos() {
+            return loadNanos;
+        }
+
+        public long getAccesses() {
+            return hits + misses;
+        }
+
+        /**
+         * Returns the fraction of accesses that were hits, or 0 if there were no accesses.
+         */
+        public double getHitRatio() {
+            return getAccesses() == 0 ? 0 : (double) hits / getAccesses();
+        }
+
+        /**
+         * Returns the mean time of a miss, or 0 if there were none.
+         */
+        public double getMeanLoadNanos() {
+            return misses == 0 ? 0 : (double) loadNanos / misses;
+        }
+
+        Counts plus(Counts pOther) {
+            return new Counts(
+                    hits + pOther.hits,
+                    misses + pOther.misses,
+                    evictions + pOther.evictions,
+                    loadNanos + pOther.loadNanos
+            );
+        }
+
+        Counts minus(Counts pOther) {
+            return new Counts(
+                    hits - pOther.hits,
+                    misses - pOther.misses,
+                    evictions - pOther.evictions,
+                    loadNanos - pOther.loadNanos
+            );
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d hits, %d misses (%.1f%% hits), %d evictions, %.3f ms mean load",
+                    hits, misses, getHitRatio() * 100, evictions, getMeanLoadNanos() / 1000000.0
+            );
+        }
+    }
+}
@@ -19,6 +19,9 @@ package atg.tools.dynunit.adapter.gsa;
 import atg.adapter.gsa.DatabaseTableInfo;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * The purpose of this class is to map from a the database specific type name
  * for a column to the <code>java.sql.Types</code> for that column. Given a
@@ -35,7 +38,7 @@ public class DatabaseTypeNameToJDBC {
     @Nullable
     private DatabaseTableInfo mTableInfo = null;
 
-    private static final int UNKNOWN = -9999;
+    static final int UNKNOWN = -9999;
 
     // -------------------------------
 
@@ -84,7 +87,94 @@ public class DatabaseTypeNameToJDBC {
         } else if ( mTableInfo.mDecimalType.equals(pTypeName) ) {
             return java.sql.Types.DECIMAL;
         } else {
+            return standardTypeNameToJDBCType(pTypeName);
+        }
+    }
+
+    // -------------------------------
+
+    /**
+     * Maps type names which the DatabaseTableInfo does not know, e.g. those of databases ATG
+     * has no DatabaseTableInfo for such as H2, to the <code>java.sql.Types</code> constant
+     * of the standard or common vendor type of that name. Case, length and precision are
+     * ignored.
+     *
+     * @param pTypeName
+     *
+     * @return the matching type or <code>UNKNOWN</code>.
+     */
+    static int standardTypeNameToJDBCType(@Nullable String pTypeName) {
+        if ( pTypeName == null ) {
             return UNKNOWN;
         }
+        String name = pTypeName.trim().toUpperCase();
+        int parenthesis = name.indexOf('(');
+        if ( parenthesis > -1 ) {
+            name = name.substring(0, parenthesis).trim();
+        }
+        Integer type = STANDARD_TYPES.get(name.replaceAll("\\s+", " "));
+        return type == null ? UNKNOWN : type;
+    }
+
+    private static final Map<String, Integer> STANDARD_TYPES = new HashMap<String, Integer>();
+
+    static {
+        for ( String name : new String[]{ "VARCHAR", "VARCHAR2", "NVARCHAR", "NVARCHAR2",
+                                          "VARCHAR_IGNORECASE", "CHARACTER VARYING" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.VARCHAR);
+        }
+        for ( String name : new String[]{ "CHAR", "CHARACTER", "NCHAR" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.CHAR);
+        }
+        for ( String name : new String[]{ "LONGVARCHAR", "LONG VARCHAR", "TEXT" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.LONGVARCHAR);
+        }
+        for ( String name : new String[]{ "CLOB", "NCLOB" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.CLOB);
+        }
+        for ( String name : new String[]{ "INT", "INTEGER", "INT4", "MEDIUMINT", "SIGNED" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.INTEGER);
+        }
+        for ( String name : new String[]{ "BIGINT", "INT8" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.BIGINT);
+        }
+        for ( String name : new String[]{ "SMALLINT", "INT2", "YEAR" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.SMALLINT);
+        }
+        STANDARD_TYPES.put("TINYINT", java.sql.Types.TINYINT);
+        STANDARD_TYPES.put("NUMERIC", java.sql.Types.NUMERIC);
+        STANDARD_TYPES.put("NUMBER", java.sql.Types.NUMERIC);
+        for ( String name : new String[]{ "DECIMAL", "DEC" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.DECIMAL);
+        }
+        for ( String name : new String[]{ "DOUBLE", "DOUBLE PRECISION", "FLOAT8" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.DOUBLE);
+        }
+        STANDARD_TYPES.put("FLOAT", java.sql.Types.FLOAT);
+        for ( String name : new String[]{ "REAL", "FLOAT4" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.REAL);
+        }
+        for ( String name : new String[]{ "BOOLEAN", "BOOL" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.BOOLEAN);
+        }
+        STANDARD_TYPES.put("BIT", java.sql.Types.BIT);
+        STANDARD_TYPES.put("DATE", java.sql.Types.DATE);
+        STANDARD_TYPES.put("TIME", java.sql.Types.TIME);
+        for ( String name : new String[]{ "TIMESTAMP", "DATETIME", "SMALLDATETIME" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.TIMESTAMP);
+        }
+        for ( String name : new String[]{ "BLOB", "IMAGE", "OID" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.BLOB);
+        }
+        for ( String name : new String[]{ "BINARY", "RAW" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.BINARY);
+        }
+        for ( String name : new String[]{ "VARBINARY", "BINARY VARYING" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.VARBINARY);
+        }
+        for ( String name : new String[]{ "LONGVARBINARY", "LONG VARBINARY", "LONG RAW", "BYTEA" } ) {
+            STANDARD_TYPES.put(name, java.sql.Types.LONGVARBINARY);
+        }
+        STANDARD_TYPES.put("OTHER", java.sql.Types.OTHER);
     }
 }
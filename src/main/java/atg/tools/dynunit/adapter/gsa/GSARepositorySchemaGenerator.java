@@ -25,14 +25,21 @@ import atg.repository.RepositoryException;
 import org.apache.ddlutils.DatabaseOperationException;
 import org.apache.ddlutils.Platform;
 import org.apache.ddlutils.PlatformFactory;
+import org.apache.ddlutils.PlatformUtils;
+import org.apache.ddlutils.alteration.ModelChange;
+import org.apache.ddlutils.alteration.ModelComparator;
 import org.apache.ddlutils.model.Column;
 import org.apache.ddlutils.model.Database;
 import org.apache.ddlutils.model.ForeignKey;
 import org.apache.ddlutils.model.IndexColumn;
 import org.apache.ddlutils.model.Reference;
 import org.apache.ddlutils.model.UniqueIndex;
+import org.apache.ddlutils.platform.hsqldb.HsqlDbPlatform;
 import org.jetbrains.annotations.Nullable;
 
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -51,6 +58,8 @@ import java.util.Set;
  * <li>dropSchema - Drops the schema including constraints.
  * <li>alterSchema - Attempts to alter an existing schema into the one currently
  * required for the given repository.
+ * <li>migrateSchema - Applies only the differences between the existing schema
+ * and the one required for the given repository, leaving other tables alone.
  * </ul>
  * These methods affect the DataSource used by the given GSARepository. If that
  * DataSource is not accessible then these methods will fail. Schema
@@ -64,6 +73,9 @@ import java.util.Set;
  */
 public class GSARepositorySchemaGenerator {
 
+    // Vendor String for H2
+    static final String H2 = "H2";
+
     // The repository upon which we are working.
     @Nullable
     private GSARepository mRepository = null;
@@ -79,6 +91,9 @@ public class GSARepositorySchemaGenerator {
 
     static Set mUsedFKNames = new HashSet();
 
+    // number of tables left out of the model because another repository owns them
+    private int mSkippedTables = 0;
+
     // -----------------------------
 
     /**
@@ -115,6 +130,60 @@ public class GSARepositorySchemaGenerator {
 
     // -----------------------------
 
+    /**
+     * Creates a new GSARepositorySchemaGenerator using a model that was
+     * previously built for the given repository, e.g. one read back from a
+     * {@link SchemaCache}. The tables of the model are registered with the
+     * {@link SchemaTracker} just as if the model had been built here, and
+     * tables owned by other repositories are removed from it.
+     *
+     * @param pRepository
+     * @param pDatabase   model previously built for pRepository
+     */
+    public GSARepositorySchemaGenerator(GSARepository pRepository, Database pDatabase) {
+        mDatabaseTypeNameToJDBC = new DatabaseTypeNameToJDBC(
+                pRepository.getDatabaseTableInfo()
+        );
+        mRepository = pRepository;
+        mPlatform = createPlatform(pRepository.getDataSource());
+        mDatabase = pDatabase;
+        SchemaTracker tracker = SchemaTracker.getInstance(pRepository);
+        for ( org.apache.ddlutils.model.Table table : pDatabase.getTables() ) {
+            if ( !tracker.acquireTable(table.getName(), pRepository) ) {
+                // created by the repository owning it
+                pDatabase.removeTable(table);
+                mSkippedTables++;
+            }
+        }
+        removeDanglingForeignKeys(pDatabase);
+    }
+
+    // -----------------------------
+
+    /**
+     * Returns the DDLUtils model this generator operates on.
+     *
+     * @return
+     */
+    public Database getDatabase() {
+        return mDatabase;
+    }
+
+    // -----------------------------
+
+    /**
+     * Returns true if the model holds every table of the repository, i.e. none
+     * was left out because another repository using the same database owns
+     * it.
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return mSkippedTables == 0;
+    }
+
+    // -----------------------------
+
     /**
      * Initialize this class with a model for the given repository. Any previous
      * model will be discarded.
@@ -146,9 +215,7 @@ public class GSARepositorySchemaGenerator {
                 pRepository.getDatabaseTableInfo()
         );
         mRepository = pRepository;
-        mPlatform = PlatformFactory.createNewPlatformInstance(
-                pRepository.getDataSource()
-        );
+        mPlatform = createPlatform(pRepository.getDataSource());
         if ( pIncludeExistingTables ) {
             mDatabase = mPlatform.readModelFromDatabase(pRepository.getAbsoluteName());
         } else {
@@ -156,6 +223,7 @@ public class GSARepositorySchemaGenerator {
             mDatabase.setName(pRepository.getAbsoluteName());
             mDatabase.setVersion("1.0");
         }
+        mSkippedTables = 0;
         String[] names = pRepository.getItemDescriptorNames();
         for ( String name : names ) {
             GSAItemDescriptor desc = (GSAItemDescriptor) pRepository.getItemDescriptor(name);
@@ -191,21 +259,18 @@ public class GSARepositorySchemaGenerator {
                 // actually the problem is more a single
                 // repository that is reusing a table for multiple
                 // purposes
-
-                List<GSARepository> repositoriesUsingTable = SchemaTracker.getInstance().getTable(table.getName());
-                // Skip if we have added this table
-                // and it is already in the model
-                // Actually, checking the model
-                // is probably enough
-
-                if ( repositoriesUsingTable != null && (mDatabase.findTable(table.getName())
-                                                        != null) ) {
+                SchemaTracker tracker = SchemaTracker.getInstance(pRepository);
+                boolean owner = tracker.acquireTable(table.getName(), pRepository);
+                if ( !owner ) {
+                    mSkippedTables++;
+                }
+                if ( !owner || mDatabase.findTable(table.getName()) != null ) {
                     if ( pRepository.isLoggingDebug() ) {
                         pRepository.logDebug(
                                 "Table "
                                 + table.getName()
                                 + " already defined by repository "
-                                + repositoriesUsingTable.toString()
+                                + tracker.getTable(table.getName())
                                 + " skipping schema creation for this table. multi="
                                 + table.isMultiTable()
                                 + " auxiliary="
@@ -214,16 +279,10 @@ public class GSARepositorySchemaGenerator {
                                 + table.isPrimaryTable()
                         );
                     }
-                    if ( !repositoriesUsingTable.contains(pRepository) ) {
-                        repositoriesUsingTable.add(pRepository);
-                    }
                 } else {
-                    // Only add the model if we have never seen this table created
+                    // Only add the model if we own this table and never added it
                     buildSingleTableModel(mDatabase, table, pRepository);
-                    repositoriesUsingTable = new ArrayList<GSARepository>();
-                    repositoriesUsingTable.add(pRepository);
                 }
-                SchemaTracker.getInstance().putTable(table.getName(), repositoriesUsingTable);
             }
         }
     }
@@ -463,7 +522,8 @@ public class GSARepositorySchemaGenerator {
 
     /**
      * Drops the schema based on the current model. If no model has been created,
-     * this method throws a NoModelException.
+     * this method throws a NoModelException. Tables which other repositories
+     * using the same database still use are not dropped.
      *
      * @param pContinueOnError - If true, continue on error, else fail.
      *
@@ -471,6 +531,14 @@ public class GSARepositorySchemaGenerator {
      */
     public void dropSchema(final boolean pContinueOnError)
             throws DatabaseOperationException {
+        // tables still used by other repositories of the same database survive
+        SchemaTracker tracker = SchemaTracker.getInstance(mRepository);
+        for ( org.apache.ddlutils.model.Table table : mDatabase.getTables() ) {
+            if ( tracker.isShared(table.getName(), mRepository) ) {
+                mDatabase.removeTable(table);
+            }
+        }
+        removeDanglingForeignKeys(mDatabase);
         boolean success = new DoInAutoCommit(this, mRepository).doInAutoCommit(
                 new AutoCommitable() {
                     @Override
@@ -498,9 +566,6 @@ public class GSARepositorySchemaGenerator {
      */
     public void alterSchema(final boolean pContinueOnError)
             throws DatabaseOperationException, SQLException {
-        mPlatform.alterTables(
-                mRepository.getConnection(), mDatabase, pContinueOnError
-        );
         boolean success = new DoInAutoCommit(this, mRepository).doInAutoCommit(
                 new AutoCommitable() {
                     @Override
@@ -513,4 +578,128 @@ public class GSARepositorySchemaGenerator {
             throw new DatabaseOperationException("Failed to alter tables.");
         }
     }
+
+    // -----------------------------
+
+    /**
+     * Migrates the existing schema to the current model by applying only the
+     * differences between the two. Unlike alterSchema, tables in the database
+     * which are not part of the model, e.g. those of other repositories, are
+     * left alone. Unchanged tables keep their data, and DDLUtils copies the data
+     * of tables it has to rebuild.
+     *
+     * @param pContinueOnError - If true, continue on error, else fail.
+     *
+     * @return the DDLUtils changes that were applied; empty if the schema was
+     *         already up to date.
+     *
+     * @throws DatabaseOperationException
+     */
+    public List<ModelChange> migrateSchema(final boolean pContinueOnError)
+            throws DatabaseOperationException {
+        final List<ModelChange> changes = new ArrayList<ModelChange>();
+        boolean success = new DoInAutoCommit(this, mRepository).doInAutoCommit(
+                new AutoCommitable() {
+                    @Override
+                    public void doInAutoCommit(Connection pConnection) {
+                        Database current = mPlatform.readModelFromDatabase(
+                                pConnection, mDatabase.getName()
+                        );
+                        restrictToModel(current, mDatabase);
+                        changes.addAll(
+                                new ModelComparator(
+                                        mPlatform.getPlatformInfo(), mPlatform.isDelimitedIdentifierModeOn()
+                                ).compare(current, mDatabase)
+                        );
+                        if ( changes.isEmpty() ) {
+                            return;
+                        }
+                        StringWriter sql = new StringWriter();
+                        mPlatform.getSqlBuilder().setWriter(sql);
+                        try {
+                            mPlatform.getSqlBuilder().alterDatabase(current, mDatabase, null);
+                        } catch ( IOException e ) {
+                            throw new DatabaseOperationException(e);
+                        }
+                        mPlatform.evaluateBatch(pConnection, sql.toString(), pContinueOnError);
+                    }
+                }
+        );
+        if ( !success ) {
+            throw new DatabaseOperationException("Failed to migrate tables.");
+        }
+        return changes;
+    }
+
+    /**
+     * Removes every table from pCurrent which is not part of pModel, along with
+     * the foreign keys referencing such tables, so comparing the two does not
+     * drop them.
+     *
+     * @param pCurrent
+     * @param pModel
+     */
+    static void restrictToModel(Database pCurrent, Database pModel) {
+        for ( int i = pCurrent.getTableCount() - 1; i >= 0; i-- ) {
+            if ( pModel.findTable(pCurrent.getTable(i).getName(), false) == null ) {
+                pCurrent.removeTable(i);
+            }
+        }
+        removeDanglingForeignKeys(pCurrent);
+    }
+
+    /**
+     * Removes the foreign keys referencing tables which are not part of the
+     * given model.
+     *
+     * @param pDatabase
+     */
+    static void removeDanglingForeignKeys(Database pDatabase) {
+        for ( org.apache.ddlutils.model.Table table : pDatabase.getTables() ) {
+            for ( ForeignKey fk : table.getForeignKeys() ) {
+                if ( pDatabase.findTable(fk.getForeignTableName(), false) == null ) {
+                    table.removeForeignKey(fk);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the DDLUtils platform for the given DataSource. DDLUtils does not
+     * know H2, whose dialect accepts the DDL of the HSQLDB platform, so that
+     * platform is used for it.
+     *
+     * @param pDataSource
+     */
+    static Platform createPlatform(DataSource pDataSource) {
+        String type = new PlatformUtils().determineDatabaseType(pDataSource);
+        if ( type == null && H2.equals(getDatabaseProductName(pDataSource)) ) {
+            type = HsqlDbPlatform.DATABASENAME;
+        }
+        if ( type == null ) {
+            throw new DatabaseOperationException("Unsupported database type of " + pDataSource);
+        }
+        Platform platform = PlatformFactory.createNewPlatformInstance(type);
+        platform.setDataSource(pDataSource);
+        return platform;
+    }
+
+    @Nullable
+    private static String getDatabaseProductName(DataSource pDataSource) {
+        Connection c = null;
+        try {
+            c = pDataSource.getConnection();
+            return c.getMetaData().getDatabaseProductName();
+        } catch ( SQLException e ) {
+            throw new DatabaseOperationException("Error while reading the database metadata", e);
+        } finally {
+            if ( c != null ) {
+                try {
+                    c.close();
+                } catch ( SQLException e ) {
+                    // eat it
+                }
+            }
+        }
+    }
 }
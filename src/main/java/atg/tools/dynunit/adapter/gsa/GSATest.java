@@ -29,10 +29,8 @@ import atg.repository.RepositoryPropertyDescriptor;
 import atg.service.idgen.IdGenerator;
 import atg.service.idgen.IdGeneratorException;
 import atg.tools.dynunit.test.util.DBUtils;
+import atg.tools.dynunit.util.PropertyDescriptorUtil;
 import junit.framework.TestCase;
-import org.apache.logging.log4j.Level;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 
 import java.beans.PropertyEditor;
@@ -57,8 +55,6 @@ public class GSATest
 
     private final transient Random random = new Random();
 
-    private static final Logger logger = LogManager.getLogger();
-
     private final HashMap<String, File> mConfigDir = new HashMap<String, File>();
 
     /**
@@ -419,25 +415,11 @@ public class GSATest
 
     /**
      * Returns the set of enumerated values, or null if there are none
+     *
+     * @see PropertyDescriptorUtil#getEnumeratedValues(DynamicPropertyDescriptor)
      */
     String[] getEnumeratedValues(DynamicPropertyDescriptor pDescriptor) {
-        if ( pDescriptor == null ) {
-            return null;
-        }
-        PropertyEditor pe = getPropertyEditor(pDescriptor);
-        String[] ret = (pe == null) ? null : pe.getTags();
-
-        // make sure it's not just a boolean value
-        Class<?> type = pDescriptor.getPropertyType();
-        if ( (type == Boolean.class || type == Boolean.TYPE)
-             && ret != null
-             && ret.length == 2
-             && (("true".equals(ret[0]) && "false".equals(ret[1])) || ("false".equals(ret[0])
-                                                                       && "true".equals(ret[1]))) ) {
-            return null;
-        } else {
-            return ret;
-        }
+        return PropertyDescriptorUtil.getEnumeratedValues(pDescriptor);
     }
 
     /**
@@ -445,27 +427,7 @@ public class GSATest
      * property editor
      */
     PropertyEditor getPropertyEditor(DynamicPropertyDescriptor propertyDescriptor) {
-        if ( propertyDescriptor == null ) {
-            return null;
-        }
-        Class<?> propertyEditorClass = propertyDescriptor.getPropertyEditorClass();
-        if ( propertyEditorClass == null ) {
-            return propertyDescriptor.getUIPropertyEditor();
-        } else {
-            Object propertyEditor = null;
-            try {
-                propertyEditor = propertyEditorClass.newInstance();
-            } catch ( InstantiationException e ) {
-                logger.catching(Level.ERROR, e);
-            } catch ( IllegalAccessException e ) {
-                logger.catching(Level.ERROR, e);
-            }
-            if ( propertyEditor instanceof PropertyEditor ) {
-                return (PropertyEditor) propertyEditor;
-            } else {
-                return null;
-            }
-        }
+        return PropertyDescriptorUtil.getPropertyEditor(propertyDescriptor);
     }
 
     /**
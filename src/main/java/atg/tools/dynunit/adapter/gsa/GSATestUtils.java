@@ -28,10 +28,15 @@ import atg.nucleus.Nucleus;
 import atg.nucleus.NucleusNameResolver;
 import atg.nucleus.ServiceEvent;
 import atg.nucleus.ServiceException;
+import atg.beans.DynamicPropertyDescriptor;
 import atg.repository.Repository;
 import atg.repository.RepositoryException;
+import atg.repository.RepositoryItemDescriptor;
+import atg.repository.RepositoryPropertyDescriptor;
 import atg.tools.dynunit.nucleus.NucleusUtils;
+import atg.tools.dynunit.service.jdbc.RecordingDataSource;
 import atg.tools.dynunit.test.util.DBUtils;
+import atg.tools.dynunit.test.util.TableExporter;
 import atg.versionmanager.VersionManager;
 import atg.versionmanager.Workspace;
 import atg.versionmanager.exceptions.VersionException;
@@ -47,15 +52,25 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
 
@@ -122,6 +137,276 @@ public class GSATestUtils {
         return newReps;
     }
 
+    /**
+     * Same as {@link #duplicateRepositories(GSARepository[], DataSource[])} but
+     * starts up to pThreads duplicates at the same time. The duplicate of a
+     * repository whose item descriptors reference items of another repository in
+     * pRepositories is only started after the duplicate of that one, since it
+     * resolves the reference to it; repositories referencing each other are
+     * started one after the other. A failed start does not stop the start of the
+     * duplicates independent of it.
+     *
+     * @param pThreads
+     *         maximum number of duplicates started at the same time.
+     *
+     * @throws ServiceException
+     *         listing every duplicate that failed or could not be started because
+     *         a duplicate it references failed, caused by the first failure.
+     * @throws InterruptedException
+     *         if interrupted while waiting for the duplicates to start.
+     */
+    public static Repository[] duplicateRepositories(final GSARepository[] pRepositories,
+                                                     DataSource[] pDS,
+                                                     int pThreads)
+            throws ServiceException, InterruptedException {
+        final GSARepository[] newReps = new GSARepository[pRepositories.length];
+        final String[] names = new String[pRepositories.length];
+        for (int i = 0; i < pRepositories.length; i++) {
+            newReps[i] = (GSARepository) duplicateRepository(pRepositories[i], pDS[i], false);
+            names[i] = pRepositories[i].getName();
+        }
+        final long start = System.currentTimeMillis();
+        startAll(names, findRepositoryDependencies(pRepositories), pThreads, new Starter() {
+            @Override
+            public void start(int pIndex)
+                    throws Exception {
+                startRepository(
+                        pRepositories[pIndex],
+                        pRepositories[pIndex].getServiceConfiguration(),
+                        pRepositories[pIndex].getNucleus(),
+                        newReps[pIndex]
+                );
+                if (!newReps[pIndex].isRunning()) {
+                    throw new ServiceException(newReps[pIndex].getName() + " is not running");
+                }
+            }
+        });
+        log.info("Started {} duplicate repositories in {} ms", newReps.length, System.currentTimeMillis() - start);
+        return newReps;
+    }
+
+    /**
+     * Starts one thing per index on up to pThreads threads, each only after the
+     * ones it depends on. Things depending on each other are started one after
+     * the other.
+     *
+     * @param pNames
+     *         names of the things, used in messages.
+     * @param pDependencies
+     *         for every index the indexes it depends on.
+     *
+     * @throws ServiceException
+     *         listing every failed start, and every start skipped because one it
+     *         depends on failed, caused by the first failure.
+     */
+    static void startAll(String[] pNames, List<Set<Integer>> pDependencies, int pThreads, Starter pStarter)
+            throws ServiceException, InterruptedException {
+        final List<Integer> pending = new ArrayList<Integer>();
+        for (int i = 0; i < pNames.length; i++) {
+            pending.add(i);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(pThreads, pNames.length))
+        );
+        final CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(executor);
+        final Set<Integer> started = new HashSet<Integer>();
+        final Set<Integer> failed = new HashSet<Integer>();
+        final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+        int running = 0;
+        try {
+            while (!pending.isEmpty() || running > 0) {
+                for (Integer index : new ArrayList<Integer>(pending)) {
+                    if (started.containsAll(pDependencies.get(index))) {
+                        pending.remove(index);
+                        completion.submit(new StartTask(pStarter, index));
+                        running++;
+                    }
+                }
+                if (running == 0) {
+                    skipDependentsOfFailures(pNames, pDependencies, pending, failed, failures);
+                    if (pending.isEmpty()) {
+                        break;
+                    }
+                    final Integer index = findCycleMember(pDependencies, pending);
+                    pending.remove(index);
+                    log.warn("Repositories referencing each other, starting {} first", pNames[index]);
+                    completion.submit(new StartTask(pStarter, index));
+                    running++;
+                }
+                final Future<Integer> finished = completion.take();
+                running--;
+                try {
+                    started.add(finished.get());
+                } catch (ExecutionException e) {
+                    final StartFailure failure = (StartFailure) e.getCause();
+                    log.error("Cannot start duplicate of {}", pNames[failure.index], failure.getCause());
+                    failed.add(failure.index);
+                    failures.put(pNames[failure.index], failure.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!failures.isEmpty()) {
+            final StringBuilder message = new StringBuilder(
+                    failures.size() + " of " + pNames.length + " duplicate repositories failed to start:"
+            );
+            for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+                message.append("\n  ").append(failure.getKey()).append(": ").append(failure.getValue());
+            }
+            throw new ServiceException(message.toString(), failures.values().iterator().next());
+        }
+    }
+
+    /**
+     * Moves every pending index which depends on a failed one, directly or through
+     * other pending indexes, to the failed ones.
+     */
+    private static void skipDependentsOfFailures(String[] pNames,
+                                                 List<Set<Integer>> pDependencies,
+                                                 List<Integer> pPending,
+                                                 Set<Integer> pFailed,
+                                                 Map<String, Throwable> pFailures) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Integer index : new ArrayList<Integer>(pPending)) {
+                if (!Collections.disjoint(pDependencies.get(index), pFailed)) {
+                    pPending.remove(index);
+                    pFailed.add(index);
+                    pFailures.put(
+                            pNames[index], new ServiceException("Not started, a referenced repository failed to start")
+                    );
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the first pending index which depends on itself through other pending
+     * indexes. Every pending index not inside such a cycle depends on one that is.
+     */
+    private static Integer findCycleMember(List<Set<Integer>> pDependencies, List<Integer> pPending) {
+        for (Integer index : pPending) {
+            final Set<Integer> reached = new HashSet<Integer>();
+            final List<Integer> queue = new ArrayList<Integer>();
+            queue.add(index);
+            while (!queue.isEmpty()) {
+                for (Integer dependency : pDependencies.get(queue.remove(queue.size() - 1))) {
+                    if (dependency.equals(index)) {
+                        return index;
+                    }
+                    if (pPending.contains(dependency) && reached.add(dependency)) {
+                        queue.add(dependency);
+                    }
+                }
+            }
+        }
+        throw new IllegalStateException("No pending repository can be started: " + pPending);
+    }
+
+    /**
+     * Returns for every repository the indexes of the other repositories its item
+     * descriptors reference.
+     */
+    private static List<Set<Integer>> findRepositoryDependencies(GSARepository[] pRepositories) {
+        final List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>(pRepositories.length);
+        for (GSARepository repository : pRepositories) {
+            final Set<Integer> references = new HashSet<Integer>();
+            for (String descriptorName : repository.getItemDescriptorNames()) {
+                final RepositoryItemDescriptor descriptor;
+                try {
+                    descriptor = repository.getItemDescriptor(descriptorName);
+                } catch (RepositoryException e) {
+                    log.debug("Cannot inspect {} of {}", descriptorName, repository.getName(), e);
+                    continue;
+                }
+                for (DynamicPropertyDescriptor property : descriptor.getPropertyDescriptors()) {
+                    if (!(property instanceof RepositoryPropertyDescriptor)) {
+                        continue;
+                    }
+                    final RepositoryPropertyDescriptor repositoryProperty = (RepositoryPropertyDescriptor) property;
+                    addReference(
+                            repository, pRepositories, repositoryProperty.getPropertyItemDescriptor(), references
+                    );
+                    addReference(
+                            repository, pRepositories, repositoryProperty.getComponentItemDescriptor(), references
+                    );
+                }
+            }
+            dependencies.add(references);
+        }
+        return dependencies;
+    }
+
+    private static void addReference(GSARepository pRepository,
+                                     GSARepository[] pRepositories,
+                                     RepositoryItemDescriptor pReferenced,
+                                     Set<Integer> pReferences) {
+        if (pReferenced == null || pReferenced.getRepository() == pRepository) {
+            return;
+        }
+        for (int i = 0; i < pRepositories.length; i++) {
+            if (pRepositories[i] == pReferenced.getRepository()) {
+                pReferences.add(i);
+            }
+        }
+    }
+
+    /**
+     * Starts the thing at an index for {@link #startAll}.
+     */
+    interface Starter {
+
+        void start(int pIndex)
+                throws Exception;
+    }
+
+    /**
+     * Runs a {@link Starter} for an index, returning the index.
+     */
+    private static class StartTask
+            implements Callable<Integer> {
+
+        private final Starter starter;
+
+        private final int index;
+
+        StartTask(Starter pStarter, int pIndex) {
+            starter = pStarter;
+            index = pIndex;
+        }
+
+        @Override
+        public Integer call()
+                throws StartFailure {
+            try {
+                starter.start(index);
+            } catch (Throwable e) {
+                // errors such as a NoClassDefFoundError must be reported with their index too
+                throw new StartFailure(index, e);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Failure of a {@link StartTask}, remembering its index.
+     */
+    private static class StartFailure
+            extends Exception {
+
+        private static final long serialVersionUID = 4021874567123190542L;
+
+        private final int index;
+
+        StartFailure(int pIndex, Throwable pCause) {
+            super(pCause);
+            index = pIndex;
+        }
+    }
+
     public static Repository duplicateRepository(GSARepository pRepository, DataSource pDS)
             throws ServiceException {
         return duplicateRepository(pRepository, pDS, true);
@@ -137,6 +422,28 @@ public class GSATestUtils {
                                                  DataSource pDS,
                                                  boolean pStart)
             throws ServiceException {
+        return duplicateRepository(pRepository, pDS, "-Shadow", pStart);
+    }
+
+    /**
+     * Duplicates the given repository, binds it into nucleus with the given suffix
+     * appended to its name. Duplicates sharing the data source of the original
+     * behave like the same repository on other servers of a cluster, each with
+     * its own caches.
+     *
+     * @param pSuffix
+     *         appended to the name of the repository and to the foreign
+     *         repositories it references, e.g. "-Shadow"
+     * @param pStart
+     *         If true, also starts the repository
+     *
+     * @see CacheCoherenceBenchmark
+     */
+    public static Repository duplicateRepository(GSARepository pRepository,
+                                                 DataSource pDS,
+                                                 String pSuffix,
+                                                 boolean pStart)
+            throws ServiceException {
         Configuration c = pRepository.getServiceConfiguration();
         Nucleus n = pRepository.getNucleus();
         NucleusNameResolver r = new NucleusNameResolver(
@@ -154,7 +461,7 @@ public class GSATestUtils {
             c.configureService(newRepository, r, pRepository);
         }
         newRepository.setDataSource(pDS);
-        newRepository.setForeignRepositorySuffix("-Shadow");
+        newRepository.setForeignRepositorySuffix(pSuffix);
 
     /*
     // Fool this new repository into thinking that it has been
@@ -167,7 +474,7 @@ public class GSATestUtils {
     newRepository.nameContextElementBound(bindingEvent);
     */
         NameContext nc = pRepository.getNameContext();
-        nc.putElement(pRepository.getName() + "-Shadow", newRepository);
+        nc.putElement(pRepository.getName() + pSuffix, newRepository);
 
         if (pStart) {
             startRepository(pRepository, c, n, newRepository);
@@ -562,6 +869,38 @@ public class GSATestUtils {
 
     // ---------------------------------
 
+    /**
+     * Creates a RecordingDataSource component in front of the given data
+     * source. Pass its name as the JTDataSource name of
+     * {@link #createRepositoryPropertiesFile(File, String, String[], String, String, String[], String)}
+     * to record the statements of that repository.
+     *
+     * @param pRoot
+     * @param pName            name of the component, RecordingDataSource if null.
+     * @param pDataSourceName  name of the recorded data source, JTDataSource if null.
+     *
+     * @return
+     *
+     * @throws IOException
+     * @see RecordingDataSource
+     */
+    public static File createRecordingDataSource(File pRoot, String pName, String pDataSourceName)
+            throws IOException {
+        Properties props = new Properties();
+        props.put(
+                "dataSource",
+                "/atg/dynamo/service/jdbc/" + (pDataSourceName == null ? "JTDataSource" : pDataSourceName)
+        );
+        return NucleusUtils.createProperties(
+                pName == null ? "RecordingDataSource" : pName,
+                new File(pRoot.getAbsolutePath() + "/atg/dynamo/service/jdbc"),
+                RecordingDataSource.class.getName(),
+                props
+        );
+    }
+
+    // ---------------------------------
+
     /**
      * Creates a SQLRepositoryEventServer
      *
@@ -1340,28 +1679,91 @@ public class GSATestUtils {
      * @param pTable
      *
      * @throws SQLException
+     * @deprecated a table does not know the connection to read it with, use
+     *             {@link #dumpTables(GSARepository, String)} instead.
      */
+    @Deprecated
     public static void dumpTable(Table pTable, Collection<String> pPrintColumnNames)
             throws SQLException {
-        // XXX: what in the fuck
-        throw new UnsupportedOperationException();
+        throw new UnsupportedOperationException("Use dumpTables(GSARepository, String) instead");
+    }
+
+    /**
+     * Exports the tables of all item descriptors of the repository into the
+     * directory, one file per table, streaming the rows so tables of any size
+     * can be captured.
+     *
+     * @return the files written, in the order {@link #importTables} reads them.
+     */
+    public static List<File> exportTables(GSARepository pRepository, File pDirectory, TableExporter pExporter)
+            throws RepositoryException, SQLException, IOException {
+        if (!pDirectory.isDirectory() && !pDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + pDirectory);
+        }
+        final List<File> files = new ArrayList<File>();
+        final Connection connection = pRepository.getDataSource().getConnection();
+        try {
+            for (String table : getTableNames(pRepository, pRepository.getItemDescriptorNames())) {
+                files.add(pExporter.exportTable(connection, table, pDirectory));
+            }
+        } finally {
+            connection.close();
+        }
+        return files;
     }
 
     /**
+     * Imports the files written by {@link #exportTables} into the tables of the
+     * repository, which should be empty, and invalidates its caches. Referenced
+     * tables are imported before the tables referencing them, tables without a
+     * file in the directory are skipped.
+     *
+     * @return the number of rows imported.
+     */
+    public static long importTables(GSARepository pRepository, File pDirectory, TableExporter pExporter)
+            throws RepositoryException, SQLException, IOException {
+        long rows = 0;
+        final Connection connection = pRepository.getDataSource().getConnection();
+        try {
+            for (String table : getTableNames(pRepository, pRepository.getItemDescriptorNames())) {
+                if (pExporter.getFile(pDirectory, table).exists()) {
+                    rows += pExporter.importTable(connection, table, pDirectory);
+                }
+            }
+        } finally {
+            connection.close();
+        }
+        pRepository.invalidateCaches();
+        return rows;
+    }
+
+    /**
+     * Returns the names of the tables of the item descriptors, referenced tables
+     * before the tables referencing them.
+     */
+    private static List<String> getTableNames(GSARepository pRepository, String... pItemDescriptorNames)
+            throws RepositoryException {
+        return new BulkImporter(pRepository).getTableOrder(pItemDescriptorNames);
+    }
+
+    /**
+     * Prints all rows of the tables of the item descriptor to the console as CSV.
+     *
      * @param repository
      * @param itemDescriptorName
      */
     public static void dumpTables(GSARepository repository, String itemDescriptorName)
-            throws RepositoryException, SQLException {
-        GSAItemDescriptor itemDescriptor = (GSAItemDescriptor) repository.getItemDescriptor(
-                itemDescriptorName
-        );
-        Set<String> doneTables = new HashSet<String>();
-        for (Table table : itemDescriptor.getTables()) {
-            if (!doneTables.contains(table.getName())) {
-                dumpTable(table, new ArrayList<String>());
-                doneTables.add(table.getName());
+            throws RepositoryException, SQLException, IOException {
+        final TableExporter exporter = new TableExporter();
+        final Connection connection = repository.getDataSource().getConnection();
+        try {
+            for (String table : getTableNames(repository, itemDescriptorName)) {
+                System.out.println(table + ":");
+                exporter.exportTable(connection, table, System.out);
+                System.out.flush();
             }
+        } finally {
+            connection.close();
         }
     }
 }
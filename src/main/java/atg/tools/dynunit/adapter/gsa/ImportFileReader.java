@@ -0,0 +1,252 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the {@code <add-item>} elements out of a GSA import file (the format read by
+ * {@code TemplateParser}) using StAX, without building a DOM of the whole file.
+ * <p/>
+ * Only what can be imported without going through the repository API is supported: items
+ * with an explicit id, optionally wrapped in {@code <transaction>} elements, whose properties
+ * are set by {@code <set-property>} elements. Any other operation, like {@code update-item},
+ * {@code remove-item} or {@code query-items}, results in an
+ * {@link UnsupportedOperationException} so the caller can fall back to the TemplateParser.
+ */
+public class ImportFileReader
+        implements Closeable {
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        // import files reference the GSA DTD which we neither need nor want to download
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    private final XMLStreamReader reader;
+
+    private final String source;
+
+    @Nullable
+    private final String repositoryName;
+
+    /**
+     * @param pInput
+     *         import file contents. Not closed by this reader.
+     * @param pSource
+     *         name of the import file used in error messages.
+     * @param pRepositoryName
+     *         absolute name of the repository being imported into. Items naming a different
+     *         repository are not supported.
+     */
+    public ImportFileReader(@NotNull InputStream pInput,
+                            @NotNull String pSource,
+                            @Nullable String pRepositoryName)
+            throws XMLStreamException {
+        synchronized (FACTORY) {
+            reader = FACTORY.createXMLStreamReader(pInput);
+        }
+        source = pSource;
+        repositoryName = pRepositoryName;
+    }
+
+    /**
+     * Returns the next item of the file or {@code null} at its end.
+     *
+     * @throws XMLStreamException
+     *         if the file is not well formed.
+     * @throws UnsupportedOperationException
+     *         if the file contains anything but plain {@code add-item} elements.
+     */
+    @Nullable
+    public Item next()
+            throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            final String element = reader.getLocalName();
+            if ("add-item".equals(element)) {
+                return readItem();
+            }
+            if ("header".equals(element)) {
+                skipElement();
+            } else if (!"gsa-template".equals(element)
+                       && !"import-items".equals(element)
+                       && !"transaction".equals(element)) {
+                throw unsupported("<" + element + ">");
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            // nothing left to release
+        }
+    }
+
+    /**
+     * Splits the value of a multi valued property into its trimmed, non-empty elements.
+     */
+    @NotNull
+    public static List<String> splitValues(@NotNull String pValue) {
+        final List<String> values = new ArrayList<String>();
+        for (String value : pValue.split(",")) {
+            value = value.trim();
+            if (value.length() > 0) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    private Item readItem()
+            throws XMLStreamException {
+        final String descriptor = reader.getAttributeValue(null, "item-descriptor");
+        final String id = reader.getAttributeValue(null, "id");
+        final String repository = reader.getAttributeValue(null, "repository");
+        final int line = getLine();
+        if (descriptor == null) {
+            throw new XMLStreamException(source + ":" + line + ": add-item without item-descriptor");
+        }
+        if (id == null) {
+            throw unsupported("add-item without id");
+        }
+        if (repository != null && repositoryName != null && !repository.equals(repositoryName)) {
+            throw unsupported("add-item for repository " + repository);
+        }
+        final Map<String, String> properties = new LinkedHashMap<String, String>();
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            if (!"set-property".equals(reader.getLocalName())) {
+                throw unsupported("<" + reader.getLocalName() + "> within add-item");
+            }
+            if (reader.getAttributeValue(null, "add") != null
+                || reader.getAttributeValue(null, "remove") != null) {
+                throw unsupported("set-property with add or remove");
+            }
+            final String name = reader.getAttributeValue(null, "name");
+            final String value = reader.getAttributeValue(null, "value");
+            final String text = reader.getElementText();
+            properties.put(name, value != null ? value : text.trim());
+        }
+        return new Item(descriptor, id, properties, source, line);
+    }
+
+    private void skipElement()
+            throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private int getLine() {
+        final Location location = reader.getLocation();
+        return location == null ? -1 : location.getLineNumber();
+    }
+
+    private UnsupportedOperationException unsupported(String pWhat) {
+        return new UnsupportedOperationException(
+                source + ":" + getLine() + ": bulk import does not support " + pWhat
+        );
+    }
+
+    /**
+     * A single {@code add-item} element.
+     */
+    public static class Item {
+
+        private final String descriptor;
+
+        private final String id;
+
+        private final Map<String, String> properties;
+
+        private final String source;
+
+        private final int line;
+
+        public Item(String pDescriptor, String pId, Map<String, String> pProperties, String pSource, int pLine) {
+            descriptor = pDescriptor;
+            id = pId;
+            properties = Collections.unmodifiableMap(pProperties);
+            source = pSource;
+            line = pLine;
+        }
+
+        public String getDescriptor() {
+            return descriptor;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Returns the raw property values in file order. Multi valued properties are comma
+         * separated, maps use {@code key=value} pairs.
+         */
+        public Map<String, String> getProperties() {
+            return properties;
+        }
+
+        /**
+         * Returns the file and line this item was read from.
+         */
+        public String getLocation() {
+            return source + ":" + line;
+        }
+
+        @Override
+        public String toString() {
+            return descriptor + ":" + id;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the imports of the import files of one repository concurrently.
+ * <p/>
+ * A file depends on an earlier file if one of them defines an item id that the other one
+ * defines or mentions in a property value, so referenced items are always imported first. The
+ * analysis is textual and errs on the side of serial order; files that {@link ImportFileReader}
+ * cannot read completely are barriers which run after all earlier and before all later files.
+ * <p/>
+ * Every file is handed to its {@link FileImporter} on its own pool thread, so importers must
+ * start their own transaction.
+ */
+public class ImportScheduler {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * Imports a single file. Called concurrently for independent files.
+     */
+    public interface FileImporter {
+
+        void importFile(@NotNull String pFile)
+                throws Exception;
+    }
+
+    private final int threads;
+
+    private final FileImporter importer;
+
+    // in configured order
+    private final List<String> files = new ArrayList<String>();
+
+    /**
+     * @param pThreads
+     *         maximum number of files imported at the same time.
+     * @param pImporter
+     *         imports the files into the repository.
+     */
+    public ImportScheduler(int pThreads, @NotNull FileImporter pImporter) {
+        threads = Math.max(1, pThreads);
+        importer = pImporter;
+    }
+
+    /**
+     * Appends import files, in the order they would be imported serially.
+     */
+    public void add(@NotNull String... pFiles) {
+        Collections.addAll(files, pFiles);
+    }
+
+    /**
+     * Imports all files and waits for them to finish. After the first failure no further
+     * files are started.
+     *
+     * @return the import time in milliseconds per file, in order of completion.
+     *
+     * @throws ExecutionException
+     *         wrapping the first failure of an importer.
+     * @throws InterruptedException
+     *         if the calling thread was interrupted while waiting.
+     */
+    @NotNull
+    public Map<String, Long> run()
+            throws ExecutionException, InterruptedException {
+        final List<Set<Integer>> dependencies = findDependencies(files);
+        final List<Task> pending = new ArrayList<Task>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            final Task task = new Task(files.get(i));
+            for (Integer dependency : dependencies.get(i)) {
+                task.dependencies.add(pending.get(dependency));
+            }
+            pending.add(task);
+        }
+
+        final Map<String, Long> timings = Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, pending.size())));
+        final CompletionService<Task> completion = new ExecutorCompletionService<Task>(executor);
+        final Set<Task> done = new HashSet<Task>();
+        final long start = System.currentTimeMillis();
+        int running = 0;
+        ExecutionException failure = null;
+        try {
+            while (!pending.isEmpty() || running > 0) {
+                if (failure == null) {
+                    for (Task task : new ArrayList<Task>(pending)) {
+                        if (done.containsAll(task.dependencies)) {
+                            pending.remove(task);
+                            completion.submit(new TimedImport(task, importer, timings));
+                            running++;
+                        }
+                    }
+                }
+                if (running == 0) {
+                    // only reachable after a failure left dependent tasks behind
+                    break;
+                }
+                final Future<Task> finished = completion.take();
+                running--;
+                try {
+                    done.add(finished.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        logger.info("Imported {} files in {} ms", timings.size(), System.currentTimeMillis() - start);
+        return timings;
+    }
+
+    /**
+     * Returns for every file the indexes of the earlier files it has to wait for.
+     */
+    @NotNull
+    static List<Set<Integer>> findDependencies(@NotNull List<String> pFiles) {
+        final List<Set<String>> defined = new ArrayList<Set<String>>(pFiles.size());
+        final List<Set<String>> mentioned = new ArrayList<Set<String>>(pFiles.size());
+        final List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>(pFiles.size());
+        int barrier = -1;
+        for (int i = 0; i < pFiles.size(); i++) {
+            final Set<String> ids = new HashSet<String>();
+            final Set<String> values = new HashSet<String>();
+            final boolean readable = scan(pFiles.get(i), ids, values);
+            final Set<Integer> dependsOn = new LinkedHashSet<Integer>();
+            for (int j = 0; j < i; j++) {
+                if (!readable || j <= barrier
+                    || intersects(ids, defined.get(j))
+                    || intersects(ids, mentioned.get(j))
+                    || intersects(values, defined.get(j))) {
+                    dependsOn.add(j);
+                }
+            }
+            if (!readable) {
+                barrier = i;
+            }
+            defined.add(ids);
+            mentioned.add(values);
+            dependencies.add(dependsOn);
+        }
+        return dependencies;
+    }
+
+    /**
+     * Collects the item ids defined in a file and every token of its property values.
+     *
+     * @return false if the file could not be read completely.
+     */
+    private static boolean scan(String pFile, Set<String> pIds, Set<String> pValues) {
+        InputStream in = null;
+        ImportFileReader reader = null;
+        try {
+            in = new FileInputStream(new File(pFile));
+            reader = new ImportFileReader(in, pFile, null);
+            ImportFileReader.Item item;
+            while ((item = reader.next()) != null) {
+                pIds.add(item.getId());
+                for (String value : item.getProperties().values()) {
+                    for (String token : ImportFileReader.splitValues(value)) {
+                        final int separator = token.indexOf('=');
+                        if (separator >= 0) {
+                            pValues.add(token.substring(0, separator).trim());
+                            pValues.add(token.substring(separator + 1).trim());
+                        } else {
+                            pValues.add(token);
+                        }
+                    }
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            logger.debug("Importing {} serially: {}", pFile, e.getMessage());
+            return false;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static boolean intersects(Set<String> pFirst, Set<String> pSecond) {
+        for (String value : pFirst) {
+            if (pSecond.contains(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Task {
+
+        private final String file;
+
+        private final Set<Task> dependencies = new HashSet<Task>();
+
+        Task(String pFile) {
+            file = pFile;
+        }
+
+        @Override
+        public String toString() {
+            return file;
+        }
+    }
+
+    private static class TimedImport
+            implements Callable<Task> {
+
+        private final Task task;
+
+        private final FileImporter importer;
+
+        private final Map<String, Long> timings;
+
+        TimedImport(Task pTask, FileImporter pImporter, Map<String, Long> pTimings) {
+            task = pTask;
+            importer = pImporter;
+            timings = pTimings;
+        }
+
+        @Override
+        public Task call()
+                throws Exception {
+            final long start = System.currentTimeMillis();
+            importer.importFile(task.file);
+            final long elapsed = System.currentTimeMillis() - start;
+            logger.info("Imported {} in {} ms", task, elapsed);
+            timings.put(task.toString(), elapsed);
+            return task;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which version of an import file was imported into a repository, so that only
+ * changed files need to be imported again at the next startup of a persistent database.
+ * <p/>
+ * For every imported file the SHA-1 hash of its contents is stored in
+ * {@value #FILE_TABLE}, and the item descriptor and id of every item added by it in
+ * {@value #ITEM_TABLE}. Both tables are created in the repository's database when missing.
+ * The items of a file are only known if {@link ImportFileReader} can read the whole file;
+ * otherwise nothing is recorded for it, so that it counts as changed and is imported again at
+ * every startup.
+ */
+public class ImportTracker {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    public static final String FILE_TABLE = "DYNUNIT_IMPORT_FILE";
+
+    public static final String ITEM_TABLE = "DYNUNIT_IMPORT_ITEM";
+
+    private final DataSource dataSource;
+
+    private final String repositoryName;
+
+    private final Map<String, String> hashes = new HashMap<String, String>();
+
+    private boolean tablesChecked = false;
+
+    /**
+     * @param pDataSource
+     *         data source of the repository. Used outside of any transaction.
+     * @param pRepositoryName
+     *         absolute name of the repository, distinguishing repositories sharing a database.
+     */
+    public ImportTracker(@NotNull DataSource pDataSource, @NotNull String pRepositoryName) {
+        dataSource = pDataSource;
+        repositoryName = pRepositoryName;
+    }
+
+    /**
+     * Returns true if the file was never imported or has changed since its last import.
+     */
+    public boolean isChanged(@NotNull String pFile)
+            throws SQLException, IOException {
+        final String stored = getStoredHash(pFile);
+        return stored == null || !stored.equals(getHash(pFile));
+    }
+
+    /**
+     * Returns the {@code {item descriptor, id}} pairs added by the last import of the file,
+     * in file order.
+     */
+    @NotNull
+    public List<String[]> getItems(@NotNull String pFile)
+            throws SQLException {
+        ensureTables();
+        final List<String[]> items = new ArrayList<String[]>();
+        final Connection connection = dataSource.getConnection();
+        try {
+            final PreparedStatement statement = connection.prepareStatement(
+                    "SELECT ITEM_DESCRIPTOR, ITEM_ID FROM " + ITEM_TABLE
+                    + " WHERE REPOSITORY_NAME = ? AND FILE_NAME = ? ORDER BY SEQUENCE_NUM"
+            );
+            try {
+                statement.setString(1, repositoryName);
+                statement.setString(2, pFile);
+                final ResultSet resultSet = statement.executeQuery();
+                while (resultSet.next()) {
+                    items.add(new String[]{ resultSet.getString(1), resultSet.getString(2) });
+                }
+                resultSet.close();
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+        return items;
+    }
+
+    /**
+     * Stores the current hash and items of a file after it has been imported. If the items of
+     * the file cannot be determined, whatever was stored for it before is removed instead.
+     *
+     * @return false if the items of the file could not be determined.
+     */
+    public boolean record(@NotNull String pFile)
+            throws SQLException, IOException {
+        ensureTables();
+        final List<ImportFileReader.Item> items = new ArrayList<ImportFileReader.Item>();
+        boolean complete = true;
+        InputStream in = new FileInputStream(pFile);
+        ImportFileReader reader = null;
+        try {
+            reader = new ImportFileReader(in, pFile, repositoryName);
+            ImportFileReader.Item item;
+            while ((item = reader.next()) != null) {
+                items.add(item);
+            }
+        } catch (Exception e) {
+            logger.warn("Items of {} cannot be tracked: {}", pFile, e.getMessage());
+            complete = false;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            IOUtils.closeQuietly(in);
+        }
+
+        final Connection connection = dataSource.getConnection();
+        try {
+            forget(connection, pFile);
+            if (!complete) {
+                return false;
+            }
+            final PreparedStatement file = connection.prepareStatement(
+                    "INSERT INTO " + FILE_TABLE + " (REPOSITORY_NAME, FILE_NAME, CONTENT_HASH) VALUES (?, ?, ?)"
+            );
+            try {
+                file.setString(1, repositoryName);
+                file.setString(2, pFile);
+                file.setString(3, getHash(pFile));
+                file.executeUpdate();
+            } finally {
+                file.close();
+            }
+            if (!items.isEmpty()) {
+                final PreparedStatement item = connection.prepareStatement(
+                        "INSERT INTO " + ITEM_TABLE
+                        + " (REPOSITORY_NAME, FILE_NAME, SEQUENCE_NUM, ITEM_DESCRIPTOR, ITEM_ID) VALUES (?, ?, ?, ?, ?)"
+                );
+                try {
+                    for (int i = 0; i < items.size(); i++) {
+                        item.setString(1, repositoryName);
+                        item.setString(2, pFile);
+                        item.setInt(3, i);
+                        item.setString(4, items.get(i).getDescriptor());
+                        item.setString(5, items.get(i).getId());
+                        item.addBatch();
+                    }
+                    item.executeBatch();
+                } finally {
+                    item.close();
+                }
+            }
+        } finally {
+            connection.close();
+        }
+        return true;
+    }
+
+    /**
+     * Removes everything recorded for this repository, e.g. after its tables were recreated.
+     */
+    public void clear()
+            throws SQLException {
+        ensureTables();
+        final Connection connection = dataSource.getConnection();
+        try {
+            for (String table : new String[]{ ITEM_TABLE, FILE_TABLE }) {
+                final PreparedStatement statement = connection.prepareStatement(
+                        "DELETE FROM " + table + " WHERE REPOSITORY_NAME = ?"
+                );
+                try {
+                    statement.setString(1, repositoryName);
+                    statement.executeUpdate();
+                } finally {
+                    statement.close();
+                }
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Returns the hex encoded SHA-1 hash of the file's contents.
+     */
+    @NotNull
+    public String getHash(@NotNull String pFile)
+            throws IOException {
+        String hash = hashes.get(pFile);
+        if (hash == null) {
+            hash = hash(new File(pFile));
+            hashes.put(pFile, hash);
+        }
+        return hash;
+    }
+
+    @NotNull
+    static String hash(@NotNull File pFile)
+            throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final InputStream in = new FileInputStream(pFile);
+        try {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        final StringBuilder hex = new StringBuilder(40);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    @Nullable
+    private String getStoredHash(String pFile)
+            throws SQLException {
+        ensureTables();
+        final Connection connection = dataSource.getConnection();
+        try {
+            final PreparedStatement statement = connection.prepareStatement(
+                    "SELECT CONTENT_HASH FROM " + FILE_TABLE + " WHERE REPOSITORY_NAME = ? AND FILE_NAME = ?"
+            );
+            try {
+                statement.setString(1, repositoryName);
+                statement.setString(2, pFile);
+                final ResultSet resultSet = statement.executeQuery();
+                final String hash = resultSet.next() ? resultSet.getString(1) : null;
+                resultSet.close();
+                return hash;
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void forget(Connection pConnection, String pFile)
+            throws SQLException {
+        for (String table : new String[]{ ITEM_TABLE, FILE_TABLE }) {
+            final PreparedStatement statement = pConnection.prepareStatement(
+                    "DELETE FROM " + table + " WHERE REPOSITORY_NAME = ? AND FILE_NAME = ?"
+            );
+            try {
+                statement.setString(1, repositoryName);
+                statement.setString(2, pFile);
+                statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        }
+    }
+
+    private void ensureTables()
+            throws SQLException {
+        if (tablesChecked) {
+            return;
+        }
+        final Connection connection = dataSource.getConnection();
+        try {
+            if (!exists(connection, FILE_TABLE)) {
+                execute(
+                        connection, "CREATE TABLE " + FILE_TABLE + " ("
+                                    + "REPOSITORY_NAME VARCHAR(254) NOT NULL, "
+                                    + "FILE_NAME VARCHAR(1024) NOT NULL, "
+                                    + "CONTENT_HASH VARCHAR(40) NOT NULL)"
+                );
+            }
+            if (!exists(connection, ITEM_TABLE)) {
+                execute(
+                        connection, "CREATE TABLE " + ITEM_TABLE + " ("
+                                    + "REPOSITORY_NAME VARCHAR(254) NOT NULL, "
+                                    + "FILE_NAME VARCHAR(1024) NOT NULL, "
+                                    + "SEQUENCE_NUM INTEGER NOT NULL, "
+                                    + "ITEM_DESCRIPTOR VARCHAR(254) NOT NULL, "
+                                    + "ITEM_ID VARCHAR(254) NOT NULL)"
+                );
+            }
+        } finally {
+            connection.close();
+        }
+        tablesChecked = true;
+    }
+
+    private static boolean exists(Connection pConnection, String pTable)
+            throws SQLException {
+        final DatabaseMetaData metaData = pConnection.getMetaData();
+        for (String name : new String[]{ pTable, pTable.toLowerCase() }) {
+            final ResultSet tables = metaData.getTables(null, null, name, new String[]{ "TABLE" });
+            try {
+                if (tables.next()) {
+                    return true;
+                }
+            } finally {
+                tables.close();
+            }
+        }
+        return false;
+    }
+
+    private static void execute(Connection pConnection, String pSql)
+            throws SQLException {
+        final Statement statement = pConnection.createStatement();
+        try {
+            statement.execute(pSql);
+        } finally {
+            statement.close();
+        }
+    }
+}
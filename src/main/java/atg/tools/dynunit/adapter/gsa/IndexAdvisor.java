@@ -0,0 +1,557 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.adapter.gsa.GSARepository;
+import atg.repository.RepositoryException;
+import atg.tools.dynunit.service.jdbc.SQLRecorder;
+import org.apache.ddlutils.model.Column;
+import org.apache.ddlutils.model.Database;
+import org.apache.ddlutils.model.Index;
+import org.apache.ddlutils.model.Table;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Suggests indexes for a repository based on the SQL it issued during a test run. In-memory
+ * test databases are small enough that missing indexes go unnoticed; this class runs
+ * {@code EXPLAIN} for every distinct statement collected from a {@link SQLRecorder}, and for
+ * each table the database scans completely it suggests an index on the columns the statement
+ * filters or joins on, unless an index of the repository's tables already starts with them.
+ * <pre>
+ * &#64;After
+ * public void collectSql() {
+ *     advisor.collect(recordingDataSource.getRecorder());
+ * }
+ *
+ * &#64;AfterClass
+ * public static void adviseIndexes() throws SQLException {
+ *     logger.info(IndexAdvisor.report(advisor.advise(repository.getDataSource())));
+ * }
+ * </pre>
+ * The indexes of the repository are taken from the DDLUtils model built by
+ * {@link GSARepositorySchemaGenerator}, i.e. primary keys and unique columns. Indexes the test
+ * database creates on its own, such as those HSQLDB adds for foreign keys, are therefore not
+ * counted. EXPLAIN is supported on HSQLDB and H2.
+ */
+public class IndexAdvisor {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final String IDENTIFIER = "[A-Za-z_\"][\\w\"$]*";
+
+    private static final String OPERATOR = "(?:=|<>|!=|<=|>=|<|>)";
+
+    // tables with an optional alias after FROM, JOIN or UPDATE
+    private static final Pattern TABLE_CLAUSE = Pattern.compile(
+            "\\b(?:from|join|update)\\s+(.+?)(?=\\b(?:where|set|on|using|group|order|having|union|inner|left"
+            + "|right|full|outer|cross|join|select)\\b|[()]|$)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL
+    );
+
+    // WHERE and ON clauses, up to the next clause that does not filter rows
+    private static final Pattern CONDITION_CLAUSE = Pattern.compile(
+            "\\b(?:where|on)\\b(.+?)(?=\\b(?:group|order|having|union|join|inner|left|right|full|cross|set"
+            + "|select|from)\\b|$)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL
+    );
+
+    private static final Pattern LEFT_OPERAND = Pattern.compile(
+            "(?:(" + IDENTIFIER + ")\\.)?(" + IDENTIFIER + ")\\s*(?:" + OPERATOR
+            + "|(?:\\bnot\\s+)?\\b(?:like|in|is|between)\\b)",
+            Pattern.CASE_INSENSITIVE
+    );
+
+    private static final Pattern RIGHT_OPERAND = Pattern.compile(
+            OPERATOR + "\\s*(?:(" + IDENTIFIER + ")\\.)?(" + IDENTIFIER + ")",
+            Pattern.CASE_INSENSITIVE
+    );
+
+    private static final Pattern HSQLDB_TABLE = Pattern.compile("^\\s*table=(\\S+)");
+
+    private static final Pattern HSQLDB_FULL_SCAN = Pattern.compile("^\\s*access=FULL SCAN");
+
+    private static final Pattern H2_TABLE_SCAN = Pattern.compile("/\\*\\s*(?:\\S+\\.)?([^.\\s]+)\\.tableScan\\b");
+
+    // most databases limit index names to 30 characters
+    private static final int MAX_INDEX_NAME_LENGTH = 30;
+
+    private final Database model;
+
+    private final Map<String, Sample> samples = new LinkedHashMap<String, Sample>();
+
+    /**
+     * Creates an advisor for the tables of the given DDLUtils model.
+     *
+     * @see GSARepositorySchemaGenerator#getDatabase()
+     */
+    public IndexAdvisor(@NotNull Database pModel) {
+        model = pModel;
+    }
+
+    /**
+     * Creates an advisor for the tables of the given repository.
+     *
+     * @throws RepositoryException
+     *         if the model of the repository cannot be built.
+     */
+    @NotNull
+    public static IndexAdvisor forRepository(@NotNull GSARepository pRepository)
+            throws RepositoryException {
+        return new IndexAdvisor(new GSARepositorySchemaGenerator(pRepository).getDatabase());
+    }
+
+    /**
+     * Adds the statements recorded so far, typically after each test. Statements are kept once
+     * per distinct SQL, with the bind parameters of their first execution.
+     */
+    public void collect(@NotNull SQLRecorder pRecorder) {
+        collect(pRecorder.getStatements());
+    }
+
+    /**
+     * Adds the given statements.
+     */
+    public synchronized void collect(@NotNull Collection<SQLRecorder.RecordedStatement> pStatements) {
+        for (SQLRecorder.RecordedStatement statement : pStatements) {
+            final String type = statement.getType();
+            if (!"SELECT".equals(type) && !"UPDATE".equals(type) && !"DELETE".equals(type)) {
+                continue;
+            }
+            Sample sample = samples.get(statement.getSql());
+            if (sample == null) {
+                sample = new Sample(statement.getSql(), statement.getParameters());
+                samples.put(statement.getSql(), sample);
+            }
+            sample.executions += statement.getBatchSize();
+        }
+    }
+
+    /**
+     * Explains the collected statements on a connection of the given data source. If it
+     * records statements itself, pass its recorder so the EXPLAIN statements are left out.
+     *
+     * @see #advise(Connection)
+     */
+    @NotNull
+    public List<Suggestion> advise(@NotNull DataSource pDataSource, @Nullable SQLRecorder pRecorder)
+            throws SQLException {
+        final boolean enabled = pRecorder != null && pRecorder.isEnabled();
+        if (enabled) {
+            pRecorder.setEnabled(false);
+        }
+        try {
+            return advise(pDataSource);
+        } finally {
+            if (enabled) {
+                pRecorder.setEnabled(true);
+            }
+        }
+    }
+
+    /**
+     * Explains the collected statements on a connection of the given data source.
+     *
+     * @see #advise(Connection)
+     */
+    @NotNull
+    public List<Suggestion> advise(@NotNull DataSource pDataSource)
+            throws SQLException {
+        final Connection connection = pDataSource.getConnection();
+        try {
+            return advise(connection);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Explains the collected statements and returns the suggested indexes, most executed
+     * first. Statements the database cannot explain are skipped.
+     *
+     * @param pConnection
+     *         connection to the HSQLDB or H2 database the statements ran on. Left open.
+     *
+     * @throws SQLFeatureNotSupportedException
+     *         if the database is neither HSQLDB nor H2.
+     */
+    @NotNull
+    public List<Suggestion> advise(@NotNull Connection pConnection)
+            throws SQLException {
+        final String product = pConnection.getMetaData().getDatabaseProductName();
+        final boolean h2 = GSARepositorySchemaGenerator.H2.equals(product);
+        if (!h2 && !product.startsWith("HSQL")) {
+            throw new SQLFeatureNotSupportedException("EXPLAIN is not supported on " + product);
+        }
+        final List<Sample> collected;
+        synchronized (this) {
+            collected = new ArrayList<Sample>(samples.values());
+        }
+        final Map<String, Suggestion> suggestions = new LinkedHashMap<String, Suggestion>();
+        for (Sample sample : collected) {
+            final Set<String> scanned;
+            try {
+                scanned = explain(pConnection, sample, h2);
+            } catch (SQLException e) {
+                logger.debug("Could not explain {}: {}", sample.sql, e.getMessage());
+                continue;
+            }
+            if (scanned.isEmpty()) {
+                continue;
+            }
+            final Map<Table, List<String>> candidates = getUnindexedColumns(sample.sql);
+            for (Map.Entry<Table, List<String>> candidate : candidates.entrySet()) {
+                final String table = candidate.getKey().getName();
+                if (!scanned.contains(table.toUpperCase(Locale.ENGLISH))) {
+                    continue;
+                }
+                final String key = table + candidate.getValue();
+                Suggestion suggestion = suggestions.get(key);
+                if (suggestion == null) {
+                    suggestion = new Suggestion(table, candidate.getValue());
+                    suggestions.put(key, suggestion);
+                }
+                suggestion.add(sample.sql, sample.executions);
+            }
+        }
+        final List<Suggestion> sorted = new ArrayList<Suggestion>(suggestions.values());
+        Collections.sort(
+                sorted, new Comparator<Suggestion>() {
+                    @Override
+                    public int compare(Suggestion o1, Suggestion o2) {
+                        return o1.executions == o2.executions ? 0 : o1.executions > o2.executions ? -1 : 1;
+                    }
+                }
+        );
+        return sorted;
+    }
+
+    /**
+     * Formats the suggestions grouped by table, as XML comments that can be kept next to the
+     * {@code <table>} definitions of the repository and turned into DDL for production.
+     */
+    @NotNull
+    public static String report(@NotNull List<Suggestion> pSuggestions) {
+        if (pSuggestions.isEmpty()) {
+            return "<!-- no index suggestions -->";
+        }
+        final Map<String, List<Suggestion>> byTable = new LinkedHashMap<String, List<Suggestion>>();
+        for (Suggestion suggestion : pSuggestions) {
+            List<Suggestion> suggestions = byTable.get(suggestion.getTable());
+            if (suggestions == null) {
+                suggestions = new ArrayList<Suggestion>();
+                byTable.put(suggestion.getTable(), suggestions);
+            }
+            suggestions.add(suggestion);
+        }
+        final StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, List<Suggestion>> table : byTable.entrySet()) {
+            report.append("<table name=\"").append(table.getKey()).append("\">\n");
+            for (Suggestion suggestion : table.getValue()) {
+                report.append("  <!-- full scan in ")
+                      .append(suggestion.getStatements().size())
+                      .append(" statement(s), ")
+                      .append(suggestion.getExecutions())
+                      .append(" execution(s), e.g. ")
+                      .append(comment(suggestion.getStatements().get(0)))
+                      .append(" -->\n  <!-- ")
+                      .append(comment(suggestion.getDDL()))
+                      .append(" -->\n");
+            }
+            report.append("</table>\n");
+        }
+        return report.toString();
+    }
+
+    /**
+     * Returns the names of the tables the database reads completely for the statement, in
+     * upper case.
+     */
+    private static Set<String> explain(Connection pConnection, Sample pSample, boolean pH2)
+            throws SQLException {
+        final Set<String> scanned = new LinkedHashSet<String>();
+        final PreparedStatement statement = pConnection.prepareStatement(
+                (pH2 ? "EXPLAIN " : "EXPLAIN PLAN FOR ") + pSample.sql
+        );
+        try {
+            final int count = statement.getParameterMetaData().getParameterCount();
+            for (int i = 1; i <= count; i++) {
+                final Object value = i <= pSample.parameters.size() ? pSample.parameters.get(i - 1) : null;
+                if (value == null) {
+                    statement.setNull(i, Types.VARCHAR);
+                }
+                else {
+                    statement.setObject(i, value);
+                }
+            }
+            final ResultSet resultSet = statement.executeQuery();
+            try {
+                String table = null;
+                while (resultSet.next()) {
+                    for (String line : resultSet.getString(1).split("\n")) {
+                        if (pH2) {
+                            final Matcher matcher = H2_TABLE_SCAN.matcher(line);
+                            while (matcher.find()) {
+                                scanned.add(unquote(matcher.group(1)));
+                            }
+                            continue;
+                        }
+                        final Matcher matcher = HSQLDB_TABLE.matcher(line);
+                        if (matcher.find()) {
+                            table = unquote(matcher.group(1));
+                        }
+                        else if (table != null && HSQLDB_FULL_SCAN.matcher(line).find()) {
+                            scanned.add(table);
+                        }
+                    }
+                }
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            statement.close();
+        }
+        return scanned;
+    }
+
+    /**
+     * Returns the columns each table of the model is filtered or joined on in the statement,
+     * leaving out tables with a usable index for any of them.
+     */
+    Map<Table, List<String>> getUnindexedColumns(String pSql) {
+        final Map<String, Table> tables = getTables(pSql);
+        final Map<Table, List<String>> columns = new LinkedHashMap<Table, List<String>>();
+        final Matcher conditions = CONDITION_CLAUSE.matcher(pSql);
+        while (conditions.find()) {
+            final String condition = conditions.group(1);
+            for (Pattern operand : new Pattern[]{ LEFT_OPERAND, RIGHT_OPERAND }) {
+                final Matcher matcher = operand.matcher(condition);
+                while (matcher.find()) {
+                    addColumn(tables, matcher.group(1), matcher.group(2), columns);
+                }
+            }
+        }
+        final Map<Table, List<String>> unindexed = new LinkedHashMap<Table, List<String>>();
+        for (Map.Entry<Table, List<String>> entry : columns.entrySet()) {
+            if (!isIndexed(entry.getKey(), entry.getValue())) {
+                unindexed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return unindexed;
+    }
+
+    /**
+     * Returns the model tables of the statement keyed by upper case name and alias.
+     */
+    private Map<String, Table> getTables(String pSql) {
+        final Map<String, Table> tables = new LinkedHashMap<String, Table>();
+        final Matcher matcher = TABLE_CLAUSE.matcher(pSql);
+        while (matcher.find()) {
+            for (String reference : matcher.group(1).split(",")) {
+                final String[] words = reference.trim().split("\\s+");
+                String name = unquote(words[0]);
+                name = name.substring(name.lastIndexOf('.') + 1);
+                final Table table = name.length() == 0 ? null : model.findTable(name, false);
+                if (table == null) {
+                    continue;
+                }
+                tables.put(name, table);
+                final String alias = words.length > 1 && "AS".equalsIgnoreCase(words[1])
+                                     ? words.length > 2 ? words[2] : null
+                                     : words.length > 1 ? words[1] : null;
+                if (alias != null) {
+                    tables.put(unquote(alias), table);
+                }
+            }
+        }
+        return tables;
+    }
+
+    private static void addColumn(Map<String, Table> pTables,
+                                  @Nullable String pQualifier,
+                                  String pColumn,
+                                  Map<Table, List<String>> pColumns) {
+        final Collection<Table> candidates;
+        if (pQualifier != null) {
+            final Table table = pTables.get(unquote(pQualifier));
+            candidates = table == null ? Collections.<Table>emptyList() : Collections.singletonList(table);
+        }
+        else {
+            candidates = new LinkedHashSet<Table>(pTables.values());
+        }
+        for (Table table : candidates) {
+            final Column column = table.findColumn(unquote(pColumn), false);
+            if (column == null) {
+                continue;
+            }
+            List<String> columns = pColumns.get(table);
+            if (columns == null) {
+                columns = new ArrayList<String>();
+                pColumns.put(table, columns);
+            }
+            if (!columns.contains(column.getName())) {
+                columns.add(column.getName());
+            }
+        }
+    }
+
+    /**
+     * Returns true if the primary key or an index of the table starts with one of the columns.
+     */
+    private static boolean isIndexed(Table pTable, List<String> pColumns) {
+        final Set<String> leading = new LinkedHashSet<String>();
+        final Column[] primaryKey = pTable.getPrimaryKeyColumns();
+        if (primaryKey.length > 0) {
+            leading.add(primaryKey[0].getName().toUpperCase(Locale.ENGLISH));
+        }
+        for (Index index : pTable.getIndices()) {
+            if (index.getColumnCount() > 0) {
+                leading.add(index.getColumn(0).getName().toUpperCase(Locale.ENGLISH));
+            }
+        }
+        for (String column : pColumns) {
+            if (leading.contains(column.toUpperCase(Locale.ENGLISH))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String unquote(String pName) {
+        return pName.replace("\"", "").toUpperCase(Locale.ENGLISH);
+    }
+
+    // "--" may not appear in XML comments
+    private static String comment(String pText) {
+        return pText.replaceAll("\\s+", " ").replace("--", "- -");
+    }
+
+    private static final class Sample {
+
+        final String sql;
+
+        final List<Object> parameters;
+
+        long executions;
+
+        Sample(String pSql, List<Object> pParameters) {
+            sql = pSql;
+            parameters = pParameters;
+        }
+    }
+
+    /**
+     * An index suggested for a table, with the statements that would use it.
+     */
+    public static class Suggestion {
+
+        private final String table;
+
+        private final List<String> columns;
+
+        private final List<String> statements = new ArrayList<String>();
+
+        private long executions;
+
+        Suggestion(String pTable, List<String> pColumns) {
+            table = pTable;
+            columns = Collections.unmodifiableList(new ArrayList<String>(pColumns));
+        }
+
+        @NotNull
+        public String getTable() {
+            return table;
+        }
+
+        /**
+         * Returns the columns of the index, in the order the statements use them.
+         */
+        @NotNull
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        /**
+         * Returns the distinct statements scanning the table.
+         */
+        @NotNull
+        public List<String> getStatements() {
+            return Collections.unmodifiableList(statements);
+        }
+
+        /**
+         * Returns how often the statements were executed during the test run.
+         */
+        public long getExecutions() {
+            return executions;
+        }
+
+        /**
+         * Returns the CREATE INDEX statement for this suggestion.
+         */
+        @NotNull
+        public String getDDL() {
+            final StringBuilder name = new StringBuilder(table);
+            for (String column : columns) {
+                name.append('_').append(column);
+            }
+            if (name.length() > MAX_INDEX_NAME_LENGTH - 3) {
+                name.setLength(MAX_INDEX_NAME_LENGTH - 3);
+            }
+            final StringBuilder ddl = new StringBuilder("CREATE INDEX ").append(name)
+                                                                          .append("_ix ON ")
+                                                                          .append(table)
+                                                                          .append(" (");
+            for (int i = 0; i < columns.size(); i++) {
+                ddl.append(i == 0 ? "" : ", ").append(columns.get(i));
+            }
+            return ddl.append(')').toString();
+        }
+
+        void add(String pSql, long pExecutions) {
+            statements.add(pSql);
+            executions += pExecutions;
+        }
+
+        @Override
+        public String toString() {
+            return getDDL() + " [" + statements.size() + " statements, " + executions + " executions]";
+        }
+    }
+}
@@ -32,21 +32,26 @@ import atg.nucleus.NucleusNameResolver;
 import atg.nucleus.ServiceEvent;
 import atg.nucleus.ServiceException;
 import atg.nucleus.logging.LogListener;
+import atg.repository.MutableRepositoryItem;
 import atg.repository.RepositoryException;
+import atg.repository.RepositoryItem;
+import atg.repository.RepositoryView;
 import atg.tools.dynunit.junit.nucleus.TestUtils;
 import org.apache.ddlutils.DatabaseOperationException;
+import org.apache.ddlutils.alteration.AddTableChange;
+import org.apache.ddlutils.alteration.ModelChange;
 import org.jetbrains.annotations.Nullable;
 
 import javax.transaction.TransactionManager;
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 /**
  * This class is an extension of atg.adapter.gsa.GSARepository. It's purpose is
@@ -139,6 +144,21 @@ public class InitializingGSA
     private boolean temporaryInstantiation = false;
     private boolean restartingAfterTableCreation = true;
     private GSARepositorySchemaGenerator schemaGenerator;
+    // cache the generated schema on disk between runs
+    private boolean schemaCacheEnabled = false;
+    @Nullable
+    private File schemaCacheDirectory = null;
+    @Nullable
+    private SchemaCache schemaCache = null;
+    // write import files straight into the tables instead of using the TemplateParser
+    private boolean bulkImport = false;
+    private boolean bulkImportValidation = false;
+    private int importThreads = 1;
+    private boolean incrementalImport = false;
+    // alter existing tables to match the definition files instead of recreating them
+    private boolean migrateSchema = false;
+    // counts item and query cache hits and misses when set
+    private volatile CacheMonitor cacheMonitor = null;
 
     /**
      * If true then Apache DDLUtils will be used to generate the schema. Otherwise
@@ -441,6 +461,224 @@ public class InitializingGSA
         this.restartingAfterTableCreation = restartingAfterTableCreation;
     }
 
+    /**
+     * Returns true if the schema generated from the definition files (either the
+     * DDLUtils model or the GSA generated SQL) is cached on disk and reused by
+     * later runs as long as the definition files do not change.
+     *
+     * @return
+     */
+    public boolean isSchemaCacheEnabled() {
+        return schemaCacheEnabled;
+    }
+
+    /**
+     * Sets whether the generated schema should be cached on disk. default: false
+     *
+     * @see SchemaCache
+     */
+    public void setSchemaCacheEnabled(boolean schemaCacheEnabled) {
+        this.schemaCacheEnabled = schemaCacheEnabled;
+    }
+
+    /**
+     * Returns the directory holding the schema cache or null if the default
+     * location below the system temporary directory is used.
+     */
+    @Nullable
+    public File getSchemaCacheDirectory() {
+        return schemaCacheDirectory;
+    }
+
+    public void setSchemaCacheDirectory(@Nullable File schemaCacheDirectory) {
+        this.schemaCacheDirectory = schemaCacheDirectory;
+        schemaCache = null;
+    }
+
+    public boolean isMigrateSchema() {
+        return migrateSchema;
+    }
+
+    /**
+     * Sets whether existing tables should be migrated to the current definition
+     * files instead of being dropped and recreated. Only the changed tables are
+     * altered; tables that are not part of this repository are left alone.
+     * Requires useDDLUtils. default: false
+     */
+    public void setMigrateSchema(boolean migrateSchema) {
+        this.migrateSchema = migrateSchema;
+    }
+
+    public boolean isIncrementalImport() {
+        return incrementalImport;
+    }
+
+    /**
+     * Sets whether only import files whose contents changed since their last
+     * import should be imported again, after removing the items their previous
+     * version added. Useful with importEveryStartup on a persistent database.
+     * Files whose added items cannot be determined are imported at every startup.
+     * default: false
+     *
+     * @see ImportTracker
+     */
+    public void setIncrementalImport(boolean incrementalImport) {
+        this.incrementalImport = incrementalImport;
+    }
+
+    public int getImportThreads() {
+        return importThreads;
+    }
+
+    /**
+     * Sets the number of import files imported at the same time. Files which
+     * reference items of other files still wait for them. default: 1
+     *
+     * @see ImportScheduler
+     */
+    public void setImportThreads(int importThreads) {
+        this.importThreads = importThreads;
+    }
+
+    public boolean isBulkImport() {
+        return bulkImport;
+    }
+
+    /**
+     * Sets whether import files should be written directly into the tables by a
+     * BulkImporter. Files it cannot handle are imported with the TemplateParser
+     * instead. default: false
+     *
+     * @see BulkImporter
+     */
+    public void setBulkImport(boolean bulkImport) {
+        this.bulkImport = bulkImport;
+    }
+
+    public boolean isBulkImportValidation() {
+        return bulkImportValidation;
+    }
+
+    /**
+     * Sets whether bulk imported items should be read back through the repository
+     * and compared against the import files. default: false
+     */
+    public void setBulkImportValidation(boolean bulkImportValidation) {
+        this.bulkImportValidation = bulkImportValidation;
+    }
+
+    @Nullable
+    public CacheMonitor getCacheMonitor() {
+        return cacheMonitor;
+    }
+
+    /**
+     * Sets the monitor counting the item cache and query cache accesses of this
+     * repository, or null to stop counting. default: null
+     *
+     * @see CacheMonitor#install(InitializingGSA)
+     */
+    public void setCacheMonitor(@Nullable CacheMonitor cacheMonitor) {
+        this.cacheMonitor = cacheMonitor;
+    }
+
+    @Override
+    public RepositoryItem getItem(String pId)
+            throws RepositoryException {
+        final CacheMonitor monitor = cacheMonitor;
+        if (monitor == null || pId == null) {
+            return super.getItem(pId);
+        }
+        final CacheMonitor.Access access = monitor.begin();
+        try {
+            final RepositoryItem item = super.getItem(pId);
+            monitor.itemsAccessed(
+                    access,
+                    item == null ? getDefaultViewName() : item.getItemDescriptor().getItemDescriptorName(),
+                    pId
+            );
+            return item;
+        } finally {
+            monitor.end(access);
+        }
+    }
+
+    @Override
+    public RepositoryItem getItem(String pId, String pDescriptorName)
+            throws RepositoryException {
+        final CacheMonitor monitor = cacheMonitor;
+        if (monitor == null || pId == null || pDescriptorName == null) {
+            return super.getItem(pId, pDescriptorName);
+        }
+        final CacheMonitor.Access access = monitor.begin();
+        try {
+            final RepositoryItem item = super.getItem(pId, pDescriptorName);
+            monitor.itemsAccessed(access, pDescriptorName, pId);
+            return item;
+        } finally {
+            monitor.end(access);
+        }
+    }
+
+    @Override
+    public RepositoryItem[] getItems(String[] pIds, String pDescriptorName)
+            throws RepositoryException {
+        final CacheMonitor monitor = cacheMonitor;
+        if (monitor == null || pIds == null || pDescriptorName == null) {
+            return super.getItems(pIds, pDescriptorName);
+        }
+        final CacheMonitor.Access access = monitor.begin();
+        try {
+            final RepositoryItem[] items = super.getItems(pIds, pDescriptorName);
+            monitor.itemsAccessed(access, pDescriptorName, pIds);
+            return items;
+        } finally {
+            monitor.end(access);
+        }
+    }
+
+    @Override
+    public MutableRepositoryItem getItemForUpdate(String pId, String pDescriptorName)
+            throws RepositoryException {
+        final CacheMonitor monitor = cacheMonitor;
+        if (monitor == null || pId == null || pDescriptorName == null) {
+            return super.getItemForUpdate(pId, pDescriptorName);
+        }
+        final CacheMonitor.Access access = monitor.begin();
+        try {
+            final MutableRepositoryItem item = super.getItemForUpdate(pId, pDescriptorName);
+            monitor.itemsAccessed(access, pDescriptorName, pId);
+            return item;
+        } finally {
+            monitor.end(access);
+        }
+    }
+
+    @Override
+    public RepositoryView getView(String pViewName)
+            throws RepositoryException {
+        final RepositoryView view = super.getView(pViewName);
+        final CacheMonitor monitor = cacheMonitor;
+        return monitor == null || view == null ? view : monitor.monitor(view, pViewName);
+    }
+
+    /**
+     * Returns the schema cache used by this repository or null if caching is
+     * disabled.
+     */
+    @Nullable
+    protected SchemaCache getSchemaCache() {
+        if (!isSchemaCacheEnabled()) {
+            return null;
+        }
+        if (schemaCache == null) {
+            schemaCache = schemaCacheDirectory == null
+                    ? new SchemaCache()
+                    : new SchemaCache(schemaCacheDirectory);
+        }
+        return schemaCache;
+    }
+
     /**
      * Overrides doStartService from GSARepository to make the repository
      * optionally create required tables and load data using the TemplateParser
@@ -545,7 +783,7 @@ public class InitializingGSA
 
             // we're now ready to import specified XML files
             if (isImportEveryStartup() || createdTables) {
-                importFiles();
+                importFiles(createdTables);
             }
             else {
                 if (isLoggingInfo()) {
@@ -627,8 +865,6 @@ public class InitializingGSA
      */
     public void doStopService() {
         try {
-            // clear out state in SchemaTracker
-            SchemaTracker.getInstance().reset();
             if (isDropTablesAtShutdown()) {
                 if (isLoggingInfo()) {
                     logInfo("Dropping tables because 'dropTablesAtShutdown' is true....");
@@ -640,6 +876,8 @@ public class InitializingGSA
                 logError(e);
             }
         } finally {
+            // release only our tables; other repositories may still use theirs
+            SchemaTracker.getInstance(this).release(this);
             super.doStopService();
         }
     }
@@ -673,7 +911,7 @@ public class InitializingGSA
             try {
                 if (!Nucleus.getGlobalNucleus().isStopping()) {
                     // build a new one
-                    schemaGenerator = new GSARepositorySchemaGenerator(this);
+                    schemaGenerator = createSchemaGenerator();
                 }
                 if (schemaGenerator != null) {
                     schemaGenerator.dropSchema(true);
@@ -683,9 +921,8 @@ public class InitializingGSA
             }
         }
         else {
-            List<String> statements = getCreateStatements(null, null);
             SQLProcessorEngine processor = getSQLProcessor();
-            processor.dropTablesFromCreateStatements(statements);
+            processor.dropTablesFromCreateStatements(getTrackedCreateStatements(processor, false));
 
         }
     }
@@ -725,8 +962,11 @@ public class InitializingGSA
         boolean createdTables = false;
 
         if (isUseDDLUtils()) {
-            if (isCreateTables()) {
-                schemaGenerator = new GSARepositorySchemaGenerator(this);
+            if (isCreateTables() && isMigrateSchema()) {
+                createdTables = migrateSchema();
+            }
+            else if (isCreateTables()) {
+                schemaGenerator = createSchemaGenerator();
                 try {
                     schemaGenerator.createSchema(true, isDropTablesIfExist());
                     createdTables = true;
@@ -741,7 +981,7 @@ public class InitializingGSA
             // turn on debug for SQLProcessorEngine if GSA has debug on if
             // (isLoggingDebug())
             spe.setLoggingDebug(true);
-            List<String> createStatements = getCreateStatements(null, null);
+            List<String> createStatements = getTrackedCreateStatements(spe, true);
             createdTables = spe.createTables(createStatements, isDropTablesIfExist());
 
         }
@@ -750,12 +990,137 @@ public class InitializingGSA
     }
 
     /**
-     * This method imports files using the TemplateParser
+     * Returns the CREATE TABLE statements of the tables this repository may
+     * create or drop according to the {@link SchemaTracker}. When creating,
+     * the tables are registered and those another repository of the same
+     * database registered first are left out; when dropping, the tables
+     * another repository still uses are left out.
+     *
+     * @throws RepositoryException
+     *         if an error occurs with the Repository
+     */
+    private List<String> getTrackedCreateStatements(SQLProcessorEngine pProcessor, boolean pCreate)
+            throws RepositoryException {
+        SchemaTracker tracker = SchemaTracker.getInstance(this);
+        List<String> statements = new ArrayList<String>();
+        for (String statement : getCachedCreateStatements()) {
+            String table = pProcessor.getTableName(statement);
+            if (table == null
+                || (pCreate ? tracker.acquireTable(table, this) : !tracker.isShared(table, this))) {
+                statements.add(statement);
+            }
+            else if (isLoggingDebug()) {
+                logDebug("Table " + table + " is shared with " + tracker.getTable(table) + ", leaving it alone.");
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Brings the existing tables in line with the definition files by applying
+     * only the necessary changes, keeping the data of unchanged tables.
+     *
+     * @return true if all tables of the repository had to be created, i.e. the
+     *         schema is new and empty.
+     *
+     * @throws RepositoryException
+     *         if the model could not be built or the migration failed
+     */
+    private boolean migrateSchema()
+            throws RepositoryException {
+        schemaGenerator = createSchemaGenerator();
+        List<ModelChange> changes;
+        try {
+            changes = schemaGenerator.migrateSchema(true);
+        } catch (DatabaseOperationException e) {
+            throw new RepositoryException(e);
+        }
+        int addedTables = 0;
+        for (ModelChange change : changes) {
+            if (change instanceof AddTableChange) {
+                addedTables++;
+            }
+        }
+        if (isLoggingInfo()) {
+            logInfo(
+                    "Schema migration applied " + changes.size() + " changes, "
+                    + addedTables + " of them new tables."
+            );
+        }
+        return addedTables > 0 && addedTables == schemaGenerator.getDatabase().getTableCount();
+    }
+
+    /**
+     * Creates a schema generator for this repository, reusing a cached DDLUtils
+     * model if the schema cache is enabled and holds one for the current
+     * definition files.
+     *
+     * @throws RepositoryException
+     *         if the model could not be built
+     */
+    private GSARepositorySchemaGenerator createSchemaGenerator()
+            throws RepositoryException {
+        SchemaCache cache = getSchemaCache();
+        String key = cache == null ? null : cache.fingerprint(this, getDatabaseName(), "ddlutils");
+        if (key == null) {
+            return new GSARepositorySchemaGenerator(this);
+        }
+        org.apache.ddlutils.model.Database model = cache.getModel(key);
+        if (model != null) {
+            if (isLoggingDebug()) {
+                logDebug("Using cached schema model " + key);
+            }
+            return new GSARepositorySchemaGenerator(this, model);
+        }
+        GSARepositorySchemaGenerator generator = new GSARepositorySchemaGenerator(this);
+        if (generator.isComplete()) {
+            // a model lacking tables owned by other repositories is only valid now
+            cache.putModel(key, generator.getDatabase());
+        }
+        return generator;
+    }
+
+    /**
+     * Returns the CREATE TABLE statements for this repository, reusing the
+     * statements of a previous run if the schema cache is enabled and holds
+     * them for the current definition files.
+     *
+     * @throws RepositoryException
+     *         if an error occurs with the Repository
+     */
+    private List<String> getCachedCreateStatements()
+            throws RepositoryException {
+        SchemaCache cache = getSchemaCache();
+        String key = cache == null ? null : cache.fingerprint(
+                this, getDatabaseName(), "sql", "stripReferences=" + isStripReferences()
+        );
+        if (key == null) {
+            return getCreateStatements(null, null);
+        }
+        List<String> statements = cache.getStatements(key);
+        if (statements != null) {
+            if (isLoggingDebug()) {
+                logDebug("Using cached create statements " + key);
+            }
+            return statements;
+        }
+        statements = getCreateStatements(null, null);
+        cache.putStatements(key, statements);
+        return statements;
+    }
+
+    /**
+     * This method imports files using the TemplateParser, or the BulkImporter if
+     * bulkImport is enabled. With incrementalImport only the files that changed
+     * since their last import are imported again.
+     *
+     * @param pCreatedTables
+     *         whether the tables were just created, i.e. are empty.
      *
      * @throws RepositoryException
      *         if an error occurred while importing one of the xml files.
      */
-    private void importFiles()
+    private void importFiles(boolean pCreatedTables)
             throws RepositoryException {
         if (isLoggingInfo()) {
             logInfo("Importing files...");
@@ -777,6 +1142,149 @@ public class InitializingGSA
             }
         }
 
+        ImportTracker tracker = null;
+        if (isIncrementalImport()) {
+            tracker = new ImportTracker(getDataSource(), getAbsoluteName());
+            loadFiles = selectChangedFiles(tracker, loadFiles, pCreatedTables);
+            if (loadFiles.length == 0) {
+                if (isLoggingInfo()) {
+                    logInfo("No import file changed since the last import.");
+                }
+                return;
+            }
+        }
+
+        if (loadFiles.length > 1 && getImportThreads() > 1) {
+            ImportScheduler scheduler = new ImportScheduler(
+                    getImportThreads(), new ImportScheduler.FileImporter() {
+                @Override
+                public void importFile(String pFile)
+                        throws Exception {
+                    importFiles(new String[]{ pFile });
+                }
+            }
+            );
+            scheduler.add(loadFiles);
+            try {
+                scheduler.run();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RepositoryException) {
+                    throw (RepositoryException) e.getCause();
+                }
+                throw new RepositoryException(
+                        "Exception caught importing files into repository.", e.getCause()
+                );
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RepositoryException("Interrupted while importing files.", e);
+            }
+        }
+        else {
+            importFiles(loadFiles);
+        }
+
+        if (tracker != null) {
+            try {
+                for (String file : loadFiles) {
+                    tracker.record(file);
+                }
+            } catch (Exception e) {
+                throw new RepositoryException("Unable to record imported files.", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the import files which changed since they were last imported and
+     * removes the items their previous versions added. If the tables were just
+     * created every file is returned.
+     */
+    private String[] selectChangedFiles(ImportTracker pTracker, String[] pFiles, boolean pCreatedTables)
+            throws RepositoryException {
+        List<String> changed = new ArrayList<String>();
+        try {
+            if (pCreatedTables) {
+                pTracker.clear();
+                return pFiles;
+            }
+            for (String file : pFiles) {
+                if (pTracker.isChanged(file)) {
+                    changed.add(file);
+                }
+                else if (isLoggingDebug()) {
+                    logDebug("Skipping unchanged import file " + file);
+                }
+            }
+            // remove items of later files first as they may reference earlier ones
+            List<String[]> previousItems = new ArrayList<String[]>();
+            for (int i = changed.size() - 1; i >= 0; i--) {
+                List<String[]> items = pTracker.getItems(changed.get(i));
+                Collections.reverse(items);
+                previousItems.addAll(items);
+            }
+            removeItems(previousItems);
+        } catch (RepositoryException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RepositoryException("Unable to determine changed import files.", e);
+        }
+        if (isLoggingInfo()) {
+            logInfo(changed.size() + " of " + pFiles.length + " import files changed.");
+        }
+        return changed.toArray(new String[changed.size()]);
+    }
+
+    /**
+     * Removes the given {item descriptor, id} pairs in one transaction. Items
+     * which no longer exist are ignored.
+     */
+    private void removeItems(List<String[]> pItems)
+            throws RepositoryException {
+        if (pItems.isEmpty()) {
+            return;
+        }
+        boolean success = false;
+        TransactionDemarcation td = new TransactionDemarcation();
+        try {
+            td.begin(getTransactionManager());
+            for (String[] item : pItems) {
+                if (getItem(item[1], item[0]) != null) {
+                    removeItem(item[1], item[0]);
+                }
+            }
+            success = true;
+        } catch (TransactionDemarcationException e) {
+            throw new RepositoryException("Unable to remove previously imported items.", e);
+        } finally {
+            try {
+                td.end(!success);
+            } catch (TransactionDemarcationException e) {
+                logError(e);
+            }
+        }
+        if (isLoggingInfo()) {
+            logInfo("Removed " + pItems.size() + " previously imported items.");
+        }
+    }
+
+    private void importFiles(String[] loadFiles)
+            throws RepositoryException {
+        if (loadFiles.length > 0 && isBulkImport()) {
+            BulkImporter importer = new BulkImporter(this);
+            importer.setValidate(isBulkImportValidation());
+            try {
+                int count = importer.importFiles(loadFiles);
+                if (isLoggingInfo()) {
+                    logInfo("Bulk imported " + count + " items.");
+                }
+                return;
+            } catch (UnsupportedOperationException e) {
+                if (isLoggingWarning()) {
+                    logWarning(e.getMessage() + "; importing with the TemplateParser instead.");
+                }
+            }
+        }
+
         // now load the import files if they were specified
         PrintWriter ps = new PrintWriter(System.out);
         if (loadFiles.length > 0) {
@@ -1159,7 +1667,7 @@ public class InitializingGSA
                 // switch the file path so everything is forward slashes
                 file = file.replace('\\', '/');
                 String cmd;
-                Iterator cmds;
+                SQLStatementIterator cmds;
                 if (isLoggingInfo()) {
                     logInfo("Executing SQL file: " + file);
                 }
@@ -1167,53 +1675,57 @@ public class InitializingGSA
                     throw new RepositoryException("SQL file " + file + " does not exist.");
                 }
 
-                // parse the file to get commands...
+                // stream the commands out of the file rather than parsing it up front...
                 try {
-                    Collection c = parser.parseSQLFile(file);
-                    if (isLoggingDebug()) {
-                        logDebug("Parsed " + c.size() + " SQL command(s) from file.");
-                    }
-                    cmds = c.iterator();
+                    cmds = parser.iterateSQLFile(file);
                 } catch (Exception e) {
-                    // an error parsing the file indicates something very wrong, so bail
+                    // an error opening the file indicates something very wrong, so bail
                     throw new RepositoryException(
                             "Error encountered parsing SQL file " + file, e
                     );
                 }
 
                 // then execute the commands...
-                while (cmds.hasNext()) {
-                    cmd = (String) cmds.next();
-                    if (cmd.trim().length() == 0) {
-                        continue;
-                    }
-                    if (isLoggingDebug() || isLoggingCreateTables()) {
-                        logDebug("Executing SQL cmd [" + cmd + "]");
-                    }
-                    try {
-                        sp.executeSQL(cmd);
-                    } catch (Exception e) {
-                        if (pStopAtError) {
-                            throw new RepositoryException(
-                                    "Error received executing command ["
-                                            + cmd
-                                            + "] from SQL file "
-                                            + file, e
-                            );
+                try {
+                    while (cmds.hasNext()) {
+                        cmd = cmds.next();
+                        if (cmd.trim().length() == 0) {
+                            continue;
                         }
-                        else {
-                            if (isLoggingWarning()) {
-                                logWarning(
+                        if (isLoggingDebug() || isLoggingCreateTables()) {
+                            logDebug("Executing SQL cmd [" + cmd + "]");
+                        }
+                        try {
+                            sp.executeSQL(cmd);
+                        } catch (Exception e) {
+                            if (pStopAtError) {
+                                throw new RepositoryException(
                                         "Error received executing command ["
                                                 + cmd
                                                 + "] from SQL file "
-                                                + file
-                                                + ": "
-                                                + e.getMessage()
+                                                + file, e
                                 );
                             }
+                            else {
+                                if (isLoggingWarning()) {
+                                    logWarning(
+                                            "Error received executing command ["
+                                                    + cmd
+                                                    + "] from SQL file "
+                                                    + file
+                                                    + ": "
+                                                    + e.getMessage()
+                                    );
+                                }
+                            }
                         }
                     }
+                } catch (SQLParseException e) {
+                    throw new RepositoryException(
+                            "Error encountered parsing SQL file " + file, e
+                    );
+                } finally {
+                    cmds.close();
                 }
             }
             success = true;
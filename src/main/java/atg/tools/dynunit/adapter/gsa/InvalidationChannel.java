@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.adapter.gsa.GSAItemDescriptor;
+import atg.adapter.gsa.GSARepository;
+import atg.repository.RepositoryException;
+import atg.tools.dynunit.test.util.LatencyHistogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In-process stand-in for the <code>GSAEventServer</code> connections over which the
+ * repositories of a cluster tell each other to drop items from their caches. Repositories
+ * {@link #join(GSARepository) join} the channel; an item {@link #publish published} by one is
+ * removed from the item caches of all others.
+ * <p/>
+ * An asynchronous channel delivers the invalidations from one thread per repository, like the
+ * event server does for <code>cache-mode="distributed"</code>. A synchronous channel removes
+ * the items before {@link #publish} returns, which is what a writer in
+ * <code>cache-mode="locked"</code> waits for before the lock manager grants its write lock.
+ * The time from publishing to removal is recorded for each receiving repository.
+ */
+public class InvalidationChannel {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final boolean synchronous;
+
+    private final List<Node> nodes = new CopyOnWriteArrayList<Node>();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    public InvalidationChannel(boolean pSynchronous) {
+        synchronous = pSynchronous;
+    }
+
+    public boolean isSynchronous() {
+        return synchronous;
+    }
+
+    /**
+     * Adds a repository to receive the invalidations published by the others.
+     */
+    public void join(@NotNull GSARepository pRepository) {
+        final Node node = new Node(pRepository);
+        nodes.add(node);
+        if (!synchronous) {
+            final Thread thread = new Thread(node, "InvalidationChannel-" + pRepository.getName());
+            thread.setDaemon(true);
+            node.thread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Removes the item from the caches of all repositories except the publishing one.
+     */
+    public void publish(@NotNull GSARepository pSource, @NotNull String pItemDescriptor, @NotNull String pId) {
+        final Invalidation invalidation = new Invalidation(pItemDescriptor, pId, System.nanoTime());
+        for (Node node : nodes) {
+            if (node.repository == pSource) {
+                continue;
+            }
+            if (synchronous) {
+                node.deliver(invalidation);
+            }
+            else {
+                node.queue.add(invalidation);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the nanoseconds from publishing to removal recorded so far.
+     */
+    @NotNull
+    public LatencyHistogram getLatencies() {
+        final LatencyHistogram copy = new LatencyHistogram();
+        synchronized (latencies) {
+            copy.add(latencies);
+        }
+        return copy;
+    }
+
+    public void resetLatencies() {
+        synchronized (latencies) {
+            latencies.reset();
+        }
+    }
+
+    /**
+     * Stops delivering. Invalidations still queued are dropped.
+     */
+    public void close()
+            throws InterruptedException {
+        for (Node node : nodes) {
+            if (node.thread != null) {
+                node.thread.interrupt();
+                node.thread.join();
+            }
+        }
+        nodes.clear();
+    }
+
+    // -----------------------------
+
+    /**
+     * An item to remove.
+     */
+    private static class Invalidation {
+
+        final String itemDescriptor;
+
+        final String id;
+
+        final long published;
+
+        Invalidation(String pItemDescriptor, String pId, long pPublished) {
+            itemDescriptor = pItemDescriptor;
+            id = pId;
+            published = pPublished;
+        }
+    }
+
+    /**
+     * A receiving repository and, if asynchronous, its queue.
+     */
+    private class Node
+            implements Runnable {
+
+        final GSARepository repository;
+
+        final BlockingQueue<Invalidation> queue = new LinkedBlockingQueue<Invalidation>();
+
+        Thread thread;
+
+        Node(GSARepository pRepository) {
+            repository = pRepository;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    deliver(queue.take());
+                }
+            } catch (InterruptedException e) {
+                logger.debug("Stopped delivering to {}", repository.getName());
+            }
+        }
+
+        void deliver(Invalidation pInvalidation) {
+            try {
+                ((GSAItemDescriptor) repository.getItemDescriptor(pInvalidation.itemDescriptor))
+                        .removeItemFromCache(pInvalidation.id);
+            } catch (RepositoryException e) {
+                logger.warn("Cannot invalidate {} in {}", pInvalidation.id, repository.getName(), e);
+                return;
+            }
+            final long latency = System.nanoTime() - pInvalidation.published;
+            synchronized (latencies) {
+                latencies.record(latency);
+            }
+        }
+    }
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.adapter.gsa.GSAItemDescriptor;
+import atg.adapter.gsa.GSAPropertyDescriptor;
+import atg.adapter.gsa.GSARepository;
+import atg.repository.RepositoryException;
+import atg.repository.RepositoryItemDescriptor;
+import atg.repository.RepositoryPropertyDescriptor;
+import atg.tools.dynunit.util.PropertyDescriptorUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates large, reproducible data sets for performance tests from the property descriptors
+ * of a repository's item descriptors, and persists them with the {@link BulkImporter}:
+ * <pre>
+ * RepositoryDataGenerator generator = new RepositoryDataGenerator(repository);
+ * generator.setCount("category", 10000);
+ * generator.setCount("product", 1000000);
+ * generator.setCount("sku", 3000000);
+ * generator.generate();
+ * </pre>
+ * The same seed and counts always produce the same items. Item descriptors are generated so
+ * that referenced ones come first, and the values follow skewed distributions as production
+ * data does:
+ * <ul>
+ * <li>references and strings pick their target or word with a probability falling with its
+ * rank, so a few items are referenced by many others and a few words are very common.
+ * References to the item's own descriptor only point to items generated before it, which
+ * produces trees such as category hierarchies.
+ * <li>numbers are spread evenly over their orders of magnitude, booleans are even, dates are
+ * spread over the {@link #getDateRangeDays() dateRangeDays} before 2013-01-01 UTC and given as
+ * milliseconds since the epoch, so they denote the same instant in every time zone.
+ * <li>collections and maps get a geometrically distributed number of elements with
+ * {@link #getMeanCollectionSize() meanCollectionSize} on average.
+ * <li>optional properties are left null with {@link #getNullRatio() nullRatio}.
+ * </ul>
+ * Only properties the {@link BulkImporter} can write are filled: stored in a single column,
+ * neither enumerated nor binary. Ids are {@link #getIdPrefix() idPrefix} followed by the item
+ * number, or {@link #getIdOffset() idOffset} plus the item number for numeric ids, so they do
+ * not collide with ids from the IdGenerator.
+ */
+public class RepositoryDataGenerator {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final String[] SYLLABLES = {
+            "ka", "lo", "mi", "ne", "su", "ta", "ri", "po", "ve", "da", "lu", "mo", "shi", "ar", "en", "ol"
+    };
+
+    private static final int VOCABULARY_SIZE = 4096;
+
+    // dates are generated backwards from a fixed point so runs are reproducible
+    private static final long DATE_BASE = 1356998400000L;
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final GSARepository repository;
+
+    private final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+
+    private long seed = 42;
+
+    private double nullRatio = 0.1;
+
+    private double meanCollectionSize = 3;
+
+    private int maxCollectionSize = 20;
+
+    private int dateRangeDays = 3 * 365;
+
+    private String idPrefix = "gen";
+
+    private long idOffset = 1000000000L;
+
+    private int itemsPerTransaction = 10000;
+
+    private int batchSize = BulkImporter.DEFAULT_BATCH_SIZE;
+
+    public RepositoryDataGenerator(@NotNull GSARepository pRepository) {
+        repository = pRepository;
+    }
+
+    public long getCount(@NotNull String pItemDescriptor) {
+        final Long count = counts.get(pItemDescriptor);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Sets the number of items to generate for an item descriptor.
+     */
+    public void setCount(@NotNull String pItemDescriptor, long pCount) {
+        counts.put(pItemDescriptor, pCount);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets the seed of all random values. Default: 42
+     */
+    public void setSeed(long pSeed) {
+        seed = pSeed;
+    }
+
+    public double getNullRatio() {
+        return nullRatio;
+    }
+
+    /**
+     * Sets the share of optional properties left null. Default: 0.1
+     */
+    public void setNullRatio(double pNullRatio) {
+        nullRatio = pNullRatio;
+    }
+
+    public double getMeanCollectionSize() {
+        return meanCollectionSize;
+    }
+
+    /**
+     * Sets the average number of elements of multi-valued and map properties. Default: 3
+     */
+    public void setMeanCollectionSize(double pMeanCollectionSize) {
+        meanCollectionSize = pMeanCollectionSize;
+    }
+
+    public int getMaxCollectionSize() {
+        return maxCollectionSize;
+    }
+
+    /**
+     * Sets the largest number of elements of multi-valued and map properties. Default: 20
+     */
+    public void setMaxCollectionSize(int pMaxCollectionSize) {
+        maxCollectionSize = pMaxCollectionSize;
+    }
+
+    public int getDateRangeDays() {
+        return dateRangeDays;
+    }
+
+    /**
+     * Sets the number of days over which dates are spread. Default: 1095
+     */
+    public void setDateRangeDays(int pDateRangeDays) {
+        dateRangeDays = pDateRangeDays;
+    }
+
+    public String getIdPrefix() {
+        return idPrefix;
+    }
+
+    /**
+     * Sets the prefix of generated string ids. Default: gen
+     */
+    public void setIdPrefix(String pIdPrefix) {
+        idPrefix = pIdPrefix;
+    }
+
+    public long getIdOffset() {
+        return idOffset;
+    }
+
+    /**
+     * Sets the first generated numeric id. Default: 1000000000
+     */
+    public void setIdOffset(long pIdOffset) {
+        idOffset = pIdOffset;
+    }
+
+    public int getItemsPerTransaction() {
+        return itemsPerTransaction;
+    }
+
+    /**
+     * Sets the number of items written per transaction, which bounds the memory used. Default:
+     * 10000
+     */
+    public void setItemsPerTransaction(int pItemsPerTransaction) {
+        itemsPerTransaction = Math.max(1, pItemsPerTransaction);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of rows sent to the database in one JDBC batch. Default: 500
+     */
+    public void setBatchSize(int pBatchSize) {
+        batchSize = pBatchSize;
+    }
+
+    // -----------------------------
+
+    /**
+     * Generates the items and writes them with a {@link BulkImporter}.
+     *
+     * @return the number of items written.
+     *
+     * @throws RepositoryException
+     *         if an item descriptor is unknown or writing failed.
+     */
+    public long generate()
+            throws RepositoryException {
+        final BulkImporter importer = new BulkImporter(repository);
+        importer.setBatchSize(batchSize);
+        final long start = System.currentTimeMillis();
+        final long count = importer.importItems(iterator(), itemsPerTransaction);
+        logger.info(
+                "Generated {} items in {} ms for {}",
+                count, System.currentTimeMillis() - start, repository.getRepositoryName()
+        );
+        return count;
+    }
+
+    /**
+     * Returns the items in the order they are written, generated one at a time.
+     *
+     * @throws RepositoryException
+     *         if an item descriptor is unknown.
+     */
+    @NotNull
+    public Iterator<ImportFileReader.Item> iterator()
+            throws RepositoryException {
+        final List<DescriptorPlan> plans = new ArrayList<DescriptorPlan>();
+        final Map<String, DescriptorPlan> byName = new LinkedHashMap<String, DescriptorPlan>();
+        for (String name : counts.keySet()) {
+            final RepositoryItemDescriptor descriptor = repository.getItemDescriptor(name);
+            if (!(descriptor instanceof GSAItemDescriptor)) {
+                throw new RepositoryException(
+                        "Unknown item descriptor " + name + " in " + repository.getRepositoryName()
+                );
+            }
+            byName.put(name, new DescriptorPlan((GSAItemDescriptor) descriptor, counts.get(name)));
+        }
+        final Set<String> visited = new LinkedHashSet<String>();
+        for (DescriptorPlan plan : byName.values()) {
+            order(plan, byName, visited, plans);
+        }
+        return new ItemIterator(plans);
+    }
+
+    /**
+     * Adds the plan after the plans of the descriptors it references.
+     */
+    private static void order(DescriptorPlan pPlan,
+                              Map<String, DescriptorPlan> pPlans,
+                              Set<String> pVisited,
+                              List<DescriptorPlan> pOrdered) {
+        if (!pVisited.add(pPlan.name)) {
+            return;
+        }
+        for (PropertyPlan property : pPlan.properties) {
+            final DescriptorPlan referenced = property.referenced == null ? null : pPlans.get(property.referenced);
+            if (referenced != null) {
+                order(referenced, pPlans, pVisited, pOrdered);
+            }
+        }
+        pOrdered.add(pPlan);
+    }
+
+    // -----------------------------
+
+    /**
+     * Returns the id of the given item of a descriptor.
+     */
+    private String id(DescriptorPlan pPlan, long pIndex) {
+        final StringBuilder id = new StringBuilder();
+        for (int i = 0; i < pPlan.idTypes.length; i++) {
+            if (i > 0) {
+                id.append(pPlan.idSeparator);
+            }
+            if (pPlan.idTypes[i] == String.class) {
+                id.append(idPrefix).append(pIndex);
+            }
+            else {
+                id.append(idOffset + pIndex);
+            }
+        }
+        return id.toString();
+    }
+
+    @Nullable
+    private String value(PropertyPlan pProperty, long pIndex, Random pRandom, Map<String, DescriptorPlan> pPlans) {
+        if (!pProperty.required && pRandom.nextDouble() < nullRatio) {
+            return null;
+        }
+        if (!pProperty.multi) {
+            return element(pProperty, pIndex, pRandom, pPlans);
+        }
+        final int size = collectionSize(pRandom);
+        final Set<String> elements = new LinkedHashSet<String>();
+        for (int i = 0; i < size; i++) {
+            final String element = element(pProperty, pIndex, pRandom, pPlans);
+            if (element != null) {
+                elements.add(pProperty.map ? "key" + i + "=" + element : element);
+            }
+        }
+        if (elements.isEmpty()) {
+            return null;
+        }
+        final StringBuilder value = new StringBuilder();
+        for (String element : elements) {
+            if (value.length() > 0) {
+                value.append(',');
+            }
+            value.append(element);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Returns a single value in import file format, or null if there is nothing to reference.
+     */
+    @Nullable
+    private String element(PropertyPlan pProperty, long pIndex, Random pRandom, Map<String, DescriptorPlan> pPlans) {
+        if (pProperty.referenced != null) {
+            final DescriptorPlan referenced = pPlans.get(pProperty.referenced);
+            if (referenced == null) {
+                return null;
+            }
+            // only reference items of the own descriptor which already exist
+            final long candidates = referenced.name.equals(pProperty.owner) ? pIndex : referenced.count;
+            return candidates == 0 ? null : id(referenced, skewed(pRandom, candidates));
+        }
+        final Class<?> type = pProperty.type;
+        if (type == String.class) {
+            return word(skewed(pRandom, VOCABULARY_SIZE)) + ' ' + word(skewed(pRandom, VOCABULARY_SIZE));
+        }
+        if (type == Boolean.class || type == Boolean.TYPE) {
+            return Boolean.toString(pRandom.nextBoolean());
+        }
+        if (type == Byte.class || type == Short.class || type == Byte.TYPE || type == Short.TYPE) {
+            return Long.toString(skewed(pRandom, 100));
+        }
+        if (type == Integer.class || type == Long.class || type == Integer.TYPE || type == Long.TYPE) {
+            return Long.toString(skewed(pRandom, 100000));
+        }
+        if (type == Float.class || type == Double.class || type == Float.TYPE || type == Double.TYPE
+            || type == BigDecimal.class) {
+            return BigDecimal.valueOf(skewed(pRandom, 1000000), 2).toPlainString();
+        }
+        if (Date.class.isAssignableFrom(type)) {
+            // milliseconds rather than a formatted date, as those depend on the time zone
+            return Long.toString(DATE_BASE - (long) (pRandom.nextDouble() * dateRangeDays * DAY_MILLIS));
+        }
+        return null;
+    }
+
+    /**
+     * Returns a number between 0 and pCount - 1 whose probability falls with its size, about
+     * as 1/(n+1).
+     */
+    static long skewed(Random pRandom, long pCount) {
+        final long value = (long) Math.exp(pRandom.nextDouble() * Math.log(pCount + 1)) - 1;
+        return Math.min(Math.max(value, 0), pCount - 1);
+    }
+
+    /**
+     * Returns the word of the given rank, made of syllables so it contains neither commas nor
+     * equal signs.
+     */
+    static String word(long pRank) {
+        final StringBuilder word = new StringBuilder();
+        long rank = pRank;
+        do {
+            word.append(SYLLABLES[(int) (rank % SYLLABLES.length)]);
+            rank /= SYLLABLES.length;
+        } while (rank > 0);
+        return word.toString();
+    }
+
+    private int collectionSize(Random pRandom) {
+        // geometric distribution with the configured mean
+        final double p = 1 / (1 + meanCollectionSize);
+        final int size = (int) Math.floor(Math.log(1 - pRandom.nextDouble()) / Math.log(1 - p));
+        return Math.min(size, maxCollectionSize);
+    }
+
+    // -----------------------------
+
+    /**
+     * What to generate for an item descriptor.
+     */
+    private class DescriptorPlan {
+
+        final String name;
+
+        final long count;
+
+        final Class<?>[] idTypes;
+
+        final String idSeparator;
+
+        final List<PropertyPlan> properties = new ArrayList<PropertyPlan>();
+
+        DescriptorPlan(GSAItemDescriptor pDescriptor, long pCount) {
+            name = pDescriptor.getItemDescriptorName();
+            count = pCount;
+            idTypes = pDescriptor.getIdTypes();
+            final String separator = pDescriptor.getIdSeparator();
+            idSeparator = separator == null ? ":" : separator;
+            for (RepositoryPropertyDescriptor property
+                    : (RepositoryPropertyDescriptor[]) pDescriptor.getPropertyDescriptors()) {
+                final PropertyPlan plan = createPlan(property);
+                if (plan != null) {
+                    properties.add(plan);
+                }
+            }
+        }
+
+        @Nullable
+        private PropertyPlan createPlan(RepositoryPropertyDescriptor pProperty) {
+            if (!(pProperty instanceof GSAPropertyDescriptor)
+                || pProperty.isIdProperty()
+                || !pProperty.isWritable()
+                || PropertyDescriptorUtil.getEnumeratedValues(pProperty) != null) {
+                return null;
+            }
+            final GSAPropertyDescriptor gsaProperty = (GSAPropertyDescriptor) pProperty;
+            final String[] columns = gsaProperty.getColumnNames();
+            if (gsaProperty.getTable() == null || columns == null || columns.length != 1) {
+                return null;
+            }
+            final boolean multi = gsaProperty.getTable().isMultiTable();
+            final RepositoryItemDescriptor referenced = multi
+                                                        ? pProperty.getComponentItemDescriptor()
+                                                        : pProperty.getPropertyItemDescriptor();
+            final Class<?> type = multi ? pProperty.getComponentPropertyType() : pProperty.getPropertyType();
+            if (referenced == null && (type == null || type == byte[].class)) {
+                return null;
+            }
+            return new PropertyPlan(
+                    name,
+                    pProperty.getName(),
+                    type,
+                    referenced == null ? null : referenced.getItemDescriptorName(),
+                    multi,
+                    multi && Map.class.isAssignableFrom(pProperty.getPropertyType()),
+                    pProperty.isRequired()
+            );
+        }
+    }
+
+    /**
+     * What to generate for a property.
+     */
+    private static class PropertyPlan {
+
+        final String owner;
+
+        final String name;
+
+        final Class<?> type;
+
+        @Nullable
+        final String referenced;
+
+        final boolean multi;
+
+        final boolean map;
+
+        final boolean required;
+
+        PropertyPlan(String pOwner,
+                     String pName,
+                     Class<?> pType,
+                     @Nullable String pReferenced,
+                     boolean pMulti,
+                     boolean pMap,
+                     boolean pRequired) {
+            owner = pOwner;
+            name = pName;
+            type = pType;
+            referenced = pReferenced;
+            multi = pMulti;
+            map = pMap;
+            required = pRequired;
+        }
+    }
+
+    private class ItemIterator
+            implements Iterator<ImportFileReader.Item> {
+
+        private final List<DescriptorPlan> plans;
+
+        private final Map<String, DescriptorPlan> byName = new LinkedHashMap<String, DescriptorPlan>();
+
+        private int plan;
+
+        private long index;
+
+        private Random random;
+
+        ItemIterator(List<DescriptorPlan> pPlans) {
+            plans = pPlans;
+            for (DescriptorPlan descriptorPlan : pPlans) {
+                byName.put(descriptorPlan.name, descriptorPlan);
+            }
+            advance();
+        }
+
+        /**
+         * Skips to the next item, moving on to the next descriptor if needed.
+         */
+        private void advance() {
+            while (plan < plans.size() && index >= plans.get(plan).count) {
+                plan++;
+                index = 0;
+                random = null;
+            }
+            if (plan < plans.size() && random == null) {
+                // one stream per descriptor so adding a descriptor does not change the others
+                random = new Random(seed ^ plans.get(plan).name.hashCode());
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return plan < plans.size();
+        }
+
+        @Override
+        public ImportFileReader.Item next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final DescriptorPlan current = plans.get(plan);
+            final Map<String, String> properties = new LinkedHashMap<String, String>();
+            for (PropertyPlan property : current.properties) {
+                final String value = value(property, index, random, byName);
+                if (value != null) {
+                    properties.put(property.name, value);
+                }
+            }
+            final ImportFileReader.Item item = new ImportFileReader.Item(
+                    current.name,
+                    id(current, index),
+                    properties,
+                    "generated",
+                    (int) Math.min(index, Integer.MAX_VALUE)
+            );
+            index++;
+            advance();
+            return item;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
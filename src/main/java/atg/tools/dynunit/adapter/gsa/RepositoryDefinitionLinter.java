@@ -0,0 +1,446 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.adapter.gsa.GSAItemDescriptor;
+import atg.adapter.gsa.GSAPropertyDescriptor;
+import atg.adapter.gsa.GSARepository;
+import atg.adapter.gsa.Table;
+import atg.repository.RepositoryException;
+import atg.repository.RepositoryPropertyDescriptor;
+import org.apache.ddlutils.model.Database;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Static analysis of repository definitions for common performance problems. It walks the item
+ * descriptors and tables of a repository the same way
+ * {@link GSARepositorySchemaGenerator#buildModel(GSARepository)} does and checks each against
+ * the DDLUtils model built there and, for indexes, against the metadata of the database, so the
+ * tables of the repository should have been created:
+ * <ul>
+ * <li>{@link Rule#CACHE_DISABLED} - item descriptors with <code>cache-mode="disabled"</code>.
+ * <li>{@link Rule#CACHE_NOT_SIZED} - cached item descriptors which keep the default
+ * <code>item-cache-size</code> and have no query cache.
+ * <li>{@link Rule#UNBOUNDED_MULTI_VALUED} - multi-valued properties of simple values, which are
+ * loaded and cached in full with their item. Collections of items only hold the ids and load
+ * the referenced items lazily.
+ * <li>{@link Rule#QUERYABLE_UNINDEXED} - queryable properties whose column neither starts the
+ * primary key nor an index of the table in the database. Tables missing from the database are
+ * skipped.
+ * <li>{@link Rule#AUXILIARY_TABLE_JOINS} - item descriptors joining more than
+ * {@link #getMaxAuxiliaryTables() maxAuxiliaryTables} auxiliary tables to load an item.
+ * <li>{@link Rule#WIDE_PRIMARY_TABLE} - primary tables with more than
+ * {@link #getMaxPrimaryTableColumns() maxPrimaryTableColumns} columns.
+ * </ul>
+ * Findings can be logged, formatted with {@link #report(List)} or used to fail a test or build
+ * with {@link #check(List, Severity)}:
+ * <pre>
+ * RepositoryDefinitionLinter.check(new RepositoryDefinitionLinter().lint(repository), Severity.WARNING);
+ * </pre>
+ */
+public class RepositoryDefinitionLinter {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * The item-cache-size GSA uses when the definition does not set one.
+     */
+    public static final int DEFAULT_ITEM_CACHE_SIZE = 1000;
+
+    public static enum Severity {
+        INFO, WARNING
+    }
+
+    public static enum Rule {
+        CACHE_DISABLED(Severity.WARNING),
+        CACHE_NOT_SIZED(Severity.INFO),
+        UNBOUNDED_MULTI_VALUED(Severity.WARNING),
+        QUERYABLE_UNINDEXED(Severity.INFO),
+        AUXILIARY_TABLE_JOINS(Severity.INFO),
+        WIDE_PRIMARY_TABLE(Severity.WARNING);
+
+        private final Severity severity;
+
+        private Rule(Severity pSeverity) {
+            severity = pSeverity;
+        }
+
+        @NotNull
+        public Severity getSeverity() {
+            return severity;
+        }
+    }
+
+    private int maxPrimaryTableColumns = 50;
+
+    private int maxAuxiliaryTables = 1;
+
+    public int getMaxPrimaryTableColumns() {
+        return maxPrimaryTableColumns;
+    }
+
+    /**
+     * Sets the number of columns above which a primary table is reported. Default: 50
+     */
+    public void setMaxPrimaryTableColumns(int pMaxPrimaryTableColumns) {
+        maxPrimaryTableColumns = pMaxPrimaryTableColumns;
+    }
+
+    public int getMaxAuxiliaryTables() {
+        return maxAuxiliaryTables;
+    }
+
+    /**
+     * Sets the number of auxiliary tables above which an item descriptor is reported. Default: 1
+     */
+    public void setMaxAuxiliaryTables(int pMaxAuxiliaryTables) {
+        maxAuxiliaryTables = pMaxAuxiliaryTables;
+    }
+
+    // -----------------------------
+
+    /**
+     * Returns the findings for all item descriptors of the repository, ordered by item
+     * descriptor.
+     *
+     * @throws RepositoryException
+     *         if the model of the repository cannot be built or its indexes cannot be read.
+     */
+    @NotNull
+    public List<Finding> lint(@NotNull GSARepository pRepository)
+            throws RepositoryException {
+        final Database model = new GSARepositorySchemaGenerator(pRepository).getDatabase();
+        final List<Finding> findings = new ArrayList<Finding>();
+        Connection connection = null;
+        try {
+            connection = pRepository.getDataSource().getConnection();
+            final IndexedColumns indexed = new IndexedColumns(connection.getMetaData());
+            for ( String name : pRepository.getItemDescriptorNames() ) {
+                lintItemDescriptor((GSAItemDescriptor) pRepository.getItemDescriptor(name), model, indexed, findings);
+            }
+        } catch ( SQLException e ) {
+            throw new RepositoryException("Unable to read the indexes of " + pRepository.getAbsoluteName(), e);
+        } finally {
+            close(connection);
+        }
+        logger.debug("{} findings for {}", findings.size(), pRepository.getAbsoluteName());
+        return findings;
+    }
+
+    // -----------------------------
+
+    /**
+     * Formats the findings one per line.
+     */
+    @NotNull
+    public static String report(@NotNull List<Finding> pFindings) {
+        final StringBuilder report = new StringBuilder();
+        for ( Finding finding : pFindings ) {
+            report.append(finding).append('\n');
+        }
+        return report.toString();
+    }
+
+    // -----------------------------
+
+    /**
+     * Fails if any finding has the given severity or a higher one.
+     *
+     * @throws AssertionError
+     *         listing the findings at or above pSeverity.
+     */
+    public static void check(@NotNull List<Finding> pFindings, @NotNull Severity pSeverity) {
+        final List<Finding> failed = new ArrayList<Finding>();
+        for ( Finding finding : pFindings ) {
+            if ( finding.getSeverity().compareTo(pSeverity) >= 0 ) {
+                failed.add(finding);
+            }
+        }
+        if ( !failed.isEmpty() ) {
+            throw new AssertionError(
+                    failed.size() + " repository definition findings at " + pSeverity + " or above:\n"
+                    + report(failed)
+            );
+        }
+    }
+
+    // -----------------------------
+
+    private void lintItemDescriptor(GSAItemDescriptor pDescriptor,
+                                    Database pModel,
+                                    IndexedColumns pIndexed,
+                                    List<Finding> pFindings)
+            throws RepositoryException, SQLException {
+        final String name = pDescriptor.getItemDescriptorName();
+        if ( pDescriptor.getCacheMode() == GSAItemDescriptor.CACHE_MODE_DISABLED ) {
+            pFindings.add(
+                    new Finding(
+                            Rule.CACHE_DISABLED, name, null, null,
+                            "every load and query goes to the database"
+                    )
+            );
+        } else if ( pDescriptor.getItemCacheSize() == DEFAULT_ITEM_CACHE_SIZE
+                    && pDescriptor.getQueryCacheSize() == 0 ) {
+            pFindings.add(
+                    new Finding(
+                            Rule.CACHE_NOT_SIZED, name, null, null,
+                            "no item-cache-size or query-cache-size set, using " + DEFAULT_ITEM_CACHE_SIZE
+                            + " items and no query cache"
+                    )
+            );
+        }
+
+        int auxiliaryTables = 0;
+        for ( Table table : pDescriptor.getTables() ) {
+            if ( table.isPrimaryTable() ) {
+                final org.apache.ddlutils.model.Table modelTable = pModel.findTable(table.getName(), false);
+                if ( !table.isInherited() && modelTable != null
+                     && modelTable.getColumnCount() > maxPrimaryTableColumns ) {
+                    pFindings.add(
+                            new Finding(
+                                    Rule.WIDE_PRIMARY_TABLE, name, table.getName(), null,
+                                    modelTable.getColumnCount() + " columns, more than " + maxPrimaryTableColumns
+                                    + "; move rarely used properties to auxiliary tables"
+                            )
+                    );
+                }
+            } else if ( table.isAuxiliaryTable() ) {
+                auxiliaryTables++;
+            }
+        }
+        if ( auxiliaryTables > maxAuxiliaryTables ) {
+            pFindings.add(
+                    new Finding(
+                            Rule.AUXILIARY_TABLE_JOINS, name, null, null,
+                            auxiliaryTables + " auxiliary tables joined to load an item, more than "
+                            + maxAuxiliaryTables + "; consider property groups"
+                    )
+            );
+        }
+
+        for ( String propertyName : pDescriptor.getPropertyNames() ) {
+            final RepositoryPropertyDescriptor property =
+                    (RepositoryPropertyDescriptor) pDescriptor.getPropertyDescriptor(propertyName);
+            if ( !(property instanceof GSAPropertyDescriptor) ) {
+                continue;
+            }
+            final Table table = ((GSAPropertyDescriptor) property).getTable();
+            final String[] columns = ((GSAPropertyDescriptor) property).getColumnNames();
+            if ( table == null || columns == null || columns.length == 0 ) {
+                // transient or derived
+                continue;
+            }
+            if ( table.isMultiTable() ) {
+                if ( property.isCollectionOrMap() && property.getComponentItemDescriptor() == null ) {
+                    pFindings.add(
+                            new Finding(
+                                    Rule.UNBOUNDED_MULTI_VALUED, name, table.getName(), propertyName,
+                                    "all values are loaded and cached with the item; consider a collection of items"
+                            )
+                    );
+                }
+                continue;
+            }
+            if ( property.isQueryable() && !property.isIdProperty()
+                 && pIndexed.isIndexed(table.getName(), columns[0]) == Boolean.FALSE ) {
+                pFindings.add(
+                        new Finding(
+                                Rule.QUERYABLE_UNINDEXED, name, table.getName(), propertyName,
+                                "column " + columns[0] + " is not indexed; add an index or set queryable=\"false\""
+                        )
+                );
+            }
+        }
+    }
+
+    private static void close(@Nullable Connection pConnection) {
+        if ( pConnection != null ) {
+            try {
+                pConnection.close();
+            } catch ( SQLException e ) {
+                logger.catching(e);
+            }
+        }
+    }
+
+    // -----------------------------
+
+    /**
+     * The columns starting the primary key or an index of each table, read from the database
+     * metadata once per table.
+     */
+    private static class IndexedColumns {
+
+        private final DatabaseMetaData metaData;
+
+        // upper case table name -> upper case leading columns, or null if the table does not exist
+        private final Map<String, Set<String>> tables = new HashMap<String, Set<String>>();
+
+        IndexedColumns(DatabaseMetaData pMetaData) {
+            metaData = pMetaData;
+        }
+
+        /**
+         * Returns whether the primary key or an index of the table starts with the column, or
+         * null if the table does not exist.
+         */
+        @Nullable
+        Boolean isIndexed(String pTable, String pColumn)
+                throws SQLException {
+            final String key = pTable.toUpperCase(Locale.ENGLISH);
+            if ( !tables.containsKey(key) ) {
+                tables.put(key, readLeadingColumns(toStoredCase(pTable)));
+            }
+            final Set<String> columns = tables.get(key);
+            return columns == null ? null : columns.contains(pColumn.toUpperCase(Locale.ENGLISH));
+        }
+
+        @Nullable
+        private Set<String> readLeadingColumns(String pTable)
+                throws SQLException {
+            ResultSet resultSet = metaData.getTables(null, null, pTable, null);
+            try {
+                if ( !resultSet.next() ) {
+                    logger.debug("Table {} does not exist, not checking its indexes", pTable);
+                    return null;
+                }
+            } finally {
+                resultSet.close();
+            }
+            final Set<String> columns = new HashSet<String>();
+            resultSet = metaData.getPrimaryKeys(null, null, pTable);
+            try {
+                while ( resultSet.next() ) {
+                    if ( resultSet.getInt("KEY_SEQ") == 1 ) {
+                        columns.add(resultSet.getString("COLUMN_NAME").toUpperCase(Locale.ENGLISH));
+                    }
+                }
+            } finally {
+                resultSet.close();
+            }
+            resultSet = metaData.getIndexInfo(null, null, pTable, false, true);
+            try {
+                while ( resultSet.next() ) {
+                    final String column = resultSet.getString("COLUMN_NAME");
+                    // statistics rows have no column
+                    if ( column != null && resultSet.getInt("ORDINAL_POSITION") == 1 ) {
+                        columns.add(column.toUpperCase(Locale.ENGLISH));
+                    }
+                }
+            } finally {
+                resultSet.close();
+            }
+            return columns;
+        }
+
+        private String toStoredCase(String pName)
+                throws SQLException {
+            if ( metaData.storesUpperCaseIdentifiers() ) {
+                return pName.toUpperCase(Locale.ENGLISH);
+            }
+            if ( metaData.storesLowerCaseIdentifiers() ) {
+                return pName.toLowerCase(Locale.ENGLISH);
+            }
+            return pName;
+        }
+    }
+
+    // -----------------------------
+
+    /**
+     * A single problem found in a repository definition.
+     */
+    public static class Finding {
+
+        private final Rule rule;
+
+        private final String itemDescriptor;
+
+        @Nullable
+        private final String table;
+
+        @Nullable
+        private final String property;
+
+        private final String message;
+
+        Finding(Rule pRule,
+                String pItemDescriptor,
+                @Nullable String pTable,
+                @Nullable String pProperty,
+                String pMessage) {
+            rule = pRule;
+            itemDescriptor = pItemDescriptor;
+            table = pTable;
+            property = pProperty;
+            message = pMessage;
+        }
+
+        @NotNull
+        public Rule getRule() {
+            return rule;
+        }
+
+        @NotNull
+        public Severity getSeverity() {
+            return rule.getSeverity();
+        }
+
+        @NotNull
+        public String getItemDescriptor() {
+            return itemDescriptor;
+        }
+
+        @Nullable
+        public String getTable() {
+            return table;
+        }
+
+        @Nullable
+        public String getProperty() {
+            return property;
+        }
+
+        @NotNull
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return getSeverity() + " " + rule + " " + itemDescriptor
+                   + (property == null ? "" : "." + property)
+                   + (table == null ? "" : " (" + table + ")")
+                   + ": " + message;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.adapter.gsa.GSAItemDescriptor;
+import atg.adapter.gsa.GSARepository;
+import atg.repository.MutableRepositoryItem;
+import atg.repository.RepositoryException;
+import atg.repository.RepositoryPropertyDescriptor;
+import atg.repository.RepositoryView;
+import atg.repository.rql.RqlStatement;
+import atg.tools.dynunit.test.util.LatencyHistogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-threaded load test of a GSA repository outside a full server. A number of threads run a
+ * weighted mix of {@link Operation operations} on one item descriptor, first for a warm-up
+ * phase whose results are discarded, then for a steady-state phase for which the throughput and
+ * the p50/p95/p99/p999 latencies of each operation are reported:
+ * <pre>
+ * RepositoryWorkload workload = new RepositoryWorkload(this, repository, "user");
+ * workload.setThreads(8);
+ * workload.setWeight(Operation.GET, 70);
+ * workload.setWeight(Operation.UPDATE, 20);
+ * workload.setWeight(Operation.CREATE, 10);
+ * logger.info(workload.run());
+ * </pre>
+ * Items are created with {@link GSATest#createDummyItem(GSARepository, String, String)} and
+ * updated with its dummy values. Before the warm-up {@link #getInitialItems() initialItems}
+ * items are created so the other operations have something to work on; operations which need
+ * an item while there is none create one instead.
+ */
+public class RepositoryWorkload {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    public static enum Operation {
+        CREATE, GET, QUERY, UPDATE, REMOVE
+    }
+
+    private final GSATest test;
+
+    private final GSARepository repository;
+
+    private final String itemDescriptor;
+
+    private final Map<Operation, Integer> weights = new EnumMap<Operation, Integer>(Operation.class);
+
+    private int threads = 4;
+
+    private long warmUpMillis = 5000;
+
+    private long durationMillis = 30000;
+
+    private int initialItems = 100;
+
+    private String query = "ALL RANGE 0+10";
+
+    private long seed = 42;
+
+    /**
+     * Creates a workload with an even mix of all operations.
+     *
+     * @param pTest
+     *         test whose dummy values are used, or null for the defaults of {@link GSATest}.
+     */
+    public RepositoryWorkload(@Nullable GSATest pTest,
+                              @NotNull GSARepository pRepository,
+                              @NotNull String pItemDescriptor) {
+        test = pTest == null ? new GSATest() : pTest;
+        repository = pRepository;
+        itemDescriptor = pItemDescriptor;
+        for (Operation operation : Operation.values()) {
+            weights.put(operation, 1);
+        }
+    }
+
+    public int getWeight(@NotNull Operation pOperation) {
+        return weights.get(pOperation);
+    }
+
+    /**
+     * Sets the relative frequency of an operation, 0 to leave it out. Default: 1
+     */
+    public void setWeight(@NotNull Operation pOperation, int pWeight) {
+        if (pWeight < 0) {
+            throw new IllegalArgumentException("Negative weight " + pWeight + " for " + pOperation);
+        }
+        weights.put(pOperation, pWeight);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads running operations. Default: 4
+     */
+    public void setThreads(int pThreads) {
+        threads = pThreads;
+    }
+
+    public long getWarmUpMillis() {
+        return warmUpMillis;
+    }
+
+    /**
+     * Sets how long operations run before they are measured. Default: 5000
+     */
+    public void setWarmUpMillis(long pWarmUpMillis) {
+        warmUpMillis = pWarmUpMillis;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Sets how long operations are measured. Default: 30000
+     */
+    public void setDurationMillis(long pDurationMillis) {
+        durationMillis = pDurationMillis;
+    }
+
+    public int getInitialItems() {
+        return initialItems;
+    }
+
+    /**
+     * Sets the number of items created before the warm-up. Default: 100
+     */
+    public void setInitialItems(int pInitialItems) {
+        initialItems = pInitialItems;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Sets the RQL query run by {@link Operation#QUERY}. Default: ALL RANGE 0+10
+     */
+    public void setQuery(String pQuery) {
+        query = pQuery;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets the seed from which each thread derives the sequence of its operations. Default: 42
+     */
+    public void setSeed(long pSeed) {
+        seed = pSeed;
+    }
+
+    // -----------------------------
+
+    /**
+     * Runs the warm-up and steady-state phases.
+     *
+     * @return the measurements of the steady-state phase.
+     *
+     * @throws RepositoryException
+     *         if the initial items cannot be created or the query cannot be parsed.
+     * @throws InterruptedException
+     *         if interrupted while waiting for the threads.
+     */
+    @NotNull
+    public Result run()
+            throws RepositoryException, InterruptedException {
+        int totalWeight = 0;
+        for (int weight : weights.values()) {
+            totalWeight += weight;
+        }
+        if (totalWeight == 0) {
+            throw new IllegalStateException("All operations have weight 0");
+        }
+        final GSAItemDescriptor descriptor = (GSAItemDescriptor) repository.getItemDescriptor(itemDescriptor);
+        final Context context = new Context(
+                RqlStatement.parseRqlStatement(query), findUpdatableProperty(descriptor)
+        );
+        for (int i = 0; i < initialItems; i++) {
+            create(context);
+        }
+        logger.info(
+                "Running {} on {} with {} threads: {} ms warm-up, {} ms measured",
+                weights, itemDescriptor, threads, warmUpMillis, durationMillis
+        );
+
+        final CountDownLatch done = new CountDownLatch(threads);
+        final List<Worker> workers = new ArrayList<Worker>(threads);
+        for (int i = 0; i < threads; i++) {
+            final Worker worker = new Worker(context, new Random(seed + i), totalWeight, done);
+            workers.add(worker);
+            final Thread thread = new Thread(worker, "RepositoryWorkload-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            Thread.sleep(warmUpMillis);
+            final long start = System.nanoTime();
+            context.measuring = true;
+            Thread.sleep(durationMillis);
+            context.stopped = true;
+            final long elapsed = System.nanoTime() - start;
+            done.await();
+
+            final Result result = new Result(elapsed);
+            for (Worker worker : workers) {
+                for (Operation operation : Operation.values()) {
+                    result.latencies.get(operation).add(worker.latencies.get(operation));
+                    result.errors.put(operation, result.errors.get(operation) + worker.errors.get(operation));
+                }
+            }
+            return result;
+        } finally {
+            context.stopped = true;
+        }
+    }
+
+    // -----------------------------
+
+    private Operation pick(Random pRandom, int pTotalWeight) {
+        int value = pRandom.nextInt(pTotalWeight);
+        for (Operation operation : Operation.values()) {
+            value -= weights.get(operation);
+            if (value < 0) {
+                return operation;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Runs the operation, or a create if it needs an item and there is none.
+     */
+    private void execute(Context pContext, Operation pOperation, Random pRandom)
+            throws RepositoryException {
+        if (pOperation == Operation.CREATE) {
+            create(pContext);
+        }
+        else if (pOperation == Operation.QUERY) {
+            final RepositoryView view = repository.getView(itemDescriptor);
+            pContext.query.executeQuery(view, new Object[0]);
+        }
+        else if (pOperation == Operation.REMOVE) {
+            final String id = pContext.ids.remove(pRandom);
+            if (id == null) {
+                create(pContext);
+            }
+            else {
+                repository.removeItem(id, itemDescriptor);
+            }
+        }
+        else {
+            final String id = pContext.ids.get(pRandom);
+            if (id == null) {
+                create(pContext);
+            }
+            else if (pOperation == Operation.GET) {
+                repository.getItem(id, itemDescriptor);
+            }
+            else if (pContext.updatableProperty != null) {
+                final MutableRepositoryItem item = repository.getItemForUpdate(id, itemDescriptor);
+                if (item != null) {
+                    item.setPropertyValue(
+                            pContext.updatableProperty.getName(),
+                            test.generateDummyValue(pContext.updatableProperty)
+                    );
+                    repository.updateItem(item);
+                }
+            }
+        }
+    }
+
+    private void create(Context pContext)
+            throws RepositoryException {
+        final MutableRepositoryItem item = test.createDummyItem(repository, itemDescriptor, null);
+        repository.addItem(item);
+        pContext.ids.add(item.getRepositoryId());
+    }
+
+    /**
+     * Returns a writable, single valued property for which dummy values can be generated.
+     */
+    @Nullable
+    private RepositoryPropertyDescriptor findUpdatableProperty(GSAItemDescriptor pDescriptor) {
+        for (RepositoryPropertyDescriptor property
+                : (RepositoryPropertyDescriptor[]) pDescriptor.getPropertyDescriptors()) {
+            if (property.isWritable() && !property.isIdProperty() && !property.isCollectionOrMap()
+                && test.generateDummyValue(property) != null) {
+                return property;
+            }
+        }
+        logger.warn("No updatable property in {}, updates only load items", pDescriptor.getItemDescriptorName());
+        return null;
+    }
+
+    /**
+     * State shared by the threads.
+     */
+    private static class Context {
+
+        final RqlStatement query;
+
+        @Nullable
+        final RepositoryPropertyDescriptor updatableProperty;
+
+        final IdPool ids = new IdPool();
+
+        volatile boolean measuring;
+
+        volatile boolean stopped;
+
+        Context(RqlStatement pQuery, @Nullable RepositoryPropertyDescriptor pProperty) {
+            query = pQuery;
+            updatableProperty = pProperty;
+        }
+    }
+
+    /**
+     * Ids of the items created and not yet removed.
+     */
+    private static class IdPool {
+
+        private final List<String> ids = new ArrayList<String>();
+
+        synchronized void add(String pId) {
+            ids.add(pId);
+        }
+
+        @Nullable
+        synchronized String get(Random pRandom) {
+            return ids.isEmpty() ? null : ids.get(pRandom.nextInt(ids.size()));
+        }
+
+        @Nullable
+        synchronized String remove(Random pRandom) {
+            if (ids.isEmpty()) {
+                return null;
+            }
+            final int index = pRandom.nextInt(ids.size());
+            final String id = ids.get(index);
+            // move the last id into the gap instead of shifting the list
+            ids.set(index, ids.get(ids.size() - 1));
+            ids.remove(ids.size() - 1);
+            return id;
+        }
+    }
+
+    private class Worker
+            implements Runnable {
+
+        private final Context context;
+
+        private final Random random;
+
+        private final int totalWeight;
+
+        private final CountDownLatch done;
+
+        private final Map<Operation, LatencyHistogram> latencies = newLatencies();
+
+        private final Map<Operation, Long> errors = newErrors();
+
+        Worker(Context pContext, Random pRandom, int pTotalWeight, CountDownLatch pDone) {
+            context = pContext;
+            random = pRandom;
+            totalWeight = pTotalWeight;
+            done = pDone;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!context.stopped) {
+                    final Operation operation = pick(random, totalWeight);
+                    final boolean measured = context.measuring;
+                    final long start = System.nanoTime();
+                    try {
+                        execute(context, operation, random);
+                    } catch (RepositoryException e) {
+                        error(operation, measured, e);
+                        continue;
+                    } catch (RuntimeException e) {
+                        error(operation, measured, e);
+                        continue;
+                    }
+                    if (measured && !context.stopped) {
+                        latencies.get(operation).record(System.nanoTime() - start);
+                    }
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void error(Operation pOperation, boolean pMeasured, Exception pException) {
+            if (pMeasured) {
+                errors.put(pOperation, errors.get(pOperation) + 1);
+            }
+            logger.debug("{} failed", pOperation, pException);
+        }
+    }
+
+    private static Map<Operation, LatencyHistogram> newLatencies() {
+        final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+        return latencies;
+    }
+
+    private static Map<Operation, Long> newErrors() {
+        final Map<Operation, Long> errors = new EnumMap<Operation, Long>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            errors.put(operation, 0L);
+        }
+        return errors;
+    }
+
+    // -----------------------------
+
+    /**
+     * Measurements of the steady-state phase.
+     */
+    public static class Result {
+
+        private final long elapsedNanos;
+
+        private final Map<Operation, LatencyHistogram> latencies = newLatencies();
+
+        private final Map<Operation, Long> errors = newErrors();
+
+        Result(long pElapsedNanos) {
+            elapsedNanos = pElapsedNanos;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Returns the latencies in nanoseconds of the successful executions of the operation.
+         */
+        @NotNull
+        public LatencyHistogram getLatencies(@NotNull Operation pOperation) {
+            return latencies.get(pOperation);
+        }
+
+        public long getErrors(@NotNull Operation pOperation) {
+            return errors.get(pOperation);
+        }
+
+        /**
+         * Returns the successful executions of the operation per second.
+         */
+        public double getThroughput(@NotNull Operation pOperation) {
+            return latencies.get(pOperation).getCount() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        /**
+         * Returns the successful executions of all operations per second.
+         */
+        public double getThroughput() {
+            double throughput = 0;
+            for (Operation operation : Operation.values()) {
+                throughput += getThroughput(operation);
+            }
+            return throughput;
+        }
+
+        /**
+         * Returns one line per operation with its count, errors, throughput and latency
+         * percentiles in milliseconds.
+         */
+        @Override
+        public String toString() {
+            final StringBuilder result = new StringBuilder(
+                    String.format(
+                            "%-8s %9s %7s %10s %9s %9s %9s %9s %9s%n",
+                            "op", "count", "errors", "ops/s", "p50 ms", "p95 ms", "p99 ms", "p999 ms", "max ms"
+                    )
+            );
+            for (Operation operation : Operation.values()) {
+                final LatencyHistogram histogram = latencies.get(operation);
+                result.append(
+                        String.format(
+                                "%-8s %9d %7d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                                operation,
+                                histogram.getCount(),
+                                errors.get(operation),
+                                getThroughput(operation),
+                                millis(histogram.getValueAtPercentile(50)),
+                                millis(histogram.getValueAtPercentile(95)),
+                                millis(histogram.getValueAtPercentile(99)),
+                                millis(histogram.getValueAtPercentile(99.9)),
+                                millis(histogram.getMax())
+                        )
+                );
+            }
+            result.append(String.format("total %.1f ops/s", getThroughput()));
+            return result.toString();
+        }
+
+        private static double millis(long pNanos) {
+            return pNanos / 1000000.0;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+/**
+ * Thrown when a SQL script can not be read or split into statements. This is
+ * unchecked because it is raised from {@link java.util.Iterator#next()} while
+ * streaming statements out of a script.
+ *
+ * @see SQLStatementIterator
+ */
+public class SQLParseException
+        extends RuntimeException {
+
+    private static final long serialVersionUID = -3385245131567542021L;
+
+    private final String source;
+
+    private final int lineNumber;
+
+    public SQLParseException(String source, int lineNumber, String message) {
+        this(source, lineNumber, message, null);
+    }
+
+    public SQLParseException(String source, int lineNumber, String message, Throwable cause) {
+        super(source + ":" + lineNumber + ": " + message, cause);
+        this.source = source;
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * Returns the name of the script that could not be parsed.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the line of the script the error was detected on, starting at 1.
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+}
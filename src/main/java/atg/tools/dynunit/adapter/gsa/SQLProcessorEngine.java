@@ -49,6 +49,9 @@ public class SQLProcessorEngine
     // Vendor String for Apache Derby
     private static final String APACHE_DERBY = "Apache Derby";
 
+    // Vendor String for H2
+    private static final String H2 = "H2";
+
   /* =========== CONSTRUCTORS ============= */
 
     /**
@@ -391,6 +394,9 @@ public class SQLProcessorEngine
                 if ( isDerby() ) {
                     statement = stripNull(statement);
                 }
+                if ( isH2() ) {
+                    statement = toH2Types(statement);
+                }
                 createTable(statement);
                 createdTables = true;
             } else if ( name != null && !pDrop ) {
@@ -456,9 +462,22 @@ public class SQLProcessorEngine
         return subStatements.toString();
     }
 
-    private boolean mIsDerby = false;
+    /**
+     * Replaces the type names H2 does not understand, which ATG uses for
+     * databases it has no specific DatabaseTableInfo for, with their H2
+     * equivalents.
+     *
+     * @param statement
+     *
+     * @return
+     */
+    static String toH2Types(String statement) {
+        return statement.replaceAll("(?i)\\bLONG\\s+VARCHAR\\b", "LONGVARCHAR")
+                        .replaceAll("(?i)\\bLONG\\s+VARBINARY\\b", "LONGVARBINARY");
+    }
 
-    private boolean mIsDerbySet = false;
+    @Nullable
+    private String mDatabaseProductName = null;
 
     /**
      * Returns true if the current database is Apache Derby. The first invocation
@@ -466,31 +485,44 @@ public class SQLProcessorEngine
      */
     public boolean isDerby()
             throws SQLProcessorException {
-        if ( !mIsDerbySet ) {
-            mIsDerby = isDerbyUncached();
-            mIsDerbySet = true;
+        return APACHE_DERBY.equals(getDatabaseProductName());
+    }
+
+    /**
+     * Returns true if the current database is H2. The first invocation to this
+     * method will cache its answer.
+     */
+    public boolean isH2()
+            throws SQLProcessorException {
+        return H2.equals(getDatabaseProductName());
+    }
+
+    /**
+     * Returns the product name of the current database. The first invocation
+     * to this method will cache its answer.
+     */
+    private String getDatabaseProductName()
+            throws SQLProcessorException {
+        if ( mDatabaseProductName == null ) {
+            mDatabaseProductName = getDatabaseProductNameUncached();
         }
-        return mIsDerby;
+        return mDatabaseProductName;
     }
 
     /**
-     * Returns true if the current database is Apache Derby This method call is
+     * Returns the product name of the current database. This method call is
      * not cached and will make a database connection attempt on each invocation.
      *
      * @return
      * @throws SQLProcessorException
      */
-    private boolean isDerbyUncached()
+    private String getDatabaseProductNameUncached()
             throws SQLProcessorException {
-        boolean isDerby = false;
         Connection c = null;
         try {
             c = getConnection();
             DatabaseMetaData meta = c.getMetaData();
-            if ( APACHE_DERBY.equals(meta.getDatabaseProductName()) ) {
-                isDerby = true;
-            }
-            return isDerby;
+            return meta.getDatabaseProductName();
         } catch ( SQLException e ) {
             throw new SQLProcessorException(e);
         } finally {
@@ -652,7 +684,7 @@ public class SQLProcessorEngine
      *
      * @return The name of the table; null if name can't be found
      */
-    private String getTableName(String pStr) {
+    String getTableName(String pStr) {
         String STATEMENT_BEGIN = getCreateTableBeginDelimiter();
 
         if ( isLoggingDebug() && (this.getRepository().getDebugLevel() > 6) ) {
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.tools.dynunit.test.io.ByteBufferInputStream;
+import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+/**
+ * Streams the statements of a SQL script one at a time instead of loading the whole script.
+ * <p/>
+ * The script is read a line at a time and split by a small state machine which understands
+ * <ul>
+ * <li>single quoted literals (with {@code ''} escapes) and double quoted identifiers,</li>
+ * <li>{@code --} and {@code /* ... *&#47;} comments as well as lines starting with
+ * {@code //},</li>
+ * <li>statements terminated by {@code ;}, a line containing only {@code /} or a {@code GO}
+ * line,</li>
+ * <li>statements which are not terminated at all but start on a new line with one of the
+ * usual DDL/DML keywords, as the old {@link SQLFileParser} did,</li>
+ * <li>stored procedures, functions, triggers and packages which run up to the next line
+ * containing only {@code /}, and MS SQL Server {@code IF OBJECT_ID} blocks which run up to
+ * the next {@code GO}.</li>
+ * </ul>
+ * Runs of whitespace outside of literals are collapsed to a single space. Errors are reported
+ * as {@link SQLParseException}s carrying the line number.
+ * <p/>
+ * Instances are not thread safe and should be closed once done with, which also happens
+ * automatically when the last statement has been read.
+ */
+public class SQLStatementIterator
+        implements Iterator<String>, Closeable {
+
+    /**
+     * Files at least this large are memory mapped by {@link #open(File)}.
+     */
+    public static final long DEFAULT_MEMORY_MAP_THRESHOLD = 8L * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String[] STATEMENT_KEYWORDS = {
+            "BEGIN", "CREATE", "INSERT", "UPDATE", "DELETE", "COMMIT", "ALTER", "DROP", "GRANT"
+    };
+
+    private static final String[] BLOCK_KEYWORDS = {
+            "PROCEDURE", "FUNCTION", "TRIGGER", "PACKAGE"
+    };
+
+    // what ends the statement currently being read
+    private static final int END_SEMICOLON = 0;
+
+    private static final int END_SLASH = 1;
+
+    private static final int END_GO = 2;
+
+    private final BufferedReader reader;
+
+    private final String source;
+
+    private final StringBuilder statement = new StringBuilder(256);
+
+    private final Queue<String> pending = new ArrayDeque<String>();
+
+    private int lineNumber = 0;
+
+    private int end = END_SEMICOLON;
+
+    private int parenDepth = 0;
+
+    private boolean pendingSpace = false;
+
+    // the quote character of the literal we are in, or 0 when outside of literals
+    private char quote = 0;
+
+    private int quoteLine;
+
+    private boolean inComment = false;
+
+    private int commentLine;
+
+    private boolean closed = false;
+
+    /**
+     * Creates an iterator reading the statements from the given reader.
+     *
+     * @param pReader
+     *         script to read. Closed together with this iterator.
+     * @param pSource
+     *         name of the script used in error messages.
+     */
+    public SQLStatementIterator(@NotNull Reader pReader, @NotNull String pSource) {
+        reader = pReader instanceof BufferedReader
+                 ? (BufferedReader) pReader
+                 : new BufferedReader(pReader, BUFFER_SIZE);
+        source = pSource;
+    }
+
+    /**
+     * Opens the given script, memory mapping it if it is larger than
+     * {@link #DEFAULT_MEMORY_MAP_THRESHOLD}.
+     */
+    public static SQLStatementIterator open(@NotNull File pFile)
+            throws IOException {
+        return open(pFile, DEFAULT_MEMORY_MAP_THRESHOLD);
+    }
+
+    /**
+     * Opens the given script using the platform default encoding.
+     *
+     * @param pFile
+     *         script to read.
+     * @param pMemoryMapThreshold
+     *         files of at least this many bytes are memory mapped rather than read through a
+     *         regular stream. A negative value disables memory mapping.
+     */
+    public static SQLStatementIterator open(@NotNull File pFile, long pMemoryMapThreshold)
+            throws IOException {
+        final FileInputStream fis = new FileInputStream(pFile);
+        InputStream in = fis;
+        try {
+            final long length = pFile.length();
+            if (pMemoryMapThreshold >= 0
+                && length >= pMemoryMapThreshold
+                && length <= Integer.MAX_VALUE) {
+                final FileChannel channel = fis.getChannel();
+                final MappedByteBuffer buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, length
+                );
+                // the mapping stays valid after the channel is closed
+                fis.close();
+                in = new ByteBufferInputStream(buffer);
+            }
+        } catch (IOException e) {
+            IOUtils.closeQuietly(fis);
+            throw e;
+        }
+        return new SQLStatementIterator(
+                new InputStreamReader(in, Charset.defaultCharset()), pFile.getPath()
+        );
+    }
+
+    /**
+     * Returns the number of the last line read from the script.
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (pending.isEmpty() && !closed) {
+            readLine();
+        }
+        return !pending.isEmpty();
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return pending.remove();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        IOUtils.closeQuietly(reader);
+    }
+
+    private void readLine() {
+        final String line;
+        try {
+            line = reader.readLine();
+        } catch (IOException e) {
+            close();
+            throw new SQLParseException(source, lineNumber + 1, "Unable to read script", e);
+        }
+        if (line == null) {
+            finish();
+            return;
+        }
+        lineNumber++;
+        if (quote != 0) {
+            // a literal spanning lines keeps its line break
+            statement.append('\n');
+            scan(line, 0);
+            return;
+        }
+        if (inComment) {
+            scan(line, 0);
+            return;
+        }
+        final int start = skipWhitespace(line, 0);
+        if (start == line.length() || line.startsWith("//", start)) {
+            pendingSpace = true;
+            return;
+        }
+        if (isTerminatorLine(line, start)) {
+            flush();
+            return;
+        }
+        if (end == END_SEMICOLON && parenDepth == 0) {
+            if (statement.length() > 0 && startsWithAny(line, start, STATEMENT_KEYWORDS)) {
+                // the previous statement was not terminated
+                flush();
+            }
+            if (statement.length() == 0) {
+                end = getBlockEnd(line, start);
+            }
+        }
+        scan(line, start);
+    }
+
+    private void scan(String pLine, int pStart) {
+        final int length = pLine.length();
+        for (int i = pStart; i < length; i++) {
+            final char c = pLine.charAt(i);
+            if (inComment) {
+                if (c == '*' && i + 1 < length && pLine.charAt(i + 1) == '/') {
+                    inComment = false;
+                    i++;
+                }
+            } else if (quote != 0) {
+                statement.append(c);
+                if (c == quote) {
+                    if (i + 1 < length && pLine.charAt(i + 1) == quote) {
+                        // escaped quote
+                        statement.append(quote);
+                        i++;
+                    } else {
+                        quote = 0;
+                    }
+                }
+            } else if (c == '-' && i + 1 < length && pLine.charAt(i + 1) == '-') {
+                break;
+            } else if (c == '/' && i + 1 < length && pLine.charAt(i + 1) == '*') {
+                inComment = true;
+                commentLine = lineNumber;
+                pendingSpace = true;
+                i++;
+            } else if (c == ';' && end == END_SEMICOLON) {
+                flush();
+            } else if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+            } else {
+                if (c == '\'' || c == '"') {
+                    quote = c;
+                    quoteLine = lineNumber;
+                } else if (c == '(') {
+                    parenDepth++;
+                } else if (c == ')' && parenDepth > 0) {
+                    parenDepth--;
+                }
+                if (pendingSpace && statement.length() > 0) {
+                    statement.append(' ');
+                }
+                pendingSpace = false;
+                statement.append(c);
+            }
+        }
+        if (quote == 0) {
+            pendingSpace = true;
+        }
+    }
+
+    private void finish() {
+        close();
+        if (quote != 0) {
+            throw new SQLParseException(source, quoteLine, "Unterminated quoted string");
+        }
+        if (inComment) {
+            throw new SQLParseException(source, commentLine, "Unterminated comment");
+        }
+        flush();
+    }
+
+    private void flush() {
+        if (statement.length() > 0) {
+            pending.add(statement.toString());
+            statement.setLength(0);
+        }
+        end = END_SEMICOLON;
+        parenDepth = 0;
+        pendingSpace = false;
+    }
+
+    private boolean isTerminatorLine(String pLine, int pStart) {
+        if (pLine.charAt(pStart) == '/') {
+            return skipWhitespace(pLine, pStart + 1) == pLine.length();
+        }
+        return end != END_SLASH && startsWithWord(pLine, pStart, "GO");
+    }
+
+    private static int getBlockEnd(String pLine, int pStart) {
+        if (startsWithWord(pLine, pStart, "IF")) {
+            final int next = skipWhitespace(pLine, pStart + 2);
+            if (pLine.regionMatches(true, next, "OBJECT_ID", 0, 9)) {
+                return END_GO;
+            }
+            return END_SEMICOLON;
+        }
+        if (!startsWithWord(pLine, pStart, "CREATE")) {
+            return END_SEMICOLON;
+        }
+        int next = skipWhitespace(pLine, pStart + 6);
+        if (startsWithWord(pLine, next, "OR")) {
+            next = skipWhitespace(pLine, next + 2);
+            if (!startsWithWord(pLine, next, "REPLACE")) {
+                return END_SEMICOLON;
+            }
+            next = skipWhitespace(pLine, next + 7);
+        }
+        return startsWithAny(pLine, next, BLOCK_KEYWORDS) ? END_SLASH : END_SEMICOLON;
+    }
+
+    private static boolean startsWithAny(String pLine, int pStart, String[] pWords) {
+        for (String word : pWords) {
+            if (startsWithWord(pLine, pStart, word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks for the given keyword at the given position, ignoring case, followed by the end of
+     * the line or a character which can not be part of the same word.
+     */
+    private static boolean startsWithWord(String pLine, int pStart, String pWord) {
+        if (!pLine.regionMatches(true, pStart, pWord, 0, pWord.length())) {
+            return false;
+        }
+        final int after = pStart + pWord.length();
+        if (after == pLine.length()) {
+            return true;
+        }
+        final char c = pLine.charAt(after);
+        return !Character.isLetterOrDigit(c) && c != '_' && c != '$' && c != '#';
+    }
+
+    private static int skipWhitespace(String pLine, int pStart) {
+        int i = pStart;
+        while (i < pLine.length() && Character.isWhitespace(pLine.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.adapter.gsa.GSARepository;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.lang3.reflect.MethodUtils;
+import org.apache.ddlutils.model.Database;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On-disk cache for the schema an {@link InitializingGSA} derives from its
+ * definition files. Both the GSA generated CREATE TABLE statements (after
+ * references, foreign keys and indexes have been stripped) and the DDLUtils
+ * {@link Database} model built by {@link GSARepositorySchemaGenerator} can be
+ * stored here.
+ * <p/>
+ * Entries are keyed by a fingerprint of the definition file contents, the
+ * database type and the options that influence the generated SQL. A changed
+ * definition file therefore simply results in a cache miss; stale entries are
+ * never returned. Repositories whose definition files cannot be read are not
+ * cached at all.
+ */
+public class SchemaCache {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    // bump this whenever the shape of the cached data changes
+    private static final String CACHE_VERSION = "1";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+
+    /**
+     * Creates a cache in the default location, a "dynunit-schema-cache"
+     * directory below the system temporary directory.
+     */
+    public SchemaCache() {
+        this(new File(FileUtils.getTempDirectory(), "dynunit-schema-cache"));
+    }
+
+    /**
+     * Creates a cache storing its entries in the given directory.
+     *
+     * @param directory
+     *         directory for cache entries. Created on the first write.
+     */
+    public SchemaCache(@NotNull File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Computes the cache key for the given repository. The key covers the
+     * contents of every definition file, the database product and any options
+     * that change the generated schema.
+     *
+     * @param pRepository
+     *         repository whose definition files have already been loaded.
+     * @param pDatabaseName
+     *         database product name the schema is generated for.
+     * @param pOptions
+     *         additional values that influence the generated schema, e.g. the
+     *         strip settings of the repository.
+     *
+     * @return hexadecimal fingerprint or null if the contents of a definition
+     *         file cannot be read, in which case nothing should be cached.
+     */
+    @Nullable
+    public String fingerprint(@NotNull GSARepository pRepository,
+                              @Nullable String pDatabaseName,
+                              Object... pOptions) {
+        return fingerprint(pRepository.getDefinitionFiles(), pRepository.getClass().getName(), pDatabaseName, pOptions);
+    }
+
+    @Nullable
+    String fingerprint(@Nullable Object[] pDefinitionFiles,
+                       @NotNull String pRepositoryClass,
+                       @Nullable String pDatabaseName,
+                       Object... pOptions) {
+        MessageDigest digest = newDigest();
+        update(digest, CACHE_VERSION);
+        update(digest, pRepositoryClass);
+        update(digest, pDatabaseName);
+        for (Object option : pOptions) {
+            update(digest, String.valueOf(option));
+        }
+        if (pDefinitionFiles != null) {
+            for (Object definitionFile : pDefinitionFiles) {
+                if (!updateWithDefinitionFile(digest, definitionFile)) {
+                    return null;
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns the cached CREATE TABLE statements for the given key or
+     * {@code null} if there are none.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public List<String> getStatements(@NotNull String pKey) {
+        return (List<String>) read(pKey, "sql");
+    }
+
+    /**
+     * Stores the given CREATE TABLE statements under the given key.
+     */
+    public void putStatements(@NotNull String pKey, @NotNull List<String> pStatements) {
+        write(pKey, "sql", new ArrayList<String>(pStatements));
+    }
+
+    /**
+     * Returns a copy of the cached DDLUtils model for the given key or
+     * {@code null} if there is none.
+     */
+    @Nullable
+    public Database getModel(@NotNull String pKey) {
+        return (Database) read(pKey, "model");
+    }
+
+    /**
+     * Stores the given DDLUtils model under the given key.
+     */
+    public void putModel(@NotNull String pKey, @NotNull Database pModel) {
+        write(pKey, "model", pModel);
+    }
+
+    /**
+     * Removes every entry from this cache.
+     */
+    public void clear() {
+        try {
+            FileUtils.deleteDirectory(directory);
+        } catch (IOException e) {
+            logger.catching(e);
+        }
+    }
+
+    private File getEntry(String pKey, String pType) {
+        return new File(directory, pKey + "." + pType + ".ser");
+    }
+
+    @Nullable
+    private Object read(String pKey, String pType) {
+        final File entry = getEntry(pKey, pType);
+        if (!entry.isFile()) {
+            logger.debug("Schema cache miss for {}", entry);
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(entry));
+            final Object cached = SerializationUtils.deserialize(in);
+            logger.debug("Schema cache hit for {}", entry);
+            return cached;
+        } catch (Exception e) {
+            // a corrupt or incompatible entry is just a miss
+            logger.warn("Discarding unreadable schema cache entry {}", entry);
+            logger.catching(e);
+            entry.delete();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void write(String pKey, String pType, Serializable pValue) {
+        final File entry = getEntry(pKey, pType);
+        OutputStream out = null;
+        try {
+            FileUtils.forceMkdir(directory);
+            // write to a temporary file first so concurrent readers never see
+            // a partially written entry
+            final File temp = File.createTempFile(pKey, ".tmp", directory);
+            out = new BufferedOutputStream(new FileOutputStream(temp));
+            SerializationUtils.serialize(pValue, out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(entry)) {
+                entry.delete();
+                if (!temp.renameTo(entry)) {
+                    temp.delete();
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write schema cache entry {}", entry);
+            logger.catching(e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Adds the contents of every file of the definition file to the digest.
+     *
+     * @return false if the files could not be listed.
+     */
+    private boolean updateWithDefinitionFile(MessageDigest pDigest, Object pDefinitionFile) {
+        update(pDigest, String.valueOf(pDefinitionFile));
+        // XMLFile combines every file of the same name on the CONFIGPATH. The accessor for those
+        // files is not available in all ATG versions, and the name alone would hide edits.
+        Object files = null;
+        try {
+            files = MethodUtils.invokeMethod(pDefinitionFile, "getFiles", null, null);
+        } catch (Exception e) {
+            logger.debug("Unable to list files of definition file {}", pDefinitionFile);
+        }
+        if (!(files instanceof File[])) {
+            logger.warn("Not caching the schema, the files of definition file {} are unknown", pDefinitionFile);
+            return false;
+        }
+        for (File file : (File[]) files) {
+            update(pDigest, file.getAbsolutePath());
+            updateWithFileContents(pDigest, file);
+        }
+        return true;
+    }
+
+    private static void updateWithFileContents(MessageDigest pDigest, File pFile) {
+        if (!pFile.isFile()) {
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(pFile));
+            final byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                pDigest.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // fall back to the last modified time so changes still cause a miss
+            update(pDigest, Long.toString(pFile.lastModified()));
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static void update(MessageDigest pDigest, @Nullable String pValue) {
+        if (pValue != null) {
+            pDigest.update(pValue.getBytes(UTF_8));
+        }
+        pDigest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE is required to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] pBytes) {
+        final char[] chars = new char[pBytes.length * 2];
+        for (int i = 0; i < pBytes.length; i++) {
+            chars[i * 2] = HEX[(pBytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[pBytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
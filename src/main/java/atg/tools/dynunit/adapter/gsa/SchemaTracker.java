@@ -17,37 +17,193 @@
 package atg.tools.dynunit.adapter.gsa;
 
 import atg.adapter.gsa.GSARepository;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.WeakHashMap;
 
+/**
+ * Keeps track of which repositories use which tables, so a table shared by several
+ * repositories is only created by the first of them, its owner, and only dropped once no
+ * repository uses it anymore.
+ * <p/>
+ * Tracking is scoped per database schema, identified by the JDBC URL and the user name the
+ * data source connects with, as reported by its {@link DatabaseMetaData}. Repositories using
+ * different databases never see each other's tables, while repositories whose data sources are
+ * separate components, or wrapped e.g. by a
+ * {@link atg.tools.dynunit.service.jdbc.RecordingDataSource}, share a scope as long as they
+ * reach the same schema. A data source which cannot be connected to gets a scope of its own.
+ * Every scope counts the repositories using a table; all methods are atomic, so repositories
+ * may start and stop concurrently.
+ */
 public final class SchemaTracker {
 
-    private SchemaTracker() {}
+    // URL and user -> scope
+    private static final Map<String, SchemaTracker> scopes = new HashMap<String, SchemaTracker>();
+
+    // weak keys so discarded data sources vanish once their repositories released them
+    private static final Map<DataSource, SchemaTracker> dataSources = new WeakHashMap<DataSource, SchemaTracker>();
 
     private static interface Holder {
         static final SchemaTracker instance = new SchemaTracker();
     }
 
+    /**
+     * Returns the tracker for repositories without a data source.
+     */
     public static SchemaTracker getInstance() {
         return Holder.instance;
     }
 
-    private final Map<String, List<GSARepository>> tableRepositoryCache = new ConcurrentHashMap<String, List<GSARepository>>();
+    /**
+     * Returns the tracker scoped to the database schema the given data source connects to.
+     * The first call per data source opens a connection to read its metadata.
+     */
+    public static SchemaTracker getInstance(@Nullable DataSource dataSource) {
+        if (dataSource == null) {
+            return getInstance();
+        }
+        synchronized (scopes) {
+            final SchemaTracker tracker = dataSources.get(dataSource);
+            if (tracker != null) {
+                return tracker;
+            }
+        }
+        // connect outside the lock, the data source may be slow or block
+        final String key = getScopeKey(dataSource);
+        synchronized (scopes) {
+            SchemaTracker tracker = dataSources.get(dataSource);
+            if (tracker != null) {
+                return tracker;
+            }
+            tracker = key == null ? null : scopes.get(key);
+            if (tracker == null) {
+                tracker = new SchemaTracker();
+                if (key != null) {
+                    scopes.put(key, tracker);
+                }
+            }
+            dataSources.put(dataSource, tracker);
+            return tracker;
+        }
+    }
+
+    /**
+     * Returns the tracker scoped to the data source of the given repository.
+     */
+    public static SchemaTracker getInstance(@NotNull GSARepository repository) {
+        return getInstance(repository.getDataSource());
+    }
 
-    public List<GSARepository> getTable(final String table) {
-        return tableRepositoryCache.get(table);
+    // upper case table name -> repositories using it, the owner first
+    private final Map<String, List<GSARepository>> tableRepositoryCache = new HashMap<String, List<GSARepository>>();
+
+    private SchemaTracker() {}
+
+    /**
+     * Returns a copy of the repositories using the table, or null if none does.
+     */
+    @Nullable
+    public synchronized List<GSARepository> getTable(final String table) {
+        final List<GSARepository> repositories = tableRepositoryCache.get(key(table));
+        return repositories == null ? null : new ArrayList<GSARepository>(repositories);
     }
 
-    public void putTable(final String table, final List<GSARepository> repositories) {
-        tableRepositoryCache.put(table, repositories);
+    public synchronized void putTable(final String table, final List<GSARepository> repositories) {
+        tableRepositoryCache.put(key(table), new ArrayList<GSARepository>(repositories));
+    }
+
+    /**
+     * Registers the repository as a user of the table.
+     *
+     * @return true if the repository owns the table, i.e. no other repository registered it
+     *         before, and should therefore create it.
+     */
+    public synchronized boolean acquireTable(final String table, final GSARepository repository) {
+        List<GSARepository> repositories = tableRepositoryCache.get(key(table));
+        if (repositories == null) {
+            repositories = new ArrayList<GSARepository>(1);
+            tableRepositoryCache.put(key(table), repositories);
+        }
+        if (!repositories.contains(repository)) {
+            repositories.add(repository);
+        }
+        return repositories.get(0) == repository;
+    }
+
+    /**
+     * Returns true if a repository other than the given one uses the table.
+     */
+    public synchronized boolean isShared(final String table, final GSARepository repository) {
+        final List<GSARepository> repositories = tableRepositoryCache.get(key(table));
+        if (repositories == null) {
+            return false;
+        }
+        for (GSARepository other : repositories) {
+            if (other != repository) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Unregisters the repository from all its tables. Tables it owned pass to the next
+     * repository using them.
+     *
+     * @return the names of the tables no longer used by any repository.
+     */
+    public synchronized Set<String> release(final GSARepository repository) {
+        final Set<String> released = new HashSet<String>();
+        final Iterator<Map.Entry<String, List<GSARepository>>> entries = tableRepositoryCache.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<String, List<GSARepository>> entry = entries.next();
+            if (entry.getValue().remove(repository) && entry.getValue().isEmpty()) {
+                entries.remove();
+                released.add(entry.getKey());
+            }
+        }
+        return released;
     }
 
     /**
      * Resets the state in this class.
      */
-    public void reset() {
+    public synchronized void reset() {
         tableRepositoryCache.clear();
     }
+
+    /**
+     * Returns the JDBC URL and user name of the data source, or null if it cannot be connected
+     * to.
+     */
+    @Nullable
+    static String getScopeKey(@NotNull DataSource dataSource) {
+        try {
+            final Connection connection = dataSource.getConnection();
+            try {
+                final DatabaseMetaData metaData = connection.getMetaData();
+                return metaData.getURL() == null ? null : metaData.getURL() + " " + metaData.getUserName();
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    private static String key(String table) {
+        return table.toUpperCase();
+    }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.hamcrest;
+
+import atg.tools.dynunit.adapter.gsa.CacheStatistics;
+import org.hamcrest.Description;
+import org.hamcrest.Factory;
+import org.hamcrest.Matcher;
+import org.hamcrest.TypeSafeDiagnosingMatcher;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Hamcrest matcher for a minimum item cache or query cache hit ratio in {@link CacheStatistics},
+ * either of a single item descriptor or of all of them. Statistics without any access to the
+ * cache do not match.
+ */
+public class HasCacheHitRatio
+        extends TypeSafeDiagnosingMatcher<CacheStatistics> {
+
+    private final boolean queryCache;
+
+    @Nullable
+    private final String itemDescriptor;
+
+    private final double minimum;
+
+    protected HasCacheHitRatio(boolean queryCache, @Nullable String itemDescriptor, double minimum) {
+        this.queryCache = queryCache;
+        this.itemDescriptor = itemDescriptor;
+        this.minimum = minimum;
+    }
+
+    @Override
+    protected boolean matchesSafely(final CacheStatistics actual, final Description mismatch) {
+        final CacheStatistics.Counts counts = counts(actual);
+        if (counts.getAccesses() == 0) {
+            mismatch.appendText("no accesses");
+            return false;
+        }
+        mismatch.appendText("hit ratio was ").appendValue(counts.getHitRatio()).appendText(" with " + counts);
+        return counts.getHitRatio() >= minimum;
+    }
+
+    @Override
+    public void describeTo(final Description description) {
+        description.appendText(queryCache ? "query cache" : "item cache")
+                   .appendText(itemDescriptor == null ? "" : " of " + itemDescriptor)
+                   .appendText(" hit ratio of at least ")
+                   .appendValue(minimum);
+    }
+
+    private CacheStatistics.Counts counts(final CacheStatistics statistics) {
+        return queryCache ? statistics.getQueryCache(itemDescriptor) : statistics.getItemCache(itemDescriptor);
+    }
+
+    @Factory
+    public static Matcher<CacheStatistics> itemCacheHitRatio(final double minimum) {
+        return new HasCacheHitRatio(false, null, minimum);
+    }
+
+    @Factory
+    public static Matcher<CacheStatistics> itemCacheHitRatio(final String itemDescriptor, final double minimum) {
+        return new HasCacheHitRatio(false, itemDescriptor, minimum);
+    }
+
+    @Factory
+    public static Matcher<CacheStatistics> queryCacheHitRatio(final double minimum) {
+        return new HasCacheHitRatio(true, null, minimum);
+    }
+
+    @Factory
+    public static Matcher<CacheStatistics> queryCacheHitRatio(final String itemDescriptor, final double minimum) {
+        return new HasCacheHitRatio(true, itemDescriptor, minimum);
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.service.idgen;
+
+import atg.nucleus.GenericService;
+import atg.nucleus.ServiceException;
+import atg.service.idgen.IdGenerator;
+import atg.service.idgen.IdGeneratorException;
+import atg.service.idgen.IdSpace;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An IdGenerator for tests which keeps its id spaces in memory instead of reserving batches of
+ * ids from the {@code das_id_generator} table, so creating many items never waits for the
+ * database. Ids are handed out from one atomic counter per id space, prefix and suffix are
+ * applied to string ids.
+ * <p/>
+ * The id spaces are read from {@code initialIdSpacesFile}, which uses the format of
+ * {@code idspaces.xml}. If {@code seedFile} is set, the next id of every id space is read from
+ * it at startup and written back to it, in the same format, at shutdown, so ids keep growing
+ * across runs against a persistent database. Id spaces which are not configured are created
+ * on first use, starting at the seed of {@value #DEFAULT_ID_SPACE}.
+ */
+public class InMemoryIdGenerator
+        extends GenericService
+        implements IdGenerator {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    public static final String DEFAULT_ID_SPACE = "__default__";
+
+    private final ConcurrentMap<String, Space> spaces = new ConcurrentHashMap<String, Space>();
+
+    @Nullable
+    private File initialIdSpacesFile;
+
+    @Nullable
+    private File seedFile;
+
+    @Nullable
+    public File getInitialIdSpacesFile() {
+        return initialIdSpacesFile;
+    }
+
+    /**
+     * Sets the idspaces.xml style file defining the initial id spaces.
+     */
+    public void setInitialIdSpacesFile(@Nullable File initialIdSpacesFile) {
+        this.initialIdSpacesFile = initialIdSpacesFile;
+    }
+
+    @Nullable
+    public File getSeedFile() {
+        return seedFile;
+    }
+
+    /**
+     * Sets the file the current seeds are read from at startup and written to at shutdown.
+     * default: null, seeds are not persisted
+     */
+    public void setSeedFile(@Nullable File seedFile) {
+        this.seedFile = seedFile;
+    }
+
+    @Override
+    public void doStartService()
+            throws ServiceException {
+        try {
+            if (initialIdSpacesFile != null) {
+                readIdSpaces(initialIdSpacesFile, false);
+            }
+            if (seedFile != null && seedFile.exists()) {
+                readIdSpaces(seedFile, true);
+            }
+        } catch (IOException e) {
+            throw new ServiceException(e);
+        } catch (XMLStreamException e) {
+            throw new ServiceException(e);
+        }
+        logger.debug("Started with id spaces {}", spaces.keySet());
+    }
+
+    @Override
+    public void doStopService()
+            throws ServiceException {
+        if (seedFile != null) {
+            try {
+                writeSeeds(seedFile);
+            } catch (IOException e) {
+                throw new ServiceException(e);
+            }
+        }
+    }
+
+    public long generateLongId(String pIdSpace)
+            throws IdGeneratorException {
+        return getSpace(pIdSpace).next.getAndIncrement();
+    }
+
+    public String generateStringId(String pIdSpace)
+            throws IdGeneratorException {
+        final Space space = getSpace(pIdSpace);
+        final long id = space.next.getAndIncrement();
+        if (space.prefix == null && space.suffix == null) {
+            return Long.toString(id);
+        }
+        final StringBuilder builder = new StringBuilder(24);
+        if (space.prefix != null) {
+            builder.append(space.prefix);
+        }
+        builder.append(id);
+        if (space.suffix != null) {
+            builder.append(space.suffix);
+        }
+        return builder.toString();
+    }
+
+    public long generateLongId()
+            throws IdGeneratorException {
+        return generateLongId(DEFAULT_ID_SPACE);
+    }
+
+    public String generateStringId()
+            throws IdGeneratorException {
+        return generateStringId(DEFAULT_ID_SPACE);
+    }
+
+    /**
+     * Adds an id space unless one of the same name exists already.
+     */
+    public void addIdSpace(IdSpace pSpace)
+            throws IdGeneratorException {
+        addSpace(pSpace.getName(), pSpace.getSeed(), pSpace.getBatchSize(), pSpace.getPrefix(), pSpace.getSuffix());
+    }
+
+    /**
+     * Returns the id space with its current next id as seed, or null if it does not exist.
+     */
+    public IdSpace getIdSpace(String pName) {
+        final Space space = spaces.get(pName);
+        if (space == null) {
+            return null;
+        }
+        final IdSpace idSpace = new IdSpace(pName, space.next.get(), space.prefix, space.suffix);
+        idSpace.setBatchSize(space.batchSize);
+        return idSpace;
+    }
+
+    public boolean hasIdSpace(String pName) {
+        return spaces.containsKey(pName);
+    }
+
+    /**
+     * Returns the next id of every id space, keyed by name.
+     */
+    @NotNull
+    public Map<String, Long> getSeeds() {
+        final Map<String, Long> seeds = new TreeMap<String, Long>();
+        for (Map.Entry<String, Space> entry : spaces.entrySet()) {
+            seeds.put(entry.getKey(), entry.getValue().next.get());
+        }
+        return seeds;
+    }
+
+    private Space getSpace(String pName) {
+        final Space space = spaces.get(pName);
+        if (space != null) {
+            return space;
+        }
+        final Space defaults = spaces.get(DEFAULT_ID_SPACE);
+        return addSpace(pName, defaults == null ? 1 : defaults.seed, defaults == null ? 1 : defaults.batchSize, null, null);
+    }
+
+    private Space addSpace(String pName, long pSeed, int pBatchSize, @Nullable String pPrefix, @Nullable String pSuffix) {
+        final Space space = new Space(pSeed, pBatchSize, pPrefix, pSuffix);
+        final Space existing = spaces.putIfAbsent(pName, space);
+        return existing == null ? space : existing;
+    }
+
+    /**
+     * Reads {@code <id-space>} elements. When reading seeds only the counters of existing id
+     * spaces are moved forward.
+     */
+    private void readIdSpaces(File pFile, boolean pSeeds)
+            throws IOException, XMLStreamException {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        final InputStream in = new FileInputStream(pFile);
+        try {
+            final XMLStreamReader reader = factory.createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT
+                    || !"id-space".equals(reader.getLocalName())) {
+                    continue;
+                }
+                final String name = reader.getAttributeValue(null, "name");
+                final long seed = parseLong(reader.getAttributeValue(null, "seed"), 1);
+                if (pSeeds && spaces.containsKey(name)) {
+                    advance(spaces.get(name).next, seed);
+                    continue;
+                }
+                addSpace(
+                        name,
+                        seed,
+                        (int) parseLong(reader.getAttributeValue(null, "batch-size"), 1),
+                        reader.getAttributeValue(null, "prefix"),
+                        reader.getAttributeValue(null, "suffix")
+                );
+            }
+            reader.close();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void writeSeeds(File pFile)
+            throws IOException {
+        final File parent = pFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+        final Writer out = new OutputStreamWriter(new FileOutputStream(pFile), "UTF-8");
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<id-spaces>\n");
+            for (Map.Entry<String, Long> seed : getSeeds().entrySet()) {
+                final Space space = spaces.get(seed.getKey());
+                out.write("    <id-space name=\"" + seed.getKey() + "\" seed=\"" + seed.getValue()
+                          + "\" batch-size=\"" + space.batchSize + "\"");
+                if (space.prefix != null) {
+                    out.write(" prefix=\"" + space.prefix + "\"");
+                }
+                if (space.suffix != null) {
+                    out.write(" suffix=\"" + space.suffix + "\"");
+                }
+                out.write("/>\n");
+            }
+            out.write("</id-spaces>\n");
+        } finally {
+            out.close();
+        }
+        logger.debug("Wrote seeds of {} id spaces to {}", spaces.size(), pFile);
+    }
+
+    private static void advance(AtomicLong pCounter, long pTo) {
+        long current;
+        do {
+            current = pCounter.get();
+        } while (current < pTo && !pCounter.compareAndSet(current, pTo));
+    }
+
+    private static long parseLong(@Nullable String pValue, long pDefault) {
+        return pValue == null || pValue.length() == 0 ? pDefault : Long.parseLong(pValue.trim());
+    }
+
+    private static class Space {
+
+        private final long seed;
+
+        private final int batchSize;
+
+        @Nullable
+        private final String prefix;
+
+        @Nullable
+        private final String suffix;
+
+        private final AtomicLong next;
+
+        Space(long pSeed, int pBatchSize, @Nullable String pPrefix, @Nullable String pSuffix) {
+            seed = pSeed;
+            batchSize = pBatchSize;
+            prefix = pPrefix;
+            suffix = pSuffix;
+            next = new AtomicLong(pSeed);
+        }
+    }
+}
@@ -17,12 +17,18 @@
 package atg.tools.dynunit.service.jdbc;
 
 import atg.nucleus.ServiceException;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <b>Experimental since Apache Derby is not supported by ATG 9.0.</b>
@@ -32,6 +38,10 @@ import java.sql.SQLException;
  * If you need to name it something else set the "databaseName" property on this
  * component. You may want to change the name if your test requires running two
  * databases at the same time.
+ * <p/>
+ * With "inMemory" set the database is kept in memory only, named uniquely per
+ * process and component unless "uniqueDatabaseName" is false, and dropped
+ * when this component stops, so no files are written.
  *
  * @author adamb
  * @version $Id:$
@@ -43,8 +53,49 @@ public class DerbyDataSource
     private static final Logger logger = LogManager.getLogger();
     private static final String EMBEDDED_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
     private static final String PROTOCOL = "jdbc:derby:";
+    private static final String MEMORY_PROTOCOL = PROTOCOL + "memory:";
+    private static final String ERROR_FILE = "derby.stream.error.file";
+    private static final String ERROR_FIELD = "derby.stream.error.field";
+    /**
+     * Discards the Derby error log of in-memory databases, see derby.stream.error.field.
+     */
+    public static final OutputStream NULL_ERROR_STREAM = new NullOutputStream();
+    // databases already shut down by a hook, so each gets one hook per JVM
+    private static final Set<String> hookedDatabases = new HashSet<String>();
+    // distinguishes in-memory databases of several Nuclei and forked JVMs
+    private static final AtomicInteger instanceCounter = new AtomicInteger();
     private String framework = "embedded";
-    private boolean addedShutdownHook = false;
+    private boolean inMemory = false;
+    private boolean uniqueDatabaseName = true;
+    private String memoryDatabaseName;
+
+    public boolean isInMemory() {
+        return inMemory;
+    }
+
+    /**
+     * Sets whether the database is kept in memory instead of on disk. An
+     * in-memory database is dropped when this component stops. Default: false
+     *
+     * @param inMemory
+     */
+    public void setInMemory(boolean inMemory) {
+        this.inMemory = inMemory;
+    }
+
+    public boolean isUniqueDatabaseName() {
+        return uniqueDatabaseName;
+    }
+
+    /**
+     * Sets whether an in-memory database gets a name unique to this process and
+     * component, so concurrently running Nuclei never share it. Default: true
+     *
+     * @param uniqueDatabaseName
+     */
+    public void setUniqueDatabaseName(boolean uniqueDatabaseName) {
+        this.uniqueDatabaseName = uniqueDatabaseName;
+    }
 
     /**
      * Shuts down derby
@@ -104,8 +155,19 @@ public class DerbyDataSource
     public void doStartService()
             throws ServiceException {
         logger.trace("Starting up Derby data source");
+        if (inMemory && System.getProperty(ERROR_FILE) == null && System.getProperty(ERROR_FIELD) == null) {
+            // keep the engine from writing derby.log, must be set before it boots
+            System.setProperty(ERROR_FIELD, DerbyDataSource.class.getName() + ".NULL_ERROR_STREAM");
+        }
         loadDriver();
-        this.setURL(PROTOCOL + getDatabaseName() + ";create=true");
+        if (inMemory) {
+            memoryDatabaseName = uniqueDatabaseName ? getDatabaseName() + '_' + getProcessId() + '_'
+                                                      + instanceCounter.incrementAndGet() : getDatabaseName();
+            this.setURL(MEMORY_PROTOCOL + memoryDatabaseName + ";create=true");
+        }
+        else {
+            this.setURL(PROTOCOL + getDatabaseName() + ";create=true");
+        }
         this.setDriver(EMBEDDED_DRIVER);
         this.setUser("user1");
         this.setPassword("user1");
@@ -117,22 +179,58 @@ public class DerbyDataSource
     @Override
     public void doStopService()
             throws ServiceException {
+        closePool();
+        if (inMemory) {
+            // nothing can use an in-memory database after its Nucleus stopped
+            drop(memoryDatabaseName);
+            return;
+        }
         // Add a shutdown hook to shut down derby.
         // We can't shutdown now because not all dynamo services
         // that depend on us are guaranteed to be stopped when this method is
         // invoked.
-        if (!addedShutdownHook) {
-            addShutdownHook(getDatabaseName());
+        addShutdownHook(getDatabaseName());
+    }
+
+    /**
+     * Drops an in-memory database, releasing its memory.
+     *
+     * @param name
+     */
+    private static void drop(String name) {
+        try {
+            DriverManager.getConnection(MEMORY_PROTOCOL + name + ";drop=true");
+        } catch (SQLException se) {
+            if ("08006".equals(se.getSQLState())) {
+                logger.debug("Dropped in-memory Derby database {}", name);
+            }
+            else {
+                logger.error("Derby did not drop in-memory database " + name, se);
+                logSQLException(se);
+            }
         }
     }
 
+    private static String getProcessId() {
+        // the name is pid@host on common JVMs
+        final String name = ManagementFactory.getRuntimeMXBean().getName();
+        final int at = name.indexOf('@');
+        return at > 0 ? name.substring(0, at) : Integer.toHexString(name.hashCode());
+    }
+
     /**
-     * Adds a shutdown hook to shutdown Derby when the JVM exits.
+     * Adds a shutdown hook to shutdown Derby when the JVM exits, unless one was
+     * added for the database already.
      *
      * @param pDBName
      */
-    private void addShutdownHook(String pDBName) {
+    private static void addShutdownHook(String pDBName) {
         final String name = pDBName;
+        synchronized (hookedDatabases) {
+            if (!hookedDatabases.add(name)) {
+                return;
+            }
+        }
         Runtime.getRuntime().addShutdownHook(
                 new Thread() {
                     public void run() {
@@ -140,7 +238,6 @@ public class DerbyDataSource
                     }
                 }
         );
-        addedShutdownHook = true;
     }
 
     /**
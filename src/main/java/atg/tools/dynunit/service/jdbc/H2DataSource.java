@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.service.jdbc;
+
+import atg.nucleus.ServiceException;
+import atg.tools.dynunit.test.util.DBUtils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * This datasource is used for testing. It starts up an embedded H2 database
+ * automatically. The database will be named "testdb" by default. If you need
+ * to name it something else set the "databaseName" property on this component.
+ * <p/>
+ * In the default "mem" mode the database is kept in memory until the JVM exits
+ * or it is shut down. In "file" mode the databaseName is the path of the
+ * database files, so the database survives restarts. Set "mvcc" to use multi
+ * version concurrency instead of table level locks.
+ */
+public class H2DataSource
+        extends InitializingDataSourceBase {
+
+    public static final String MODE_MEMORY = "mem";
+
+    public static final String MODE_FILE = "file";
+
+    private String mode = MODE_MEMORY;
+
+    private boolean mvcc;
+
+    // Don't shutdown H2 by default. It might stop before other components
+    // that require it.
+    private boolean shutdownH2;
+
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets where the database is kept, either "mem" or "file". Default: mem
+     *
+     * @param mode
+     */
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public boolean isMvcc() {
+        return mvcc;
+    }
+
+    /**
+     * Sets whether the database uses multi version concurrency. Default: false
+     *
+     * @param mvcc
+     */
+    public void setMvcc(boolean mvcc) {
+        this.mvcc = mvcc;
+    }
+
+    /**
+     * Returns true if the "SHUTDOWN" sql statement should be sent to H2
+     * when doStopService is called on this component.
+     *
+     * @return
+     */
+    public boolean isShutdownH2() {
+        return shutdownH2;
+    }
+
+    /**
+     * Sets the boolean which controls if H2 should be shutdown when doStopService
+     * is called on this component.
+     *
+     * @param shutdownH2
+     */
+    public void setShutdownH2(boolean shutdownH2) {
+        this.shutdownH2 = shutdownH2;
+    }
+
+    // --------------------------
+
+    /**
+     * Starts this DataSource. The database actually is started on the first
+     * call to getConnection().
+     */
+    @Override
+    public void doStartService()
+            throws ServiceException {
+        Properties props;
+        if (MODE_MEMORY.equals(mode)) {
+            props = DBUtils.getH2InMemoryDBConnection(getDatabaseName(), mvcc);
+        }
+        else if (MODE_FILE.equals(mode)) {
+            props = DBUtils.getH2FileDBConnection(getDatabaseName(), mvcc);
+        }
+        else {
+            throw new ServiceException("Unknown H2 mode " + mode + ", expected " + MODE_MEMORY + " or " + MODE_FILE);
+        }
+        // set our properties from this object
+        this.setDriver(props.getProperty("driver"));
+        this.setURL(props.getProperty("URL"));
+        this.setUser(props.getProperty("user"));
+        this.setPassword(props.getProperty("password"));
+        vlogInfo("H2 DataSource starting with properties " + props.toString());
+        super.doStartService();
+    }
+
+    // --------------------------
+
+    /**
+     * Called when Nucleus is shutdown. Issues the "SHUTDOWN" command to the
+     * H2 database if shutdownH2 is set.
+     */
+    @Override
+    public void doStopService() {
+        if (shutdownH2) {
+            vlogInfo("H2 DataSource shutting down.");
+            Connection connection = null;
+            try {
+                connection = this.getConnection();
+                Statement st = connection.createStatement();
+                st.execute("SHUTDOWN");
+            } catch ( SQLException e ) {
+                vlogError(e.getMessage());
+            } finally {
+                if ( connection != null ) {
+                    try {
+                        connection.close();
+                    } catch ( SQLException e ) {
+                        // eat it
+                    }
+                }
+            }
+        }
+        closePool();
+    }
+}
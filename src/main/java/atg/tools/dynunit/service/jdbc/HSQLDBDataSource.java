@@ -18,6 +18,7 @@ package atg.tools.dynunit.service.jdbc;
 
 import atg.nucleus.ServiceException;
 import atg.tools.dynunit.test.util.DBUtils;
+import atg.tools.dynunit.test.util.DatabaseSnapshot;
 
 import java.sql.Connection;
 import java.sql.SQLException;
@@ -43,6 +44,8 @@ public class HSQLDBDataSource
     // that require it.
     private boolean shutdownHSQLDB;
 
+    private DatabaseSnapshot snapshot;
+
     /**
      * Returns true if the "SHUTDOWN" sql statement should be sent to HSQLDB
      * when doStopService is called on this component.
@@ -63,6 +66,59 @@ public class HSQLDBDataSource
         this.shutdownHSQLDB = shutdownHSQLDB;
     }
 
+    /**
+     * Captures the current contents of the database, typically right after the repositories
+     * using it have created their tables and imported their data. The snapshot is kept by this
+     * component for {@link #restoreSnapshot()}.
+     *
+     * @param excludedTables
+     *         tables which should be left alone when restoring, e.g. das_id_generator.
+     *
+     * @return the snapshot.
+     *
+     * @throws SQLException
+     *         if the database could not be read.
+     */
+    public DatabaseSnapshot takeSnapshot(String... excludedTables)
+            throws SQLException {
+        Connection connection = getConnection();
+        if (connection == null) {
+            throw new SQLException("No connection available to take snapshot");
+        }
+        try {
+            snapshot = DatabaseSnapshot.capture(connection, excludedTables);
+            return snapshot;
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Restores the database to the state captured by the last call to
+     * {@link #takeSnapshot(String...)}. Only tables changed since then are reloaded.
+     *
+     * @return {@code false} if no snapshot has been taken yet.
+     *
+     * @throws SQLException
+     *         if the database could not be restored.
+     */
+    public boolean restoreSnapshot()
+            throws SQLException {
+        if (snapshot == null) {
+            return false;
+        }
+        Connection connection = getConnection();
+        if (connection == null) {
+            throw new SQLException("No connection available to restore snapshot");
+        }
+        try {
+            snapshot.restore(connection);
+            return true;
+        } finally {
+            connection.close();
+        }
+    }
+
     // --------------------------
 
     /**
@@ -110,6 +166,6 @@ public class HSQLDBDataSource
                 }
             }
         }
-
+        closePool();
     }
 }
@@ -18,14 +18,32 @@ package atg.tools.dynunit.service.jdbc;
 
 
 import atg.service.jdbc.FakeXADataSource;
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.PoolableConnectionFactory;
+import org.apache.commons.dbcp.PoolingDataSource;
 import org.apache.commons.lang3.reflect.MethodUtils;
+import org.apache.commons.pool.impl.GenericObjectPool;
 import org.jetbrains.annotations.Nullable;
 
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base class for InitializingDataSource's common functionality.
+ * <p/>
+ * By default every call to {@link #getConnection()} opens a new driver manager connection.
+ * With {@code pooled} set, connections are kept in a pool of {@code minPoolSize} to
+ * {@code maxPoolSize} connections instead, and closing a connection returns it to the pool.
+ * The pool is created on the first call to {@link #getConnection()} and closed by
+ * {@link #closePool()}.
+ * <p/>
+ * Only callers of {@link #getConnection()} itself, such as {@code RepositoryManager} and
+ * {@code DBUtils}, use the pool. Repositories get their connections through a JTDataSource,
+ * which uses the XA connections of {@link FakeXADataSource}; those are still opened without the
+ * pool, so pooling does not save repositories any connection setup.
  *
  * @author adamb
  * @version $Id:$
@@ -34,8 +52,33 @@ import java.sql.Connection;
 public class InitializingDataSourceBase
         extends FakeXADataSource {
 
+    // looked up once, FakeXADataSource does not expose its driver manager connections
+    private volatile Method driverManagerConnectionMethod;
+
     private String databaseName = "testdb";
 
+    private boolean pooled = false;
+
+    private int minPoolSize = 0;
+
+    private int maxPoolSize = 10;
+
+    private long maxWait = 30000;
+
+    private boolean validateOnBorrow = true;
+
+    private String validationQuery;
+
+    private GenericObjectPool pool;
+
+    private PoolingDataSource poolingDataSource;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+
+    private final AtomicLong borrowNanos = new AtomicLong();
+
+    private final AtomicLong maxBorrowNanos = new AtomicLong();
+
     /**
      * Returns the name of the database to use with HSQLDB. The default name is
      * "testdb"
@@ -56,16 +99,127 @@ public class InitializingDataSourceBase
         this.databaseName = databaseName;
     }
 
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * Sets whether connections are pooled instead of opened for every call to
+     * {@link #getConnection()}. Default: false
+     */
+    public void setPooled(final boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    public int getMinPoolSize() {
+        return minPoolSize;
+    }
+
+    /**
+     * Sets the number of idle connections the pool keeps open. Default: 0
+     */
+    public void setMinPoolSize(final int minPoolSize) {
+        this.minPoolSize = minPoolSize;
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * Sets the maximum number of connections of the pool. Default: 10
+     */
+    public void setMaxPoolSize(final int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Sets the milliseconds to wait for a connection when all are in use, or -1 to wait
+     * indefinitely. Default: 30000
+     */
+    public void setMaxWait(final long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public boolean isValidateOnBorrow() {
+        return validateOnBorrow;
+    }
+
+    /**
+     * Sets whether pooled connections are validated before they are handed out. Invalid
+     * connections are discarded. Default: true
+     */
+    public void setValidateOnBorrow(final boolean validateOnBorrow) {
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
+    public String getValidationQuery() {
+        return validationQuery;
+    }
+
+    /**
+     * Sets the query used to validate pooled connections. Without one, connections are only
+     * checked for being closed.
+     */
+    public void setValidationQuery(final String validationQuery) {
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * Returns the number of pooled connections currently in use.
+     */
+    public synchronized int getActiveConnections() {
+        return pool == null ? 0 : pool.getNumActive();
+    }
+
+    /**
+     * Returns the number of pooled connections currently idle.
+     */
+    public synchronized int getIdleConnections() {
+        return pool == null ? 0 : pool.getNumIdle();
+    }
+
+    /**
+     * Returns the number of connections handed out by {@link #getConnection()}.
+     */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * Returns the average time {@link #getConnection()} took, in milliseconds.
+     */
+    public double getAverageBorrowMillis() {
+        final long count = borrowCount.get();
+        return count == 0 ? 0 : borrowNanos.get() / 1000000.0 / count;
+    }
+
+    /**
+     * Returns the longest time {@link #getConnection()} took, in milliseconds.
+     */
+    public double getMaxBorrowMillis() {
+        return maxBorrowNanos.get() / 1000000.0;
+    }
+
     /**
      * Get the driver manager connection used in this data source. This method is provided because the normal method
-     * for accessing the database connection is package-local.
+     * for accessing the database connection is package-local. In pooled mode the connection is
+     * borrowed from the pool and returned to it when closed.
      *
      * @return underlying database connection object or {@code null} if it couldn't be found.
      */
     @Nullable
     public Connection getConnection() {
+        final long start = System.nanoTime();
+        Connection connection = null;
         try {
-            return (Connection) MethodUtils.invokeMethod(this, "getDriverManagerConnection", null, null);
+            connection = isPooled() ? getPoolingDataSource().getConnection() : openDriverManagerConnection();
+        } catch (SQLException e) {
+            logError(e);
         } catch (NoSuchMethodException e) {
             logError(e);
         } catch (IllegalAccessException e) {
@@ -73,7 +227,92 @@ public class InitializingDataSourceBase
         } catch (InvocationTargetException e) {
             logError(e);
         }
-        return null;
+        if (connection != null) {
+            recordBorrow(System.nanoTime() - start);
+        }
+        return connection;
+    }
+
+    /**
+     * Closes all idle pooled connections and discards the pool. Connections still in use are
+     * closed when they are returned. The next call to {@link #getConnection()} creates a new
+     * pool.
+     */
+    public synchronized void closePool() {
+        if (pool == null) {
+            return;
+        }
+        try {
+            pool.close();
+        } catch (Exception e) {
+            logError(e);
+        }
+        pool = null;
+        poolingDataSource = null;
+    }
+
+    private synchronized PoolingDataSource getPoolingDataSource()
+            throws SQLException {
+        if (poolingDataSource == null) {
+            final GenericObjectPool connectionPool = new GenericObjectPool(null);
+            connectionPool.setMaxActive(maxPoolSize);
+            connectionPool.setMaxIdle(maxPoolSize);
+            connectionPool.setMinIdle(minPoolSize);
+            connectionPool.setMaxWait(maxWait);
+            connectionPool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+            connectionPool.setTestOnBorrow(validateOnBorrow);
+            // registers itself as the pool's factory
+            new PoolableConnectionFactory(
+                    new ConnectionFactory() {
+                        @Override
+                        public Connection createConnection()
+                                throws SQLException {
+                            try {
+                                return openDriverManagerConnection();
+                            } catch (InvocationTargetException e) {
+                                if (e.getCause() instanceof SQLException) {
+                                    throw (SQLException) e.getCause();
+                                }
+                                throw new SQLException(e.getCause());
+                            } catch (Exception e) {
+                                throw new SQLException(e);
+                            }
+                        }
+                    }, connectionPool, null, validationQuery, false, true
+            );
+            try {
+                for (int i = 0; i < minPoolSize; i++) {
+                    connectionPool.addObject();
+                }
+            } catch (Exception e) {
+                throw new SQLException("Unable to fill connection pool", e);
+            }
+            pool = connectionPool;
+            poolingDataSource = new PoolingDataSource(connectionPool);
+        }
+        return poolingDataSource;
+    }
+
+    private Connection openDriverManagerConnection()
+            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        Method method = driverManagerConnectionMethod;
+        if (method == null) {
+            method = MethodUtils.getAccessibleMethod(getClass(), "getDriverManagerConnection");
+            if (method == null) {
+                throw new NoSuchMethodException("getDriverManagerConnection");
+            }
+            driverManagerConnectionMethod = method;
+        }
+        return (Connection) method.invoke(this);
+    }
+
+    private void recordBorrow(long nanos) {
+        borrowCount.incrementAndGet();
+        borrowNanos.addAndGet(nanos);
+        long max;
+        do {
+            max = maxBorrowNanos.get();
+        } while (nanos > max && !maxBorrowNanos.compareAndSet(max, nanos));
     }
 
 }
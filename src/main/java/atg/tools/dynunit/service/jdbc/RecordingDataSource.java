@@ -0,0 +1,323 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.service.jdbc;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DataSource which records every statement executed through it in a {@link SQLRecorder}. Put
+ * it in front of the data source a repository uses, e.g. the JTDataSource:
+ * <pre>
+ * $class=atg.tools.dynunit.service.jdbc.RecordingDataSource
+ * dataSource=/atg/dynamo/service/jdbc/JTDataSource
+ * </pre>
+ * and point the repository's dataSource at it. Connections, statements and result sets are
+ * wrapped in dynamic proxies which pass every call on, so the wrapped data source behaves as
+ * before, including its transaction handling.
+ *
+ * @see atg.tools.dynunit.test.QueryBudgetRule
+ */
+public class RecordingDataSource
+        implements DataSource {
+
+    private final SQLRecorder recorder = new SQLRecorder();
+
+    private DataSource dataSource;
+
+    public RecordingDataSource() {
+    }
+
+    public RecordingDataSource(@NotNull DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Sets the data source whose statements are recorded.
+     */
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @NotNull
+    public SQLRecorder getRecorder() {
+        return recorder;
+    }
+
+    @Override
+    public Connection getConnection()
+            throws SQLException {
+        return wrap(dataSource.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password)
+            throws SQLException {
+        return wrap(dataSource.getConnection(username, password));
+    }
+
+    @Override
+    public PrintWriter getLogWriter()
+            throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out)
+            throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds)
+            throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout()
+            throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    // part of DataSource since Java 7
+    public java.util.logging.Logger getParentLogger()
+            throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface)
+            throws SQLException {
+        return iface.isInstance(dataSource) ? iface.cast(dataSource) : dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface)
+            throws SQLException {
+        return iface.isInstance(dataSource) || dataSource.isWrapperFor(iface);
+    }
+
+    private Connection wrap(Connection pConnection) {
+        return proxy(Connection.class, new ConnectionHandler(pConnection));
+    }
+
+    private static <T> T proxy(Class<T> pInterface, InvocationHandler pHandler) {
+        return pInterface.cast(
+                Proxy.newProxyInstance(
+                        RecordingDataSource.class.getClassLoader(), new Class<?>[]{ pInterface }, pHandler
+                )
+        );
+    }
+
+    private static Object invoke(Object pTarget, Method pMethod, Object[] pArgs)
+            throws Throwable {
+        try {
+            return pMethod.invoke(pTarget, pArgs);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class ConnectionHandler
+            implements InvocationHandler {
+
+        private final Connection connection;
+
+        ConnectionHandler(Connection pConnection) {
+            connection = pConnection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            final String name = method.getName();
+            final Object result = RecordingDataSource.invoke(connection, method, args);
+            if ("createStatement".equals(name)) {
+                return proxy(Statement.class, new StatementHandler((Connection) proxy, (Statement) result, null));
+            }
+            if ("prepareStatement".equals(name)) {
+                return proxy(
+                        PreparedStatement.class,
+                        new StatementHandler((Connection) proxy, (Statement) result, (String) args[0])
+                );
+            }
+            if ("prepareCall".equals(name)) {
+                return proxy(
+                        CallableStatement.class,
+                        new StatementHandler((Connection) proxy, (Statement) result, (String) args[0])
+                );
+            }
+            return result;
+        }
+    }
+
+    private class StatementHandler
+            implements InvocationHandler {
+
+        private final Connection connection;
+
+        private final Statement statement;
+
+        @Nullable
+        private final String preparedSql;
+
+        private final List<Object> parameters = new ArrayList<Object>();
+
+        private final List<String> batch = new ArrayList<String>();
+
+        private int batchSize;
+
+        @Nullable
+        private SQLRecorder.RecordedStatement last;
+
+        StatementHandler(Connection pConnection, Statement pStatement, @Nullable String pPreparedSql) {
+            connection = pConnection;
+            statement = pStatement;
+            preparedSql = pPreparedSql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            final String name = method.getName();
+            if ("getConnection".equals(name)) {
+                return connection;
+            }
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer
+                && method.getParameterTypes()[0] == int.class) {
+                setParameter((Integer) args[0], "setNull".equals(name) ? null : args[1]);
+            }
+            else if ("clearParameters".equals(name)) {
+                parameters.clear();
+            }
+            else if ("addBatch".equals(name)) {
+                if (args != null && args.length == 1) {
+                    batch.add((String) args[0]);
+                }
+                batchSize++;
+            }
+            else if ("clearBatch".equals(name)) {
+                batch.clear();
+                batchSize = 0;
+            }
+            else if (name.startsWith("execute")) {
+                return execute(method, args);
+            }
+            else if ("getResultSet".equals(name)) {
+                return wrapResultSet(RecordingDataSource.invoke(statement, method, args));
+            }
+            return RecordingDataSource.invoke(statement, method, args);
+        }
+
+        private Object execute(Method method, Object[] args)
+                throws Throwable {
+            final String name = method.getName();
+            final long start = System.nanoTime();
+            final Object result = RecordingDataSource.invoke(statement, method, args);
+            final long nanos = System.nanoTime() - start;
+            if ("executeBatch".equals(name)) {
+                long rows = 0;
+                for (int count : (int[]) result) {
+                    rows += Math.max(count, 0);
+                }
+                final String sql = preparedSql != null ? preparedSql : join(batch);
+                recorder.record(sql, parameters, Math.max(batchSize, 1), nanos, rows);
+                batch.clear();
+                batchSize = 0;
+                return result;
+            }
+            final String sql = args != null && args.length > 0 && args[0] instanceof String
+                               ? (String) args[0]
+                               : preparedSql;
+            if (sql == null) {
+                return result;
+            }
+            final List<Object> bound = preparedSql != null ? parameters : Collections.emptyList();
+            if (result instanceof ResultSet) {
+                last = recorder.record(sql, bound, 1, nanos, 0);
+                return wrapResultSet(result);
+            }
+            long rows = result instanceof Integer ? (Integer) result : 0;
+            if (result instanceof Boolean && !(Boolean) result) {
+                rows = Math.max(statement.getUpdateCount(), 0);
+            }
+            last = recorder.record(sql, bound, 1, nanos, rows);
+            return result;
+        }
+
+        private Object wrapResultSet(Object pResultSet) {
+            if (!(pResultSet instanceof ResultSet)) {
+                return pResultSet;
+            }
+            final ResultSet resultSet = (ResultSet) pResultSet;
+            final SQLRecorder.RecordedStatement record = last;
+            return proxy(
+                    ResultSet.class, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args)
+                                throws Throwable {
+                            final Object result = RecordingDataSource.invoke(resultSet, method, args);
+                            if (record != null && "next".equals(method.getName()) && Boolean.TRUE.equals(result)) {
+                                record.addRow();
+                            }
+                            return result;
+                        }
+                    }
+            );
+        }
+
+        private void setParameter(int pIndex, @Nullable Object pValue) {
+            while (parameters.size() < pIndex) {
+                parameters.add(null);
+            }
+            parameters.set(pIndex - 1, pValue);
+        }
+    }
+
+    private static String join(List<String> pStatements) {
+        final StringBuilder sql = new StringBuilder();
+        for (String statement : pStatements) {
+            if (sql.length() > 0) {
+                sql.append("; ");
+            }
+            sql.append(statement);
+        }
+        return sql.toString();
+    }
+}
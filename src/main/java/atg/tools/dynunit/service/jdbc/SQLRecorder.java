@@ -0,0 +1,377 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.service.jdbc;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects the statements executed through a {@link RecordingDataSource}, with their bind
+ * parameters, execution time and row counts, so tests can assert query budgets such as
+ * "at most 3 SELECTs on dps_user":
+ * <pre>
+ * recorder.clear();
+ * profileTools.getProfile(id);
+ * recorder.assertAtMost(3, "SELECT", "dps_user");
+ * </pre>
+ * Statement types are the first keyword of the SQL, e.g. SELECT or UPDATE, and tables are those
+ * named after FROM, JOIN, INTO or UPDATE, both compared ignoring case. All methods may be called
+ * concurrently.
+ */
+public class SQLRecorder {
+
+    private static final Pattern TABLE_CLAUSE = Pattern.compile(
+            "\\b(?:from|join|into|update)\\s+(.+?)(?=\\b(?:where|set|values|on|using|group|order|having|union"
+            + "|inner|left|right|full|outer|cross|join|select)\\b|[()]|$)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL
+    );
+
+    private static final Set<String> WRITE_TYPES = new HashSet<String>(
+            Arrays.asList("INSERT", "UPDATE", "DELETE", "MERGE")
+    );
+
+    private final List<RecordedStatement> statements = new ArrayList<RecordedStatement>();
+
+    private final ThreadLocal<long[]> executedByThread = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private volatile boolean enabled = true;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets whether statements are recorded. Default: true
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Forgets all recorded statements, typically before each test.
+     */
+    public synchronized void clear() {
+        statements.clear();
+    }
+
+    /**
+     * Returns a copy of the statements recorded since the last {@link #clear()}, in execution
+     * order.
+     */
+    @NotNull
+    public synchronized List<RecordedStatement> getStatements() {
+        return new ArrayList<RecordedStatement>(statements);
+    }
+
+    /**
+     * Returns the recorded statements of the given type touching the given table.
+     *
+     * @param pType
+     *         statement type such as SELECT, or null for all types.
+     * @param pTable
+     *         table name, or null for all tables.
+     */
+    @NotNull
+    public synchronized List<RecordedStatement> getStatements(@Nullable String pType, @Nullable String pTable) {
+        final List<RecordedStatement> matching = new ArrayList<RecordedStatement>();
+        for (RecordedStatement statement : statements) {
+            if (statement.matches(pType, pTable)) {
+                matching.add(statement);
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Returns the number of recorded statements of the given type touching the given table.
+     *
+     * @see #getStatements(String, String)
+     */
+    public int count(@Nullable String pType, @Nullable String pTable) {
+        return getStatements(pType, pTable).size();
+    }
+
+    /**
+     * Fails if more than pMax statements of the given type touching the given table were
+     * recorded. The message lists the offending statements.
+     *
+     * @throws AssertionError
+     *         if the budget is exceeded.
+     */
+    public void assertAtMost(int pMax, @Nullable String pType, @Nullable String pTable) {
+        final List<RecordedStatement> matching = getStatements(pType, pTable);
+        if (matching.size() <= pMax) {
+            return;
+        }
+        final StringBuilder message = new StringBuilder("Expected at most ").append(pMax)
+                                                                             .append(' ')
+                                                                             .append(pType == null ? "statements" : pType)
+                                                                             .append(pTable == null ? "" : " on " + pTable)
+                                                                             .append(" but got ")
+                                                                             .append(matching.size())
+                                                                             .append(':');
+        for (RecordedStatement statement : matching) {
+            message.append("\n  ").append(statement);
+        }
+        throw new AssertionError(message.toString());
+    }
+
+    /**
+     * Returns the number of statements the current thread executed through this recorder's data
+     * source, including those executed while recording was disabled or before the last
+     * {@link #clear()}. Comparing the count before and after a call tells whether the call went
+     * to the database.
+     */
+    public long getExecutedByCurrentThread() {
+        return executedByThread.get()[0];
+    }
+
+    /**
+     * Returns one line per statement type and table with the number of statements, rows and
+     * total execution time, followed by the totals.
+     */
+    @NotNull
+    public String getSummary() {
+        final Map<String, long[]> groups = new TreeMap<String, long[]>();
+        final List<RecordedStatement> recorded = getStatements();
+        long totalNanos = 0;
+        for (RecordedStatement statement : recorded) {
+            totalNanos += statement.getNanos();
+            final Set<String> tables = statement.getTables().isEmpty()
+                                       ? Collections.singleton("-")
+                                       : statement.getTables();
+            for (String table : tables) {
+                final String key = statement.getType() + ' ' + table;
+                long[] group = groups.get(key);
+                if (group == null) {
+                    group = new long[3];
+                    groups.put(key, group);
+                }
+                group[0]++;
+                group[1] += statement.getRows();
+                group[2] += statement.getNanos();
+            }
+        }
+        final StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, long[]> group : groups.entrySet()) {
+            summary.append(
+                    String.format(
+                            "%-40s %6d statements %8d rows %10.3f ms%n",
+                            group.getKey(),
+                            group.getValue()[0],
+                            group.getValue()[1],
+                            group.getValue()[2] / 1000000.0
+                    )
+            );
+        }
+        summary.append(String.format("%d statements, %.3f ms", recorded.size(), totalNanos / 1000000.0));
+        return summary.toString();
+    }
+
+    /**
+     * Records an executed statement unless recording is disabled.
+     *
+     * @return the record, or null if recording is disabled.
+     */
+    @Nullable
+    RecordedStatement record(String pSql, List<Object> pParameters, int pBatchSize, long pNanos, long pRows) {
+        executedByThread.get()[0]++;
+        if (!enabled) {
+            return null;
+        }
+        final RecordedStatement statement = new RecordedStatement(pSql, pParameters, pBatchSize, pNanos, pRows);
+        synchronized (this) {
+            statements.add(statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Returns the lower case names of the tables written to by the recorded statements, e.g. to
+     * restore only those with {@link atg.tools.dynunit.test.util.DatabaseSnapshot}.
+     */
+    @NotNull
+    public synchronized Set<String> getWrittenTables() {
+        final Set<String> tables = new LinkedHashSet<String>();
+        for (RecordedStatement statement : statements) {
+            if (WRITE_TYPES.contains(statement.getType())) {
+                tables.addAll(statement.getTables());
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Returns the upper case first keyword of the statement.
+     */
+    @NotNull
+    static String getType(@NotNull String pSql) {
+        final String sql = pSql.trim();
+        int end = 0;
+        while (end < sql.length() && Character.isLetter(sql.charAt(end))) {
+            end++;
+        }
+        return sql.substring(0, end).toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the lower case names of the tables the statement reads or writes, without schema
+     * and quotes.
+     */
+    @NotNull
+    static Set<String> getTables(@NotNull String pSql) {
+        final Set<String> tables = new LinkedHashSet<String>();
+        final Matcher matcher = TABLE_CLAUSE.matcher(pSql);
+        while (matcher.find()) {
+            for (String reference : matcher.group(1).split(",")) {
+                final String[] words = reference.trim().split("\\s+");
+                if (words[0].length() == 0) {
+                    continue;
+                }
+                String name = words[0].replace("\"", "").replace("`", "");
+                name = name.substring(name.lastIndexOf('.') + 1);
+                if (name.length() > 0) {
+                    tables.add(name.toLowerCase(Locale.ENGLISH));
+                }
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * A single executed statement or batch.
+     */
+    public static class RecordedStatement {
+
+        private final String sql;
+
+        private final String type;
+
+        private final Set<String> tables;
+
+        private final List<Object> parameters;
+
+        private final int batchSize;
+
+        private final long nanos;
+
+        private final AtomicLong rows;
+
+        private final String thread = Thread.currentThread().getName();
+
+        RecordedStatement(String pSql, List<Object> pParameters, int pBatchSize, long pNanos, long pRows) {
+            sql = pSql;
+            type = SQLRecorder.getType(pSql);
+            tables = SQLRecorder.getTables(pSql);
+            parameters = Collections.unmodifiableList(new ArrayList<Object>(pParameters));
+            batchSize = pBatchSize;
+            nanos = pNanos;
+            rows = new AtomicLong(pRows);
+        }
+
+        @NotNull
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * Returns the upper case first keyword, e.g. SELECT.
+         */
+        @NotNull
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * Returns the lower case names of the tables read or written.
+         */
+        @NotNull
+        public Set<String> getTables() {
+            return Collections.unmodifiableSet(tables);
+        }
+
+        /**
+         * Returns the bind parameters by position, starting with parameter 1 at index 0. Unset
+         * parameters are null. For batches, the parameters of the last batch entry.
+         */
+        @NotNull
+        public List<Object> getParameters() {
+            return parameters;
+        }
+
+        /**
+         * Returns the number of batch entries, or 1 for a single execution.
+         */
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        /**
+         * Returns the execution time in nanoseconds, not including reading the results.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Returns the rows read so far for queries, or the update count otherwise.
+         */
+        public long getRows() {
+            return rows.get();
+        }
+
+        @NotNull
+        public String getThread() {
+            return thread;
+        }
+
+        void addRow() {
+            rows.incrementAndGet();
+        }
+
+        boolean matches(@Nullable String pType, @Nullable String pTable) {
+            return (pType == null || type.equalsIgnoreCase(pType))
+                   && (pTable == null || tables.contains(pTable.toLowerCase(Locale.ENGLISH)));
+        }
+
+        @Override
+        public String toString() {
+            return sql + (parameters.isEmpty() ? "" : " " + parameters)
+                   + (batchSize == 1 ? "" : " x" + batchSize)
+                   + " [" + rows.get() + " rows, " + String.format("%.3f", nanos / 1000000.0) + " ms]";
+        }
+    }
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.service.jdbc;
+
+import atg.tools.dynunit.test.util.DBUtils;
+import atg.tools.dynunit.test.util.LatencyHistogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a {@link SQLTrace} against a database and measures the latency distribution of each
+ * distinct statement, to compare database engines or to catch regressions in the schema, e.g.
+ * in the DDL {@link atg.tools.dynunit.adapter.gsa.InitializingGSA} generates:
+ * <pre>
+ * SQLReplay replay = new SQLReplay(SQLTrace.of(recorder));
+ * replay.setThreads(4);
+ * Map&lt;String, SQLReplay.Result&gt; results = replay.compare(SQLReplay.getEmbeddedDatabases());
+ * logger.info(SQLReplay.report(results));
+ * </pre>
+ * First the {@link #setSchema(List) schema} statements and the DDL statements of the trace are
+ * executed once; then every thread executes the remaining statements of the trace in order,
+ * {@link #getIterations() iterations} times after {@link #getWarmUpIterations() warm-up}
+ * iterations which are not measured. Every statement runs in a transaction of its own, which
+ * is rolled back so that all statements see the data as set up, unless
+ * {@link #setRollback(boolean) rollback} is switched off. Threads thus only hold locks while a
+ * statement runs, and the think time between statements is spent outside any transaction, so
+ * the latencies measure the engine rather than waits for other threads' transactions. The
+ * measured latency includes the end of the transaction. Failures are counted per statement and
+ * do not stop the replay.
+ */
+public class SQLReplay {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final List<String> DDL = Arrays.asList("CREATE", "ALTER", "DROP", "TRUNCATE");
+
+    private final SQLTrace trace;
+
+    private List<String> schema = Collections.emptyList();
+
+    private int threads = 1;
+
+    private int iterations = 10;
+
+    private int warmUpIterations = 2;
+
+    private long thinkTimeMillis = 0;
+
+    private boolean rollback = true;
+
+    public SQLReplay(@NotNull SQLTrace pTrace) {
+        trace = pTrace;
+    }
+
+    @NotNull
+    public List<String> getSchema() {
+        return schema;
+    }
+
+    /**
+     * Sets statements creating the schema the trace runs against, executed before the DDL of
+     * the trace itself. Default: none
+     */
+    public void setSchema(@NotNull List<String> pSchema) {
+        schema = new ArrayList<String>(pSchema);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads replaying the trace at the same time. Default: 1
+     */
+    public void setThreads(int pThreads) {
+        threads = pThreads;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Sets how often each thread replays the trace while measuring. Default: 10
+     */
+    public void setIterations(int pIterations) {
+        iterations = pIterations;
+    }
+
+    public int getWarmUpIterations() {
+        return warmUpIterations;
+    }
+
+    /**
+     * Sets how often each thread replays the trace before measuring. Default: 2
+     */
+    public void setWarmUpIterations(int pWarmUpIterations) {
+        warmUpIterations = pWarmUpIterations;
+    }
+
+    public long getThinkTimeMillis() {
+        return thinkTimeMillis;
+    }
+
+    /**
+     * Sets the pause of a thread between two statements. Default: 0
+     */
+    public void setThinkTimeMillis(long pThinkTimeMillis) {
+        thinkTimeMillis = pThinkTimeMillis;
+    }
+
+    public boolean isRollback() {
+        return rollback;
+    }
+
+    /**
+     * Sets whether each statement is rolled back instead of committed. Default: true
+     */
+    public void setRollback(boolean pRollback) {
+        rollback = pRollback;
+    }
+
+    // -----------------------------
+
+    /**
+     * Returns connection properties of fresh in-memory HSQLDB, H2 and Derby databases, keyed by
+     * engine name.
+     */
+    @NotNull
+    public static Map<String, Properties> getEmbeddedDatabases() {
+        final String name = "replay" + System.nanoTime();
+        final Map<String, Properties> databases = new LinkedHashMap<String, Properties>();
+        databases.put("HSQLDB", DBUtils.getHSQLDBInMemoryDBConnection(name));
+        databases.put("H2", DBUtils.getH2InMemoryDBConnection(name));
+        databases.put("Derby", DBUtils.getDerbyInMemoryDBConnection(name));
+        return databases;
+    }
+
+    /**
+     * Replays the trace against each database, one after the other. Each database is shut down
+     * after its replay.
+     *
+     * @param pDatabases
+     *         connection properties as accepted by {@link DBUtils#DBUtils(Properties)}, keyed by
+     *         a name for the report.
+     *
+     * @throws Exception
+     *         if a database cannot be started.
+     */
+    @NotNull
+    public Map<String, Result> compare(@NotNull Map<String, Properties> pDatabases)
+            throws Exception {
+        final Map<String, Result> results = new LinkedHashMap<String, Result>();
+        for (Map.Entry<String, Properties> database : pDatabases.entrySet()) {
+            final Properties properties = database.getValue();
+            final DBUtils db = new DBUtils(
+                    properties.getProperty("URL"),
+                    properties.getProperty("driver"),
+                    properties.getProperty("user"),
+                    properties.getProperty("password"),
+                    threads + 1
+            );
+            try {
+                results.put(database.getKey(), replay(db.getDataSource()));
+            } finally {
+                db.shutdown();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Sets up the schema and replays the trace against the data source, which must allow one
+     * connection per thread.
+     *
+     * @throws SQLException
+     *         if a connection cannot be opened.
+     * @throws InterruptedException
+     *         if interrupted while waiting for the threads.
+     */
+    @NotNull
+    public Result replay(@NotNull DataSource pDataSource)
+            throws SQLException, InterruptedException {
+        final List<String> setup = new ArrayList<String>(schema);
+        final List<SQLTrace.Entry> statements = new ArrayList<SQLTrace.Entry>();
+        for (SQLTrace.Entry entry : trace.getEntries()) {
+            if (DDL.contains(entry.getType())) {
+                setup.add(entry.getSql());
+            } else {
+                statements.add(entry);
+            }
+        }
+        final Result result = new Result();
+        final Connection connection = pDataSource.getConnection();
+        try {
+            final Statement statement = connection.createStatement();
+            for (String sql : setup) {
+                try {
+                    statement.execute(sql);
+                } catch (SQLException e) {
+                    result.setupErrors++;
+                    logger.warn("Setup statement failed: {}: {}", sql, e.getMessage());
+                }
+            }
+            statement.close();
+        } finally {
+            connection.close();
+        }
+
+        final CountDownLatch done = new CountDownLatch(threads);
+        final List<Replayer> replayers = new ArrayList<Replayer>(threads);
+        for (int i = 0; i < threads; i++) {
+            final Replayer replayer = new Replayer(pDataSource, statements, done);
+            replayers.add(replayer);
+            final Thread thread = new Thread(replayer, "SQLReplay-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        final long start = System.nanoTime();
+        done.await();
+        result.elapsedNanos = System.nanoTime() - start;
+        for (Replayer replayer : replayers) {
+            if (replayer.failure != null) {
+                throw replayer.failure;
+            }
+            for (Map.Entry<String, Counts> counts : replayer.counts.entrySet()) {
+                result.get(counts.getKey()).add(counts.getValue());
+            }
+        }
+        logger.info(
+                "Replayed {} statements {} times on {} threads in {} ms",
+                statements.size(), iterations, threads, TimeUnit.NANOSECONDS.toMillis(result.elapsedNanos)
+        );
+        return result;
+    }
+
+    /**
+     * Formats the p50/p99 latencies in milliseconds of each statement for each database side
+     * by side.
+     */
+    @NotNull
+    public static String report(@NotNull Map<String, Result> pResults) {
+        final StringBuilder report = new StringBuilder(String.format("%-60s", "statement"));
+        final List<String> statements = new ArrayList<String>();
+        for (Map.Entry<String, Result> result : pResults.entrySet()) {
+            report.append(String.format(" %21s", result.getKey() + " p50/p99 ms"));
+            for (String sql : result.getValue().getStatements()) {
+                if (!statements.contains(sql)) {
+                    statements.add(sql);
+                }
+            }
+        }
+        report.append('\n');
+        for (String sql : statements) {
+            report.append(String.format("%-60s", abbreviate(sql, 60)));
+            for (Result result : pResults.values()) {
+                final LatencyHistogram latencies = result.getLatencies(sql);
+                report.append(
+                        String.format(
+                                " %10.3f/%10.3f",
+                                millis(latencies.getValueAtPercentile(50)),
+                                millis(latencies.getValueAtPercentile(99))
+                        )
+                );
+            }
+            report.append('\n');
+        }
+        return report.toString();
+    }
+
+    // -----------------------------
+
+    private static String abbreviate(String pSql, int pLength) {
+        final String sql = pSql.replaceAll("\\s+", " ").trim();
+        return sql.length() <= pLength ? sql : sql.substring(0, pLength - 3) + "...";
+    }
+
+    private static double millis(long pNanos) {
+        return pNanos / 1000000.0;
+    }
+
+    /**
+     * Binds the parameters, converting them to the declared parameter types where the driver
+     * reports them.
+     */
+    private static void bind(PreparedStatement pStatement, List<String> pParameters)
+            throws SQLException {
+        int[] types = null;
+        try {
+            final int count = pStatement.getParameterMetaData().getParameterCount();
+            types = new int[count];
+            for (int i = 0; i < count; i++) {
+                types[i] = pStatement.getParameterMetaData().getParameterType(i + 1);
+            }
+        } catch (SQLException e) {
+            logger.trace("No parameter types: {}", e.getMessage());
+        }
+        for (int i = 0; i < pParameters.size(); i++) {
+            final int type = types == null || i >= types.length ? Types.VARCHAR : types[i];
+            if (pParameters.get(i) == null) {
+                pStatement.setNull(i + 1, type);
+            } else {
+                pStatement.setObject(i + 1, pParameters.get(i), type);
+            }
+        }
+    }
+
+    /**
+     * Latencies and failures of a statement.
+     */
+    private static class Counts {
+
+        final LatencyHistogram latencies = new LatencyHistogram();
+
+        long errors;
+
+        void add(Counts pOther) {
+            latencies.add(pOther.latencies);
+            errors += pOther.errors;
+        }
+    }
+
+    private class Replayer
+            implements Runnable {
+
+        private final DataSource dataSource;
+
+        private final List<SQLTrace.Entry> statements;
+
+        private final CountDownLatch done;
+
+        private final Map<String, Counts> counts = new LinkedHashMap<String, Counts>();
+
+        private SQLException failure;
+
+        Replayer(DataSource pDataSource, List<SQLTrace.Entry> pStatements, CountDownLatch pDone) {
+            dataSource = pDataSource;
+            statements = pStatements;
+            done = pDone;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Connection connection = dataSource.getConnection();
+                try {
+                    connection.setAutoCommit(false);
+                    for (int i = 0; i < warmUpIterations + iterations; i++) {
+                        iterate(connection, i >= warmUpIterations);
+                    }
+                } finally {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                logger.debug("Interrupted");
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void iterate(Connection pConnection, boolean pMeasured)
+                throws SQLException, InterruptedException {
+            for (SQLTrace.Entry entry : statements) {
+                Counts statementCounts = counts.get(entry.getSql());
+                if (statementCounts == null) {
+                    statementCounts = new Counts();
+                    counts.put(entry.getSql(), statementCounts);
+                }
+                final long start = System.nanoTime();
+                try {
+                    final PreparedStatement statement = pConnection.prepareStatement(entry.getSql());
+                    try {
+                        bind(statement, entry.getParameters());
+                        if (statement.execute()) {
+                            final ResultSet resultSet = statement.getResultSet();
+                            while (resultSet.next()) {
+                                // fetch all rows, as the application would
+                            }
+                            resultSet.close();
+                        }
+                    } finally {
+                        statement.close();
+                    }
+                    // the statement's own transaction, so no thread holds locks across statements
+                    if (rollback) {
+                        pConnection.rollback();
+                    } else {
+                        pConnection.commit();
+                    }
+                    if (pMeasured) {
+                        statementCounts.latencies.record(System.nanoTime() - start);
+                    }
+                } catch (SQLException e) {
+                    pConnection.rollback();
+                    if (pMeasured) {
+                        statementCounts.errors++;
+                    }
+                    logger.debug("Failed: {}: {}", entry, e.getMessage());
+                }
+                if (thinkTimeMillis > 0) {
+                    Thread.sleep(thinkTimeMillis);
+                }
+            }
+        }
+    }
+
+    // -----------------------------
+
+    /**
+     * Latencies and failures of each distinct statement of a replay.
+     */
+    public static class Result {
+
+        private final Map<String, Counts> statements = new LinkedHashMap<String, Counts>();
+
+        private long elapsedNanos;
+
+        private int setupErrors;
+
+        Result() {
+        }
+
+        private Counts get(String pSql) {
+            Counts counts = statements.get(pSql);
+            if (counts == null) {
+                counts = new Counts();
+                statements.put(pSql, counts);
+            }
+            return counts;
+        }
+
+        /**
+         * Returns the distinct SQL of the replayed statements in trace order.
+         */
+        @NotNull
+        public List<String> getStatements() {
+            return new ArrayList<String>(statements.keySet());
+        }
+
+        /**
+         * Returns the latencies in nanoseconds of the successful executions of the SQL, empty if
+         * it was not replayed.
+         */
+        @NotNull
+        public LatencyHistogram getLatencies(@NotNull String pSql) {
+            final Counts counts = statements.get(pSql);
+            return counts == null ? new LatencyHistogram() : counts.latencies;
+        }
+
+        public long getErrors(@NotNull String pSql) {
+            final Counts counts = statements.get(pSql);
+            return counts == null ? 0 : counts.errors;
+        }
+
+        /**
+         * Returns the number of schema and trace DDL statements that failed.
+         */
+        public int getSetupErrors() {
+            return setupErrors;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Returns the statements whose p95 latency is more than pFactor times the one in the
+         * baseline, e.g. a replay against the schema before a change.
+         */
+        @NotNull
+        public List<String> findRegressions(@NotNull Result pBaseline, double pFactor) {
+            final List<String> regressions = new ArrayList<String>();
+            for (String sql : statements.keySet()) {
+                final LatencyHistogram baseline = pBaseline.getLatencies(sql);
+                if (baseline.getCount() > 0
+                    && getLatencies(sql).getValueAtPercentile(95) > baseline.getValueAtPercentile(95) * pFactor) {
+                    regressions.add(sql);
+                }
+            }
+            return regressions;
+        }
+
+        /**
+         * Returns one line per statement with its count, errors and latency percentiles in
+         * milliseconds.
+         */
+        @Override
+        public String toString() {
+            final StringBuilder result = new StringBuilder(
+                    String.format(
+                            "%-60s %8s %6s %9s %9s %9s %9s%n",
+                            "statement", "count", "errors", "p50 ms", "p95 ms", "p99 ms", "max ms"
+                    )
+            );
+            for (Map.Entry<String, Counts> entry : statements.entrySet()) {
+                final LatencyHistogram latencies = entry.getValue().latencies;
+                result.append(
+                        String.format(
+                                "%-60s %8d %6d %9.3f %9.3f %9.3f %9.3f%n",
+                                abbreviate(entry.getKey(), 60),
+                                latencies.getCount(),
+                                entry.getValue().errors,
+                                millis(latencies.getValueAtPercentile(50)),
+                                millis(latencies.getValueAtPercentile(95)),
+                                millis(latencies.getValueAtPercentile(99)),
+                                millis(latencies.getMax())
+                        )
+                );
+            }
+            result.append(
+                    String.format(
+                            "%d setup errors, %d ms", setupErrors, TimeUnit.NANOSECONDS.toMillis(elapsedNanos)
+                    )
+            );
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.service.jdbc;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sequence of SQL statements with their parameters, taken from a {@link SQLRecorder} or read
+ * from a text file, e.g. converted from production logs, to be replayed by {@link SQLReplay}.
+ * <p/>
+ * The text format has one statement per line: the SQL followed by the values of its parameters,
+ * separated by tabs. Tabs, line breaks and backslashes within the SQL or a value are escaped as
+ * <code>\t</code>, <code>\n</code>, <code>\r</code> and <code>\\</code>, a NULL value is
+ * written as <code>\N</code>. Empty lines and lines starting with <code>#</code> are ignored.
+ * <pre>
+ * # login
+ * SELECT id, login FROM dps_user WHERE login = ?	jdoe
+ * UPDATE dps_user SET lastactivity_date = ? WHERE id = ?	2013-01-01 12:00:00.0	1000
+ * </pre>
+ * Parameter values are kept as strings and converted by the driver on replay.
+ */
+public class SQLTrace {
+
+    private final List<Entry> entries;
+
+    public SQLTrace(@NotNull List<Entry> pEntries) {
+        entries = Collections.unmodifiableList(new ArrayList<Entry>(pEntries));
+    }
+
+    /**
+     * Returns a trace of the statements recorded so far. Batches are replayed as single
+     * executions of their last parameters.
+     */
+    @NotNull
+    public static SQLTrace of(@NotNull SQLRecorder pRecorder) {
+        final List<Entry> entries = new ArrayList<Entry>();
+        for (SQLRecorder.RecordedStatement statement : pRecorder.getStatements()) {
+            final List<String> parameters = new ArrayList<String>(statement.getParameters().size());
+            for (Object parameter : statement.getParameters()) {
+                parameters.add(parameter == null ? null : parameter.toString());
+            }
+            entries.add(new Entry(statement.getSql(), parameters));
+        }
+        return new SQLTrace(entries);
+    }
+
+    /**
+     * Reads a trace in the text format. The reader is left open.
+     *
+     * @throws IOException
+     *         if a line contains an invalid escape.
+     */
+    @NotNull
+    public static SQLTrace read(@NotNull Reader pReader)
+            throws IOException {
+        final BufferedReader reader = new BufferedReader(pReader);
+        final List<Entry> entries = new ArrayList<Entry>();
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            if (line.trim().length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = line.split("\t", -1);
+            final List<String> parameters = new ArrayList<String>(fields.length - 1);
+            try {
+                for (int i = 1; i < fields.length; i++) {
+                    parameters.add(unescape(fields[i]));
+                }
+                entries.add(new Entry(unescape(fields[0]), parameters));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + number + ": " + e.getMessage(), e);
+            }
+        }
+        return new SQLTrace(entries);
+    }
+
+    /**
+     * Writes the trace in the text format. The writer is flushed but left open.
+     */
+    public void write(@NotNull Writer pWriter)
+            throws IOException {
+        for (Entry entry : entries) {
+            pWriter.write(escape(entry.getSql()));
+            for (String parameter : entry.getParameters()) {
+                pWriter.write('\t');
+                pWriter.write(escape(parameter));
+            }
+            pWriter.write('\n');
+        }
+        pWriter.flush();
+    }
+
+    @NotNull
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    // -----------------------------
+
+    @NotNull
+    static String escape(@Nullable String pText) {
+        if (pText == null) {
+            return "\\N";
+        }
+        final StringBuilder escaped = new StringBuilder(pText.length());
+        for (int i = 0; i < pText.length(); i++) {
+            final char c = pText.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    @Nullable
+    static String unescape(@NotNull String pText) {
+        if ("\\N".equals(pText)) {
+            return null;
+        }
+        final StringBuilder text = new StringBuilder(pText.length());
+        for (int i = 0; i < pText.length(); i++) {
+            final char c = pText.charAt(i);
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+            if (++i == pText.length()) {
+                throw new IllegalArgumentException("Backslash at end of field");
+            }
+            switch (pText.charAt(i)) {
+                case '\\':
+                    text.append('\\');
+                    break;
+                case 't':
+                    text.append('\t');
+                    break;
+                case 'n':
+                    text.append('\n');
+                    break;
+                case 'r':
+                    text.append('\r');
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid escape \\" + pText.charAt(i));
+            }
+        }
+        return text.toString();
+    }
+
+    // -----------------------------
+
+    /**
+     * A single statement execution.
+     */
+    public static class Entry {
+
+        private final String sql;
+
+        private final List<String> parameters;
+
+        public Entry(@NotNull String pSql, @NotNull List<String> pParameters) {
+            sql = pSql;
+            parameters = Collections.unmodifiableList(new ArrayList<String>(pParameters));
+        }
+
+        @NotNull
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * Returns the parameter values, null for NULL.
+         */
+        @NotNull
+        public List<String> getParameters() {
+            return parameters;
+        }
+
+        /**
+         * Returns the upper case first keyword of the SQL.
+         */
+        @NotNull
+        public String getType() {
+            return SQLRecorder.getType(sql);
+        }
+
+        @Override
+        public String toString() {
+            return sql + (parameters.isEmpty() ? "" : " " + parameters);
+        }
+    }
+}
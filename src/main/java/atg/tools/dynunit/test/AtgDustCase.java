@@ -16,10 +16,12 @@
 
 package atg.tools.dynunit.test;
 
+import atg.adapter.gsa.GSARepository;
 import atg.nucleus.Nucleus;
 import atg.tools.dynunit.naming.LoggingNameResolver;
 import atg.tools.dynunit.test.configuration.BasicConfiguration;
 import atg.tools.dynunit.test.configuration.RepositoryConfiguration;
+import atg.tools.dynunit.test.util.DatabaseSnapshot;
 import atg.tools.dynunit.test.util.FileUtil;
 import atg.tools.dynunit.test.util.RepositoryManager;
 import atg.tools.dynunit.util.ComponentUtil;
@@ -32,6 +34,7 @@ import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import javax.transaction.TransactionManager;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
@@ -120,6 +123,9 @@ public class AtgDustCase
 
     private LoggingNameResolver loggingNameResolver;
 
+    @Nullable
+    private TransactionIsolation transactionIsolation;
+
     private boolean debug;
 
     private String atgConfigPath;
@@ -147,6 +153,13 @@ public class AtgDustCase
 
     private static long SERIAL_TTL = 43200000L;
 
+    // database snapshots survive the in-memory database being shut down after each test
+    private static final Map<String, DatabaseSnapshot> DATABASE_SNAPSHOTS
+            = new HashMap<String, DatabaseSnapshot>();
+
+    // rewinding these would hand out ids again that the id generators already reserved
+    private static final String[] ID_GENERATOR_TABLES = { "das_id_generator", "das_secure_id_gen" };
+
     /**
      * Every *.properties file copied using this method will have it's scope (if one is available) set to global.
      *
@@ -402,6 +415,98 @@ public class AtgDustCase
         );
     }
 
+    /**
+     * Restores the database prepared by {@link #prepareRepository(String, String...)} to a
+     * snapshot previously taken with {@link #snapshotRepositoryDatabase(String, String...)}.
+     * Use this to build the schema and import data only once per run:
+     * <pre>
+     * prepareRepository(repositoryPath, properties, false, true, definitionFiles);
+     * if (!restoreRepositoryDatabase("songs")) {
+     *     resolveNucleusComponent(repositoryPath);
+     *     snapshotRepositoryDatabase("songs");
+     * }
+     * </pre>
+     * Since the repository still runs its own startup, its import files should only be
+     * imported when the tables are created. Every captured table is read to find the changed
+     * ones unless the database was shut down; use
+     * {@link #restoreRepositoryDatabase(String, Collection)} when the written tables are known.
+     *
+     * @param snapshotName
+     *         name the snapshot was taken under.
+     *
+     * @return {@code false} if there is no such snapshot yet.
+     *
+     * @throws SQLException
+     *         Whenever there is a database related error
+     */
+    protected final boolean restoreRepositoryDatabase(final String snapshotName)
+            throws SQLException {
+        final DatabaseSnapshot snapshot;
+        synchronized (DATABASE_SNAPSHOTS) {
+            snapshot = DATABASE_SNAPSHOTS.get(snapshotName);
+        }
+        if (snapshot == null) {
+            return false;
+        }
+        repositoryManager.restoreSnapshot(snapshot);
+        return true;
+    }
+
+    /**
+     * Like {@link #restoreRepositoryDatabase(String)}, but only reloads the tables written to
+     * since the snapshot was taken or last restored, e.g. those reported by
+     * {@link atg.tools.dynunit.service.jdbc.SQLRecorder#getWrittenTables()}. The other tables are
+     * not read.
+     *
+     * @param snapshotName
+     *         name the snapshot was taken under.
+     * @param writtenTables
+     *         names of the tables written to, ignoring case.
+     *
+     * @return {@code false} if there is no such snapshot yet.
+     *
+     * @throws SQLException
+     *         Whenever there is a database related error
+     */
+    protected final boolean restoreRepositoryDatabase(final String snapshotName,
+                                                      final Collection<String> writtenTables)
+            throws SQLException {
+        final DatabaseSnapshot snapshot;
+        synchronized (DATABASE_SNAPSHOTS) {
+            snapshot = DATABASE_SNAPSHOTS.get(snapshotName);
+        }
+        if (snapshot == null) {
+            return false;
+        }
+        repositoryManager.restoreSnapshot(snapshot, writtenTables);
+        return true;
+    }
+
+    /**
+     * Captures the complete state of the database prepared by
+     * {@link #prepareRepository(String, String...)} under the given name for later use by
+     * {@link #restoreRepositoryDatabase(String)}. Snapshots are kept for the lifetime of the VM.
+     *
+     * @param snapshotName
+     *         name of the snapshot.
+     * @param excludedTables
+     *         tables which should be left alone when restoring, in addition to the id generator
+     *         tables das_id_generator and das_secure_id_gen.
+     *
+     * @throws SQLException
+     *         Whenever there is a database related error
+     */
+    protected final void snapshotRepositoryDatabase(final String snapshotName,
+                                                    final String... excludedTables)
+            throws SQLException {
+        final DatabaseSnapshot snapshot = repositoryManager.takeSnapshot(
+                ArrayUtils.addAll(excludedTables, ID_GENERATOR_TABLES)
+        );
+        synchronized (DATABASE_SNAPSHOTS) {
+            DATABASE_SNAPSHOTS.put(snapshotName, snapshot);
+        }
+    }
+
     /**
      * Method for retrieving a fully injected ATG component.
      *
@@ -421,6 +526,46 @@ public class AtgDustCase
         return logger.exit(component);
     }
 
+    /**
+     * Runs the rest of the current test in a transaction which is rolled back in
+     * {@link #tearDown()}, so data written by the test does not have to be cleaned up by
+     * dropping and re-creating tables. Calling this again within the same test opens a nested
+     * level which can be rolled back on its own through the returned object.
+     * <p/>
+     * {@link #tearDown()} still shuts down the in-memory database and Nucleus after every test,
+     * so this only spares the test its own cleanup. To create the schema and seed data once per
+     * run, start Nucleus in a JUnit 4 {@code @BeforeClass} method and use a
+     * {@link TransactionRollbackRule} instead.
+     *
+     * @param repositoryPaths
+     *         Nucleus paths of the repositories used by the test. Their caches are invalidated
+     *         at rollback.
+     *
+     * @return the isolation of the current test.
+     *
+     * @throws IOException
+     *         if Nucleus could not be started.
+     */
+    protected final TransactionIsolation beginIsolatedTransaction(final String... repositoryPaths)
+            throws IOException {
+        logger.entry((Object[]) repositoryPaths);
+        startNucleus(configurationLocation);
+        if (transactionIsolation == null) {
+            transactionIsolation = new TransactionIsolation(
+                    (TransactionManager) loggingNameResolver.resolveName(
+                            TransactionIsolation.DEFAULT_TRANSACTION_MANAGER
+                    )
+            );
+        }
+        for (final String repositoryPath : repositoryPaths) {
+            transactionIsolation.addRepository(
+                    (GSARepository) loggingNameResolver.resolveName(repositoryPath)
+            );
+        }
+        transactionIsolation.begin();
+        return logger.exit(transactionIsolation);
+    }
+
     /**
      * Call this method to set the configuration location.
      *
@@ -446,6 +591,10 @@ public class AtgDustCase
     protected void tearDown()
             throws Exception {
         super.tearDown();
+        if (transactionIsolation != null) {
+            transactionIsolation.endAll();
+            transactionIsolation = null;
+        }
         repositoryManager.shutdownInMemoryDbAndCloseConnections();
         if (nucleus != null) {
             nucleus.doStopService();
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test;
+
+import atg.tools.dynunit.service.jdbc.RecordingDataSource;
+import atg.tools.dynunit.service.jdbc.SQLRecorder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JUnit 4 rule which records the statements of each test through a {@link RecordingDataSource},
+ * checks the query budgets declared with {@link #expectAtMost(int, String, String)} after the
+ * test and logs a per-test summary. The rule is created with the test instance, after
+ * {@code @BeforeClass} methods but before {@code @Before} methods, so start Nucleus once per
+ * class and resolve the data source there:
+ * <pre>
+ * private static RecordingDataSource recordingDataSource;
+ *
+ * &#64;BeforeClass
+ * public static void startNucleus() {
+ *     nucleus = ...;
+ *     recordingDataSource = (RecordingDataSource) nucleus.resolveName(
+ *             "/atg/dynamo/service/jdbc/RecordingDataSource");
+ * }
+ *
+ * &#64;Rule
+ * public QueryBudgetRule queries = new QueryBudgetRule(recordingDataSource);
+ *
+ * &#64;Test
+ * public void testGetProfile() {
+ *     queries.expectAtMost(3, "SELECT", "dps_user");
+ *     ...
+ * }
+ * </pre>
+ * A Nucleus started in a {@code @Before} method does not exist yet when the rule is created;
+ * such tests can call {@link SQLRecorder#assertAtMost(int, String, String)} directly instead.
+ * Budgets can also be checked at any point during a test through {@link #getRecorder()}.
+ *
+ * @see SQLRecorder
+ */
+public class QueryBudgetRule
+        implements TestRule {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private final SQLRecorder recorder;
+
+    private final List<Budget> budgets = new ArrayList<Budget>();
+
+    public QueryBudgetRule(@NotNull RecordingDataSource dataSource) {
+        this(dataSource.getRecorder());
+    }
+
+    public QueryBudgetRule(@NotNull SQLRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    @NotNull
+    public SQLRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Declares that the current test may execute at most pMax statements of the given type
+     * touching the given table, checked once the test has passed.
+     *
+     * @param pType
+     *         statement type such as SELECT, or null for all types.
+     * @param pTable
+     *         table name, or null for all tables.
+     */
+    public void expectAtMost(int pMax, @Nullable String pType, @Nullable String pTable) {
+        budgets.add(new Budget(pMax, pType, pTable));
+    }
+
+    @Override
+    public Statement apply(final Statement base, final Description description) {
+        return new Statement() {
+            @Override
+            public void evaluate()
+                    throws Throwable {
+                budgets.clear();
+                recorder.clear();
+                try {
+                    base.evaluate();
+                    for (Budget budget : budgets) {
+                        budget.check(recorder);
+                    }
+                } finally {
+                    logger.info("SQL summary of {}:\n{}", description.getDisplayName(), recorder.getSummary());
+                }
+            }
+        };
+    }
+
+    private static class Budget {
+
+        private final int max;
+
+        @Nullable
+        private final String type;
+
+        @Nullable
+        private final String table;
+
+        Budget(int pMax, @Nullable String pType, @Nullable String pTable) {
+            max = pMax;
+            type = pType;
+            table = pTable;
+        }
+
+        void check(@NotNull SQLRecorder pRecorder) {
+            pRecorder.assertAtMost(max, type, table);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test;
+
+import atg.adapter.gsa.GSARepository;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.sql.DataSource;
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Isolates tests from each other by running them in a transaction which is always rolled back,
+ * so data written by one test is never seen by the next one. Combined with a Nucleus started once
+ * per run, as {@link TransactionRollbackRule} does, the schema and seed data of a repository
+ * only have to be created once instead of being dropped, recreated and re-imported for every
+ * test.
+ * <p/>
+ * {@link #begin()} starts a transaction on the configured {@link TransactionManager} and takes
+ * the connection every registered data source hands out within it. Calling it again while that
+ * transaction is active opens a nested level by setting a JDBC savepoint on those connections;
+ * {@link #end()} rolls back to that savepoint. Ending the outermost level marks the transaction
+ * rollback-only, rolls it back and invalidates the caches of all registered repositories so no
+ * rolled back item survives in memory.
+ * <p/>
+ * Nested levels only cover work done through the very connection a savepoint was set on. A
+ * transaction-aware data source such as the {@code JTDataSource} of a GSA repository hands out
+ * the connection enlisted in the current transaction on every call, so everything the repository
+ * writes is covered. A plain data source opens a new connection per call, and work done through
+ * it is neither rolled back to a savepoint nor by the transaction.
+ * <p/>
+ * Work done by the code under test in a separate transaction, e.g. through a
+ * {@code REQUIRES_NEW} demarcation, is committed as usual and therefore not isolated.
+ *
+ * @see TransactionRollbackRule
+ */
+public class TransactionIsolation {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    public static final String DEFAULT_TRANSACTION_MANAGER = "/atg/dynamo/transaction/TransactionManager";
+
+    private final TransactionManager transactionManager;
+
+    private final Set<GSARepository> repositories = new LinkedHashSet<GSARepository>();
+
+    private final Set<DataSource> dataSources = new LinkedHashSet<DataSource>();
+
+    // the connection each data source handed out within the isolating transaction
+    private final Map<DataSource, Connection> enlistedConnections = new LinkedHashMap<DataSource, Connection>();
+
+    // one entry per nested level, holding the savepoints set when the level was opened
+    private final List<List<Level>> levels = new ArrayList<List<Level>>();
+
+    @Nullable
+    private Transaction transaction;
+
+    public TransactionIsolation(@NotNull TransactionManager pTransactionManager) {
+        transactionManager = pTransactionManager;
+    }
+
+    /**
+     * Registers a repository whose caches are invalidated at rollback and whose data source is
+     * used for savepoints.
+     */
+    public void addRepository(@NotNull GSARepository pRepository) {
+        repositories.add(pRepository);
+        addDataSource(pRepository.getDataSource());
+    }
+
+    /**
+     * Registers an additional data source which should take part in nested levels.
+     */
+    public void addDataSource(@Nullable DataSource pDataSource) {
+        if (pDataSource != null) {
+            dataSources.add(pDataSource);
+        }
+    }
+
+    /**
+     * Returns the number of currently open levels, 0 if no transaction is active.
+     */
+    public int getDepth() {
+        return levels.size();
+    }
+
+    /**
+     * Starts the isolating transaction or, if it is already active, a nested level.
+     *
+     * @throws IllegalStateException
+     *         if the transaction could not be started or a savepoint could not be set.
+     */
+    public void begin() {
+        if (levels.isEmpty()) {
+            try {
+                transactionManager.begin();
+                transaction = transactionManager.getTransaction();
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to begin isolating transaction", e);
+            }
+            logger.debug("Began isolating transaction {}", transaction);
+            levels.add(new ArrayList<Level>(0));
+            try {
+                for (DataSource dataSource : dataSources) {
+                    getEnlistedConnection(dataSource);
+                }
+            } catch (SQLException e) {
+                end();
+                throw new IllegalStateException("Unable to get connection of isolating transaction", e);
+            }
+            return;
+        }
+        resumeIfNecessary();
+        final List<Level> savepoints = new ArrayList<Level>(dataSources.size());
+        try {
+            for (DataSource dataSource : dataSources) {
+                final Connection connection = getEnlistedConnection(dataSource);
+                savepoints.add(new Level(connection, connection.setSavepoint()));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Unable to set savepoint for nested level", e);
+        }
+        levels.add(savepoints);
+        logger.debug("Opened nested level {}", levels.size());
+    }
+
+    /**
+     * Rolls back the innermost level. For the outermost level this rolls back the transaction
+     * and invalidates the repository caches. Calling this without an open level does nothing.
+     */
+    public void end() {
+        if (levels.isEmpty()) {
+            return;
+        }
+        final List<Level> savepoints = levels.remove(levels.size() - 1);
+        if (!levels.isEmpty()) {
+            for (Level level : savepoints) {
+                level.rollback();
+            }
+            invalidateCaches();
+            logger.debug("Rolled back nested level {}", levels.size() + 1);
+            return;
+        }
+        try {
+            resumeIfNecessary();
+            if (transactionManager.getStatus() != Status.STATUS_NO_TRANSACTION) {
+                transactionManager.setRollbackOnly();
+                transactionManager.rollback();
+            }
+            logger.debug("Rolled back isolating transaction {}", transaction);
+        } catch (Exception e) {
+            logger.catching(e);
+            logger.error("Unable to roll back isolating transaction {}", transaction);
+        } finally {
+            transaction = null;
+            closeEnlistedConnections();
+            invalidateCaches();
+        }
+    }
+
+    /**
+     * Rolls back every open level.
+     */
+    public void endAll() {
+        while (!levels.isEmpty()) {
+            end();
+        }
+    }
+
+    /**
+     * Makes sure our transaction is associated with the current thread again in case the code
+     * under test suspended it or left another one behind.
+     */
+    private void resumeIfNecessary() {
+        try {
+            final Transaction current = transactionManager.getTransaction();
+            if (transaction == null || transaction.equals(current)) {
+                return;
+            }
+            if (current != null) {
+                logger.warn("Test left transaction {} behind; rolling it back", current);
+                transactionManager.rollback();
+            }
+            transactionManager.resume(transaction);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to resume isolating transaction", e);
+        }
+    }
+
+    /**
+     * Returns the connection the data source handed out within the isolating transaction, taking
+     * it now if the data source was registered after the transaction began.
+     */
+    @NotNull
+    private Connection getEnlistedConnection(@NotNull DataSource pDataSource)
+            throws SQLException {
+        Connection connection = enlistedConnections.get(pDataSource);
+        if (connection == null) {
+            connection = pDataSource.getConnection();
+            enlistedConnections.put(pDataSource, connection);
+        }
+        return connection;
+    }
+
+    private void closeEnlistedConnections() {
+        for (Connection connection : enlistedConnections.values()) {
+            try {
+                // only returns the handle; the physical connection belongs to the transaction
+                connection.close();
+            } catch (SQLException e) {
+                logger.catching(e);
+            }
+        }
+        enlistedConnections.clear();
+    }
+
+    private void invalidateCaches() {
+        for (GSARepository repository : repositories) {
+            try {
+                repository.invalidateCaches();
+            } catch (RuntimeException e) {
+                logger.catching(e);
+                logger.warn("Unable to invalidate caches of {}", repository);
+            }
+        }
+    }
+
+    private static class Level {
+
+        private final Connection connection;
+
+        private final Savepoint savepoint;
+
+        Level(Connection pConnection, Savepoint pSavepoint) {
+            connection = pConnection;
+            savepoint = pSavepoint;
+        }
+
+        void rollback() {
+            try {
+                connection.rollback(savepoint);
+            } catch (SQLException e) {
+                logger.catching(e);
+                logger.error("Unable to roll back to savepoint {}", savepoint);
+            }
+        }
+    }
+}
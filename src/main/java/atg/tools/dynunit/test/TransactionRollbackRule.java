@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test;
+
+import atg.adapter.gsa.GSARepository;
+import atg.nucleus.Nucleus;
+import org.jetbrains.annotations.NotNull;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import javax.transaction.TransactionManager;
+
+/**
+ * JUnit 4 rule which runs every test in a transaction that is rolled back afterwards. Start
+ * Nucleus, with its repositories created and imported, once in a {@code @BeforeClass} method
+ * and declare the rule as an instance field:
+ * <pre>
+ * &#64;Rule
+ * public TransactionRollbackRule rollback = new TransactionRollbackRule(nucleus, "/test/SongsRepository");
+ * </pre>
+ * Tests can open nested levels, rolled back to a savepoint, through {@link #getIsolation()}.
+ * Nested levels cover everything the given repositories write through their data sources.
+ * <p/>
+ * Only work done in the test's own transaction is rolled back. Code under test which suspends
+ * it and starts another transaction, e.g. through a {@code REQUIRES_NEW} demarcation, commits
+ * that work for good, and it is visible to the following tests. Clean such data up in the test.
+ *
+ * @see TransactionIsolation
+ */
+public class TransactionRollbackRule
+        implements TestRule {
+
+    private final TransactionIsolation isolation;
+
+    /**
+     * Uses the default transaction manager of the given Nucleus.
+     *
+     * @param nucleus
+     *         running Nucleus.
+     * @param repositoryPaths
+     *         Nucleus paths of the GSA repositories whose caches are invalidated at rollback.
+     */
+    public TransactionRollbackRule(@NotNull Nucleus nucleus, String... repositoryPaths) {
+        this(
+                (TransactionManager) resolve(nucleus, TransactionIsolation.DEFAULT_TRANSACTION_MANAGER),
+                resolveRepositories(nucleus, repositoryPaths)
+        );
+    }
+
+    public TransactionRollbackRule(@NotNull TransactionManager transactionManager,
+                                   GSARepository... repositories) {
+        isolation = new TransactionIsolation(transactionManager);
+        for (GSARepository repository : repositories) {
+            isolation.addRepository(repository);
+        }
+    }
+
+    @NotNull
+    public TransactionIsolation getIsolation() {
+        return isolation;
+    }
+
+    @Override
+    public Statement apply(final Statement base, final Description description) {
+        return new Statement() {
+            @Override
+            public void evaluate()
+                    throws Throwable {
+                isolation.begin();
+                try {
+                    base.evaluate();
+                } finally {
+                    isolation.endAll();
+                }
+            }
+        };
+    }
+
+    private static GSARepository[] resolveRepositories(Nucleus nucleus, String[] repositoryPaths) {
+        final GSARepository[] repositories = new GSARepository[repositoryPaths.length];
+        for (int i = 0; i < repositoryPaths.length; i++) {
+            repositories[i] = (GSARepository) resolve(nucleus, repositoryPaths[i]);
+        }
+        return repositories;
+    }
+
+    private static Object resolve(Nucleus nucleus, String path) {
+        final Object component = nucleus.resolveName(path);
+        if (component == null) {
+            throw new IllegalArgumentException("Component " + path + " could not be resolved");
+        }
+        return component;
+    }
+}
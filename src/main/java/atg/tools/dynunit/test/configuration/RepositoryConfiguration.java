@@ -24,6 +24,8 @@ import atg.service.idgen.SQLIdGenerator;
 import atg.service.jdbc.FakeXADataSource;
 import atg.service.jdbc.MonitoredDataSource;
 import atg.tools.dynunit.adapter.gsa.InitializingGSA;
+import atg.tools.dynunit.service.idgen.InMemoryIdGenerator;
+import atg.tools.dynunit.service.jdbc.RecordingDataSource;
 import atg.tools.dynunit.util.ComponentUtil;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -58,6 +60,7 @@ public final class RepositoryConfiguration
     private static final String TX_MANAGER = "/atg/dynamo/transaction/TransactionManager";
     private static final String JT_DATA_SOURCE = "/atg/dynamo/service/jdbc/JTDataSource";
     private static final String XA_DATA_SOURCE = "/atg/dynamo/service/jdbc/FakeXADataSource";
+    private static final String RECORDING_DATA_SOURCE = "/atg/dynamo/service/jdbc/RecordingDataSource";
     private static final String XML_TOOLS_FACTORY = "/atg/dynamo/service/xml/XMLToolsFactory";
 
     private File atgDynamo;
@@ -66,6 +69,37 @@ public final class RepositoryConfiguration
     private File atgJdbc;
     private File atgServer;
 
+    private boolean inMemoryIdGenerator;
+    private boolean recordSql;
+
+    /**
+     * Returns true if the IdGenerator keeps its id spaces in memory instead of in the
+     * das_id_generator table.
+     */
+    public boolean isInMemoryIdGenerator() {
+        return inMemoryIdGenerator;
+    }
+
+    public void setInMemoryIdGenerator(final boolean inMemoryIdGenerator) {
+        this.inMemoryIdGenerator = inMemoryIdGenerator;
+    }
+
+    /**
+     * Returns true if repositories use a RecordingDataSource in front of the JTDataSource, so
+     * their statements can be checked with a QueryBudgetRule.
+     */
+    public boolean isRecordSql() {
+        return recordSql;
+    }
+
+    public void setRecordSql(final boolean recordSql) {
+        this.recordSql = recordSql;
+    }
+
+    private String repositoryDataSource() {
+        return isRecordSql() ? RECORDING_DATA_SOURCE : JT_DATA_SOURCE;
+    }
+
     private String debug() {
         return Boolean.toString(isDebug());
     }
@@ -90,6 +124,9 @@ public final class RepositoryConfiguration
         createIdSpaces();
         createSQLRepositoryEventServer();
         createJTDataSource();
+        if (isRecordSql()) {
+            createRecordingDataSource();
+        }
 
         logger.info("Created repository configuration fileset");
         logger.exit();
@@ -115,7 +152,7 @@ public final class RepositoryConfiguration
         properties.setProperty("XMLToolsFactory", XML_TOOLS_FACTORY);
         properties.setProperty("transactionManager", TX_MANAGER);
         properties.setProperty("idGenerator", "/atg/dynamo/service/IdGenerator");
-        properties.setProperty("dataSource", JT_DATA_SOURCE);
+        properties.setProperty("dataSource", repositoryDataSource());
         properties.setProperty("lockManager", "/atg/dynamo/service/ClientLockManager");
         properties.setProperty("idspaces", "/atg/dynamo/service/idspaces.xml");
         properties.setProperty("groupContainerPath", "/atg/registry/RepositoryGroups");
@@ -162,6 +199,14 @@ public final class RepositoryConfiguration
             throws IOException {
         logger.entry();
         final Properties properties = new Properties();
+        if (isInMemoryIdGenerator()) {
+            properties.setProperty(
+                    "initialIdSpacesFile", new File(atgService, getIdSpacesTemplate().getName()).getAbsolutePath()
+            );
+            ComponentUtil.newComponent(atgService, "IdGenerator", InMemoryIdGenerator.class, properties);
+            logger.exit();
+            return;
+        }
         properties.setProperty("dataSource", JT_DATA_SOURCE);
         properties.setProperty("transactionManager", TX_MANAGER);
         properties.setProperty("XMLToolsFactory", XML_TOOLS_FACTORY);
@@ -207,6 +252,15 @@ public final class RepositoryConfiguration
         logger.exit();
     }
 
+    private void createRecordingDataSource()
+            throws IOException {
+        logger.entry();
+        final Properties properties = new Properties();
+        properties.setProperty("dataSource", JT_DATA_SOURCE);
+        ComponentUtil.newComponent(atgJdbc, "RecordingDataSource", RecordingDataSource.class, properties);
+        logger.exit();
+    }
+
     @Deprecated
     public synchronized void createFakeXADataSource(@NotNull final File root, Map<String, String> jdbcSettings)
             throws IOException {
@@ -27,7 +27,7 @@ import java.nio.ByteBuffer;
  * @version $Id:$
  * @see ByteBuffer
  */
-class ByteBufferInputStream
+public class ByteBufferInputStream
         extends InputStream {
     //-------------------------------------
 
@@ -53,13 +53,25 @@ class ByteBufferInputStream
         if ( !mBuffer.hasRemaining() ) {
             return -1;
         }
-        return mBuffer.get();
+        return mBuffer.get() & 0xff;
+    }
+
+    @Override
+    public synchronized int available()
+            throws IOException {
+        return mBuffer.remaining();
     }
 
     public synchronized int read(byte[] bytes, int off, int len)
             throws IOException {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( !mBuffer.hasRemaining() ) {
+            return -1;
+        }
         len = Math.min(len, mBuffer.remaining());
         mBuffer.get(bytes, off, len);
-        return len > 0 ? len : -1;
+        return len;
     }
 }
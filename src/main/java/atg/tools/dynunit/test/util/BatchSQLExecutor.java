@@ -0,0 +1,631 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigDecimal;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes a large number of SQL statements, typically the contents of a seed data script,
+ * over a single connection using JDBC batches.
+ * <p/>
+ * Consecutive INSERT statements of the same shape, i.e. the same table, column list and
+ * number of literal values, are turned into a single {@link PreparedStatement} whose
+ * parameters are bound from the literals and which is executed in batches of
+ * {@link #getBatchSize()}. Prepared statements are kept for reuse when a shape comes back.
+ * Any other statement flushes the pending batch and is executed on its own. Unless
+ * {@link #getCommitInterval()} is zero, auto commit is switched off while executing and a
+ * commit is issued every {@code commitInterval} statements.
+ * <p/>
+ * Statements which fail are logged and skipped, like {@link DBUtils#executeSQLFile(java.io.File)}
+ * always did, unless {@link #isStopOnError()} is set. Drivers which stop executing a batch at
+ * the failed statement leave the statements after it unexecuted; those are executed one by one.
+ * Instances are not thread safe.
+ */
+public class BatchSQLExecutor {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int MAX_CACHED_STATEMENTS = 16;
+
+    private final Connection connection;
+
+    private int batchSize = 500;
+
+    private int commitInterval = 5000;
+
+    private int progressInterval = 10000;
+
+    private boolean preparedInserts = true;
+
+    private boolean stopOnError = false;
+
+    private Statement statement;
+
+    private final Map<String, PreparedStatement> preparedStatements
+            = new LinkedHashMap<String, PreparedStatement>(MAX_CACHED_STATEMENTS, 0.75f, true);
+
+    // the statement holding the pending batch, either a prepared one or the plain statement
+    @Nullable
+    private Statement currentBatch;
+
+    private int currentBatchSize;
+
+    // the statements of the pending batch, to report and execute them on their own on failure
+    private final List<String> batchSql = new ArrayList<String>();
+
+    // statements executed since the last commit
+    private int uncommitted;
+
+    private final Statistics statistics = new Statistics();
+
+    public BatchSQLExecutor(@NotNull Connection pConnection) {
+        connection = pConnection;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of statements sent to the database in one JDBC batch.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    /**
+     * Sets the number of statements after which the transaction is committed. Zero leaves the
+     * auto commit setting of the connection alone.
+     */
+    public void setCommitInterval(int commitInterval) {
+        if (commitInterval < 0) {
+            throw new IllegalArgumentException("commitInterval must not be negative: " + commitInterval);
+        }
+        this.commitInterval = commitInterval;
+    }
+
+    public int getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Sets the number of statements after which progress is logged. Zero disables progress
+     * logging.
+     */
+    public void setProgressInterval(int progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    public boolean isPreparedInserts() {
+        return preparedInserts;
+    }
+
+    /**
+     * When false, INSERT statements are still batched but sent as plain statements instead of
+     * binding their literals to a prepared statement. Useful for drivers which can not convert
+     * string or numeric parameters to the column types.
+     */
+    public void setPreparedInserts(boolean preparedInserts) {
+        this.preparedInserts = preparedInserts;
+    }
+
+    public boolean isStopOnError() {
+        return stopOnError;
+    }
+
+    public void setStopOnError(boolean stopOnError) {
+        this.stopOnError = stopOnError;
+    }
+
+    @NotNull
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Executes all given statements. Unless the commit interval is zero, the statements are
+     * committed as well, and rolled back up to the last intermediate commit on failure.
+     *
+     * @return the statistics of this executor, which accumulate over multiple calls.
+     *
+     * @throws SQLException
+     *         if a statement fails and {@link #isStopOnError()} is set, or if the connection
+     *         could not be committed.
+     */
+    public Statistics execute(@NotNull Iterator<String> pStatements)
+            throws SQLException {
+        final boolean autoCommit = connection.getAutoCommit();
+        final boolean commit = commitInterval > 0;
+        if (commit && autoCommit) {
+            connection.setAutoCommit(false);
+        }
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            while (pStatements.hasNext()) {
+                add(pStatements.next());
+            }
+            flush();
+            if (commit) {
+                connection.commit();
+            }
+            success = true;
+        } finally {
+            statistics.elapsedNanos += System.nanoTime() - start;
+            if (commit && !success) {
+                connection.rollback();
+            }
+            close();
+            if (commit && autoCommit) {
+                connection.setAutoCommit(true);
+            }
+        }
+        logger.info("Executed {}", statistics);
+        return statistics;
+    }
+
+    private void add(@NotNull String pSql)
+            throws SQLException {
+        final String sql = pSql.trim();
+        if (sql.length() == 0) {
+            return;
+        }
+        final Insert insert = Insert.parse(sql);
+        if (insert == null) {
+            flush();
+            executeSingle(sql);
+        } else if (preparedInserts && insert.values != null) {
+            addPrepared(insert);
+        } else {
+            addPlain(insert);
+        }
+        statistics.statements++;
+        uncommitted++;
+        if (commitInterval > 0 && uncommitted >= commitInterval) {
+            flush();
+            connection.commit();
+            uncommitted = 0;
+            statistics.commits++;
+        }
+        if (progressInterval > 0 && statistics.statements % progressInterval == 0) {
+            logger.info("Progress: {}", statistics);
+        }
+    }
+
+    private void addPrepared(@NotNull Insert pInsert)
+            throws SQLException {
+        final String shape = pInsert.getPreparedSql();
+        PreparedStatement prepared = preparedStatements.get(shape);
+        if (prepared == null) {
+            flush();
+            try {
+                prepared = connection.prepareStatement(shape);
+            } catch (SQLException e) {
+                // e.g. an unknown table; run it on its own to report the actual statement
+                executeSingle(pInsert.sql);
+                return;
+            }
+            cache(shape, prepared);
+        } else if (prepared != currentBatch) {
+            flush();
+        }
+        final List<Object> values = pInsert.values;
+        for (int i = 0; i < values.size(); i++) {
+            final Object value = values.get(i);
+            if (value == null) {
+                prepared.setNull(i + 1, getParameterType(prepared, i + 1));
+            } else {
+                prepared.setObject(i + 1, value);
+            }
+        }
+        prepared.addBatch();
+        addedToBatch(prepared, pInsert.sql);
+    }
+
+    private void addPlain(@NotNull Insert pInsert)
+            throws SQLException {
+        final Statement plain = getStatement();
+        if (currentBatch != plain) {
+            flush();
+        }
+        plain.addBatch(pInsert.sql);
+        addedToBatch(plain, pInsert.sql);
+    }
+
+    private void addedToBatch(Statement pStatement, String pSql)
+            throws SQLException {
+        currentBatch = pStatement;
+        currentBatchSize++;
+        batchSql.add(pSql);
+        if (currentBatchSize >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the pending batch, if any, to the database.
+     */
+    private void flush()
+            throws SQLException {
+        final Statement batch = currentBatch;
+        if (batch == null || currentBatchSize == 0) {
+            return;
+        }
+        final int size = currentBatchSize;
+        final List<String> sql = new ArrayList<String>(batchSql);
+        currentBatch = null;
+        currentBatchSize = 0;
+        batchSql.clear();
+        int executed = size;
+        try {
+            statistics.rows += sum(batch.executeBatch());
+            statistics.batches++;
+        } catch (BatchUpdateException e) {
+            final int[] counts = e.getUpdateCounts() == null ? new int[0] : e.getUpdateCounts();
+            statistics.rows += sum(counts);
+            for (int count : counts) {
+                if (count == Statement.EXECUTE_FAILED) {
+                    statistics.failures++;
+                }
+            }
+            if (counts.length < size) {
+                // the driver stopped at the failed statement
+                statistics.failures++;
+                executed = counts.length + 1;
+            }
+            failed("Batch of " + size + " statements ending with [" + sql.get(size - 1) + "] failed", e);
+        } finally {
+            batch.clearBatch();
+        }
+        if (executed < size) {
+            logger.info("Executing the {} statements after the failed one on their own", size - executed);
+            for (String remaining : sql.subList(executed, size)) {
+                executeSingle(remaining);
+            }
+        }
+    }
+
+    private void executeSingle(@NotNull String pSql)
+            throws SQLException {
+        try {
+            final int count = getStatement().executeUpdate(pSql);
+            if (count > 0) {
+                statistics.rows += count;
+            }
+        } catch (SQLException e) {
+            statistics.failures++;
+            failed("Statement [" + pSql + "] failed", e);
+        }
+    }
+
+    private void failed(String pMessage, SQLException pException)
+            throws SQLException {
+        if (stopOnError) {
+            throw pException;
+        }
+        logger.warn(pMessage);
+        logger.catching(pException);
+    }
+
+    private Statement getStatement()
+            throws SQLException {
+        if (statement == null) {
+            statement = connection.createStatement();
+        }
+        return statement;
+    }
+
+    private void cache(String pShape, PreparedStatement pPrepared)
+            throws SQLException {
+        if (preparedStatements.size() >= MAX_CACHED_STATEMENTS) {
+            // evict the least recently used shape
+            final Iterator<PreparedStatement> eldest = preparedStatements.values().iterator();
+            final PreparedStatement evicted = eldest.next();
+            eldest.remove();
+            evicted.close();
+        }
+        preparedStatements.put(pShape, pPrepared);
+    }
+
+    private static int getParameterType(PreparedStatement pPrepared, int pIndex) {
+        try {
+            final ParameterMetaData metaData = pPrepared.getParameterMetaData();
+            return metaData.getParameterType(pIndex);
+        } catch (SQLException e) {
+            // not every driver describes its parameters
+            return Types.VARCHAR;
+        }
+    }
+
+    private void close() {
+        currentBatch = null;
+        currentBatchSize = 0;
+        batchSql.clear();
+        uncommitted = 0;
+        for (PreparedStatement prepared : preparedStatements.values()) {
+            closeQuietly(prepared);
+        }
+        preparedStatements.clear();
+        closeQuietly(statement);
+        statement = null;
+    }
+
+    private static void closeQuietly(@Nullable Statement pStatement) {
+        if (pStatement != null) {
+            try {
+                pStatement.close();
+            } catch (SQLException e) {
+                logger.catching(e);
+            }
+        }
+    }
+
+    private static long sum(int[] pCounts) {
+        long sum = 0;
+        for (int count : pCounts) {
+            // SUCCESS_NO_INFO and EXECUTE_FAILED are negative
+            if (count > 0) {
+                sum += count;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Progress and throughput of a {@link BatchSQLExecutor}.
+     */
+    public static class Statistics {
+
+        private long statements;
+
+        private long rows;
+
+        private long batches;
+
+        private long commits;
+
+        private long failures;
+
+        private long elapsedNanos;
+
+        /**
+         * Returns the number of statements executed or added to a batch.
+         */
+        public long getStatements() {
+            return statements;
+        }
+
+        /**
+         * Returns the number of rows reported as changed by the database.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        /**
+         * Returns the number of intermediate commits, not counting the final one.
+         */
+        public long getCommits() {
+            return commits;
+        }
+
+        /**
+         * Returns the number of statements which failed, on their own or in a batch.
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+
+        public double getStatementsPerSecond() {
+            return elapsedNanos == 0 ? 0 : statements * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d statements (%d rows, %d batches, %d failures) in %d ms, %.1f statements/s",
+                    statements,
+                    rows,
+                    batches,
+                    failures,
+                    getElapsedMillis(),
+                    getStatementsPerSecond()
+            );
+        }
+    }
+
+    /**
+     * A single row INSERT statement split into its shape and literal values.
+     */
+    static class Insert {
+
+        final String sql;
+
+        // the statement up to, but not including, the VALUES keyword
+        final String prefix;
+
+        // the literal values or null if they could not all be parsed
+        @Nullable
+        final List<Object> values;
+
+        private Insert(String pSql, String pPrefix, @Nullable List<Object> pValues) {
+            sql = pSql;
+            prefix = pPrefix;
+            values = pValues;
+        }
+
+        String getPreparedSql() {
+            final StringBuilder builder = new StringBuilder(prefix.length() + 16 + values.size() * 3);
+            builder.append(prefix).append(" VALUES (");
+            for (int i = 0; i < values.size(); i++) {
+                builder.append(i == 0 ? "?" : ", ?");
+            }
+            return builder.append(')').toString();
+        }
+
+        /**
+         * Parses the given statement, returning null if it is not an INSERT ... VALUES
+         * statement.
+         */
+        @Nullable
+        static Insert parse(String pSql) {
+            if (!pSql.regionMatches(true, 0, "INSERT", 0, 6)) {
+                return null;
+            }
+            final int valuesKeyword = findValuesKeyword(pSql);
+            if (valuesKeyword == -1) {
+                return null;
+            }
+            final String prefix = pSql.substring(0, valuesKeyword).trim();
+            return new Insert(pSql, prefix, parseValues(pSql, valuesKeyword + 6));
+        }
+
+        private static int findValuesKeyword(String pSql) {
+            boolean quoted = false;
+            for (int i = 6; i < pSql.length(); i++) {
+                final char c = pSql.charAt(i);
+                if (c == '\'') {
+                    quoted = !quoted;
+                } else if (!quoted
+                           && (c == 'V' || c == 'v')
+                           && pSql.regionMatches(true, i, "VALUES", 0, 6)
+                           && !isWordChar(pSql, i - 1)
+                           && !isWordChar(pSql, i + 6)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Nullable
+        private static List<Object> parseValues(String pSql, int pStart) {
+            int i = skipWhitespace(pSql, pStart);
+            if (i == pSql.length() || pSql.charAt(i) != '(') {
+                return null;
+            }
+            final List<Object> values = new ArrayList<Object>();
+            i++;
+            while (true) {
+                i = skipWhitespace(pSql, i);
+                if (i == pSql.length()) {
+                    return null;
+                }
+                int end;
+                if (pSql.charAt(i) == '\'') {
+                    final StringBuilder literal = new StringBuilder();
+                    end = i + 1;
+                    while (true) {
+                        if (end == pSql.length()) {
+                            return null;
+                        }
+                        final char c = pSql.charAt(end);
+                        if (c == '\'') {
+                            if (end + 1 < pSql.length() && pSql.charAt(end + 1) == '\'') {
+                                literal.append('\'');
+                                end += 2;
+                                continue;
+                            }
+                            end++;
+                            break;
+                        }
+                        literal.append(c);
+                        end++;
+                    }
+                    values.add(literal.toString());
+                } else {
+                    end = i;
+                    while (end < pSql.length() && isWordChar(pSql, end)
+                           || end < pSql.length() && "+-.".indexOf(pSql.charAt(end)) != -1) {
+                        end++;
+                    }
+                    final String token = pSql.substring(i, end);
+                    if ("NULL".equalsIgnoreCase(token)) {
+                        values.add(null);
+                    } else {
+                        try {
+                            values.add(new BigDecimal(token));
+                        } catch (NumberFormatException e) {
+                            // a function call, expression or other non-literal value
+                            return null;
+                        }
+                    }
+                }
+                i = skipWhitespace(pSql, end);
+                if (i == pSql.length()) {
+                    return null;
+                }
+                final char c = pSql.charAt(i++);
+                if (c == ')') {
+                    // only single row inserts are supported
+                    return skipWhitespace(pSql, i) == pSql.length() ? values : null;
+                }
+                if (c != ',') {
+                    return null;
+                }
+            }
+        }
+
+        private static boolean isWordChar(String pSql, int pIndex) {
+            if (pIndex < 0 || pIndex >= pSql.length()) {
+                return false;
+            }
+            final char c = pSql.charAt(pIndex);
+            return Character.isLetterOrDigit(c) || c == '_';
+        }
+
+        private static int skipWhitespace(String pSql, int pStart) {
+            int i = pStart;
+            while (i < pSql.length() && Character.isWhitespace(pSql.charAt(i))) {
+                i++;
+            }
+            return i;
+        }
+    }
+}
@@ -18,12 +18,15 @@ package atg.tools.dynunit.test.util;
 
 import atg.tools.dynunit.adapter.gsa.GSATestUtils;
 import atg.tools.dynunit.adapter.gsa.SQLFileParser;
-import org.apache.commons.lang3.StringUtils;
+import atg.tools.dynunit.adapter.gsa.SQLParseException;
+import atg.tools.dynunit.adapter.gsa.SQLStatementIterator;
+import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import javax.sql.DataSource;
 import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
@@ -32,22 +35,32 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Utility code for getting a connection to a database.
  * The most common method is getHSQLDBInMemoryDBConnection.
  * This returns a connection to an in-memory HSQL database.
+ * <p/>
+ * Connections come from a small pool, so queries and updates of concurrent
+ * threads run in parallel rather than one after the other on a single
+ * connection.
  *
  * @author adamb
  */
 public class DBUtils {
 
     private static final Logger logger = LogManager.getLogger();
+    private static final Pattern ORACLE_TYPES = Pattern.compile("numeric|binary|varchar(?=[ (])");
+    public static final int DEFAULT_POOL_SIZE = 4;
     @NotNull
     private final Properties connectionProperties;
-    private final Connection connection;
+    private final BasicDataSource dataSource = new BasicDataSource();
     private String databaseType;
     private String databaseVersion;
 
@@ -76,6 +89,14 @@ public class DBUtils {
 
     public DBUtils(String connectionURL, String driver, String user, String password)
             throws Exception {
+        this(connectionURL, driver, user, password, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param poolSize maximum number of connections used concurrently.
+     */
+    public DBUtils(String connectionURL, String driver, String user, String password, int poolSize)
+            throws Exception {
 
         connectionProperties = new Properties();
         connectionProperties.put("driver", driver);
@@ -97,13 +118,19 @@ public class DBUtils {
         // of the db.
         // It can contain directory names relative to the
         // current working directory
-        connection = DriverManager.getConnection(
-                connectionURL, // file names
-                user, // username
-                password
-        ); // password
-        databaseType = connection.getMetaData().getDatabaseProductName();
-        databaseVersion = connection.getMetaData().getDatabaseProductVersion();
+        dataSource.setDriverClassName(driver);
+        dataSource.setUrl(connectionURL);
+        dataSource.setUsername(user);
+        dataSource.setPassword(password);
+        dataSource.setMaxActive(poolSize);
+        dataSource.setMaxIdle(poolSize);
+        Connection connection = getConnection();
+        try {
+            databaseType = connection.getMetaData().getDatabaseProductName();
+            databaseVersion = connection.getMetaData().getDatabaseProductVersion();
+        } finally {
+            connection.close();
+        }
         logger.info("Connected to {} version {}", databaseType, databaseVersion);
         executeCreateIdGenerator();
     }
@@ -172,6 +199,94 @@ public class DBUtils {
     }
     // ---------------------------
 
+    /**
+     * Returns a Properties object pre-configured to create
+     * an H2 in memory database connecting with user "sa"
+     * password "". The database is kept until the JVM exits or it is shut down,
+     * even while no connection is open.
+     *
+     * @param databaseName name of database or {@code null} to use "testdb".
+     * @param mvcc         true to use multi version concurrency instead of table locks.
+     * @return connection properties for initializing this database.
+     */
+    @NotNull
+    public static Properties getH2InMemoryDBConnection(@Nullable String databaseName, boolean mvcc) {
+        Properties props = new Properties();
+        props.put("driver", "org.h2.Driver");
+        props.put(
+                "URL", "jdbc:h2:mem:" + (databaseName == null ? "testdb" : databaseName) + ";DB_CLOSE_DELAY=-1"
+                       + (mvcc ? ";MVCC=TRUE" : "")
+        );
+        props.put("user", "sa");
+        props.put("password", "");
+        return props;
+    }
+
+    /**
+     * Returns a Properties object pre-configured to create
+     * an H2 in memory database connecting with user "sa"
+     * password "".
+     *
+     * @param databaseName name of database or {@code null} to use "testdb".
+     * @return connection properties for initializing this database.
+     */
+    @NotNull
+    public static Properties getH2InMemoryDBConnection(@Nullable String databaseName) {
+        return getH2InMemoryDBConnection(databaseName, false);
+    }
+
+    /**
+     * Returns a Properties object pre-configured to create
+     * an H2 file database connecting with user "sa"
+     * password "".
+     *
+     * @param databaseFileName path of the database files without extension.
+     * @param mvcc             true to use multi version concurrency instead of table locks.
+     * @return connection properties for initializing this database.
+     */
+    @NotNull
+    public static Properties getH2FileDBConnection(String databaseFileName, boolean mvcc) {
+        Properties props = new Properties();
+        props.put("driver", "org.h2.Driver");
+        props.put("URL", "jdbc:h2:file:" + databaseFileName + (mvcc ? ";MVCC=TRUE" : ""));
+        props.put("user", "sa");
+        props.put("password", "");
+        return props;
+    }
+
+    /**
+     * Returns a Properties object pre-configured to create
+     * an H2 file database connecting with user "sa"
+     * password "".
+     *
+     * @param databaseFileName path of the database files without extension.
+     * @return connection properties for initializing this database.
+     */
+    @NotNull
+    public static Properties getH2FileDBConnection(String databaseFileName) {
+        return getH2FileDBConnection(databaseFileName, false);
+    }
+
+    /**
+     * Returns a Properties object pre-configured to create
+     * an Apache Derby in memory database connecting with user "sa"
+     * password "". The database is kept until the JVM exits or it is shut down.
+     *
+     * @param databaseName name of database or {@code null} to use "testdb".
+     * @return connection properties for initializing this database.
+     */
+    @NotNull
+    public static Properties getDerbyInMemoryDBConnection(@Nullable String databaseName) {
+        Properties props = new Properties();
+        props.put("driver", "org.apache.derby.jdbc.EmbeddedDriver");
+        props.put("URL", "jdbc:derby:memory:" + (databaseName == null ? "testdb" : databaseName) + ";create=true");
+        props.put("user", "sa");
+        props.put("password", "");
+        return props;
+    }
+
+    // ---------------------------
+
     /**
      * Returns connection properties for MSSQL
      *
@@ -426,63 +541,147 @@ public class DBUtils {
         return pProps.get("driver").toString().contains("DB2");
     }
 
+    /**
+     * @param pProps
+     *
+     * @return
+     */
+    public static boolean isH2(@NotNull Properties pProps) {
+        return pProps.get("driver").toString().startsWith("org.h2.");
+    }
+
+    public static boolean isDerby(@NotNull Properties pProps) {
+        return pProps.get("driver").toString().startsWith("org.apache.derby.");
+    }
+
+    /**
+     * Borrows a connection from the pool. Closing it returns it to the pool.
+     */
+    @NotNull
+    public Connection getConnection()
+            throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    /**
+     * Returns the connection pool, e.g. to share it between threads.
+     */
+    @NotNull
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
     public void shutdown()
             throws SQLException {
-        if (!connection.isClosed()) {
-            Statement st = connection.createStatement();
-
-            // db writes out to files and performs clean shuts down
-            // otherwise there will be an unclean shutdown
-            // when program ends
-            if (connection.getMetaData().getDatabaseProductName().startsWith("HSQL")) {
-                st.execute("SHUTDOWN");
+        if (!dataSource.isClosed()) {
+            Connection connection = getConnection();
+            try {
+                Statement st = connection.createStatement();
+
+                // db writes out to files and performs clean shuts down
+                // otherwise there will be an unclean shutdown
+                // when program ends
+                String productName = connection.getMetaData().getDatabaseProductName();
+                if (productName.startsWith("HSQL") || "H2".equals(productName)) {
+                    st.execute("SHUTDOWN");
+                }
+                st.close();
+            } finally {
+                connection.close();
+            }
+            dataSource.close();
+            String url = connectionProperties.getProperty("URL");
+            if (isDerby() && url.startsWith("jdbc:derby:memory:")) {
+                try {
+                    DriverManager.getConnection(url.replace(";create=true", "") + ";drop=true").close();
+                } catch (SQLException e) {
+                    // Derby reports a successful drop as an exception with SQL state 08006
+                    if (!"08006".equals(e.getSQLState())) {
+                        throw e;
+                    }
+                    logger.debug("Dropped in-memory Derby database {}", url);
+                }
             }
-            connection.close(); // if there are no other open connection
         }
     }
 
     public int getRowCount(String pTable)
             throws SQLException {
+        Connection connection = getConnection();
         Statement st = null;
         ResultSet rs = null;
         try {
-            st = connection.createStatement(); // statement objects can be reused with
-
-            // repeated calls to execute but we
-            // choose to make a new one each time
+            st = connection.createStatement();
             rs = st.executeQuery("SELECT COUNT(*) FROM " + pTable); // run the query
 
             rs.next();
             return rs.getInt(1);
         } finally {
+            if (rs != null) {
+                rs.close();
+            }
             if (st != null) {
                 st.close();
             }
+            connection.close();
         }
 
     }
 
+    /**
+     * Returns the row counts of the given tables, or of all user tables if none are given,
+     * using a single query.
+     *
+     * @see TableStatistics
+     */
+    @NotNull
+    public Map<String, Long> getRowCounts(String... pTables)
+            throws SQLException {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (TableStatistics statistics : getTableStatistics(false, pTables).values()) {
+            counts.put(statistics.getTable(), statistics.getRowCount());
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the row counts and, if requested, the content checksums of the given tables, or
+     * of all user tables if none are given.
+     *
+     * @see TableStatistics#collect(Connection, boolean, String...)
+     */
+    @NotNull
+    public Map<String, TableStatistics> getTableStatistics(boolean pChecksums, String... pTables)
+            throws SQLException {
+        Connection connection = getConnection();
+        try {
+            return TableStatistics.collect(connection, pChecksums, pTables);
+        } finally {
+            connection.close();
+        }
+    }
+
     //use for SQL command SELECT
     public void query(String expression)
             throws SQLException {
         logger.entry(expression);
+        Connection connection = getConnection();
         Statement statement = null;
         ResultSet resultSet;
-        synchronized (connection) {
-            try {
-                statement = connection.createStatement(); // statement objects can be reused with
+        try {
+            statement = connection.createStatement(); // statement objects can be reused with
 
-                // repeated calls to execute but we
-                // choose to make a new one each time
-                resultSet = statement.executeQuery(expression); // run the query
+            // repeated calls to execute but we
+            // choose to make a new one each time
+            resultSet = statement.executeQuery(expression); // run the query
 
-                // do something with the result set.
-                dump(resultSet);
-            } finally {
-                if (statement != null) {
-                    statement.close();
-                }
+            // do something with the result set.
+            dump(resultSet);
+        } finally {
+            if (statement != null) {
+                statement.close();
             }
+            connection.close();
         }
 
         // closed too
@@ -498,21 +697,19 @@ public class DBUtils {
     public void update(String expression)
             throws SQLException {
         logger.entry(expression);
+        Connection connection = getConnection();
         Statement statement = null;
-        synchronized (connection) {
-            logger.debug("Synchronizing on connection object.");
-            try {
-                statement = connection.createStatement();
-                int i = statement.executeUpdate(expression);
-                if (i == -1) {
-                    logger.warn("db error : {}", expression);
-                }
-            } finally {
-                if (statement != null) {
-                    statement.close();
-                }
+        try {
+            statement = connection.createStatement();
+            int i = statement.executeUpdate(expression);
+            if (i == -1) {
+                logger.warn("db error : {}", expression);
+            }
+        } finally {
+            if (statement != null) {
+                statement.close();
             }
-            logger.debug("Releasing lock on connection object.");
+            connection.close();
         }
         logger.exit();
     }
@@ -546,7 +743,7 @@ public class DBUtils {
             throws SQLException {
         // TODO: this should use DdlUtils or similar
         try {
-            if (!isDB2()) {
+            if (!isDB2() && !isDerby()) {
                 update(
                         " create table das_id_generator (id_space_name   varchar(60)     not null,"
                                 + "seed    numeric(19,0)   not null, batch_size      integer not null, prefix  varchar(10)     null,"
@@ -568,7 +765,7 @@ public class DBUtils {
             } catch (SQLException ex) {
                 logger.catching(ex);
             }
-            if (!isDB2()) {
+            if (!isDB2() && !isDerby()) {
                 update(
                         " create table das_id_generator (id_space_name   varchar(60)     not null,"
                                 + "seed    numeric(19,0)   not null, batch_size      integer not null, prefix  varchar(10)     null,"
@@ -588,24 +785,123 @@ public class DBUtils {
 
     public void executeSQLFile(@NotNull File pFile) {
         logger.info("Attempting to execute {}", pFile);
-        SQLFileParser parser = new SQLFileParser();
-        Collection<String> c = parser.parseSQLFile(pFile.getAbsolutePath());
-        for (String cmd : c) {
-            try {
-                if ("Oracle".equals(databaseType)) {
-                    cmd = StringUtils.replace(cmd, "numeric", "NUMBER");
-                    cmd = StringUtils.replace(cmd, "varchar ", "VARCHAR2 ");
-                    cmd = StringUtils.replace(cmd, "varchar(", "VARCHAR2(");
-                    cmd = StringUtils.replace(cmd, "binary", "RAW (250)");
+        final SQLStatementIterator statements = openSQLFile(pFile);
+        try {
+            Iterator<String> rewritten = rewriteStatements(statements);
+            while (rewritten.hasNext()) {
+                String cmd = rewritten.next();
+                try {
+                    logger.info("Executing {}", cmd);
+                    update(cmd);
+                } catch (SQLException e) {
+                    logger.catching(e);
                 }
-                logger.info("Executing {}", cmd);
-                update(cmd);
-            } catch (SQLException e) {
-                logger.catching(e);
             }
+        } finally {
+            statements.close();
+        }
+    }
+
+    /**
+     * Executes the given SQL file in bulk mode. Consecutive INSERT statements of the same shape
+     * are sent as prepared statement batches and the work is committed every
+     * {@code commitInterval} statements. Statements which fail are logged and skipped just like
+     * {@link #executeSQLFile(File)} does.
+     *
+     * @param pFile
+     *         SQL script to execute.
+     * @param batchSize
+     *         maximum number of statements per JDBC batch.
+     * @param commitInterval
+     *         number of statements per transaction, or 0 to run in the current auto commit mode.
+     *
+     * @return progress and throughput of the execution.
+     *
+     * @throws SQLException
+     *         if the work could not be committed.
+     */
+    public BatchSQLExecutor.Statistics executeSQLFile(@NotNull File pFile,
+                                                      int batchSize,
+                                                      int commitInterval)
+            throws SQLException {
+        logger.info("Attempting to execute {} in batches of {}", pFile, batchSize);
+        final SQLStatementIterator statements = openSQLFile(pFile);
+        try {
+            Connection connection = getConnection();
+            try {
+                BatchSQLExecutor executor = new BatchSQLExecutor(connection);
+                executor.setBatchSize(batchSize);
+                executor.setCommitInterval(commitInterval);
+                return executor.execute(rewriteStatements(statements));
+            } finally {
+                connection.close();
+            }
+        } finally {
+            statements.close();
         }
     }
 
+    @NotNull
+    private static SQLStatementIterator openSQLFile(@NotNull File pFile) {
+        try {
+            return new SQLFileParser().iterateSQLFile(pFile.getAbsolutePath());
+        } catch (IOException e) {
+            throw new SQLParseException(pFile.getPath(), 0, "Unable to open script", e);
+        }
+    }
+
+    @NotNull
+    private Iterator<String> rewriteStatements(@NotNull final Iterator<String> statements) {
+        if (!"Oracle".equals(databaseType)) {
+            return statements;
+        }
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return statements.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return rewriteForOracle(statements.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Replaces the generic column types used by our scripts with their Oracle counterparts in a
+     * single pass over the statement.
+     */
+    @NotNull
+    static String rewriteForOracle(@NotNull String pStatement) {
+        Matcher matcher = ORACLE_TYPES.matcher(pStatement);
+        if (!matcher.find()) {
+            return pStatement;
+        }
+        StringBuffer rewritten = new StringBuffer(pStatement.length() + 32);
+        do {
+            String type = matcher.group();
+            String replacement;
+            if ("numeric".equals(type)) {
+                replacement = "NUMBER";
+            }
+            else if ("binary".equals(type)) {
+                replacement = "RAW (250)";
+            }
+            else {
+                replacement = "VARCHAR2";
+            }
+            matcher.appendReplacement(rewritten, Matcher.quoteReplacement(replacement));
+        } while (matcher.find());
+        matcher.appendTail(rewritten);
+        return rewritten.toString();
+    }
+
     public File createFakeXADataSource(File root)
             throws IOException {
         return createFakeXADataSource(root, null);
@@ -631,4 +927,12 @@ public class DBUtils {
     public boolean isDB2() {
         return DBUtils.isDB2(connectionProperties);
     }
+
+    public boolean isH2() {
+        return DBUtils.isH2(connectionProperties);
+    }
+
+    public boolean isDerby() {
+        return DBUtils.isDerby(connectionProperties);
+    }
 }
\ No newline at end of file
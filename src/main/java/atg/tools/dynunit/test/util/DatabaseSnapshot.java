@@ -0,0 +1,602 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory copy of the complete contents of a test database, taken once after the schema has
+ * been created and the seed data imported, and restored before each test instead of dropping,
+ * re-creating and re-importing everything.
+ * <p/>
+ * The snapshot keeps the rows of every user table along with an order independent checksum of
+ * each table. {@link #restore(Connection, Collection)} truncates and reloads only the tables a
+ * test wrote to, e.g. as reported by
+ * {@link atg.tools.dynunit.service.jdbc.SQLRecorder#getWrittenTables()}, so its cost grows with
+ * what the test touched. Without that knowledge {@link #restore(Connection)} has to read
+ * every table to recompute its checksum, which costs about as much as the data in the database.
+ * Either way referential integrity is switched off while reloading. For HSQLDB and H2 the DDL
+ * of the schema is captured as well, so a snapshot can also be restored into a database which
+ * was shut down in the meantime.
+ * <p/>
+ * Tables are captured with referenced tables first, so they are deleted in reverse and reloaded
+ * in foreign key order. Other databases are supported on a best effort basis: their schema must
+ * already exist and referential integrity stays on, so restoring fails for tables referencing
+ * each other in a cycle, or for a changed table referenced by an unchanged one.
+ */
+public class DatabaseSnapshot {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final int BATCH_SIZE = 500;
+
+    private final String productName;
+
+    private final List<String> schemaScript;
+
+    private final List<TableData> tables;
+
+    private DatabaseSnapshot(String pProductName, List<String> pSchemaScript, List<TableData> pTables) {
+        productName = pProductName;
+        schemaScript = pSchemaScript;
+        tables = pTables;
+    }
+
+    /**
+     * Captures the schema and the contents of all user tables reachable through the given
+     * connection.
+     *
+     * @param pConnection
+     *         connection to the database to capture. Left open.
+     * @param pExcludedTables
+     *         names of tables which should neither be captured nor restored, ignoring case.
+     */
+    @NotNull
+    public static DatabaseSnapshot capture(@NotNull Connection pConnection, String... pExcludedTables)
+            throws SQLException {
+        final long start = System.currentTimeMillis();
+        final String productName = pConnection.getMetaData().getDatabaseProductName();
+        final Set<String> excluded = new HashSet<String>();
+        for (String table : pExcludedTables) {
+            excluded.add(table.toUpperCase(Locale.ENGLISH));
+        }
+        final List<TableData> tables = new ArrayList<TableData>();
+        for (String[] name : orderByForeignKeys(pConnection, listTables(pConnection))) {
+            if (!excluded.contains(name[1].toUpperCase(Locale.ENGLISH))) {
+                tables.add(TableData.read(pConnection, name[0], name[1]));
+            }
+        }
+        final DatabaseSnapshot snapshot = new DatabaseSnapshot(
+                productName, readSchemaScript(pConnection, productName), tables
+        );
+        logger.info(
+                "Captured {} tables of {} in {} ms",
+                tables.size(),
+                productName,
+                System.currentTimeMillis() - start
+        );
+        return snapshot;
+    }
+
+    public String getProductName() {
+        return productName;
+    }
+
+    /**
+     * Returns the qualified names of the captured tables.
+     */
+    @NotNull
+    public List<String> getTableNames() {
+        final List<String> names = new ArrayList<String>(tables.size());
+        for (TableData table : tables) {
+            names.add(table.getQualifiedName());
+        }
+        return names;
+    }
+
+    /**
+     * Restores the captured state. The schema is recreated first if any of the captured tables
+     * does not exist anymore; afterwards only tables whose contents differ from the snapshot are
+     * reloaded. Every table is read to find those, see {@link #restore(Connection, Collection)}
+     * for a cheaper alternative.
+     *
+     * @param pConnection
+     *         connection to the database to restore. Left open; committed if it is not in auto
+     *         commit mode.
+     *
+     * @return the number of tables that had to be reloaded.
+     */
+    public int restore(@NotNull Connection pConnection)
+            throws SQLException {
+        return restore(pConnection, null, true);
+    }
+
+    /**
+     * Restores the captured state assuming only the given tables were written to since the
+     * snapshot was taken or last restored. The other tables are not read at all. The schema is
+     * recreated first if any of the captured tables does not exist anymore.
+     *
+     * @param pConnection
+     *         connection to the database to restore. Left open; committed if it is not in auto
+     *         commit mode.
+     * @param pWrittenTables
+     *         names of the tables written to, with or without schema, ignoring case. Names of
+     *         tables which are not part of the snapshot are ignored.
+     *
+     * @return the number of tables that had to be reloaded.
+     */
+    public int restore(@NotNull Connection pConnection, @NotNull Collection<String> pWrittenTables)
+            throws SQLException {
+        final Set<String> written = new HashSet<String>();
+        for (String table : pWrittenTables) {
+            written.add(table.substring(table.lastIndexOf('.') + 1).toUpperCase(Locale.ENGLISH));
+        }
+        return restore(pConnection, written, false);
+    }
+
+    private int restore(Connection pConnection, @Nullable Set<String> pWrittenTables, boolean pCompare)
+            throws SQLException {
+        final long start = System.currentTimeMillis();
+        final Set<String> existing = new HashSet<String>();
+        for (String[] name : listTables(pConnection)) {
+            existing.add(qualify(name[0], name[1]));
+        }
+        boolean schemaCreated = false;
+        if (!existing.containsAll(getTableNames())) {
+            createSchema(pConnection);
+            schemaCreated = true;
+        }
+        final List<TableData> changed = new ArrayList<TableData>();
+        for (TableData table : tables) {
+            if (schemaCreated
+                || pWrittenTables != null && pWrittenTables.contains(table.name.toUpperCase(Locale.ENGLISH))
+                || pCompare && table.hasChanged(pConnection)) {
+                changed.add(table);
+            }
+        }
+        if (!changed.isEmpty()) {
+            setReferentialIntegrity(pConnection, false);
+            try {
+                // the tables are in foreign key order, delete children before parents in case
+                // integrity can't be switched off
+                for (int i = changed.size() - 1; i >= 0; i--) {
+                    changed.get(i).delete(pConnection);
+                }
+                for (TableData table : changed) {
+                    table.load(pConnection);
+                }
+            } finally {
+                setReferentialIntegrity(pConnection, true);
+            }
+        }
+        if (!pConnection.getAutoCommit()) {
+            pConnection.commit();
+        }
+        logger.info(
+                "Restored snapshot ({} of {} tables reloaded) in {} ms",
+                changed.size(),
+                tables.size(),
+                System.currentTimeMillis() - start
+        );
+        return changed.size();
+    }
+
+    private void createSchema(Connection pConnection)
+            throws SQLException {
+        logger.info("Re-creating schema from snapshot");
+        final Statement statement = pConnection.createStatement();
+        try {
+            for (String sql : schemaScript) {
+                try {
+                    statement.execute(sql);
+                } catch (SQLException e) {
+                    // e.g. the default schema or user which always exist
+                    logger.debug("Skipping schema statement {}: {}", sql, e.getMessage());
+                }
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    private boolean isHSQLDB() {
+        return productName.startsWith("HSQL");
+    }
+
+    private boolean isH2() {
+        return "H2".equals(productName);
+    }
+
+    private void setReferentialIntegrity(Connection pConnection, boolean pEnabled)
+            throws SQLException {
+        final String sql;
+        if (isHSQLDB()) {
+            sql = "SET DATABASE REFERENTIAL INTEGRITY " + (pEnabled ? "TRUE" : "FALSE");
+        } else if (isH2()) {
+            sql = "SET REFERENTIAL_INTEGRITY " + (pEnabled ? "TRUE" : "FALSE");
+        } else {
+            return;
+        }
+        final Statement statement = pConnection.createStatement();
+        try {
+            statement.execute(sql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static List<String> readSchemaScript(Connection pConnection, String pProductName)
+            throws SQLException {
+        final String sql;
+        if (pProductName.startsWith("HSQL")) {
+            sql = "SCRIPT";
+        } else if ("H2".equals(pProductName)) {
+            sql = "SCRIPT NODATA";
+        } else {
+            return Collections.emptyList();
+        }
+        final List<String> script = new ArrayList<String>();
+        final Statement statement = pConnection.createStatement();
+        try {
+            final ResultSet resultSet = statement.executeQuery(sql);
+            while (resultSet.next()) {
+                String line = resultSet.getString(1).trim();
+                if (line.endsWith(";")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                final String upper = line.toUpperCase(Locale.ENGLISH);
+                if ((upper.startsWith("CREATE ") && !upper.startsWith("CREATE USER "))
+                    || upper.startsWith("ALTER TABLE ")) {
+                    script.add(line);
+                }
+            }
+            resultSet.close();
+        } finally {
+            statement.close();
+        }
+        return script;
+    }
+
+    static List<String[]> listTables(Connection pConnection)
+            throws SQLException {
+        final List<String[]> names = new ArrayList<String[]>();
+        final ResultSet resultSet = pConnection.getMetaData().getTables(
+                null, null, "%", new String[]{ "TABLE" }
+        );
+        try {
+            while (resultSet.next()) {
+                final String schema = resultSet.getString("TABLE_SCHEM");
+                if (schema != null && isSystemSchema(schema)) {
+                    continue;
+                }
+                names.add(new String[]{ schema, resultSet.getString("TABLE_NAME") });
+            }
+        } finally {
+            resultSet.close();
+        }
+        return names;
+    }
+
+    /**
+     * Orders the tables so that referenced tables come before the tables referencing them.
+     * Tables taking part in a cycle keep the order they were listed in.
+     */
+    private static List<String[]> orderByForeignKeys(Connection pConnection, List<String[]> pTables)
+            throws SQLException {
+        final DatabaseMetaData metaData = pConnection.getMetaData();
+        final Map<String, String[]> pending = new LinkedHashMap<String, String[]>();
+        final Map<String, Set<String>> referenced = new HashMap<String, Set<String>>();
+        for (String[] name : pTables) {
+            final String table = qualify(name[0], name[1]);
+            final Set<String> parents = new HashSet<String>();
+            final ResultSet resultSet = metaData.getImportedKeys(null, name[0], name[1]);
+            try {
+                while (resultSet.next()) {
+                    parents.add(qualify(resultSet.getString("PKTABLE_SCHEM"), resultSet.getString("PKTABLE_NAME")));
+                }
+            } finally {
+                resultSet.close();
+            }
+            parents.remove(table);
+            pending.put(table, name);
+            referenced.put(table, parents);
+        }
+        final List<String[]> ordered = new ArrayList<String[]>(pTables.size());
+        while (!pending.isEmpty()) {
+            boolean progress = false;
+            final Iterator<Map.Entry<String, String[]>> iterator = pending.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<String, String[]> entry = iterator.next();
+                if (Collections.disjoint(referenced.get(entry.getKey()), pending.keySet())) {
+                    ordered.add(entry.getValue());
+                    iterator.remove();
+                    progress = true;
+                }
+            }
+            if (!progress) {
+                logger.warn("Tables {} reference each other; keeping the order they were listed in", pending.keySet());
+                ordered.addAll(pending.values());
+                break;
+            }
+        }
+        return ordered;
+    }
+
+    private static boolean isSystemSchema(String pSchema) {
+        final String schema = pSchema.toUpperCase(Locale.ENGLISH);
+        return schema.startsWith("SYS") || "INFORMATION_SCHEMA".equals(schema);
+    }
+
+    static String qualify(@Nullable String pSchema, String pTable) {
+        return pSchema == null ? pTable : pSchema + "." + pTable;
+    }
+
+    static String quote(String pIdentifier) {
+        return '"' + pIdentifier + '"';
+    }
+
+
+    /**
+     * Reads the current row, with LOBs copied into byte arrays and strings.
+     */
+    static Object[] readRow(ResultSet pResultSet, int pCount)
+            throws SQLException {
+        final Object[] row = new Object[pCount];
+        for (int i = 0; i < pCount; i++) {
+            Object value = pResultSet.getObject(i + 1);
+            // LOB locators are only valid while the result set is open
+            if (value instanceof Blob) {
+                final Blob blob = (Blob) value;
+                value = blob.getBytes(1, (int) blob.length());
+            } else if (value instanceof Clob) {
+                final Clob clob = (Clob) value;
+                value = clob.getSubString(1, (int) clob.length());
+            }
+            row[i] = value;
+        }
+        return row;
+    }
+
+    /**
+     * Order independent checksum of the rows of a table: the sum of the first eight bytes of the
+     * SHA-1 digest of each row, with the type and value of every column in the digest.
+     */
+    static class Checksum {
+
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        private final MessageDigest digest;
+
+        private long value = 0;
+
+        Checksum() {
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                // every JRE is required to provide SHA-1
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void add(Object[] pRow) {
+            for (Object column : pRow) {
+                if (column == null) {
+                    digest.update((byte) 0);
+                    continue;
+                }
+                digest.update((byte) 1);
+                update(column.getClass().getName().getBytes(UTF_8));
+                update(column instanceof byte[] ? (byte[]) column : column.toString().getBytes(UTF_8));
+            }
+            long row = 0;
+            final byte[] hash = digest.digest();
+            for (int i = 0; i < 8; i++) {
+                row = (row << 8) | (hash[i] & 0xff);
+            }
+            value += row;
+        }
+
+        long getValue() {
+            return value;
+        }
+
+        // the length keeps values apart which would otherwise run into each other
+        private void update(byte[] pBytes) {
+            final int length = pBytes.length;
+            digest.update(
+                    new byte[]{ (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length }
+            );
+            digest.update(pBytes);
+        }
+    }
+
+    /**
+     * The rows of a single table.
+     */
+    private static class TableData {
+
+        @Nullable
+        private final String schema;
+
+        private final String name;
+
+        private final String[] columns;
+
+        private final int[] types;
+
+        private final List<Object[]> rows;
+
+        private final long checksum;
+
+        private TableData(@Nullable String pSchema,
+                          String pName,
+                          String[] pColumns,
+                          int[] pTypes,
+                          List<Object[]> pRows,
+                          long pChecksum) {
+            schema = pSchema;
+            name = pName;
+            columns = pColumns;
+            types = pTypes;
+            rows = pRows;
+            checksum = pChecksum;
+        }
+
+        String getQualifiedName() {
+            return qualify(schema, name);
+        }
+
+        String getSqlName() {
+            return schema == null ? quote(name) : quote(schema) + "." + quote(name);
+        }
+
+        static TableData read(Connection pConnection, @Nullable String pSchema, String pName)
+                throws SQLException {
+            final String sqlName = pSchema == null ? quote(pName) : quote(pSchema) + "." + quote(pName);
+            final Statement statement = pConnection.createStatement();
+            try {
+                final ResultSet resultSet = statement.executeQuery("SELECT * FROM " + sqlName);
+                final ResultSetMetaData metaData = resultSet.getMetaData();
+                final int count = metaData.getColumnCount();
+                final String[] columns = new String[count];
+                final int[] types = new int[count];
+                for (int i = 0; i < count; i++) {
+                    columns[i] = metaData.getColumnName(i + 1);
+                    types[i] = metaData.getColumnType(i + 1);
+                }
+                final List<Object[]> rows = new ArrayList<Object[]>();
+                final Checksum checksum = new Checksum();
+                while (resultSet.next()) {
+                    final Object[] row = readRow(resultSet, count);
+                    rows.add(row);
+                    checksum.add(row);
+                }
+                resultSet.close();
+                return new TableData(pSchema, pName, columns, types, rows, checksum.getValue());
+            } finally {
+                statement.close();
+            }
+        }
+
+        boolean hasChanged(Connection pConnection)
+                throws SQLException {
+            final Statement statement = pConnection.createStatement();
+            try {
+                ResultSet resultSet;
+                try {
+                    resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + getSqlName());
+                } catch (SQLException e) {
+                    throw new SQLException("Table " + getQualifiedName() + " no longer exists", e);
+                }
+                resultSet.next();
+                final long rowCount = resultSet.getLong(1);
+                resultSet.close();
+                if (rowCount != rows.size()) {
+                    return true;
+                }
+                // same number of rows, only the contents can tell
+                resultSet = statement.executeQuery("SELECT * FROM " + getSqlName());
+                final Checksum current = new Checksum();
+                int count = 0;
+                while (resultSet.next()) {
+                    current.add(readRow(resultSet, columns.length));
+                    count++;
+                }
+                resultSet.close();
+                return count != rows.size() || current.getValue() != checksum;
+            } finally {
+                statement.close();
+            }
+        }
+
+        void delete(Connection pConnection)
+                throws SQLException {
+            final Statement statement = pConnection.createStatement();
+            try {
+                statement.executeUpdate("DELETE FROM " + getSqlName());
+            } finally {
+                statement.close();
+            }
+        }
+
+        void load(Connection pConnection)
+                throws SQLException {
+            if (rows.isEmpty()) {
+                return;
+            }
+            final StringBuilder sql = new StringBuilder("INSERT INTO ").append(getSqlName()).append(" (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "" : ", ").append(quote(columns[i]));
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(')');
+            final PreparedStatement statement = pConnection.prepareStatement(sql.toString());
+            try {
+                int batched = 0;
+                for (Object[] row : rows) {
+                    for (int i = 0; i < row.length; i++) {
+                        if (row[i] == null) {
+                            statement.setNull(i + 1, types[i]);
+                        } else {
+                            statement.setObject(i + 1, row[i], types[i]);
+                        }
+                    }
+                    statement.addBatch();
+                    if (++batched == BATCH_SIZE) {
+                        statement.executeBatch();
+                        batched = 0;
+                    }
+                }
+                if (batched > 0) {
+                    statement.executeBatch();
+                }
+            } finally {
+                statement.close();
+            }
+        }
+    }
+}
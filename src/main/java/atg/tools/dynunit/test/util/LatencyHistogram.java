@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size histogram of latencies, or any other non-negative longs, for computing
+ * percentiles of benchmark runs. Values below 128 are counted exactly, larger values in
+ * buckets of 1/64th of their power of two, so percentiles are accurate to about 1.6% whatever
+ * the number of values recorded.
+ * <p/>
+ * Instances are not thread safe. Give each thread its own histogram and
+ * {@link #add(LatencyHistogram) add} them up once the threads are done.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+
+    private long count;
+
+    private long sum;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max;
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     */
+    public void record(long pValue) {
+        final long value = Math.max(pValue, 0);
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds the values recorded by another histogram to this one.
+     */
+    public void add(@NotNull LatencyHistogram pOther) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += pOther.counts[i];
+        }
+        count += pOther.count;
+        sum += pOther.sum;
+        min = Math.min(min, pOther.min);
+        max = Math.max(max, pOther.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the smallest value recorded, or 0 if there are none.
+     */
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the mean of the values recorded, or 0 if there are none.
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the value below or at which the given percentage of the recorded values lie, e.g.
+     * 99.9 for the p999. The result is the largest value of its bucket, but never more than the
+     * largest value recorded.
+     *
+     * @param pPercentile
+     *         between 0 and 100.
+     *
+     * @return the value, or 0 if no values were recorded.
+     */
+    public long getValueAtPercentile(double pPercentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final double percentile = Math.min(Math.max(pPercentile, 0), 100);
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(Math.max(highestValue(i), getMin()), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Forgets all recorded values.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    static int index(long pValue) {
+        final int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(pValue) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (pValue >>> shift);
+    }
+
+    static long highestValue(int pIndex) {
+        final int shift = pIndex < 2 * SUB_BUCKETS ? 0 : (pIndex >> SUB_BUCKET_BITS) - 1;
+        final long subBucket = pIndex - ((long) shift << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -22,8 +22,10 @@ import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Properties;
 
@@ -113,6 +115,55 @@ public class RepositoryManager {
         dataSource.close();
     }
 
+    /**
+     * Captures the current contents of the test database.
+     *
+     * @param excludedTables tables which should neither be captured nor restored.
+     *
+     * @throws SQLException
+     */
+    public DatabaseSnapshot takeSnapshot(String... excludedTables)
+            throws SQLException {
+        final Connection connection = dataSource.getConnection();
+        try {
+            return DatabaseSnapshot.capture(connection, excludedTables);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Restores the test database to the given snapshot, re-creating the schema first if the
+     * in-memory database has been shut down since the snapshot was taken.
+     *
+     * @throws SQLException
+     */
+    public void restoreSnapshot(@NotNull DatabaseSnapshot snapshot)
+            throws SQLException {
+        final Connection connection = dataSource.getConnection();
+        try {
+            snapshot.restore(connection);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Restores the test database to the given snapshot, reloading only the given tables unless
+     * the schema had to be re-created.
+     *
+     * @throws SQLException
+     */
+    public void restoreSnapshot(@NotNull DatabaseSnapshot snapshot, @NotNull Collection<String> writtenTables)
+            throws SQLException {
+        final Connection connection = dataSource.getConnection();
+        try {
+            snapshot.restore(connection, writtenTables);
+        } finally {
+            connection.close();
+        }
+    }
+
     /**
      * @throws SQLException
      */
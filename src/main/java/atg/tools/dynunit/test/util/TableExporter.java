@@ -0,0 +1,830 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams the rows of database tables to files and back, to capture production sized data sets
+ * and load them into test databases. Rows are read with a forward only cursor of
+ * {@link #getFetchSize() fetchSize} rows and written as they come, and imported in JDBC batches,
+ * so memory use does not grow with the size of a table.
+ * <p/>
+ * Two {@link Format formats} are supported:
+ * <ul>
+ * <li>{@link Format#CSV} - RFC 4180 with a header line of column names. An empty unquoted field
+ * is NULL, <code>""</code> an empty string. Binary values are hex encoded, dates and timestamps
+ * in JDBC escape format.
+ * <li>{@link Format#BINARY} - a compact typed format, several times faster to write and read.
+ * </ul>
+ * Columns are matched by name on import, so the target table may order its columns differently
+ * or have additional ones. CSV fields are parsed according to the column types of the target
+ * table.
+ * Instances are not thread safe.
+ */
+public class TableExporter {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x44555442;
+
+    private static final int VERSION = 1;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // value tags of the binary format
+    private static final byte NULL = 0;
+
+    private static final byte STRING = 1;
+
+    private static final byte LONG = 2;
+
+    private static final byte DOUBLE = 3;
+
+    private static final byte DECIMAL = 4;
+
+    private static final byte TIMESTAMP = 5;
+
+    private static final byte DATE = 6;
+
+    private static final byte TIME = 7;
+
+    private static final byte BOOLEAN = 8;
+
+    private static final byte BYTES = 9;
+
+    public static enum Format {
+        CSV(".csv"), BINARY(".bin");
+
+        private final String extension;
+
+        private Format(String pExtension) {
+            extension = pExtension;
+        }
+
+        /**
+         * Returns the file extension including the dot.
+         */
+        @NotNull
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private Format format = Format.CSV;
+
+    private int fetchSize = 1000;
+
+    private int batchSize = 500;
+
+    private int commitInterval = 10000;
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the format written by the export methods and expected by the import methods.
+     * Default: CSV
+     */
+    public void setFormat(@NotNull Format pFormat) {
+        format = pFormat;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Sets the number of rows fetched from the database at a time while exporting.
+     * Default: 1000
+     */
+    public void setFetchSize(int pFetchSize) {
+        fetchSize = pFetchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of rows inserted per JDBC batch while importing. Default: 500
+     */
+    public void setBatchSize(int pBatchSize) {
+        batchSize = pBatchSize;
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    /**
+     * Sets the number of rows imported per transaction, or 0 to leave auto commit alone.
+     * Default: 10000
+     */
+    public void setCommitInterval(int pCommitInterval) {
+        commitInterval = pCommitInterval;
+    }
+
+    // -----------------------------
+
+    /**
+     * Exports the table into a file named after it in the directory.
+     *
+     * @return the file written.
+     */
+    @NotNull
+    public File exportTable(@NotNull Connection pConnection, @NotNull String pTable, @NotNull File pDirectory)
+            throws SQLException, IOException {
+        final File file = getFile(pDirectory, pTable);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            exportTable(pConnection, pTable, out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Writes all rows of the table to the stream, which is left open.
+     *
+     * @return the number of rows written.
+     */
+    public long exportTable(@NotNull Connection pConnection, @NotNull String pTable, @NotNull OutputStream pOut)
+            throws SQLException, IOException {
+        final long start = System.currentTimeMillis();
+        final boolean autoCommit = pConnection.getAutoCommit();
+        if (autoCommit) {
+            // some drivers only honour the fetch size inside a transaction
+            pConnection.setAutoCommit(false);
+        }
+        final Statement statement = pConnection.createStatement(
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY
+        );
+        long rows = 0;
+        boolean success = false;
+        try {
+            statement.setFetchSize(fetchSize);
+            final ResultSet resultSet = statement.executeQuery("SELECT * FROM " + pTable);
+            final RowWriter writer = format == Format.CSV
+                                     ? new CsvWriter(pOut)
+                                     : new BinaryWriter(pOut);
+            final ResultSetMetaData metaData = resultSet.getMetaData();
+            final String[] names = new String[metaData.getColumnCount()];
+            final int[] types = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = metaData.getColumnName(i + 1);
+                types[i] = metaData.getColumnType(i + 1);
+            }
+            writer.writeHeader(names, types);
+            final Object[] values = new Object[names.length];
+            while (resultSet.next()) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = getValue(resultSet, i + 1, types[i]);
+                }
+                writer.writeRow(values);
+                rows++;
+            }
+            writer.finish();
+            resultSet.close();
+            success = true;
+        } finally {
+            statement.close();
+            if (autoCommit) {
+                if (success) {
+                    pConnection.commit();
+                } else {
+                    pConnection.rollback();
+                }
+                pConnection.setAutoCommit(true);
+            }
+        }
+        logger.info("Exported {} rows of {} in {} ms", rows, pTable, System.currentTimeMillis() - start);
+        return rows;
+    }
+
+    /**
+     * Imports the file named after the table in the directory.
+     *
+     * @return the number of rows inserted.
+     */
+    public long importTable(@NotNull Connection pConnection, @NotNull String pTable, @NotNull File pDirectory)
+            throws SQLException, IOException {
+        final InputStream in = new FileInputStream(getFile(pDirectory, pTable));
+        try {
+            return importTable(pConnection, pTable, in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Inserts the rows read from the stream into the table, which must exist. The stream is
+     * left open.
+     *
+     * @return the number of rows inserted.
+     *
+     * @throws IOException
+     *         if the stream is not in the expected format.
+     */
+    public long importTable(@NotNull Connection pConnection, @NotNull String pTable, @NotNull InputStream pIn)
+            throws SQLException, IOException {
+        final long start = System.currentTimeMillis();
+        final RowReader reader = format == Format.CSV
+                                 ? new CsvReader(pIn)
+                                 : new BinaryReader(pIn);
+        final String[] names = reader.readHeader();
+        final int[] types = getColumnTypes(pConnection, pTable, names);
+
+        final StringBuilder sql = new StringBuilder("INSERT INTO ").append(pTable).append(" (");
+        for (int i = 0; i < names.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(names[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < names.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+
+        final boolean autoCommit = pConnection.getAutoCommit();
+        if (commitInterval > 0) {
+            pConnection.setAutoCommit(false);
+        }
+        final PreparedStatement statement = pConnection.prepareStatement(sql.toString());
+        long rows = 0;
+        int batched = 0;
+        try {
+            final Object[] values = new Object[names.length];
+            while (reader.readRow(values, types)) {
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i] == null) {
+                        statement.setNull(i + 1, types[i]);
+                    } else {
+                        statement.setObject(i + 1, values[i]);
+                    }
+                }
+                statement.addBatch();
+                batched++;
+                rows++;
+                final boolean commit = commitInterval > 0 && rows % commitInterval == 0;
+                if (batched == batchSize || commit) {
+                    statement.executeBatch();
+                    batched = 0;
+                }
+                if (commit) {
+                    pConnection.commit();
+                }
+            }
+            if (batched > 0) {
+                statement.executeBatch();
+            }
+            if (commitInterval > 0) {
+                pConnection.commit();
+            }
+        } catch (SQLException e) {
+            if (commitInterval > 0) {
+                pConnection.rollback();
+            }
+            throw e;
+        } finally {
+            statement.close();
+            pConnection.setAutoCommit(autoCommit);
+        }
+        logger.info("Imported {} rows into {} in {} ms", rows, pTable, System.currentTimeMillis() - start);
+        return rows;
+    }
+
+    /**
+     * Returns the file the table is exported to in the directory.
+     */
+    @NotNull
+    public File getFile(@NotNull File pDirectory, @NotNull String pTable) {
+        return new File(pDirectory, pTable + format.getExtension());
+    }
+
+    // -----------------------------
+
+    /**
+     * Returns the types of the named columns of the table.
+     */
+    private static int[] getColumnTypes(Connection pConnection, String pTable, String[] pNames)
+            throws SQLException {
+        final Statement statement = pConnection.createStatement();
+        try {
+            final ResultSetMetaData metaData = statement.executeQuery("SELECT * FROM " + pTable + " WHERE 1 = 0")
+                                                        .getMetaData();
+            final int[] types = new int[pNames.length];
+            for (int i = 0; i < pNames.length; i++) {
+                types[i] = Types.OTHER;
+                for (int column = 1; column <= metaData.getColumnCount(); column++) {
+                    if (metaData.getColumnName(column).equalsIgnoreCase(pNames[i])) {
+                        types[i] = metaData.getColumnType(column);
+                    }
+                }
+                if (types[i] == Types.OTHER) {
+                    throw new SQLException("No column " + pNames[i] + " in " + pTable);
+                }
+            }
+            return types;
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Nullable
+    private static Object getValue(ResultSet pResultSet, int pColumn, int pType)
+            throws SQLException {
+        final Object value;
+        switch (pType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                value = pResultSet.getLong(pColumn);
+                break;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                value = pResultSet.getDouble(pColumn);
+                break;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                value = pResultSet.getBigDecimal(pColumn);
+                break;
+            case Types.DATE:
+                value = pResultSet.getDate(pColumn);
+                break;
+            case Types.TIME:
+                value = pResultSet.getTime(pColumn);
+                break;
+            case Types.TIMESTAMP:
+                value = pResultSet.getTimestamp(pColumn);
+                break;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                value = pResultSet.getBoolean(pColumn);
+                break;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                value = pResultSet.getBytes(pColumn);
+                break;
+            default:
+                value = pResultSet.getString(pColumn);
+        }
+        return pResultSet.wasNull() ? null : value;
+    }
+
+    /**
+     * Converts a CSV field to a value for a column of the given type.
+     */
+    @NotNull
+    static Object parse(@NotNull String pText, int pType) {
+        switch (pType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return Long.valueOf(pText);
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return Double.valueOf(pText);
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return new BigDecimal(pText);
+            case Types.DATE:
+                return Date.valueOf(pText);
+            case Types.TIME:
+                return Time.valueOf(pText);
+            case Types.TIMESTAMP:
+                return Timestamp.valueOf(pText);
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return Boolean.valueOf(pText);
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return fromHex(pText);
+            default:
+                return pText;
+        }
+    }
+
+    /**
+     * Formats a value as CSV field content, before quoting.
+     */
+    @NotNull
+    static String format(@NotNull Object pValue) {
+        if (pValue instanceof byte[]) {
+            final byte[] bytes = (byte[]) pValue;
+            final char[] hex = new char[bytes.length * 2];
+            for (int i = 0; i < bytes.length; i++) {
+                hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+            }
+            return new String(hex);
+        }
+        if (pValue instanceof BigDecimal) {
+            return ((BigDecimal) pValue).toPlainString();
+        }
+        return pValue.toString();
+    }
+
+    private static byte[] fromHex(String pText) {
+        final byte[] bytes = new byte[pText.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(pText.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    // -----------------------------
+
+    private interface RowWriter {
+
+        void writeHeader(String[] pNames, int[] pTypes)
+                throws IOException;
+
+        void writeRow(Object[] pValues)
+                throws IOException;
+
+        void finish()
+                throws IOException;
+    }
+
+    private interface RowReader {
+
+        @NotNull
+        String[] readHeader()
+                throws IOException;
+
+        /**
+         * Reads the next row into pValues, converted to the given column types.
+         *
+         * @return false at the end of the stream.
+         */
+        boolean readRow(Object[] pValues, int[] pTypes)
+                throws IOException;
+    }
+
+    private static class CsvWriter
+            implements RowWriter {
+
+        private final Writer out;
+
+        CsvWriter(OutputStream pOut) {
+            out = new BufferedWriter(new OutputStreamWriter(pOut, UTF_8), 65536);
+        }
+
+        @Override
+        public void writeHeader(String[] pNames, int[] pTypes)
+                throws IOException {
+            writeRow(pNames);
+        }
+
+        @Override
+        public void writeRow(Object[] pValues)
+                throws IOException {
+            for (int i = 0; i < pValues.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                if (pValues[i] == null) {
+                    continue;
+                }
+                final String text = format(pValues[i]);
+                if (text.length() == 0 || needsQuotes(text)) {
+                    out.write('"');
+                    out.write(text.replace("\"", "\"\""));
+                    out.write('"');
+                } else {
+                    out.write(text);
+                }
+            }
+            out.write("\r\n");
+        }
+
+        @Override
+        public void finish()
+                throws IOException {
+            out.flush();
+        }
+
+        private static boolean needsQuotes(String pText) {
+            for (int i = 0; i < pText.length(); i++) {
+                final char c = pText.charAt(i);
+                if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class CsvReader
+            implements RowReader {
+
+        private final Reader in;
+
+        private final StringBuilder field = new StringBuilder();
+
+        private final List<String> record = new ArrayList<String>();
+
+        CsvReader(InputStream pIn) {
+            in = new BufferedReader(new InputStreamReader(pIn, UTF_8), 65536);
+        }
+
+        @NotNull
+        @Override
+        public String[] readHeader()
+                throws IOException {
+            if (!readRecord()) {
+                throw new EOFException("No CSV header");
+            }
+            return record.toArray(new String[record.size()]);
+        }
+
+        @Override
+        public boolean readRow(Object[] pValues, int[] pTypes)
+                throws IOException {
+            if (!readRecord()) {
+                return false;
+            }
+            if (record.size() != pValues.length) {
+                throw new IOException("Expected " + pValues.length + " fields but got " + record.size());
+            }
+            for (int i = 0; i < pValues.length; i++) {
+                final String text = record.get(i);
+                try {
+                    pValues[i] = text == null ? null : parse(text, pTypes[i]);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Cannot convert '" + text + "' to SQL type " + pTypes[i], e);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads the fields of the next record, null for empty unquoted ones.
+         *
+         * @return false at the end of the stream.
+         */
+        private boolean readRecord()
+                throws IOException {
+            record.clear();
+            int c = in.read();
+            if (c < 0) {
+                return false;
+            }
+            while (true) {
+                field.setLength(0);
+                boolean quoted = false;
+                if (c == '"') {
+                    quoted = true;
+                    while (true) {
+                        c = in.read();
+                        if (c < 0) {
+                            throw new EOFException("Unterminated quoted CSV field");
+                        }
+                        if (c == '"') {
+                            c = in.read();
+                            if (c != '"') {
+                                break;
+                            }
+                        }
+                        field.append((char) c);
+                    }
+                }
+                while (c >= 0 && c != ',' && c != '\r' && c != '\n') {
+                    field.append((char) c);
+                    c = in.read();
+                }
+                record.add(quoted || field.length() > 0 ? field.toString() : null);
+                if (c == ',') {
+                    c = in.read();
+                    continue;
+                }
+                if (c == '\r') {
+                    in.read();
+                }
+                return true;
+            }
+        }
+    }
+
+    private static class BinaryWriter
+            implements RowWriter {
+
+        private final DataOutputStream out;
+
+        BinaryWriter(OutputStream pOut) {
+            out = new DataOutputStream(new BufferedOutputStream(pOut, 65536));
+        }
+
+        @Override
+        public void writeHeader(String[] pNames, int[] pTypes)
+                throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(pNames.length);
+            for (int i = 0; i < pNames.length; i++) {
+                out.writeUTF(pNames[i]);
+                out.writeInt(pTypes[i]);
+            }
+        }
+
+        @Override
+        public void writeRow(Object[] pValues)
+                throws IOException {
+            out.writeBoolean(true);
+            for (Object value : pValues) {
+                if (value == null) {
+                    out.writeByte(NULL);
+                } else if (value instanceof String) {
+                    out.writeByte(STRING);
+                    writeBytes(((String) value).getBytes(UTF_8));
+                } else if (value instanceof Long) {
+                    out.writeByte(LONG);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Double) {
+                    out.writeByte(DOUBLE);
+                    out.writeDouble((Double) value);
+                } else if (value instanceof BigDecimal) {
+                    out.writeByte(DECIMAL);
+                    out.writeUTF(((BigDecimal) value).toString());
+                } else if (value instanceof Timestamp) {
+                    out.writeByte(TIMESTAMP);
+                    out.writeLong(((Timestamp) value).getTime());
+                    out.writeInt(((Timestamp) value).getNanos());
+                } else if (value instanceof Date) {
+                    out.writeByte(DATE);
+                    out.writeLong(((Date) value).getTime());
+                } else if (value instanceof Time) {
+                    out.writeByte(TIME);
+                    out.writeLong(((Time) value).getTime());
+                } else if (value instanceof Boolean) {
+                    out.writeByte(BOOLEAN);
+                    out.writeBoolean((Boolean) value);
+                } else if (value instanceof byte[]) {
+                    out.writeByte(BYTES);
+                    writeBytes((byte[]) value);
+                } else {
+                    throw new IOException("Unsupported value type " + value.getClass().getName());
+                }
+            }
+        }
+
+        @Override
+        public void finish()
+                throws IOException {
+            out.writeBoolean(false);
+            out.flush();
+        }
+
+        private void writeBytes(byte[] pBytes)
+                throws IOException {
+            out.writeInt(pBytes.length);
+            out.write(pBytes);
+        }
+    }
+
+    private static class BinaryReader
+            implements RowReader {
+
+        private final DataInputStream in;
+
+        BinaryReader(InputStream pIn) {
+            in = new DataInputStream(new BufferedInputStream(pIn, 65536));
+        }
+
+        @NotNull
+        @Override
+        public String[] readHeader()
+                throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a binary table export");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary table export version " + version);
+            }
+            final String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+                // the type of the exported column, the target column's type is used instead
+                in.readInt();
+            }
+            return names;
+        }
+
+        @Override
+        public boolean readRow(Object[] pValues, int[] pTypes)
+                throws IOException {
+            if (!in.readBoolean()) {
+                return false;
+            }
+            for (int i = 0; i < pValues.length; i++) {
+                final byte tag = in.readByte();
+                switch (tag) {
+                    case NULL:
+                        pValues[i] = null;
+                        break;
+                    case STRING:
+                        pValues[i] = new String(readBytes(), UTF_8);
+                        break;
+                    case LONG:
+                        pValues[i] = in.readLong();
+                        break;
+                    case DOUBLE:
+                        pValues[i] = in.readDouble();
+                        break;
+                    case DECIMAL:
+                        pValues[i] = new BigDecimal(in.readUTF());
+                        break;
+                    case TIMESTAMP:
+                        final Timestamp timestamp = new Timestamp(in.readLong());
+                        timestamp.setNanos(in.readInt());
+                        pValues[i] = timestamp;
+                        break;
+                    case DATE:
+                        pValues[i] = new Date(in.readLong());
+                        break;
+                    case TIME:
+                        pValues[i] = new Time(in.readLong());
+                        break;
+                    case BOOLEAN:
+                        pValues[i] = in.readBoolean();
+                        break;
+                    case BYTES:
+                        pValues[i] = readBytes();
+                        break;
+                    default:
+                        throw new IOException("Unknown value tag " + tag);
+                }
+            }
+            return true;
+        }
+
+        private byte[] readBytes()
+                throws IOException {
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+}
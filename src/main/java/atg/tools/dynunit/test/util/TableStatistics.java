@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Row count and, optionally, content checksum of a table, collected for many tables at once so
+ * tests can cheaply verify or compare the state of a database.
+ * <p/>
+ * The tables are looked up in the database metadata once. Without checksums the row counts of
+ * all tables are read with a single {@code UNION ALL} query per {@value #TABLES_PER_QUERY}
+ * tables; with checksums every table is scanned once and its rows are counted while computing
+ * the same order independent checksum {@link DatabaseSnapshot} uses.
+ * <p/>
+ * Instances are equal if their tables, row counts and checksums are, so maps returned by
+ * {@link #collect(Connection, boolean, String...)} at two points in time can be compared
+ * directly.
+ */
+public final class TableStatistics {
+
+    static final int TABLES_PER_QUERY = 100;
+
+    private final String table;
+
+    private final long rowCount;
+
+    @Nullable
+    private final Long checksum;
+
+    TableStatistics(@NotNull String pTable, long pRowCount, @Nullable Long pChecksum) {
+        table = pTable;
+        rowCount = pRowCount;
+        checksum = pChecksum;
+    }
+
+    /**
+     * Collects the statistics of the given tables, or of all user tables if none are given.
+     *
+     * @param pConnection
+     *         connection to the database. Left open.
+     * @param pChecksums
+     *         true to compute content checksums as well, which reads every row.
+     * @param pTables
+     *         names of the tables, ignoring case.
+     *
+     * @return the statistics keyed by table name, as given or as reported by the database, in
+     *         the order of the tables.
+     *
+     * @throws SQLException
+     *         if a given table does not exist or cannot be read.
+     */
+    @NotNull
+    public static Map<String, TableStatistics> collect(@NotNull Connection pConnection,
+                                                       boolean pChecksums,
+                                                       String... pTables)
+            throws SQLException {
+        final List<String> keys = new ArrayList<String>();
+        final List<String> sqlNames = new ArrayList<String>();
+        resolveTables(pConnection, pTables, keys, sqlNames);
+
+        final Map<String, TableStatistics> statistics = new LinkedHashMap<String, TableStatistics>();
+        if (pChecksums) {
+            for (int i = 0; i < keys.size(); i++) {
+                statistics.put(keys.get(i), scan(pConnection, keys.get(i), sqlNames.get(i)));
+            }
+            return statistics;
+        }
+
+        final long[] counts = new long[keys.size()];
+        final Statement statement = pConnection.createStatement();
+        try {
+            for (int first = 0; first < keys.size(); first += TABLES_PER_QUERY) {
+                final int last = Math.min(first + TABLES_PER_QUERY, keys.size());
+                final StringBuilder sql = new StringBuilder();
+                for (int i = first; i < last; i++) {
+                    if (i > first) {
+                        sql.append(" UNION ALL ");
+                    }
+                    sql.append("SELECT ").append(i).append(", COUNT(*) FROM ").append(sqlNames.get(i));
+                }
+                final ResultSet resultSet = statement.executeQuery(sql.toString());
+                try {
+                    while (resultSet.next()) {
+                        counts[resultSet.getInt(1)] = resultSet.getLong(2);
+                    }
+                } finally {
+                    resultSet.close();
+                }
+            }
+        } finally {
+            statement.close();
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            statistics.put(keys.get(i), new TableStatistics(keys.get(i), counts[i], null));
+        }
+        return statistics;
+    }
+
+    @NotNull
+    public String getTable() {
+        return table;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the order independent checksum of the table's rows, or null if it was not
+     * computed.
+     */
+    @Nullable
+    public Long getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TableStatistics)) {
+            return false;
+        }
+        final TableStatistics other = (TableStatistics) o;
+        return rowCount == other.rowCount
+               && table.equals(other.table)
+               && (checksum == null ? other.checksum == null : checksum.equals(other.checksum));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * table.hashCode() + (int) (rowCount ^ (rowCount >>> 32)))
+               + (checksum == null ? 0 : checksum.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return table + "[rows=" + rowCount + (checksum == null ? "" : ", checksum=" + checksum) + ']';
+    }
+
+    private static TableStatistics scan(Connection pConnection, String pKey, String pSqlName)
+            throws SQLException {
+        final Statement statement = pConnection.createStatement();
+        try {
+            final ResultSet resultSet = statement.executeQuery("SELECT * FROM " + pSqlName);
+            try {
+                final int columns = resultSet.getMetaData().getColumnCount();
+                long rows = 0;
+                final DatabaseSnapshot.Checksum checksum = new DatabaseSnapshot.Checksum();
+                while (resultSet.next()) {
+                    checksum.add(DatabaseSnapshot.readRow(resultSet, columns));
+                    rows++;
+                }
+                return new TableStatistics(pKey, rows, checksum.getValue());
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Looks the tables up in the metadata and adds their keys and quoted SQL names.
+     */
+    private static void resolveTables(Connection pConnection,
+                                      String[] pTables,
+                                      List<String> pKeys,
+                                      List<String> pSqlNames)
+            throws SQLException {
+        final List<String[]> existing = DatabaseSnapshot.listTables(pConnection);
+        if (pTables.length == 0) {
+            for (String[] name : existing) {
+                pKeys.add(name[1]);
+                pSqlNames.add(sqlName(name));
+            }
+            return;
+        }
+        final Map<String, String[]> byName = new HashMap<String, String[]>();
+        for (String[] name : existing) {
+            byName.put(name[1].toUpperCase(Locale.ENGLISH), name);
+            byName.put(DatabaseSnapshot.qualify(name[0], name[1]).toUpperCase(Locale.ENGLISH), name);
+        }
+        for (String table : pTables) {
+            final String[] name = byName.get(table.toUpperCase(Locale.ENGLISH));
+            if (name == null) {
+                throw new SQLException("Table " + table + " does not exist");
+            }
+            pKeys.add(table);
+            pSqlNames.add(sqlName(name));
+        }
+    }
+
+    private static String sqlName(String[] pName) {
+        return pName[0] == null
+               ? DatabaseSnapshot.quote(pName[1])
+               : DatabaseSnapshot.quote(pName[0]) + "." + DatabaseSnapshot.quote(pName[1]);
+    }
+}
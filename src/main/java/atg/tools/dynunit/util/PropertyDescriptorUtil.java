@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.util;
+
+import atg.beans.DynamicPropertyDescriptor;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.beans.PropertyEditor;
+
+/**
+ * Utility methods to inspect the property descriptors of repository item descriptors.
+ */
+public final class PropertyDescriptorUtil {
+
+    private static final Logger logger = LogManager.getLogger();
+
+    private PropertyDescriptorUtil() {
+    }
+
+    /**
+     * Returns the enumerated values of the property, or null if there are none. The tags of a
+     * boolean property are not considered enumerated values.
+     */
+    @Nullable
+    public static String[] getEnumeratedValues(@Nullable DynamicPropertyDescriptor pDescriptor) {
+        if (pDescriptor == null) {
+            return null;
+        }
+        PropertyEditor pe = getPropertyEditor(pDescriptor);
+        String[] ret = (pe == null) ? null : pe.getTags();
+
+        // make sure it's not just a boolean value
+        Class<?> type = pDescriptor.getPropertyType();
+        if ((type == Boolean.class || type == Boolean.TYPE)
+            && ret != null
+            && ret.length == 2
+            && (("true".equals(ret[0]) && "false".equals(ret[1]))
+                || ("false".equals(ret[0]) && "true".equals(ret[1])))) {
+            return null;
+        } else {
+            return ret;
+        }
+    }
+
+    /**
+     * Returns an instance of the property editor, null if there is no property editor.
+     */
+    @Nullable
+    public static PropertyEditor getPropertyEditor(@Nullable DynamicPropertyDescriptor pDescriptor) {
+        if (pDescriptor == null) {
+            return null;
+        }
+        Class<?> propertyEditorClass = pDescriptor.getPropertyEditorClass();
+        if (propertyEditorClass == null) {
+            return pDescriptor.getUIPropertyEditor();
+        }
+        Object propertyEditor = null;
+        try {
+            propertyEditor = propertyEditorClass.newInstance();
+        } catch (InstantiationException e) {
+            logger.catching(Level.ERROR, e);
+        } catch (IllegalAccessException e) {
+            logger.catching(Level.ERROR, e);
+        }
+        if (propertyEditor instanceof PropertyEditor) {
+            return (PropertyEditor) propertyEditor;
+        }
+        return null;
+    }
+}
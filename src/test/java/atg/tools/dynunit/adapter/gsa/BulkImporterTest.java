@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.adapter.gsa.GSARepository;
+import atg.repository.RepositoryItem;
+import atg.tools.dynunit.test.AtgDustCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Bulk imports into a repository with an enumerated sub-type property, dates and binary data,
+ * against an in-memory HSQL database.
+ */
+public class BulkImporterTest
+        extends AtgDustCase {
+
+    private GSARepository repository;
+
+    @Override
+    public void setUp()
+            throws Exception {
+        super.setUp();
+        copyConfigurationFiles(
+                new String[]{
+                        "src/test/resources/config".replace("/", File.separator)
+                }, "target/test-classes/config".replace("/", File.separator), ".svn"
+        );
+        prepareRepository("/test/BulkImportRepository", "/test/bulkImportRepository.xml");
+        repository = (GSARepository) resolveNucleusComponent("/test/BulkImportRepository");
+        assertNotNull(repository);
+    }
+
+    public void testSubTypeColumn()
+            throws Exception {
+        final int count = new BulkImporter(repository).importFiles(
+                write(
+                        "<add-item item-descriptor=\"product\" id=\"p1\">"
+                        + "<set-property name=\"name\">plain</set-property></add-item>"
+                        + "<add-item item-descriptor=\"shirt\" id=\"s1\">"
+                        + "<set-property name=\"name\">shirt</set-property>"
+                        + "<set-property name=\"size\">XL</set-property>"
+                        + "<set-property name=\"created\">2013-03-01 12:00:00</set-property></add-item>"
+                )
+        );
+        assertEquals(2, count);
+        final RepositoryItem shirt = repository.getItem("s1", "product");
+        assertNotNull(shirt);
+        assertEquals("shirt", shirt.getItemDescriptor().getItemDescriptorName());
+        assertEquals("XL", shirt.getPropertyValue("size"));
+        assertNotNull(shirt.getPropertyValue("created"));
+        assertEquals("product", repository.getItem("p1", "product").getItemDescriptor().getItemDescriptorName());
+    }
+
+    public void testEnumeratedPropertyIsUnsupported()
+            throws Exception {
+        assertUnsupported(
+                "<add-item item-descriptor=\"product\" id=\"p1\">"
+                + "<set-property name=\"status\">active</set-property></add-item>"
+        );
+    }
+
+    public void testBinaryPropertyIsUnsupported()
+            throws Exception {
+        assertUnsupported(
+                "<add-item item-descriptor=\"product\" id=\"p1\">"
+                + "<set-property name=\"image\">00ff</set-property></add-item>"
+        );
+    }
+
+    public void testUnparsableDateIsUnsupported()
+            throws Exception {
+        assertUnsupported(
+                "<add-item item-descriptor=\"product\" id=\"p1\">"
+                + "<set-property name=\"created\">yesterday</set-property></add-item>"
+        );
+    }
+
+    /**
+     * Asserts that the second item of the file is rejected and that the first one, which could
+     * be imported, has not been written either.
+     */
+    private void assertUnsupported(String pItem)
+            throws Exception {
+        final String file = write(
+                "<add-item item-descriptor=\"product\" id=\"ok\">"
+                + "<set-property name=\"name\">fine</set-property></add-item>" + pItem
+        );
+        try {
+            new BulkImporter(repository).importFiles(file);
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected, the caller falls back to the TemplateParser
+        }
+        assertEquals(0, countRows("bulk_product"));
+    }
+
+    private static String write(String pItems)
+            throws IOException {
+        final File file = File.createTempFile("bulk", ".xml");
+        file.deleteOnExit();
+        FileUtils.writeStringToFile(
+                file, "<gsa-template><import-items>" + pItems + "</import-items></gsa-template>", "UTF-8"
+        );
+        return file.getPath();
+    }
+
+    private int countRows(String pTable)
+            throws SQLException {
+        final Connection connection = repository.getDataSource().getConnection();
+        try {
+            final Statement statement = connection.createStatement();
+            final ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + pTable);
+            resultSet.next();
+            return resultSet.getInt(1);
+        } finally {
+            connection.close();
+        }
+    }
+}
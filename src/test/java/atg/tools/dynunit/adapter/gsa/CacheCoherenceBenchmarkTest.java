@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class CacheCoherenceBenchmarkTest {
+
+    @Test
+    public void testStaleness() {
+        final CacheCoherenceBenchmark.Version before = new CacheCoherenceBenchmark.Version(5, 0);
+        assertThat(CacheCoherenceBenchmark.isStale("5", before), is(false));
+        assertThat(CacheCoherenceBenchmark.isStale("4", before), is(true));
+        assertThat(CacheCoherenceBenchmark.isStale(null, before), is(true));
+    }
+
+    @Test
+    public void testVersionsCommittedDuringTheReadAreNotStale() {
+        // versions 6 and 7 were both committed while reading, the read returned the first of them
+        final CacheCoherenceBenchmark.Version before = new CacheCoherenceBenchmark.Version(5, 0);
+        assertThat(CacheCoherenceBenchmark.isStale("6", before), is(false));
+        assertThat(CacheCoherenceBenchmark.isStale("7", before), is(false));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.repository.RepositoryItem;
+import atg.repository.RepositoryView;
+import atg.tools.dynunit.service.jdbc.RecordingDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.hsqldb;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class CacheMonitorTest {
+
+    private CacheMonitor monitor;
+
+    private Connection connection;
+
+    @Before
+    public void setUp()
+            throws Exception {
+        final RecordingDataSource dataSource = new RecordingDataSource(hsqldb("cachemonitortest"));
+        monitor = new CacheMonitor(dataSource.getRecorder());
+        connection = dataSource.getConnection();
+    }
+
+    @After
+    public void tearDown()
+            throws Exception {
+        connection.close();
+    }
+
+    @Test
+    public void testHitsMissesAndEvictions()
+            throws Exception {
+        access(true, "u1");
+        access(false, "u1");
+        access(false, "u1");
+        access(true, "u2");
+        access(true, "u1");
+
+        final CacheStatistics.Counts user = monitor.snapshot().getItemCache("user");
+        assertThat(user.getHits(), is(2L));
+        assertThat(user.getMisses(), is(3L));
+        assertThat(user.getEvictions(), is(1L));
+
+        monitor.reset();
+        access(true, "u1");
+        assertThat(monitor.snapshot().getItemCache("user").getEvictions(), is(0L));
+    }
+
+    @Test
+    public void testBatchLookup()
+            throws Exception {
+        access(true, "u1", "u2", "u3");
+        access(false, "u1", "u2");
+
+        final CacheStatistics.Counts user = monitor.snapshot().getItemCache("user");
+        assertThat(user.getMisses(), is(3L));
+        assertThat(user.getHits(), is(2L));
+    }
+
+    @Test
+    public void testNestedAccessIsCountedOnce()
+            throws Exception {
+        final CacheMonitor.Access outer = monitor.begin();
+        try {
+            final CacheMonitor.Access inner = monitor.begin();
+            try {
+                assertThat(inner, is(nullValue()));
+                execute();
+                monitor.itemsAccessed(inner, "user", "u1");
+            } finally {
+                monitor.end(inner);
+            }
+            monitor.itemsAccessed(outer, "user", "u1");
+        } finally {
+            monitor.end(outer);
+        }
+        access(false, "u1");
+
+        final CacheStatistics.Counts user = monitor.snapshot().getItemCache("user");
+        assertThat(user.getMisses(), is(1L));
+        assertThat(user.getHits(), is(1L));
+    }
+
+    @Test
+    public void testViewsAreOnlyReplacedWhenMonitoringQueries()
+            throws Exception {
+        final RepositoryView view = (RepositoryView) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[]{ RepositoryView.class, Closeable.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if ( method.getName().equals("executeQuery") ) {
+                            execute();
+                            return new RepositoryItem[0];
+                        }
+                        return null;
+                    }
+                }
+        );
+        assertThat(monitor.monitor(view, "user"), is(sameInstance(view)));
+
+        monitor.setMonitorQueries(true);
+        final RepositoryView monitored = monitor.monitor(view, "user");
+        assertThat(monitored, is(instanceOf(Closeable.class)));
+        monitored.executeQuery(null);
+        monitored.executeQuery(null);
+        assertThat(monitor.snapshot().getQueryCache("user").getMisses(), is(2L));
+        assertThat(monitor.snapshot().getQueryCache("user").getEvictions(), is(1L));
+    }
+
+    private void access(boolean pLoad, String... pIds)
+            throws Exception {
+        final CacheMonitor.Access access = monitor.begin();
+        try {
+            if ( pLoad ) {
+                execute();
+            }
+            monitor.itemsAccessed(access, "user", pIds);
+        } finally {
+            monitor.end(access);
+        }
+    }
+
+    private void execute()
+            throws Exception {
+        final Statement statement = connection.createStatement();
+        statement.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS").close();
+        statement.close();
+    }
+}
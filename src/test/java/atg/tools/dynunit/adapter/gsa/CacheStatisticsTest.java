@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static atg.tools.dynunit.hamcrest.HasCacheHitRatio.itemCacheHitRatio;
+import static atg.tools.dynunit.hamcrest.HasCacheHitRatio.queryCacheHitRatio;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class CacheStatisticsTest {
+
+    @Test
+    public void testDiff() {
+        final Map<String, CacheStatistics.Counts> items = new HashMap<String, CacheStatistics.Counts>();
+        items.put("user", new CacheStatistics.Counts(2, 2, 0, 4000));
+        items.put("address", new CacheStatistics.Counts(0, 1, 0, 1000));
+        final CacheStatistics before = new CacheStatistics(items, new HashMap<String, CacheStatistics.Counts>());
+
+        items.put("user", new CacheStatistics.Counts(10, 3, 1, 7000));
+        final Map<String, CacheStatistics.Counts> queries = new HashMap<String, CacheStatistics.Counts>();
+        queries.put("user", new CacheStatistics.Counts(0, 1, 0, 2000));
+        final CacheStatistics after = new CacheStatistics(items, queries);
+
+        final CacheStatistics diff = after.diff(before);
+        assertThat(diff.getItemDescriptorNames().toString(), is("[user]"));
+        assertThat(diff.getItemCache("user").getHits(), is(8L));
+        assertThat(diff.getItemCache("user").getMisses(), is(1L));
+        assertThat(diff.getItemCache("user").getEvictions(), is(1L));
+        assertThat(diff.getItemCache("user").getMeanLoadNanos(), is(3000.0));
+        assertThat(diff.getItemCache("user").getHitRatio(), is(8.0 / 9));
+        assertThat(diff.getItemCache("address").getAccesses(), is(0L));
+        assertThat(diff.getQueryCache(null).getMisses(), is(1L));
+        assertThat(after.getItemCache(null).getAccesses(), is(14L));
+    }
+
+    @Test
+    public void testHitRatioMatchers() {
+        final Map<String, CacheStatistics.Counts> items = new HashMap<String, CacheStatistics.Counts>();
+        items.put("user", new CacheStatistics.Counts(9, 1, 0, 1000));
+        items.put("address", new CacheStatistics.Counts(1, 1, 0, 1000));
+        final CacheStatistics statistics = new CacheStatistics(items, new HashMap<String, CacheStatistics.Counts>());
+
+        assertThat(statistics, itemCacheHitRatio("user", 0.9));
+        assertThat(statistics, not(itemCacheHitRatio("address", 0.9)));
+        assertThat(statistics, itemCacheHitRatio(10.0 / 12));
+        assertThat(statistics, not(itemCacheHitRatio(0.9)));
+        assertThat(statistics, not(queryCacheHitRatio(0)));
+    }
+}
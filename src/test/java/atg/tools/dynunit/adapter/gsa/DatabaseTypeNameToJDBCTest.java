@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.sql.Types;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class DatabaseTypeNameToJDBCTest {
+
+    @Test
+    public void testStandardTypeNames() {
+        assertThat(DatabaseTypeNameToJDBC.standardTypeNameToJDBCType("VARCHAR_IGNORECASE"), is(Types.VARCHAR));
+        assertThat(DatabaseTypeNameToJDBC.standardTypeNameToJDBCType("varchar(254)"), is(Types.VARCHAR));
+        assertThat(DatabaseTypeNameToJDBC.standardTypeNameToJDBCType("NUMERIC(19, 7)"), is(Types.NUMERIC));
+        assertThat(DatabaseTypeNameToJDBC.standardTypeNameToJDBCType("long  varbinary"), is(Types.LONGVARBINARY));
+        assertThat(DatabaseTypeNameToJDBC.standardTypeNameToJDBCType("BOOLEAN"), is(Types.BOOLEAN));
+        assertThat(DatabaseTypeNameToJDBC.standardTypeNameToJDBCType("CLOB"), is(Types.CLOB));
+    }
+
+    @Test
+    public void testUnknownTypeNames() {
+        assertThat(DatabaseTypeNameToJDBC.standardTypeNameToJDBCType("GEOMETRY"), is(DatabaseTypeNameToJDBC.UNKNOWN));
+        assertThat(DatabaseTypeNameToJDBC.standardTypeNameToJDBCType(null), is(DatabaseTypeNameToJDBC.UNKNOWN));
+    }
+}
@@ -16,15 +16,25 @@
 
 package atg.tools.dynunit.adapter.gsa;
 
+import atg.nucleus.ServiceException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Unit Test for the GSATestUtils class.
@@ -65,4 +75,101 @@ public class GSATestUtilsTest {
 
     }
 
+    @Test
+    public void testStartAllRespectsDependencies()
+            throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        GSATestUtils.startAll(
+                new String[]{ "a", "b", "c" }, dependencies(new Integer[0], new Integer[]{ 2 }, new Integer[]{ 0 }), 3,
+                new GSATestUtils.Starter() {
+                    @Override
+                    public void start(int pIndex) {
+                        order.add(pIndex);
+                    }
+                }
+        );
+        assertEquals(Arrays.asList(0, 2, 1), order);
+    }
+
+    @Test
+    public void testStartAllReportsEveryFailure()
+            throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final Error error = new NoClassDefFoundError("atg/Missing");
+        try {
+            GSATestUtils.startAll(
+                    new String[]{ "a", "b", "c" }, dependencies(new Integer[0], new Integer[]{ 0 }, new Integer[0]), 2,
+                    new GSATestUtils.Starter() {
+                        @Override
+                        public void start(int pIndex) {
+                            order.add(pIndex);
+                            if (pIndex == 0) {
+                                throw error;
+                            }
+                        }
+                    }
+            );
+            fail("Expected ServiceException");
+        } catch (ServiceException e) {
+            assertSame(error, e.getCause());
+            assertTrue(e.getMessage(), e.getMessage().startsWith("2 of 3 duplicate repositories failed to start:"));
+            assertTrue(e.getMessage(), e.getMessage().contains("\n  a: " + error));
+            assertTrue(e.getMessage(), e.getMessage().contains("\n  b: "));
+        }
+        assertTrue(order.contains(2));
+        assertFalse(order.contains(1));
+    }
+
+    @Test
+    public void testStartAllSkipsTransitiveDependentsOfFailures()
+            throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        try {
+            // a depends on b which depends on c; the dependent comes first
+            GSATestUtils.startAll(
+                    new String[]{ "a", "b", "c" }, dependencies(new Integer[]{ 1 }, new Integer[]{ 2 }, new Integer[0]),
+                    3, new GSATestUtils.Starter() {
+                        @Override
+                        public void start(int pIndex) {
+                            order.add(pIndex);
+                            if (pIndex == 2) {
+                                throw new IllegalStateException("c failed");
+                            }
+                        }
+                    }
+            );
+            fail("Expected ServiceException");
+        } catch (ServiceException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("3 of 3 duplicate repositories failed to start:"));
+        }
+        assertEquals(Arrays.asList(2), order);
+    }
+
+    @Test
+    public void testStartAllBreaksCyclesOnly()
+            throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        // a depends on the cycle of b and c
+        GSATestUtils.startAll(
+                new String[]{ "a", "b", "c" }, dependencies(new Integer[]{ 1 }, new Integer[]{ 2 }, new Integer[]{ 1 }),
+                3, new GSATestUtils.Starter() {
+                    @Override
+                    public void start(int pIndex) {
+                        order.add(pIndex);
+                    }
+                }
+        );
+        // b is the first pending index inside the cycle; a and c only need b
+        assertEquals(Integer.valueOf(1), order.get(0));
+        assertEquals(3, order.size());
+    }
+
+    private static List<Set<Integer>> dependencies(Integer[]... pDependencies) {
+        final List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>();
+        for (Integer[] indexes : pDependencies) {
+            dependencies.add(new HashSet<Integer>(Arrays.asList(indexes)));
+        }
+        return dependencies;
+    }
+
 }
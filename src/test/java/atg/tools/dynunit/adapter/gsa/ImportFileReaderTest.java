@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class ImportFileReaderTest {
+
+    private static final String HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                                         + "<!DOCTYPE gsa-template SYSTEM \"http://www.atg.com/dtds/gsa/gsa_1.0.dtd\">\n";
+
+    @Test
+    public void testReadItems()
+            throws Exception {
+        ImportFileReader reader = open(
+                HEADER + "<gsa-template>\n"
+                + "  <header><name>songs</name></header>\n"
+                + "  <import-items>\n"
+                + "    <transaction>\n"
+                + "      <add-item item-descriptor=\"artist\" id=\"a1\">\n"
+                + "        <set-property name=\"name\"><![CDATA[Tom & Jerry]]></set-property>\n"
+                + "      </add-item>\n"
+                + "    </transaction>\n"
+                + "    <add-item item-descriptor=\"song\" id=\"s1\">\n"
+                + "      <set-property name=\"artist\" value=\"a1\"/>\n"
+                + "      <set-property name=\"genres\">\n rock, pop \n</set-property>\n"
+                + "    </add-item>\n"
+                + "  </import-items>\n"
+                + "</gsa-template>\n"
+        );
+        try {
+            ImportFileReader.Item artist = reader.next();
+            assertThat(artist.toString(), is("artist:a1"));
+            assertThat(artist.getProperties().get("name"), is("Tom & Jerry"));
+            assertThat(artist.getLocation(), is("test.xml:7"));
+
+            ImportFileReader.Item song = reader.next();
+            assertThat(song.toString(), is("song:s1"));
+            assertThat(song.getProperties().get("artist"), is("a1"));
+            assertThat(song.getProperties().get("genres"), is("rock, pop"));
+            assertThat(reader.next(), is(nullValue()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUpdateItemIsUnsupported()
+            throws Exception {
+        ImportFileReader reader = open(
+                "<gsa-template><import-items>"
+                + "<add-item item-descriptor=\"song\" id=\"s1\"/>"
+                + "<update-item item-descriptor=\"song\" id=\"s1\"/>"
+                + "</import-items></gsa-template>"
+        );
+        try {
+            assertThat(reader.next().getId(), is("s1"));
+            reader.next();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testOtherRepositoryIsUnsupported()
+            throws Exception {
+        ImportFileReader reader = open(
+                "<gsa-template><add-item repository=\"/other/Repository\" item-descriptor=\"song\" id=\"s1\"/></gsa-template>"
+        );
+        try {
+            reader.next();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static ImportFileReader open(String pXml)
+            throws Exception {
+        return new ImportFileReader(
+                new ByteArrayInputStream(pXml.getBytes("UTF-8")), "test.xml", "/test/SongsRepository"
+        );
+    }
+}
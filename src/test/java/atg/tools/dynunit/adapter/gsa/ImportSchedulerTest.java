@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class ImportSchedulerTest {
+
+    private File directory;
+
+    private String artists;
+
+    private String songs;
+
+    private String genres;
+
+    private String updates;
+
+    @Before
+    public void setUp()
+            throws IOException {
+        directory = new File(System.getProperty("java.io.tmpdir"), "import-scheduler-" + System.nanoTime());
+        artists = write("artists.xml", "<add-item item-descriptor=\"artist\" id=\"a1\"/>");
+        genres = write("genres.xml", "<add-item item-descriptor=\"genre\" id=\"g1\"/>");
+        songs = write(
+                "songs.xml",
+                "<add-item item-descriptor=\"song\" id=\"s1\"><set-property name=\"artist\">a1</set-property></add-item>"
+        );
+        updates = write("updates.xml", "<update-item item-descriptor=\"song\" id=\"s1\"/>");
+    }
+
+    @After
+    public void tearDown()
+            throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void testFindDependencies() {
+        List<Set<Integer>> dependencies = ImportScheduler.findDependencies(
+                Arrays.asList(artists, genres, songs, updates, artists)
+        );
+        assertThat(dependencies.get(0).isEmpty(), is(true));
+        assertThat(dependencies.get(1).isEmpty(), is(true));
+        assertThat(new ArrayList<Integer>(dependencies.get(2)), is(Arrays.asList(0)));
+        assertThat(new ArrayList<Integer>(dependencies.get(3)), is(Arrays.asList(0, 1, 2)));
+        assertThat(new ArrayList<Integer>(dependencies.get(4)), is(Arrays.asList(0, 1, 2, 3)));
+    }
+
+    @Test
+    public void testIndependentFilesRunConcurrently()
+            throws Exception {
+        // each importer waits for the other one, which only works if both run at once
+        final CountDownLatch latch = new CountDownLatch(2);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        ImportScheduler.FileImporter importer = new ImportScheduler.FileImporter() {
+            @Override
+            public void importFile(String pFile)
+                    throws Exception {
+                if (!pFile.equals(songs)) {
+                    latch.countDown();
+                    assertTrue(latch.await(10, TimeUnit.SECONDS));
+                }
+                order.add(new File(pFile).getName());
+            }
+        };
+        ImportScheduler scheduler = new ImportScheduler(4, importer);
+        scheduler.add(artists, songs);
+        scheduler.add(genres);
+        Map<String, Long> timings = scheduler.run();
+        assertThat(timings.size(), is(3));
+        assertThat(order.get(2), is("songs.xml"));
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void testFailureStopsDependentFiles()
+            throws Exception {
+        final List<String> imported = Collections.synchronizedList(new ArrayList<String>());
+        ImportScheduler scheduler = new ImportScheduler(
+                2, new ImportScheduler.FileImporter() {
+            @Override
+            public void importFile(String pFile)
+                    throws Exception {
+                if (pFile.equals(artists)) {
+                    throw new IllegalStateException("broken");
+                }
+                imported.add(pFile);
+            }
+        }
+        );
+        scheduler.add(artists, songs);
+        try {
+            scheduler.run();
+        } finally {
+            assertThat(imported.isEmpty(), is(true));
+        }
+    }
+
+    private String write(String pName, String pItems)
+            throws IOException {
+        File file = new File(directory, pName);
+        FileUtils.writeStringToFile(
+                file, "<gsa-template><import-items>" + pItems + "</import-items></gsa-template>", "UTF-8"
+        );
+        return file.getPath();
+    }
+}
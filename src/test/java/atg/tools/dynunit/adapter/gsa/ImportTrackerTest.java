@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import org.apache.commons.io.FileUtils;
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.hsqldb;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.shutdown;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class ImportTrackerTest {
+
+    private File file;
+
+    private JDBCDataSource dataSource;
+
+    @Before
+    public void setUp()
+            throws IOException {
+        file = File.createTempFile("songs", ".xml");
+        write("<add-item item-descriptor=\"artist\" id=\"a1\"/><add-item item-descriptor=\"song\" id=\"s1\"/>");
+        dataSource = hsqldb("importtracker");
+    }
+
+    @After
+    public void tearDown()
+            throws Exception {
+        shutdown(dataSource.getConnection());
+        FileUtils.forceDelete(file);
+    }
+
+    @Test
+    public void testTrackChanges()
+            throws Exception {
+        ImportTracker tracker = new ImportTracker(dataSource, "/test/SongsRepository");
+        assertThat(tracker.isChanged(file.getPath()), is(true));
+        assertThat(tracker.record(file.getPath()), is(true));
+        assertThat(tracker.isChanged(file.getPath()), is(false));
+
+        List<String[]> items = tracker.getItems(file.getPath());
+        assertThat(items.size(), is(2));
+        assertThat(items.get(1)[0], is("song"));
+        assertThat(items.get(1)[1], is("s1"));
+
+        // a new tracker sees what the previous one recorded, but another repository does not
+        write("<add-item item-descriptor=\"artist\" id=\"a2\"/>");
+        tracker = new ImportTracker(dataSource, "/test/SongsRepository");
+        assertThat(tracker.isChanged(file.getPath()), is(true));
+        assertThat(tracker.getItems(file.getPath()).size(), is(2));
+        tracker.record(file.getPath());
+        assertThat(tracker.getItems(file.getPath()).get(0)[1], is("a2"));
+        assertThat(new ImportTracker(dataSource, "/test/OtherRepository").isChanged(file.getPath()), is(true));
+
+        tracker.clear();
+        assertThat(tracker.isChanged(file.getPath()), is(true));
+        assertThat(tracker.getItems(file.getPath()).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testUntrackableItems()
+            throws Exception {
+        ImportTracker tracker = new ImportTracker(dataSource, "/test/SongsRepository");
+        assertThat(tracker.record(file.getPath()), is(true));
+
+        // a file whose items are unknown is imported again until it can be tracked
+        write("<update-item item-descriptor=\"song\" id=\"s1\"/>");
+        tracker = new ImportTracker(dataSource, "/test/SongsRepository");
+        assertThat(tracker.record(file.getPath()), is(false));
+        assertThat(tracker.isChanged(file.getPath()), is(true));
+        assertThat(tracker.getItems(file.getPath()).isEmpty(), is(true));
+    }
+
+    private void write(String pItems)
+            throws IOException {
+        FileUtils.writeStringToFile(
+                file, "<gsa-template><import-items>" + pItems + "</import-items></gsa-template>", "UTF-8"
+        );
+    }
+}
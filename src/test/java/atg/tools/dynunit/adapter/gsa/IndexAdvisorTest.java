@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.tools.dynunit.service.jdbc.RecordingDataSource;
+import org.apache.ddlutils.model.Column;
+import org.apache.ddlutils.model.Database;
+import org.apache.ddlutils.model.IndexColumn;
+import org.apache.ddlutils.model.Table;
+import org.apache.ddlutils.model.UniqueIndex;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.h2;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.hsqldb;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.update;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class IndexAdvisorTest {
+
+    @Test
+    public void testAdviseOnHSQLDB()
+            throws Exception {
+        assertSuggestions(hsqldb("indexadvisor"));
+    }
+
+    @Test
+    public void testAdviseOnH2()
+            throws Exception {
+        assertSuggestions(h2("indexadvisor"));
+    }
+
+    private static void assertSuggestions(DataSource pDataSource)
+            throws Exception {
+        final RecordingDataSource dataSource = new RecordingDataSource(pDataSource);
+        final Connection connection = dataSource.getConnection();
+        try {
+            update(connection, "CREATE TABLE dps_user (id VARCHAR(40) PRIMARY KEY, login VARCHAR(40), "
+                               + "email VARCHAR(40))");
+            update(connection, "CREATE TABLE dps_addr (id VARCHAR(40) PRIMARY KEY, user_id VARCHAR(40), "
+                               + "city VARCHAR(40))");
+            dataSource.getRecorder().clear();
+
+            final String[] queries = {
+                    "SELECT * FROM dps_user WHERE login = ?",
+                    "SELECT * FROM dps_user WHERE login = ?",
+                    "SELECT * FROM dps_user WHERE id = ?",
+                    "SELECT * FROM dps_user u WHERE u.email = ?",
+                    "SELECT u.id FROM dps_user u JOIN dps_addr a ON a.user_id = u.id WHERE u.id = ?"
+            };
+            for (String query : queries) {
+                final PreparedStatement statement = connection.prepareStatement(query);
+                statement.setString(1, "x");
+                statement.executeQuery().close();
+                statement.close();
+            }
+
+            final IndexAdvisor advisor = new IndexAdvisor(createModel());
+            advisor.collect(dataSource.getRecorder());
+            final List<IndexAdvisor.Suggestion> suggestions = advisor.advise(dataSource, dataSource.getRecorder());
+
+            assertThat(suggestions.size(), is(2));
+            assertThat(suggestions.get(0).getTable(), is("dps_user"));
+            assertThat(suggestions.get(0).getColumns(), is(Arrays.asList("login")));
+            assertThat(suggestions.get(0).getExecutions(), is(2L));
+            assertThat(suggestions.get(0).getDDL(), is("CREATE INDEX dps_user_login_ix ON dps_user (login)"));
+            assertThat(suggestions.get(1).getTable(), is("dps_addr"));
+            assertThat(suggestions.get(1).getColumns(), is(Arrays.asList("user_id")));
+            assertThat(dataSource.getRecorder().getStatements().size(), is(queries.length));
+            assertThat(IndexAdvisor.report(suggestions).startsWith("<table name=\"dps_user\">"), is(true));
+
+            update(connection, "DROP TABLE dps_addr");
+            update(connection, "DROP TABLE dps_user");
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static Database createModel() {
+        final Database model = new Database();
+        final Table user = createTable(model, "dps_user", "id", "login", "email");
+        final UniqueIndex email = new UniqueIndex();
+        email.setName("uidx_dps_user_email");
+        email.addColumn(new IndexColumn(user.findColumn("email")));
+        user.addIndex(email);
+        createTable(model, "dps_addr", "id", "user_id", "city");
+        return model;
+    }
+
+    private static Table createTable(Database pModel, String pName, String... pColumns) {
+        final Table table = new Table();
+        table.setName(pName);
+        for (String name : pColumns) {
+            final Column column = new Column();
+            column.setName(name);
+            column.setTypeCode(Types.VARCHAR);
+            column.setPrimaryKey(table.getColumnCount() == 0);
+            table.addColumn(column);
+        }
+        pModel.addTable(table);
+        return table;
+    }
+}
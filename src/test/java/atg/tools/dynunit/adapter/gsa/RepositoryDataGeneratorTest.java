@@ -0,0 +1,156 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.adapter.gsa.GSARepository;
+import atg.repository.RepositoryItem;
+import atg.tools.dynunit.test.AtgDustCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generates a small song, artist and album graph into an in-memory HSQL database.
+ */
+public class RepositoryDataGeneratorTest
+        extends AtgDustCase {
+
+    private static final int ARTISTS = 200;
+
+    private static final int SONGS = 1000;
+
+    private static final int ALBUMS = 300;
+
+    private GSARepository repository;
+
+    @Override
+    public void setUp()
+            throws Exception {
+        super.setUp();
+        copyConfigurationFiles(
+                new String[]{
+                        "src/test/resources/config".replace("/", File.separator)
+                }, "target/test-classes/config".replace("/", File.separator), ".svn"
+        );
+        prepareRepository("/GettingStarted/SongsRepository", "/GettingStarted/songs.xml");
+        repository = (GSARepository) resolveNucleusComponent("/GettingStarted/SongsRepository");
+        assertNotNull(repository);
+    }
+
+    public void testSameSeedGivesSameItems()
+            throws Exception {
+        final List<ImportFileReader.Item> first = generate(newGenerator(7));
+        final List<ImportFileReader.Item> second = generate(newGenerator(7));
+        assertEquals(ARTISTS + SONGS + ALBUMS, first.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.get(i).getDescriptor(), second.get(i).getDescriptor());
+            assertEquals(first.get(i).getId(), second.get(i).getId());
+            assertEquals(first.get(i).getProperties(), second.get(i).getProperties());
+        }
+        assertFalse(first.get(0).getProperties().equals(generate(newGenerator(8)).get(0).getProperties()));
+    }
+
+    public void testNullRatio()
+            throws Exception {
+        final RepositoryDataGenerator generator = newGenerator(42);
+        generator.setNullRatio(0.3);
+        int missing = 0;
+        for (ImportFileReader.Item item : generate(generator)) {
+            if (item.getDescriptor().equals("song") && !item.getProperties().containsKey("title")) {
+                missing++;
+            }
+        }
+        final double ratio = (double) missing / SONGS;
+        assertTrue("ratio " + ratio, ratio > 0.25 && ratio < 0.35);
+    }
+
+    public void testReferencesAndDates()
+            throws Exception {
+        final Set<String> artists = new HashSet<String>();
+        final Set<String> songs = new HashSet<String>();
+        for (ImportFileReader.Item item : generate(newGenerator(42))) {
+            final String artist = item.getProperties().get("artist");
+            if (item.getDescriptor().equals("artist")) {
+                artists.add(item.getId());
+            } else if (item.getDescriptor().equals("song")) {
+                songs.add(item.getId());
+                assertTrue(item + " references unknown artist", artist == null || artists.contains(artist));
+                assertFalse("enumerated genre is left out", item.getProperties().containsKey("genre"));
+            } else {
+                assertTrue(item + " references unknown artist", artist == null || artists.contains(artist));
+                final String songList = item.getProperties().get("songList");
+                if (songList != null) {
+                    for (String song : ImportFileReader.splitValues(songList)) {
+                        assertTrue(item + " references unknown song " + song, songs.contains(song));
+                    }
+                }
+                final String date = item.getProperties().get("date");
+                if (date != null) {
+                    final Date parsed = BulkImporter.parseDate(date);
+                    assertTrue(date, parsed.getTime() <= 1356998400000L);
+                }
+            }
+        }
+        assertEquals(ARTISTS, artists.size());
+        assertEquals(SONGS, songs.size());
+    }
+
+    public void testGenerate()
+            throws Exception {
+        final RepositoryDataGenerator generator = newGenerator(42);
+        generator.setItemsPerTransaction(250);
+        assertEquals(ARTISTS + SONGS + ALBUMS, generator.generate());
+        final RepositoryItem album = repository.getItem("gen0", "album");
+        assertNotNull(album);
+        final Object date = album.getPropertyValue("date");
+        for (ImportFileReader.Item item : generate(newGenerator(42))) {
+            if (item.getDescriptor().equals("album") && item.getId().equals("gen0")) {
+                final String expected = item.getProperties().get("date");
+                assertEquals(expected == null, date == null);
+                if (date != null) {
+                    // the column is a DATE, which keeps the day only
+                    final long difference = Math.abs(Long.parseLong(expected) - ((Date) date).getTime());
+                    assertTrue("difference " + difference, difference < 24L * 60 * 60 * 1000);
+                }
+            }
+        }
+    }
+
+    private RepositoryDataGenerator newGenerator(long pSeed) {
+        final RepositoryDataGenerator generator = new RepositoryDataGenerator(repository);
+        generator.setSeed(pSeed);
+        generator.setCount("artist", ARTISTS);
+        generator.setCount("song", SONGS);
+        generator.setCount("album", ALBUMS);
+        return generator;
+    }
+
+    private static List<ImportFileReader.Item> generate(RepositoryDataGenerator pGenerator)
+            throws Exception {
+        final List<ImportFileReader.Item> items = new ArrayList<ImportFileReader.Item>();
+        final Iterator<ImportFileReader.Item> iterator = pGenerator.iterator();
+        while (iterator.hasNext()) {
+            items.add(iterator.next());
+        }
+        return items;
+    }
+}
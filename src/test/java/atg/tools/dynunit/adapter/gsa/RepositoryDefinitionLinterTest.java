@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.adapter.gsa.GSARepository;
+import atg.tools.dynunit.test.AtgDustCase;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Lints the songs repository against an in-memory HSQL database.
+ */
+public class RepositoryDefinitionLinterTest
+        extends AtgDustCase {
+
+    private GSARepository repository;
+
+    @Override
+    public void setUp()
+            throws Exception {
+        super.setUp();
+        copyConfigurationFiles(
+                new String[]{
+                        "src/test/resources/config".replace("/", File.separator)
+                }, "target/test-classes/config".replace("/", File.separator), ".svn"
+        );
+        prepareRepository("/GettingStarted/SongsRepository", "/GettingStarted/songs.xml");
+        repository = (GSARepository) resolveNucleusComponent("/GettingStarted/SongsRepository");
+        assertNotNull(repository);
+    }
+
+    public void testSongs()
+            throws Exception {
+        final List<RepositoryDefinitionLinter.Finding> findings = new RepositoryDefinitionLinter().lint(repository);
+        assertNotNull(find(findings, RepositoryDefinitionLinter.Rule.CACHE_NOT_SIZED, "song", null));
+        assertNotNull(find(findings, RepositoryDefinitionLinter.Rule.QUERYABLE_UNINDEXED, "song", "description"));
+        assertNull(find(findings, RepositoryDefinitionLinter.Rule.QUERYABLE_UNINDEXED, "song", "id"));
+        // a set of songs only holds their ids
+        assertNull(find(findings, RepositoryDefinitionLinter.Rule.UNBOUNDED_MULTI_VALUED, "album", "songList"));
+        RepositoryDefinitionLinter.check(findings, RepositoryDefinitionLinter.Severity.WARNING);
+    }
+
+    public void testIndexesAreReadFromTheDatabase()
+            throws Exception {
+        execute("CREATE INDEX dynamusic_song_title ON dynamusic_song (title)");
+        try {
+            final List<RepositoryDefinitionLinter.Finding> findings = new RepositoryDefinitionLinter().lint(repository);
+            assertNull(find(findings, RepositoryDefinitionLinter.Rule.QUERYABLE_UNINDEXED, "song", "title"));
+            assertNotNull(find(findings, RepositoryDefinitionLinter.Rule.QUERYABLE_UNINDEXED, "song", "downloadURL"));
+        } finally {
+            execute("DROP INDEX dynamusic_song_title");
+        }
+    }
+
+    public void testWidePrimaryTable()
+            throws Exception {
+        final RepositoryDefinitionLinter linter = new RepositoryDefinitionLinter();
+        linter.setMaxPrimaryTableColumns(3);
+        final List<RepositoryDefinitionLinter.Finding> findings = linter.lint(repository);
+        assertNotNull(find(findings, RepositoryDefinitionLinter.Rule.WIDE_PRIMARY_TABLE, "song", null));
+        try {
+            RepositoryDefinitionLinter.check(findings, RepositoryDefinitionLinter.Severity.WARNING);
+            fail("Expected AssertionError");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("WIDE_PRIMARY_TABLE song (dynamusic_song)"));
+        }
+    }
+
+    private void execute(String pSql)
+            throws Exception {
+        final Connection connection = repository.getDataSource().getConnection();
+        try {
+            final Statement statement = connection.createStatement();
+            statement.execute(pSql);
+            statement.close();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static RepositoryDefinitionLinter.Finding find(List<RepositoryDefinitionLinter.Finding> pFindings,
+                                                           RepositoryDefinitionLinter.Rule pRule,
+                                                           String pItemDescriptor,
+                                                           String pProperty) {
+        for (RepositoryDefinitionLinter.Finding finding : pFindings) {
+            if (finding.getRule() == pRule && finding.getItemDescriptor().equals(pItemDescriptor)
+                && (pProperty == null ? finding.getProperty() == null : pProperty.equals(finding.getProperty()))) {
+                return finding;
+            }
+        }
+        return null;
+    }
+}
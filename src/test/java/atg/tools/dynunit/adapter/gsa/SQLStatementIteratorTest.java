@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class SQLStatementIteratorTest {
+
+    private static List<String> parse(String pScript) {
+        final SQLStatementIterator iterator = new SQLStatementIterator(
+                new StringReader(pScript), "test.sql"
+        );
+        final List<String> statements = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            statements.add(iterator.next());
+        }
+        return statements;
+    }
+
+    @Test
+    public void testSemicolonsAndWhitespace() {
+        assertThat(
+                parse("create table foo (\n  id   varchar(40),\n  primary key(id));\n\n"
+                      + "insert into foo values ('a'); insert into foo values ('b');\n"),
+                is(
+                        Arrays.asList(
+                                "create table foo ( id varchar(40), primary key(id))",
+                                "insert into foo values ('a')",
+                                "insert into foo values ('b')"
+                        )
+                )
+        );
+    }
+
+    @Test
+    public void testQuotesAndComments() {
+        assertThat(
+                parse("-- header\n"
+                      + "insert into foo values ('it''s; -- not a comment', \"a;b\"); /* one\n"
+                      + "two; */ drop table foo -- trailing\n"
+                      + "// old style comment\n"
+                      + "insert into foo values ('line\nbreak')"),
+                is(
+                        Arrays.asList(
+                                "insert into foo values ('it''s; -- not a comment', \"a;b\")",
+                                "drop table foo",
+                                "insert into foo values ('line\nbreak')"
+                        )
+                )
+        );
+    }
+
+    @Test
+    public void testUnterminatedStatementsSplitOnKeywords() {
+        assertThat(
+                parse("CREATE TABLE foo (id integer)\nCREATE INDEX foo_idx ON foo (id)\nGO\n"
+                      + "DELETE FROM foo\n"),
+                is(
+                        Arrays.asList(
+                                "CREATE TABLE foo (id integer)",
+                                "CREATE INDEX foo_idx ON foo (id)",
+                                "DELETE FROM foo"
+                        )
+                )
+        );
+    }
+
+    @Test
+    public void testStoredProcedure() {
+        assertThat(
+                parse("CREATE OR REPLACE PROCEDURE bump IS\nBEGIN\n"
+                      + "  UPDATE foo SET id = id + 1;\n  COMMIT;\nEND;\n/\n"
+                      + "drop table bar;"),
+                is(
+                        Arrays.asList(
+                                "CREATE OR REPLACE PROCEDURE bump IS BEGIN UPDATE foo SET id = id + 1; COMMIT; END;",
+                                "drop table bar"
+                        )
+                )
+        );
+    }
+
+    @Test
+    public void testIfObjectIdBlock() {
+        assertThat(
+                parse("IF OBJECT_ID('foo') IS NOT NULL\n  DROP TABLE foo\nGO\nCREATE TABLE foo (id int)\ngo"),
+                is(
+                        Arrays.asList(
+                                "IF OBJECT_ID('foo') IS NOT NULL DROP TABLE foo",
+                                "CREATE TABLE foo (id int)"
+                        )
+                )
+        );
+    }
+
+    @Test
+    public void testUnterminatedQuoteReportsLine() {
+        try {
+            parse("insert into foo values ('a');\n\ninsert into foo values ('b);\n");
+            fail();
+        } catch (SQLParseException e) {
+            assertThat(e.getSource(), is("test.sql"));
+            assertThat(e.getLineNumber(), is(3));
+        }
+    }
+
+    @Test
+    public void testMemoryMappedFile()
+            throws Exception {
+        final File file = new File("target/sql-statement-iterator-test.sql");
+        FileUtils.writeStringToFile(file, "insert into foo values ('x');\ndrop table foo;\n");
+        try {
+            final SQLStatementIterator iterator = SQLStatementIterator.open(file, 0);
+            final List<String> statements = new ArrayList<String>();
+            while (iterator.hasNext()) {
+                statements.add(iterator.next());
+            }
+            assertThat(
+                    statements, is(Arrays.asList("insert into foo values ('x')", "drop table foo"))
+            );
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+}
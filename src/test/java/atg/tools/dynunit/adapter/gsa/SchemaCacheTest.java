@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.ddlutils.model.Column;
+import org.apache.ddlutils.model.Database;
+import org.apache.ddlutils.model.Table;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class SchemaCacheTest {
+
+    private SchemaCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new SchemaCache(new File("target/schema-cache-test"));
+        cache.clear();
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+    }
+
+    @Test
+    public void testStatementsRoundTrip() {
+        assertThat(cache.getStatements("abc"), is(nullValue()));
+        final List<String> statements = Arrays.asList(
+                "CREATE TABLE foo (id varchar(40) not null, primary key(id))",
+                "CREATE TABLE bar (id varchar(40) not null, primary key(id))"
+        );
+        cache.putStatements("abc", statements);
+        assertThat(cache.getStatements("abc"), is(statements));
+        assertThat(cache.getStatements("def"), is(nullValue()));
+    }
+
+    @Test
+    public void testModelRoundTrip() {
+        final Database database = new Database();
+        database.setName("/test/Repository");
+        final Table table = new Table();
+        table.setName("foo");
+        final Column column = new Column();
+        column.setName("id");
+        column.setTypeCode(Types.VARCHAR);
+        column.setPrimaryKey(true);
+        table.addColumn(column);
+        database.addTable(table);
+
+        cache.putModel("abc", database);
+        final Database cached = cache.getModel("abc");
+        assertThat(cached, is(notNullValue()));
+        assertThat(cached.getName(), is("/test/Repository"));
+        assertThat(cached.findTable("foo"), is(notNullValue()));
+        assertThat(cached.findTable("foo").findColumn("id").isPrimaryKey(), is(true));
+    }
+
+    @Test
+    public void testFingerprintFollowsDefinitionFileContents()
+            throws Exception {
+        final File file = new File(cache.getDirectory().getParentFile(), "schema-cache-test.xml");
+        FileUtils.writeStringToFile(file, "<gsa-template/>", "UTF-8");
+        try {
+            final Object[] definitionFiles = { new DefinitionFile(file) };
+            final String key = cache.fingerprint(definitionFiles, "Repository", "HSQLDB");
+            assertThat(key, is(notNullValue()));
+            assertThat(cache.fingerprint(definitionFiles, "Repository", "HSQLDB"), is(key));
+            assertThat(cache.fingerprint(definitionFiles, "Repository", "Oracle"), is(not(key)));
+
+            FileUtils.writeStringToFile(file, "<gsa-template><item-descriptor/></gsa-template>", "UTF-8");
+            assertThat(cache.fingerprint(definitionFiles, "Repository", "HSQLDB"), is(not(key)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testNoFingerprintWithoutDefinitionFileContents() {
+        assertThat(cache.fingerprint(new Object[]{ "/test/repository.xml" }, "Repository", "HSQLDB"), is(nullValue()));
+    }
+
+    @Test
+    public void testClearRemovesEntries() {
+        cache.putStatements("abc", Arrays.asList("CREATE TABLE foo (id integer)"));
+        cache.clear();
+        assertThat(cache.getStatements("abc"), is(nullValue()));
+    }
+
+    /**
+     * Stands in for the XMLFile of a repository, which lists the files combined from the CONFIGPATH.
+     */
+    public static class DefinitionFile {
+
+        private final File file;
+
+        DefinitionFile(File pFile) {
+            file = pFile;
+        }
+
+        public File[] getFiles() {
+            return new File[]{ file };
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.adapter.gsa;
+
+import atg.adapter.gsa.GSARepository;
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.hsqldb;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class SchemaTrackerTest {
+
+    @Test
+    public void testOwnershipPassesOnRelease() {
+        SchemaTracker tracker = SchemaTracker.getInstance(new JDBCDataSource());
+        GSARepository songs = new GSARepository();
+        GSARepository profiles = new GSARepository();
+
+        assertThat(tracker.acquireTable("dss_user", songs), is(true));
+        assertThat(tracker.acquireTable("DSS_USER", profiles), is(false));
+        assertThat(tracker.acquireTable("dss_user", songs), is(true));
+        assertThat(tracker.acquireTable("song", songs), is(true));
+        assertThat(tracker.isShared("dss_user", songs), is(true));
+        assertThat(tracker.isShared("song", songs), is(false));
+
+        assertThat(tracker.release(songs), is(Collections.singleton("SONG")));
+        assertThat(tracker.getTable("song"), is(nullValue()));
+        assertThat(tracker.getTable("dss_user"), is(Arrays.asList(profiles)));
+        assertThat(tracker.acquireTable("dss_user", profiles), is(true));
+        assertThat(tracker.release(profiles), is(Collections.singleton("DSS_USER")));
+    }
+
+    @Test
+    public void testScopesAreSeparate() {
+        JDBCDataSource first = new JDBCDataSource();
+        JDBCDataSource second = new JDBCDataSource();
+        assertThat(SchemaTracker.getInstance(first), is(sameInstance(SchemaTracker.getInstance(first))));
+        assertThat(SchemaTracker.getInstance(first), is(not(sameInstance(SchemaTracker.getInstance(second)))));
+
+        GSARepository one = new GSARepository();
+        GSARepository two = new GSARepository();
+        assertThat(SchemaTracker.getInstance(first).acquireTable("song", one), is(true));
+        assertThat(SchemaTracker.getInstance(second).acquireTable("song", two), is(true));
+        SchemaTracker.getInstance(second).reset();
+        assertThat(SchemaTracker.getInstance(first).getTable("song"), is(Arrays.asList(one)));
+    }
+
+    @Test
+    public void testScopeFollowsDatabase() {
+        JDBCDataSource first = hsqldb("trackerone");
+        JDBCDataSource same = hsqldb("trackerone");
+        JDBCDataSource other = hsqldb("trackertwo");
+        assertThat(SchemaTracker.getInstance(first), is(sameInstance(SchemaTracker.getInstance(same))));
+        assertThat(SchemaTracker.getInstance(first), is(not(sameInstance(SchemaTracker.getInstance(other)))));
+
+        GSARepository one = new GSARepository();
+        GSARepository two = new GSARepository();
+        assertThat(SchemaTracker.getInstance(first).acquireTable("song", one), is(true));
+        assertThat(SchemaTracker.getInstance(same).acquireTable("song", two), is(false));
+        assertThat(SchemaTracker.getInstance(first).isShared("song", one), is(true));
+        assertThat(SchemaTracker.getInstance(other).isShared("song", one), is(false));
+        SchemaTracker.getInstance(first).reset();
+    }
+
+    @Test
+    public void testSingleOwnerUnderContention()
+            throws Exception {
+        final SchemaTracker tracker = SchemaTracker.getInstance(new JDBCDataSource());
+        final AtomicInteger owners = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Callable<Void> acquire = new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if (tracker.acquireTable("song", new GSARepository())) {
+                        owners.incrementAndGet();
+                    }
+                    return null;
+                }
+            };
+            for (Future<Void> future : executor.invokeAll(Collections.nCopies(64, acquire))) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(owners.get(), is(1));
+        assertThat(tracker.getTable("song").size(), is(64));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.service.idgen;
+
+import atg.service.idgen.IdSpace;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class InMemoryIdGeneratorTest {
+
+    private File seedFile;
+
+    private InMemoryIdGenerator idGenerator;
+
+    @Before
+    public void setUp()
+            throws Exception {
+        seedFile = File.createTempFile("idspaces", ".xml");
+        FileUtils.forceDelete(seedFile);
+        idGenerator = newIdGenerator();
+    }
+
+    @After
+    public void tearDown()
+            throws Exception {
+        FileUtils.deleteQuietly(seedFile);
+    }
+
+    @Test
+    public void testIdSpaces()
+            throws Exception {
+        assertThat(idGenerator.generateLongId(), is(1L));
+        assertThat(idGenerator.generateLongId("layer"), is(0L));
+        assertThat(idGenerator.generateStringId("layer"), is("1"));
+
+        idGenerator.addIdSpace(new IdSpace("song", 100, "s", "x"));
+        assertThat(idGenerator.generateStringId("song"), is("s100x"));
+        assertThat(idGenerator.getIdSpace("song").getSeed(), is(101L));
+
+        // unknown id spaces start like the default one
+        assertThat(idGenerator.hasIdSpace("artist"), is(false));
+        assertThat(idGenerator.generateLongId("artist"), is(1L));
+        assertThat(idGenerator.hasIdSpace("artist"), is(true));
+    }
+
+    @Test
+    public void testSeedsSurviveRestart()
+            throws Exception {
+        idGenerator.addIdSpace(new IdSpace("song", 100, "s", null));
+        idGenerator.generateLongId("song");
+        idGenerator.generateLongId("layer");
+        idGenerator.doStopService();
+
+        idGenerator = newIdGenerator();
+        assertThat(idGenerator.generateLongId("layer"), is(1L));
+        assertThat(idGenerator.generateStringId("song"), is("s101"));
+    }
+
+    @Test
+    public void testConcurrentIdsAreUnique()
+            throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<List<Long>>> results = new ArrayList<Future<List<Long>>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(
+                        executor.submit(
+                                new Callable<List<Long>>() {
+                                    @Override
+                                    public List<Long> call()
+                                            throws Exception {
+                                        final List<Long> ids = new ArrayList<Long>();
+                                        for (int j = 0; j < 10000; j++) {
+                                            ids.add(idGenerator.generateLongId());
+                                        }
+                                        return ids;
+                                    }
+                                }
+                        )
+                );
+            }
+            final Set<Long> ids = new HashSet<Long>();
+            for (Future<List<Long>> result : results) {
+                ids.addAll(result.get());
+            }
+            assertThat(ids.size(), is(40000));
+            assertThat(Collections.max(ids), is(40000L));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private InMemoryIdGenerator newIdGenerator()
+            throws Exception {
+        final InMemoryIdGenerator generator = new InMemoryIdGenerator();
+        generator.setInitialIdSpacesFile(new File("src/main/resources/atg/tools/dynunit/idspaces.xml"));
+        generator.setSeedFile(seedFile);
+        generator.doStartService();
+        return generator;
+    }
+}
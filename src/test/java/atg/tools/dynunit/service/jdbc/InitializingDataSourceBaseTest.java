@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.service.jdbc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.hsqldb;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.queryInt;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class InitializingDataSourceBaseTest {
+
+    private CountingDataSource dataSource;
+
+    @Before
+    public void setUp() {
+        dataSource = new CountingDataSource();
+        dataSource.setPooled(true);
+        dataSource.setMaxPoolSize(2);
+        dataSource.setMaxWait(100);
+    }
+
+    @After
+    public void tearDown() {
+        dataSource.closePool();
+    }
+
+    @Test
+    public void testUnpooledConnectionsAreOpenedEveryTime()
+            throws Exception {
+        dataSource.setPooled(false);
+        dataSource.getConnection().close();
+        dataSource.getConnection().close();
+        assertThat(dataSource.opened.size(), is(2));
+        assertThat(dataSource.getBorrowCount(), is(2L));
+    }
+
+    @Test
+    public void testBorrowAndReturn()
+            throws Exception {
+        final Connection connection = dataSource.getConnection();
+        assertThat(queryInt(connection, "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_USERS") > 0, is(true));
+        assertThat(dataSource.getActiveConnections(), is(1));
+        connection.close();
+        assertThat(dataSource.getActiveConnections(), is(0));
+        assertThat(dataSource.getIdleConnections(), is(1));
+
+        dataSource.getConnection().close();
+        assertThat(dataSource.opened.size(), is(1));
+        assertThat(dataSource.opened.get(0).isClosed(), is(false));
+        assertThat(dataSource.getBorrowCount(), is(2L));
+    }
+
+    @Test
+    public void testMaxPoolSize()
+            throws Exception {
+        final Connection first = dataSource.getConnection();
+        final Connection second = dataSource.getConnection();
+        assertThat(second, is(notNullValue()));
+        // waits maxWait milliseconds for a connection to be returned
+        assertThat(dataSource.getConnection(), is(nullValue()));
+        assertThat(dataSource.opened.size(), is(2));
+
+        first.close();
+        final Connection third = dataSource.getConnection();
+        assertThat(third, is(notNullValue()));
+        assertThat(dataSource.opened.size(), is(2));
+        second.close();
+        third.close();
+    }
+
+    @Test
+    public void testClosePool()
+            throws Exception {
+        dataSource.getConnection().close();
+        dataSource.closePool();
+        assertThat(dataSource.getIdleConnections(), is(0));
+        assertThat(dataSource.opened.get(0).isClosed(), is(true));
+
+        dataSource.getConnection().close();
+        assertThat(dataSource.opened.size(), is(2));
+        assertThat(dataSource.getIdleConnections(), is(1));
+    }
+
+    /**
+     * Opens HSQLDB connections instead of FakeXADataSource's driver manager connections.
+     */
+    public static class CountingDataSource
+            extends InitializingDataSourceBase {
+
+        final List<Connection> opened = new ArrayList<Connection>();
+
+        public Connection getDriverManagerConnection()
+                throws SQLException {
+            final Connection connection = hsqldb("initializingdatasource").getConnection();
+            opened.add(connection);
+            return connection;
+        }
+    }
+}
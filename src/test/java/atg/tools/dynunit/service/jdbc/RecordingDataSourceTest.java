@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.service.jdbc;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.hsqldb;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.update;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class RecordingDataSourceTest {
+
+    private RecordingDataSource dataSource;
+
+    private Connection connection;
+
+    @Before
+    public void setUp()
+            throws Exception {
+        dataSource = new RecordingDataSource(hsqldb("recordingtest"));
+        connection = dataSource.getConnection();
+        update(connection, "CREATE TABLE dps_user (id VARCHAR(40) PRIMARY KEY, login VARCHAR(40))");
+        dataSource.getRecorder().clear();
+    }
+
+    @After
+    public void tearDown()
+            throws Exception {
+        update(connection, "DROP TABLE dps_user");
+        connection.close();
+    }
+
+    @Test
+    public void testRecordsParametersAndRows()
+            throws Exception {
+        final PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO dps_user (id, login) VALUES (?, ?)"
+        );
+        for (int i = 0; i < 3; i++) {
+            insert.setString(1, "id" + i);
+            insert.setString(2, "login" + i);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        insert.close();
+
+        final PreparedStatement select = connection.prepareStatement("SELECT login FROM dps_user WHERE id > ?");
+        select.setString(1, "id0");
+        final ResultSet resultSet = select.executeQuery();
+        while (resultSet.next()) {
+            resultSet.getString(1);
+        }
+        resultSet.close();
+        select.close();
+
+        final List<SQLRecorder.RecordedStatement> statements = dataSource.getRecorder().getStatements();
+        assertThat(statements.size(), is(2));
+        assertThat(statements.get(0).getType(), is("INSERT"));
+        assertThat(statements.get(0).getBatchSize(), is(3));
+        assertThat(statements.get(0).getRows(), is(3L));
+        assertThat(statements.get(1).getParameters(), is(Arrays.<Object>asList("id0")));
+        assertThat(statements.get(1).getRows(), is(2L));
+        assertThat(dataSource.getRecorder().count("SELECT", "DPS_USER"), is(1));
+    }
+
+    @Test
+    public void testAssertAtMost()
+            throws Exception {
+        final Statement statement = connection.createStatement();
+        for (int i = 0; i < 4; i++) {
+            statement.executeQuery("SELECT u.id FROM dps_user u JOIN dps_user v ON u.id = v.id").close();
+        }
+        statement.close();
+
+        dataSource.getRecorder().assertAtMost(4, "SELECT", "dps_user");
+        try {
+            dataSource.getRecorder().assertAtMost(3, "SELECT", "dps_user");
+            fail("Expected the budget to be exceeded");
+        } catch (AssertionError e) {
+            assertThat(e.getMessage().startsWith("Expected at most 3 SELECT on dps_user but got 4"), is(true));
+        }
+    }
+
+    @Test
+    public void testGetTables() {
+        assertThat(
+                SQLRecorder.getTables("select a.x from \"PUBLIC\".\"DPS_USER\" a, dps_other b where a.x = b.y"),
+                is((Object) SQLRecorder.getTables("SELECT * FROM dps_user JOIN dps_other ON 1 = 1"))
+        );
+        assertThat(SQLRecorder.getTables("UPDATE dps_user SET login = ?").contains("dps_user"), is(true));
+    }
+}
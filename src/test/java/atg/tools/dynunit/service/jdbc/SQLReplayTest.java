@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.service.jdbc;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.sql.DataSource;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.util.Arrays;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.h2;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.hsqldb;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.queryInt;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class SQLReplayTest {
+
+    private static final String TRACE = "# sample\n"
+                                        + "CREATE TABLE item (id VARCHAR(40) PRIMARY KEY, price INTEGER)\n"
+                                        + "INSERT INTO item VALUES (?, ?)\tsku1\t100\n"
+                                        + "INSERT INTO item VALUES (?, ?)\tsku2\t\\N\n"
+                                        + "\n"
+                                        + "SELECT id, price FROM item WHERE id = ?\tsku1\n"
+                                        + "UPDATE item SET price = ? WHERE id = ?\t200\tsku1\n";
+
+    @Test
+    public void testTraceRoundTrip()
+            throws Exception {
+        final SQLTrace trace = SQLTrace.read(new StringReader(TRACE));
+        assertThat(trace.getEntries().size(), is(5));
+        assertThat(trace.getEntries().get(0).getType(), is("CREATE"));
+        assertThat(trace.getEntries().get(2).getParameters().get(1), is(nullValue()));
+
+        final SQLTrace escaped = new SQLTrace(
+                Arrays.asList(new SQLTrace.Entry("SELECT 'a\tb'\nFROM t", Arrays.asList("c:\\temp", "")))
+        );
+        final StringWriter out = new StringWriter();
+        escaped.write(out);
+        assertThat(out.toString(), is("SELECT 'a\\tb'\\nFROM t\tc:\\\\temp\t\n"));
+        final SQLTrace.Entry entry = SQLTrace.read(new StringReader(out.toString())).getEntries().get(0);
+        assertThat(entry.getSql(), is("SELECT 'a\tb'\nFROM t"));
+        assertThat(entry.getParameters(), is(Arrays.asList("c:\\temp", "")));
+    }
+
+    @Test
+    public void testReplayHSQLDB()
+            throws Exception {
+        assertReplay(hsqldb("replay"));
+    }
+
+    @Test
+    public void testReplayH2()
+            throws Exception {
+        assertReplay(h2("replay"));
+    }
+
+    @Test
+    public void testReplayDerby()
+            throws Exception {
+        final EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:replay");
+        dataSource.setCreateDatabase("create");
+        assertReplay(dataSource);
+    }
+
+    @Test
+    public void testConcurrentThreadsDoNotBlockEachOther()
+            throws Exception {
+        final EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:replayconcurrent");
+        dataSource.setCreateDatabase("create");
+        final SQLReplay replay = new SQLReplay(SQLTrace.read(new StringReader(TRACE)));
+        replay.setThreads(4);
+        replay.setThinkTimeMillis(1);
+        assertReplay(replay, dataSource, 4);
+    }
+
+    private static void assertReplay(DataSource pDataSource)
+            throws Exception {
+        assertReplay(new SQLReplay(SQLTrace.read(new StringReader(TRACE))), pDataSource, 1);
+    }
+
+    private static void assertReplay(SQLReplay pReplay, DataSource pDataSource, int pThreads)
+            throws Exception {
+        pReplay.setIterations(20);
+        final SQLReplay.Result result = pReplay.replay(pDataSource);
+        assertThat(result.getSetupErrors(), is(0));
+        assertThat(result.getStatements().size(), is(3));
+        for (String sql : result.getStatements()) {
+            assertThat(sql, result.getErrors(sql), is(0L));
+        }
+        assertThat(result.getLatencies("INSERT INTO item VALUES (?, ?)").getCount(), is(40L * pThreads));
+        assertThat(result.getLatencies("SELECT id, price FROM item WHERE id = ?").getCount(), is(20L * pThreads));
+        assertThat(result.findRegressions(result, 1).isEmpty(), is(true));
+
+        final Connection connection = pDataSource.getConnection();
+        try {
+            assertThat("rolled back", queryInt(connection, "SELECT COUNT(*) FROM item"), is(0));
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test;
+
+import atg.tools.dynunit.service.jdbc.RecordingDataSource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.junit.runners.model.Statement;
+
+import java.sql.Connection;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.hsqldb;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.queryInt;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.shutdown;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.update;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Wires the rule the way its documentation shows, from a data source created once per class.
+ */
+@RunWith(JUnit4.class)
+public class QueryBudgetRuleTest {
+
+    private static RecordingDataSource recordingDataSource;
+
+    private static Connection connection;
+
+    @Rule
+    public QueryBudgetRule queries = new QueryBudgetRule(recordingDataSource);
+
+    @BeforeClass
+    public static void setUpClass()
+            throws Exception {
+        recordingDataSource = new RecordingDataSource(hsqldb("querybudget"));
+        connection = recordingDataSource.getConnection();
+        update(connection, "CREATE TABLE dps_user (id VARCHAR(40) PRIMARY KEY)");
+    }
+
+    @AfterClass
+    public static void tearDownClass()
+            throws Exception {
+        shutdown(connection);
+    }
+
+    @Test
+    public void testRecordsStatementsOfTheTestOnly()
+            throws Exception {
+        queries.expectAtMost(1, "SELECT", "dps_user");
+        queryInt(connection, "SELECT COUNT(*) FROM dps_user");
+        assertThat(queries.getRecorder().count(null, null), is(1));
+    }
+
+    @Test
+    public void testExceededBudgetFailsTest()
+            throws Throwable {
+        final QueryBudgetRule rule = new QueryBudgetRule(recordingDataSource);
+        final Statement test = new Statement() {
+            @Override
+            public void evaluate()
+                    throws Throwable {
+                rule.expectAtMost(1, "SELECT", "dps_user");
+                queryInt(connection, "SELECT COUNT(*) FROM dps_user");
+                queryInt(connection, "SELECT COUNT(*) FROM dps_user");
+            }
+        };
+        boolean failed = false;
+        try {
+            rule.apply(test, Description.EMPTY).evaluate();
+        } catch (AssertionError e) {
+            failed = true;
+        }
+        assertThat(failed, is(true));
+        assertThat(rule.getRecorder().count("SELECT", "dps_user"), is(2));
+    }
+}
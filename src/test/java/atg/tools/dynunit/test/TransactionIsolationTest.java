@@ -0,0 +1,340 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.queryInt;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.shutdown;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.update;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs {@link TransactionIsolation} against a transaction manager which only tracks the status
+ * of its transactions and notifies their synchronizations.
+ */
+@RunWith(JUnit4.class)
+public class TransactionIsolationTest {
+
+    private SimpleTransactionManager transactionManager;
+
+    private TransactionIsolation isolation;
+
+    @Before
+    public void setUp() {
+        transactionManager = new SimpleTransactionManager();
+        isolation = new TransactionIsolation(transactionManager);
+    }
+
+    @Test
+    public void testIsolatingTransactionIsRolledBack()
+            throws Exception {
+        isolation.begin();
+        final Transaction transaction = transactionManager.getTransaction();
+        // the code under test suspends the transaction and never resumes it
+        transactionManager.suspend();
+        isolation.end();
+
+        assertThat(transaction.getStatus(), is(Status.STATUS_ROLLEDBACK));
+        assertThat(transactionManager.getTransaction(), is(nullValue()));
+        assertThat(isolation.getDepth(), is(0));
+    }
+
+    @Test
+    public void testRequiresNewIsNotIsolated()
+            throws Exception {
+        isolation.begin();
+        final Transaction isolating = transactionManager.getTransaction();
+        // what a REQUIRES_NEW demarcation does
+        final Transaction suspended = transactionManager.suspend();
+        transactionManager.begin();
+        final Transaction requiresNew = transactionManager.getTransaction();
+        transactionManager.commit();
+        transactionManager.resume(suspended);
+        isolation.end();
+
+        assertThat(isolating.getStatus(), is(Status.STATUS_ROLLEDBACK));
+        assertThat(requiresNew.getStatus(), is(Status.STATUS_COMMITTED));
+    }
+
+    @Test
+    public void testNestedLevelRollsBackOnlyItsOwnWrites()
+            throws Exception {
+        final TransactionalDataSource dataSource = new TransactionalDataSource(transactionManager);
+        final Connection setup = dataSource.getConnection();
+        try {
+            update(setup, "CREATE TABLE song (id INT PRIMARY KEY)");
+            isolation.addDataSource(dataSource);
+            isolation.begin();
+            insertSong(dataSource, 1);
+
+            isolation.begin();
+            insertSong(dataSource, 2);
+            insertSong(dataSource, 3);
+            assertThat(countSongs(dataSource), is(3));
+            isolation.end();
+
+            assertThat(countSongs(dataSource), is(1));
+            insertSong(dataSource, 2);
+            isolation.end();
+
+            assertThat(queryInt(setup, "SELECT COUNT(*) FROM song"), is(0));
+        } finally {
+            shutdown(setup);
+        }
+    }
+
+    /**
+     * Writes the way a repository does, through a connection borrowed for a single operation.
+     */
+    private static void insertSong(TransactionalDataSource pDataSource, int pId)
+            throws SQLException {
+        final Connection connection = pDataSource.getConnection();
+        try {
+            update(connection, "INSERT INTO song (id) VALUES (" + pId + ")");
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static int countSongs(TransactionalDataSource pDataSource)
+            throws SQLException {
+        final Connection connection = pDataSource.getConnection();
+        try {
+            return queryInt(connection, "SELECT COUNT(*) FROM song");
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Hands out the connection enlisted in the current transaction on every call, like the
+     * {@code JTDataSource} of a repository does. Closing it only closes the handle; the
+     * connection is committed or rolled back with the transaction.
+     */
+    private static class TransactionalDataSource
+            extends JDBCDataSource {
+
+        private final SimpleTransactionManager transactionManager;
+
+        private final Map<Transaction, Connection> enlisted = new HashMap<Transaction, Connection>();
+
+        TransactionalDataSource(SimpleTransactionManager pTransactionManager) {
+            transactionManager = pTransactionManager;
+            setUrl("jdbc:hsqldb:mem:transactionisolation");
+            setUser("sa");
+            setPassword("");
+        }
+
+        @Override
+        public Connection getConnection()
+                throws SQLException {
+            final SimpleTransaction transaction = transactionManager.getTransaction();
+            if (transaction == null) {
+                return super.getConnection();
+            }
+            Connection connection = enlisted.get(transaction);
+            if (connection == null) {
+                connection = enlist(transaction, super.getConnection());
+            }
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(), new Class<?>[]{ Connection.class }, new Handle(connection)
+            );
+        }
+
+        private Connection enlist(final SimpleTransaction pTransaction, final Connection pConnection)
+                throws SQLException {
+            pConnection.setAutoCommit(false);
+            enlisted.put(pTransaction, pConnection);
+            pTransaction.registerSynchronization(
+                    new Synchronization() {
+                        @Override
+                        public void beforeCompletion() {
+                        }
+
+                        @Override
+                        public void afterCompletion(int status) {
+                            enlisted.remove(pTransaction);
+                            try {
+                                if (status == Status.STATUS_COMMITTED) {
+                                    pConnection.commit();
+                                } else {
+                                    pConnection.rollback();
+                                }
+                                pConnection.close();
+                            } catch (SQLException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+                    }
+            );
+            return pConnection;
+        }
+    }
+
+    private static class Handle
+            implements InvocationHandler {
+
+        private final Connection connection;
+
+        Handle(Connection pConnection) {
+            connection = pConnection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            if ("close".equals(method.getName())) {
+                return null;
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static class SimpleTransaction
+            implements Transaction {
+
+        private final List<Synchronization> synchronizations = new ArrayList<Synchronization>();
+
+        private int status = Status.STATUS_ACTIVE;
+
+        @Override
+        public void commit() {
+            complete(Status.STATUS_COMMITTED);
+        }
+
+        @Override
+        public boolean delistResource(XAResource xaRes, int flag) {
+            return false;
+        }
+
+        @Override
+        public boolean enlistResource(XAResource xaRes) {
+            return false;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public void registerSynchronization(Synchronization sync) {
+            synchronizations.add(sync);
+        }
+
+        @Override
+        public void rollback() {
+            complete(Status.STATUS_ROLLEDBACK);
+        }
+
+        private void complete(int pStatus) {
+            status = pStatus;
+            for (Synchronization synchronization : synchronizations) {
+                synchronization.afterCompletion(pStatus);
+            }
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            status = Status.STATUS_MARKED_ROLLBACK;
+        }
+    }
+
+    private static class SimpleTransactionManager
+            implements TransactionManager {
+
+        private SimpleTransaction current;
+
+        @Override
+        public void begin() {
+            if (current != null) {
+                throw new IllegalStateException("Nested transactions are not supported");
+            }
+            current = new SimpleTransaction();
+        }
+
+        @Override
+        public void commit() {
+            current.commit();
+            current = null;
+        }
+
+        @Override
+        public int getStatus() {
+            return current == null ? Status.STATUS_NO_TRANSACTION : current.getStatus();
+        }
+
+        @Override
+        public SimpleTransaction getTransaction() {
+            return current;
+        }
+
+        @Override
+        public void resume(Transaction tobj) {
+            current = (SimpleTransaction) tobj;
+        }
+
+        @Override
+        public void rollback() {
+            current.rollback();
+            current = null;
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            current.setRollbackOnly();
+        }
+
+        @Override
+        public void setTransactionTimeout(int seconds) {
+        }
+
+        @Override
+        public Transaction suspend() {
+            final Transaction suspended = current;
+            current = null;
+            return suspended;
+        }
+    }
+}
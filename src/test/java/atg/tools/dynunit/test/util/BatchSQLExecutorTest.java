@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.openHSQLDB;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.queryInt;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.shutdown;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class BatchSQLExecutorTest {
+
+    private Connection connection;
+
+    @Before
+    public void setUp()
+            throws Exception {
+        connection = openHSQLDB("batchtest");
+    }
+
+    @After
+    public void tearDown()
+            throws Exception {
+        shutdown(connection);
+    }
+
+    @Test
+    public void testParseInsert() {
+        BatchSQLExecutor.Insert insert = BatchSQLExecutor.Insert.parse(
+                "insert into foo (id, name, price) values ('it''s', NULL, -1.5)"
+        );
+        assertThat(insert, is(notNullValue()));
+        assertThat(
+                insert.getPreparedSql(), is("insert into foo (id, name, price) VALUES (?, ?, ?)")
+        );
+        assertThat(insert.values, is(Arrays.<Object>asList("it's", null, new BigDecimal("-1.5"))));
+
+        insert = BatchSQLExecutor.Insert.parse("INSERT INTO foo VALUES ('a', CURRENT_TIMESTAMP)");
+        assertThat(insert, is(notNullValue()));
+        assertThat(insert.values, is(nullValue()));
+
+        assertThat(BatchSQLExecutor.Insert.parse("UPDATE foo SET id = 'a'"), is(nullValue()));
+    }
+
+    @Test
+    public void testBatchesInserts()
+            throws Exception {
+        List<String> statements = new ArrayList<String>();
+        statements.add("create table foo (id varchar(40) not null, amount integer, note varchar(40), primary key(id))");
+        for (int i = 0; i < 25; i++) {
+            statements.add("insert into foo (id, amount, note) values ('id" + i + "', " + i + ", NULL)");
+        }
+        statements.add("insert into foo (id, amount, note) values ('now', 100, CURRENT_USER)");
+        statements.add("update foo set note = 'x' where amount < 5");
+
+        BatchSQLExecutor executor = new BatchSQLExecutor(connection);
+        executor.setBatchSize(10);
+        executor.setCommitInterval(1000);
+        BatchSQLExecutor.Statistics statistics = executor.execute(statements.iterator());
+
+        assertThat(statistics.getStatements(), is(28L));
+        assertThat(statistics.getFailures(), is(0L));
+        assertThat(statistics.getCommits(), is(0L));
+        // 10 + 10 + 5 prepared inserts, plus the plain insert
+        assertThat(statistics.getBatches(), is(4L));
+        assertThat(statistics.getRows(), is(31L));
+        assertThat(connection.getAutoCommit(), is(true));
+        assertThat(queryInt(connection, "select count(*) from foo"), is(26));
+        assertThat(queryInt(connection, "select sum(amount) from foo"), is(400));
+        assertThat(queryInt(connection, "select count(*) from foo where note = 'x'"), is(5));
+    }
+
+    @Test
+    public void testFailuresAreSkipped()
+            throws Exception {
+        BatchSQLExecutor executor = new BatchSQLExecutor(connection);
+        BatchSQLExecutor.Statistics statistics = executor.execute(
+                Arrays.asList(
+                        "create table bar (id integer not null, primary key(id))",
+                        "insert into bar values (1)",
+                        "insert into missing values (1)",
+                        "insert into bar values (2)"
+                ).iterator()
+        );
+        assertThat(statistics.getFailures(), is(1L));
+        assertThat(queryInt(connection, "select count(*) from bar"), is(2));
+    }
+
+    @Test
+    public void testStatementsAfterAFailureInABatchAreExecuted()
+            throws Exception {
+        List<String> statements = new ArrayList<String>();
+        statements.add("create table baz (id integer not null, primary key(id))");
+        for (int i = 0; i < 10; i++) {
+            statements.add("insert into baz values (" + (i == 6 ? 3 : i) + ")");
+        }
+        BatchSQLExecutor executor = new BatchSQLExecutor(connection);
+        executor.setBatchSize(20);
+        BatchSQLExecutor.Statistics statistics = executor.execute(statements.iterator());
+        assertThat(statistics.getFailures(), is(1L));
+        assertThat(statistics.getRows(), is(9L));
+        assertThat(queryInt(connection, "select count(*) from baz"), is(9));
+        assertThat(queryInt(connection, "select count(*) from baz where id > 6"), is(3));
+    }
+
+    @Test(expected = SQLException.class)
+    public void testStopOnError()
+            throws Exception {
+        BatchSQLExecutor executor = new BatchSQLExecutor(connection);
+        executor.setStopOnError(true);
+        executor.execute(Arrays.asList("drop table missing").iterator());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test.util;
+
+import atg.tools.dynunit.service.jdbc.RecordingDataSource;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.hsqldb;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.openHSQLDB;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.queryString;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.shutdown;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.update;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class DatabaseSnapshotTest {
+
+    @Test
+    public void testRestoreOnlyChangedTables()
+            throws Exception {
+        Connection connection = openHSQLDB("snapshottest");
+        try {
+            createSchema(connection);
+            DatabaseSnapshot snapshot = DatabaseSnapshot.capture(connection);
+            assertThat(snapshot.restore(connection), is(0));
+
+            update(connection, "delete from child");
+            update(connection, "delete from parent");
+            update(connection, "insert into parent values ('c', 'gamma', null)");
+            assertThat(snapshot.restore(connection), is(2));
+            assertThat(queryString(connection, "select group_concat(id order by id) from parent"), is("a,b"));
+            assertThat(queryString(connection, "select name from child where id = 1"), is("one"));
+            assertThat(snapshot.restore(connection), is(0));
+        } finally {
+            shutdown(connection);
+        }
+    }
+
+    @Test
+    public void testRestoreWrittenTablesOnly()
+            throws Exception {
+        final RecordingDataSource dataSource = new RecordingDataSource(hsqldb("snapshotwritten"));
+        Connection connection = dataSource.getConnection();
+        try {
+            createSchema(connection);
+            DatabaseSnapshot snapshot = DatabaseSnapshot.capture(connection);
+            dataSource.getRecorder().clear();
+
+            update(connection, "update child set name = 'uno' where id = 1");
+            assertThat(dataSource.getRecorder().getWrittenTables().toString(), is("[child]"));
+            // not recorded, so restoring does not notice it
+            dataSource.getRecorder().setEnabled(false);
+            update(connection, "update parent set name = 'ALPHA' where id = 'a'");
+
+            assertThat(snapshot.restore(connection, dataSource.getRecorder().getWrittenTables()), is(1));
+            assertThat(queryString(connection, "select name from child where id = 1"), is("one"));
+            assertThat(queryString(connection, "select name from parent where id = 'a'"), is("ALPHA"));
+            assertThat(snapshot.restore(connection), is(1));
+        } finally {
+            shutdown(connection);
+        }
+    }
+
+    @Test
+    public void testRestoreAfterShutdown()
+            throws Exception {
+        Class.forName("org.h2.Driver");
+        Connection connection = DriverManager.getConnection("jdbc:h2:mem:snapshottest", "sa", "");
+        createSchema(connection);
+        DatabaseSnapshot snapshot = DatabaseSnapshot.capture(connection);
+        connection.close();
+
+        connection = DriverManager.getConnection("jdbc:h2:mem:snapshottest", "sa", "");
+        try {
+            assertThat(snapshot.restore(connection), is(3));
+            assertThat(queryString(connection, "select count(*) from child"), is("2"));
+            assertThat(queryString(connection, "select data from parent where id = 'b'"), is("010203"));
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testChecksumDetectsValuesWithEqualHashCodes()
+            throws Exception {
+        Connection connection = openHSQLDB("snapshotchecksum");
+        try {
+            createSchema(connection);
+            update(connection, "update parent set name = 'Aa' where id = 'a'");
+            DatabaseSnapshot snapshot = DatabaseSnapshot.capture(connection);
+            // "Aa" and "BB" have the same String.hashCode()
+            update(connection, "update parent set name = 'BB' where id = 'a'");
+            assertThat(snapshot.restore(connection), is(1));
+            assertThat(queryString(connection, "select name from parent where id = 'a'"), is("Aa"));
+        } finally {
+            shutdown(connection);
+        }
+    }
+
+    @Test
+    public void testRestoreInForeignKeyOrder()
+            throws Exception {
+        // Derby's referential integrity cannot be switched off
+        Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+        Connection connection = DriverManager.getConnection("jdbc:derby:memory:snapshotorder;create=true");
+        try {
+            update(connection, "create table parent (id varchar(10) not null, name varchar(20), primary key(id))");
+            update(connection, "create table child (id integer not null, parent_id varchar(10), primary key(id), "
+                               + "foreign key (parent_id) references parent(id))");
+            update(connection, "insert into parent values ('a', 'alpha')");
+            update(connection, "insert into child values (1, 'a')");
+            DatabaseSnapshot snapshot = DatabaseSnapshot.capture(connection);
+            assertThat(snapshot.getTableNames().toString(), is("[APP.PARENT, APP.CHILD]"));
+
+            update(connection, "insert into parent values ('b', 'beta')");
+            update(connection, "insert into child values (2, 'b')");
+            assertThat(snapshot.restore(connection), is(2));
+            assertThat(queryString(connection, "select count(*) from child"), is("1"));
+            assertThat(queryString(connection, "select count(*) from parent"), is("1"));
+        } finally {
+            connection.close();
+            try {
+                DriverManager.getConnection("jdbc:derby:memory:snapshotorder;drop=true");
+            } catch (SQLException e) {
+                // a dropped database always reports 08006
+            }
+        }
+    }
+
+    private static void createSchema(Connection pConnection)
+            throws SQLException {
+        update(pConnection, "create table parent (id varchar(10) not null, name varchar(20), data varbinary(10), primary key(id))");
+        update(pConnection, "create table child (id integer not null, parent_id varchar(10), name varchar(20), primary key(id), foreign key (parent_id) references parent(id))");
+        update(pConnection, "create table empty (id integer not null, primary key(id))");
+        update(pConnection, "insert into parent values ('a', 'alpha', null)");
+        update(pConnection, "insert into parent values ('b', 'beta', X'010203')");
+        update(pConnection, "insert into child values (1, 'a', 'one')");
+        update(pConnection, "insert into child values (2, 'b', 'two')");
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test.util;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * In-memory databases and plain JDBC shortcuts shared by the tests which run against a real
+ * database.
+ */
+public final class JDBCTestUtils {
+
+    private JDBCTestUtils() {
+    }
+
+    /**
+     * Returns a data source for the named in-memory HSQL database, created on first use.
+     */
+    @NotNull
+    public static JDBCDataSource hsqldb(@NotNull String pName) {
+        final JDBCDataSource dataSource = new JDBCDataSource();
+        dataSource.setUrl("jdbc:hsqldb:mem:" + pName);
+        dataSource.setUser("sa");
+        dataSource.setPassword("");
+        return dataSource;
+    }
+
+    /**
+     * Returns a data source for the named in-memory H2 database, which lives until the JVM exits
+     * or it is shut down.
+     */
+    @NotNull
+    public static JdbcDataSource h2(@NotNull String pName) {
+        final JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + pName + ";DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+        dataSource.setPassword("");
+        return dataSource;
+    }
+
+    /**
+     * Opens a connection to the named in-memory HSQL database. Release it with
+     * {@link #shutdown(Connection)} so the next test starts with an empty database.
+     */
+    @NotNull
+    public static Connection openHSQLDB(@NotNull String pName)
+            throws SQLException {
+        return hsqldb(pName).getConnection();
+    }
+
+    public static void update(@NotNull Connection pConnection, @NotNull String pSql)
+            throws SQLException {
+        final Statement statement = pConnection.createStatement();
+        try {
+            statement.execute(pSql);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Returns the first column of the first row of a query.
+     */
+    @Nullable
+    public static String queryString(@NotNull Connection pConnection, @NotNull String pSql)
+            throws SQLException {
+        final Statement statement = pConnection.createStatement();
+        try {
+            final ResultSet resultSet = statement.executeQuery(pSql);
+            resultSet.next();
+            return resultSet.getString(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Returns the first column of the first row of a query, e.g. a {@code COUNT(*)}.
+     */
+    public static int queryInt(@NotNull Connection pConnection, @NotNull String pSql)
+            throws SQLException {
+        final Statement statement = pConnection.createStatement();
+        try {
+            final ResultSet resultSet = statement.executeQuery(pSql);
+            resultSet.next();
+            return resultSet.getInt(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Shuts down the HSQL or H2 database of the connection, dropping an in-memory database, and
+     * closes the connection.
+     */
+    public static void shutdown(@NotNull Connection pConnection)
+            throws SQLException {
+        try {
+            update(pConnection, "SHUTDOWN");
+        } finally {
+            pConnection.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest {
+
+    @Test
+    public void testSmallValuesAreExact() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getMin(), is(1L));
+        assertThat(histogram.getMax(), is(100L));
+        assertThat(histogram.getMean(), is(50.5));
+        assertThat(histogram.getValueAtPercentile(50), is(50L));
+        assertThat(histogram.getValueAtPercentile(99), is(99L));
+        assertThat(histogram.getValueAtPercentile(100), is(100L));
+    }
+
+    @Test
+    public void testLargeValuesWithinPrecision() {
+        final LatencyHistogram first = new LatencyHistogram();
+        final LatencyHistogram second = new LatencyHistogram();
+        for (long i = 1; i <= 100000; i++) {
+            (i % 2 == 0 ? first : second).record(i * 1000);
+        }
+        first.add(second);
+        assertThat(first.getCount(), is(100000L));
+        assertWithin(first.getValueAtPercentile(50), 50000000L);
+        assertWithin(first.getValueAtPercentile(95), 95000000L);
+        assertWithin(first.getValueAtPercentile(99.9), 99900000L);
+        assertThat(first.getValueAtPercentile(100), is(100000000L));
+    }
+
+    @Test
+    public void testBucketBoundaries() {
+        for (long value : new long[]{ 0, 1, 127, 128, 129, 255, 256, 1000003, Long.MAX_VALUE }) {
+            final int index = LatencyHistogram.index(value);
+            assertThat(LatencyHistogram.highestValue(index) >= value, is(true));
+            assertThat(index == 0 || LatencyHistogram.highestValue(index - 1) < value, is(true));
+        }
+    }
+
+    private static void assertWithin(long pActual, long pExpected) {
+        assertThat(pActual + " ~ " + pExpected, Math.abs(pActual - pExpected) <= pExpected / 60, is(true));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test.util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.openHSQLDB;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.queryInt;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.shutdown;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.update;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class TableExporterTest {
+
+    private static final int ROWS = 2000;
+
+    @Test
+    public void testCsvRoundTrip()
+            throws Exception {
+        assertRoundTrip(TableExporter.Format.CSV);
+    }
+
+    @Test
+    public void testBinaryRoundTrip()
+            throws Exception {
+        assertRoundTrip(TableExporter.Format.BINARY);
+    }
+
+    @Test
+    public void testCsvQuoting()
+            throws Exception {
+        final Connection connection = openHSQLDB("exportquoting");
+        try {
+            update(connection, "CREATE TABLE t (id INTEGER, name VARCHAR(40))");
+            update(connection, "INSERT INTO t VALUES (1, 'a,\"b\"'), (2, ''), (3, NULL)");
+            final TableExporter exporter = new TableExporter();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            exporter.exportTable(connection, "t", out);
+            assertThat(out.toString("UTF-8"), is("ID,NAME\r\n1,\"a,\"\"b\"\"\"\r\n2,\"\"\r\n3,\r\n"));
+        } finally {
+            shutdown(connection);
+        }
+    }
+
+    @Test
+    public void testFailedExportRestoresAutoCommit()
+            throws Exception {
+        final Connection connection = openHSQLDB("exportfailure");
+        try {
+            try {
+                new TableExporter().exportTable(connection, "missing", new ByteArrayOutputStream());
+                fail("Expected SQLException");
+            } catch (SQLException e) {
+                // expected
+            }
+            assertThat(connection.getAutoCommit(), is(true));
+        } finally {
+            shutdown(connection);
+        }
+    }
+
+    private static void assertRoundTrip(TableExporter.Format pFormat)
+            throws Exception {
+        final Connection connection = openHSQLDB("export" + pFormat);
+        try {
+            final String columns = "(id VARCHAR(40) PRIMARY KEY, name VARCHAR(200), amount DECIMAL(10,2), "
+                                   + "counter BIGINT, created TIMESTAMP, active BOOLEAN, data VARBINARY(16))";
+            update(connection, "CREATE TABLE source " + columns);
+            update(connection, "CREATE TABLE target " + columns);
+            final PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO source VALUES (?, ?, ?, ?, ?, ?, ?)"
+            );
+            for (int i = 0; i < ROWS; i++) {
+                insert.setString(1, "id" + i);
+                insert.setString(2, i % 7 == 0 ? null : "name " + i + ",\"quoted\"\nline");
+                insert.setBigDecimal(3, new BigDecimal(i + ".25"));
+                insert.setLong(4, i * 1000000007L);
+                insert.setTimestamp(5, new Timestamp(1356998400000L + i * 1000L));
+                insert.setBoolean(6, i % 2 == 0);
+                insert.setBytes(7, new byte[]{ (byte) i, (byte) (i >> 8), -1 });
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            insert.close();
+
+            final TableExporter exporter = new TableExporter();
+            exporter.setFormat(pFormat);
+            exporter.setFetchSize(100);
+            exporter.setBatchSize(64);
+            exporter.setCommitInterval(500);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertThat(exporter.exportTable(connection, "source", out), is((long) ROWS));
+            assertThat(
+                    exporter.importTable(connection, "target", new ByteArrayInputStream(out.toByteArray())),
+                    is((long) ROWS)
+            );
+            assertThat(queryInt(connection, "SELECT COUNT(*) FROM target"), is(ROWS));
+            assertThat(
+                    queryInt(
+                            connection,
+                            "SELECT COUNT(*) FROM source s JOIN target t ON s.id = t.id "
+                            + "AND (s.name = t.name OR s.name IS NULL AND t.name IS NULL) AND s.amount = t.amount "
+                            + "AND s.counter = t.counter AND s.created = t.created AND s.active = t.active "
+                            + "AND s.data = t.data"
+                    ),
+                    is(ROWS)
+            );
+        } finally {
+            shutdown(connection);
+        }
+    }
+}
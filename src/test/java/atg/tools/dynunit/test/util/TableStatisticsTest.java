@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Matt Sicker and Contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package atg.tools.dynunit.test.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static atg.tools.dynunit.test.util.JDBCTestUtils.openHSQLDB;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.shutdown;
+import static atg.tools.dynunit.test.util.JDBCTestUtils.update;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(JUnit4.class)
+public class TableStatisticsTest {
+
+    private Connection connection;
+
+    @Before
+    public void setUp()
+            throws Exception {
+        connection = openHSQLDB("statisticstest");
+        update(connection, "create table song (id varchar(10) not null, title varchar(20), primary key(id))");
+        update(connection, "create table artist (id varchar(10) not null, primary key(id))");
+        update(connection, "insert into song values ('s1', 'one')");
+        update(connection, "insert into song values ('s2', 'two')");
+    }
+
+    @After
+    public void tearDown()
+            throws SQLException {
+        shutdown(connection);
+    }
+
+    @Test
+    public void testRowCounts()
+            throws Exception {
+        Map<String, TableStatistics> statistics = TableStatistics.collect(connection, false, "song", "ARTIST");
+        assertThat(new ArrayList<String>(statistics.keySet()), is(Arrays.asList("song", "ARTIST")));
+        assertThat(statistics.get("song").getRowCount(), is(2L));
+        assertThat(statistics.get("ARTIST").getRowCount(), is(0L));
+        assertThat(statistics.get("song").getChecksum(), is(nullValue()));
+
+        assertThat(TableStatistics.collect(connection, false).size(), is(2));
+    }
+
+    @Test
+    public void testChecksumsDetectChanges()
+            throws Exception {
+        Map<String, TableStatistics> before = TableStatistics.collect(connection, true);
+        assertThat(before.get("SONG").getRowCount(), is(2L));
+        assertThat(TableStatistics.collect(connection, true), is(before));
+
+        update(connection, "update song set title = 'uno' where id = 's1'");
+        Map<String, TableStatistics> after = TableStatistics.collect(connection, true);
+        assertThat(after.get("SONG").getRowCount(), is(2L));
+        assertThat(after.get("SONG"), is(not(before.get("SONG"))));
+        assertThat(after.get("ARTIST"), is(before.get("ARTIST")));
+    }
+
+    @Test(expected = SQLException.class)
+    public void testUnknownTable()
+            throws Exception {
+        TableStatistics.collect(connection, false, "album");
+    }
+}